@@ -16,22 +16,37 @@
 package org.scleropages.kapuas.configuration;
 
 import com.alibaba.druid.pool.DruidDataSource;
+import com.google.common.collect.Lists;
+import com.google.common.collect.Maps;
 import com.zaxxer.hikari.HikariDataSource;
+import org.apache.shiro.session.Session;
+import org.apache.shiro.subject.Subject;
+import org.apache.shiro.util.ThreadContext;
 import org.scleropages.core.util.RandomGenerator;
 import org.scleropages.core.util.SecureRandomGenerator;
 import org.scleropages.crud.configure.CrudFeaturesImporter;
 import org.scleropages.crud.dao.jdbc.FrameworkRoutingDataSource;
+import org.scleropages.kapuas.jdbc.AclShardingDataSourceFactory;
+import org.scleropages.kapuas.jdbc.ReadReplicaRoutingDataSource;
 import org.springframework.beans.factory.annotation.Qualifier;
 import org.springframework.boot.autoconfigure.condition.ConditionalOnProperty;
 import org.springframework.boot.autoconfigure.jdbc.DataSourceProperties;
 import org.springframework.boot.context.properties.ConfigurationProperties;
+import org.springframework.boot.context.properties.bind.Bindable;
+import org.springframework.boot.context.properties.bind.Binder;
 import org.springframework.context.annotation.Bean;
 import org.springframework.context.annotation.Configuration;
 import org.springframework.context.annotation.Import;
 import org.springframework.context.annotation.Primary;
+import org.springframework.core.env.Environment;
+import org.springframework.jdbc.datasource.LazyConnectionDataSourceProxy;
+import org.springframework.util.Assert;
 import org.springframework.util.StringUtils;
 
 import javax.sql.DataSource;
+import java.util.List;
+import java.util.Map;
+import java.util.Properties;
 
 /**
  * @author <a href="mailto:martinmao@icloud.com">Martin Mao</a>
@@ -156,6 +171,221 @@ public class ApplicationConfiguration {
 
     }
 
+    /**
+     * 读写分离(只读事务路由到副本). 与多数据源配置(datasource-multiple)互斥.
+     */
+    @Configuration
+    @ConditionalOnProperty(name = "datasource-replica.enabled", havingValue = "true")
+    public static class ReadReplicaDataSourceConfiguration {
+
+        @ConfigurationProperties(prefix = "datasource-replica")
+        @Bean
+        public ReadReplicaProperties readReplicaProperties() {
+            return new ReadReplicaProperties();
+        }
+
+        @Bean
+        public ReadReplicaRoutingDataSource readReplicaRoutingDataSource(DataSourceProperties properties, ReadReplicaProperties replicaProperties, Environment environment) throws Exception {
+            ReadReplicaRoutingDataSource dataSource = new ReadReplicaRoutingDataSource();
+            dataSource.setPrimary(createPooledDataSource(properties, environment));
+            for (DataSourceProperties replica : replicaProperties.getReplicas()) {
+                replica.afterPropertiesSet();
+                dataSource.addReplica(replica.getName(), createPooledDataSource(replica, environment));
+            }
+            dataSource.setSelectionStrategy(replicaProperties.getStrategy());
+            dataSource.setLagQuery(replicaProperties.getLagQuery());
+            dataSource.setMaximumLagMillis(replicaProperties.getMaximumLagMillis());
+            dataSource.setCheckIntervalMillis(replicaProperties.getCheckIntervalMillis());
+            dataSource.setReadYourWritesMillis(replicaProperties.getReadYourWritesMillis());
+            dataSource.setSessionKeySupplier(() -> {
+                Subject subject = ThreadContext.getSubject();
+                Session session = null != subject ? subject.getSession(false) : null;
+                return null != session ? session.getId() : null;
+            });
+            return dataSource;
+        }
+
+        /**
+         * 只读标记在事务开始后绑定，延迟到首次执行语句时获取连接.
+         */
+        @Primary
+        @Bean
+        public DataSource dataSource(ReadReplicaRoutingDataSource readReplicaRoutingDataSource) {
+            return new LazyConnectionDataSourceProxy(readReplicaRoutingDataSource);
+        }
+
+        protected static DataSource createPooledDataSource(DataSourceProperties properties, Environment environment) {
+            DataSource dataSource = properties.initializeDataSourceBuilder().build();
+            if (dataSource instanceof DruidDataSource) {
+                Binder.get(environment).bind("spring.datasource.druid", Bindable.ofInstance((DruidDataSource) dataSource));
+                if (StringUtils.hasText(properties.getName()))
+                    ((DruidDataSource) dataSource).setName(properties.getName());
+            } else if (dataSource instanceof HikariDataSource) {
+                Binder.get(environment).bind("spring.datasource.hikari", Bindable.ofInstance((HikariDataSource) dataSource));
+                if (StringUtils.hasText(properties.getName()))
+                    ((HikariDataSource) dataSource).setPoolName(properties.getName());
+            }
+            return dataSource;
+        }
+
+        public static class ReadReplicaProperties {
+
+            private List<DataSourceProperties> replicas = Lists.newArrayList();
+
+            private ReadReplicaRoutingDataSource.SelectionStrategy strategy = ReadReplicaRoutingDataSource.SelectionStrategy.ROUND_ROBIN;
+
+            private String lagQuery;
+
+            private long maximumLagMillis = 1000;
+
+            private long checkIntervalMillis = 5000;
+
+            private long readYourWritesMillis = 0;
+
+            public List<DataSourceProperties> getReplicas() {
+                return replicas;
+            }
+
+            public ReadReplicaRoutingDataSource.SelectionStrategy getStrategy() {
+                return strategy;
+            }
+
+            public String getLagQuery() {
+                return lagQuery;
+            }
+
+            public long getMaximumLagMillis() {
+                return maximumLagMillis;
+            }
+
+            public long getCheckIntervalMillis() {
+                return checkIntervalMillis;
+            }
+
+            public long getReadYourWritesMillis() {
+                return readYourWritesMillis;
+            }
+
+            public void setReplicas(List<DataSourceProperties> replicas) {
+                this.replicas = replicas;
+            }
+
+            public void setStrategy(ReadReplicaRoutingDataSource.SelectionStrategy strategy) {
+                this.strategy = strategy;
+            }
+
+            public void setLagQuery(String lagQuery) {
+                this.lagQuery = lagQuery;
+            }
+
+            public void setMaximumLagMillis(long maximumLagMillis) {
+                this.maximumLagMillis = maximumLagMillis;
+            }
+
+            public void setCheckIntervalMillis(long checkIntervalMillis) {
+                this.checkIntervalMillis = checkIntervalMillis;
+            }
+
+            public void setReadYourWritesMillis(long readYourWritesMillis) {
+                this.readYourWritesMillis = readYourWritesMillis;
+            }
+        }
+    }
+
+    /**
+     * acl表按资源类型分库(sharding-jdbc). 默认分片使用 spring.datasource 配置，与多数据源配置(datasource-multiple)以及读写分离(datasource-replica)互斥.
+     */
+    @Configuration
+    @ConditionalOnProperty(name = "datasource-sharding.enabled", havingValue = "true")
+    public static class ShardingDataSourceConfiguration {
+
+        @ConfigurationProperties(prefix = "datasource-sharding")
+        @Bean
+        public ShardingProperties shardingProperties() {
+            return new ShardingProperties();
+        }
+
+        @Primary
+        @Bean
+        public DataSource dataSource(DataSourceProperties properties, ShardingProperties shardingProperties, Environment environment) throws Exception {
+            Assert.isTrue(!environment.getProperty("datasource-replica.enabled", Boolean.class, false), "datasource-sharding not support work with datasource-replica.");
+            Map<String, DataSource> shards = Maps.newLinkedHashMap();
+            shards.put(shardingProperties.getDefaultShard(), ReadReplicaDataSourceConfiguration.createPooledDataSource(properties, environment));
+            for (DataSourceProperties shard : shardingProperties.getShards()) {
+                Assert.hasText(shard.getName(), "shard name is required.");
+                Assert.isTrue(!shards.containsKey(shard.getName()), "duplicate shard: " + shard.getName());
+                shard.afterPropertiesSet();
+                shards.put(shard.getName(), ReadReplicaDataSourceConfiguration.createPooledDataSource(shard, environment));
+            }
+            return AclShardingDataSourceFactory.createDataSource(shards, shardingProperties.getDefaultShard(),
+                    shardingProperties.getResourceTypes(), shardingProperties.getHashShards(), shardingProperties.getWorkerId(), shardingProperties.getProps());
+        }
+
+        public static class ShardingProperties {
+
+            private String defaultShard = "ds0";
+
+            private List<DataSourceProperties> shards = Lists.newArrayList();
+
+            private Map<Long, String> resourceTypes = Maps.newHashMap();
+
+            //一致性哈希分片列表(下标即桶编号)，只能在末尾追加
+            private List<String> hashShards = Lists.newArrayList();
+
+            private long workerId = 0;
+
+            private Properties props = new Properties();
+
+            public String getDefaultShard() {
+                return defaultShard;
+            }
+
+            public List<DataSourceProperties> getShards() {
+                return shards;
+            }
+
+            public Map<Long, String> getResourceTypes() {
+                return resourceTypes;
+            }
+
+            public List<String> getHashShards() {
+                return hashShards;
+            }
+
+            public long getWorkerId() {
+                return workerId;
+            }
+
+            public Properties getProps() {
+                return props;
+            }
+
+            public void setDefaultShard(String defaultShard) {
+                this.defaultShard = defaultShard;
+            }
+
+            public void setShards(List<DataSourceProperties> shards) {
+                this.shards = shards;
+            }
+
+            public void setResourceTypes(Map<Long, String> resourceTypes) {
+                this.resourceTypes = resourceTypes;
+            }
+
+            public void setHashShards(List<String> hashShards) {
+                this.hashShards = hashShards;
+            }
+
+            public void setWorkerId(long workerId) {
+                this.workerId = workerId;
+            }
+
+            public void setProps(Properties props) {
+                this.props = props;
+            }
+        }
+    }
+
     @Bean
     public RandomGenerator randomGenerator() {
         return new SecureRandomGenerator();
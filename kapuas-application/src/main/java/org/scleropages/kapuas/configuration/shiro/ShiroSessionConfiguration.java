@@ -16,6 +16,10 @@
 package org.scleropages.kapuas.configuration.shiro;
 
 import com.esotericsoftware.kryo.Kryo;
+import com.esotericsoftware.kryo.Serializer;
+import com.esotericsoftware.kryo.io.Input;
+import com.esotericsoftware.kryo.io.Output;
+import com.esotericsoftware.kryo.serializers.FieldSerializer;
 import com.google.common.collect.Sets;
 import org.apache.shiro.mgt.SubjectFactory;
 import org.apache.shiro.session.mgt.SessionFactory;
@@ -34,6 +38,9 @@ import org.scleropages.kapuas.session.provider.shiro.ProxyCookie;
 import org.scleropages.kapuas.session.provider.shiro.RedisSessionDao;
 import org.scleropages.kapuas.session.provider.shiro.SimpleSessionAdapter;
 import org.scleropages.kapuas.session.provider.shiro.StatelessTokenWebSubjectFactory;
+import org.scleropages.kapuas.session.provider.shiro.codec.SimpleSessionCodec;
+import org.scleropages.kapuas.session.provider.shiro.invalidation.RedisSessionInvalidationTransport;
+import org.scleropages.kapuas.session.provider.shiro.invalidation.SessionInvalidationTransport;
 import org.scleropages.serialize.LookupSerializerFactory;
 import org.scleropages.serialize.SerialIdRegistry;
 import org.scleropages.serialize.SerializerFactory;
@@ -134,6 +141,18 @@ public class ShiroSessionConfiguration {
     @Value("#{ @environment['session.remote-session.enabled'] ?: false }")
     protected boolean remoteSessionEnabled;
 
+    @Value("#{ @environment['session.remote-session.invalidation.channel'] ?: 'session_invalidation' }")
+    protected String remoteSessionInvalidationChannel;
+
+    @Value("#{ @environment['session.remote-session.invalidation.heartbeat-interval-ms'] ?: 5000 }")
+    protected long remoteSessionInvalidationHeartbeatIntervalMillis;
+
+    @Value("#{ @environment['session.remote-session.compact-codec.enabled'] ?: false }")
+    protected boolean remoteSessionCompactCodecEnabled;
+
+    @Value("#{ @environment['session.remote-session.compact-codec.compression-threshold-bytes'] ?: 1024 }")
+    protected int remoteSessionCompressionThreshold;
+
 
     @Bean
     @ConditionalOnMissingBean
@@ -215,7 +234,8 @@ public class ShiroSessionConfiguration {
 
     @Bean
     @ConditionalOnMissingBean
-    public SessionDAO shiroSessionDao(@Autowired(required = false) List<SerializerFactory<InputStream, OutputStream>> serializerFactories, @Autowired(required = false) RedisClient redisClient, SessionFactory sessionFactory) {
+    public SessionDAO shiroSessionDao(@Autowired(required = false) List<SerializerFactory<InputStream, OutputStream>> serializerFactories, @Autowired(required = false) RedisClient redisClient, SessionFactory sessionFactory,
+                                      @Autowired(required = false) SessionInvalidationTransport sessionInvalidationTransport) {
         if (!remoteSessionEnabled) {
             logger.info("Using local session registry...");
             return new EnterpriseCacheSessionDAO();
@@ -223,6 +243,7 @@ public class ShiroSessionConfiguration {
         logger.info("Using remote session registry...");
         RedisSessionDao redisSessionDao = new RedisSessionDao(redisClient);
         redisSessionDao.setSessionFactory(sessionFactory);
+        redisSessionDao.setInvalidationTransport(sessionInvalidationTransport);
         for (SerializerFactory serializerFactory : serializerFactories) {
             try {
                 if (serializerFactory instanceof LookupSerializerFactory) {
@@ -240,6 +261,16 @@ public class ShiroSessionConfiguration {
         return redisSessionDao;
     }
 
+    @Bean
+    @ConditionalOnMissingBean
+    @ConditionalOnProperty(name = {"session.remote-session.enabled", "session.remote-session.invalidation.enabled"})
+    public SessionInvalidationTransport sessionInvalidationTransport(RedisClient redisClient) {
+        logger.info("Using redis session invalidation channel: {}", remoteSessionInvalidationChannel);
+        RedisSessionInvalidationTransport transport = new RedisSessionInvalidationTransport(redisClient, remoteSessionInvalidationChannel);
+        transport.setHeartbeatIntervalMillis(remoteSessionInvalidationHeartbeatIntervalMillis);
+        return transport;
+    }
+
     @Bean
     @ConditionalOnMissingBean
     public PooledKryoSerializerFactory.KryoCustomizer instantiatorCustomizer() {
@@ -248,6 +279,14 @@ public class ShiroSessionConfiguration {
             //增加部分实例化风险以及牺牲部分性能开启二级实例化策略（https://github.com/EsotericSoftware/kryo#instantiatorstrategy）
             //即构造函数调用失败采用jdk序列化实例化策略，避免开发自行定义register(OBJ.class, new FieldSerializer(kryo, OBJ.class),9527)
             kryo.setInstantiatorStrategy(new Kryo.DefaultInstantiatorStrategy(new SerializingInstantiatorStrategy()));
+            if (remoteSessionCompactCodecEnabled) {
+                //会话使用紧凑编码. 同时设置为默认序列化器，避免之后按id注册时被 FieldSerializer 覆盖
+                //启用前写入的会话(无标记)回退至 FieldSerializer 解码
+                Serializer<SimpleSessionAdapter> sessionSerializer = simpleSessionSerializer(new SimpleSessionCodec(remoteSessionCompressionThreshold),
+                        new FieldSerializer<>(kryo, SimpleSessionAdapter.class));
+                kryo.addDefaultSerializer(SimpleSessionAdapter.class, sessionSerializer);
+                kryo.register(SimpleSessionAdapter.class, sessionSerializer, SIMPLE_SESSION_SERIALIZE_ID);
+            }
 //            kryo.register(Authenticated.class, new FieldSerializer(kryo, Authenticated.class) {
 //                @Override
 //                protected Authenticated create(Kryo kryo, Input input, Class type) {
@@ -257,4 +296,48 @@ public class ShiroSessionConfiguration {
         };
     }
 
+    /**
+     * kryo serializer delegate to {@link SimpleSessionCodec}. attribute values has no type tag written by kryo(class and object).
+     * encoded session prefixed with {@link SimpleSessionCodec#MAGIC}. session without marker(written before codec enabled) read by legacy serializer.
+     *
+     * @param codec
+     * @param legacy
+     * @return
+     */
+    protected Serializer<SimpleSessionAdapter> simpleSessionSerializer(SimpleSessionCodec codec, Serializer<SimpleSessionAdapter> legacy) {
+        return new Serializer<SimpleSessionAdapter>() {
+            @Override
+            public void write(Kryo kryo, Output output, SimpleSessionAdapter session) {
+                byte[] bytes = codec.encode(session, kryoFallback(kryo));
+                output.writeShort(SimpleSessionCodec.MAGIC);
+                output.writeInt(bytes.length, true);
+                output.writeBytes(bytes);
+            }
+
+            @Override
+            public SimpleSessionAdapter read(Kryo kryo, Input input, Class<SimpleSessionAdapter> type) {
+                int position = input.position();
+                if (SimpleSessionCodec.isMagic(input.readByteUnsigned(), input.readByteUnsigned()))
+                    return codec.decode(input.readBytes(input.readInt(true)), kryoFallback(kryo));
+                input.setPosition(position);
+                return legacy.read(kryo, input, type);
+            }
+        };
+    }
+
+    private static SimpleSessionCodec.ValueFallback kryoFallback(Kryo kryo) {
+        return new SimpleSessionCodec.ValueFallback() {
+            @Override
+            public byte[] encode(Object value) {
+                Output output = new Output(256, -1);
+                kryo.writeClassAndObject(output, value);
+                return output.toBytes();
+            }
+
+            @Override
+            public Object decode(byte[] bytes) {
+                return kryo.readClassAndObject(new Input(bytes));
+            }
+        };
+    }
 }
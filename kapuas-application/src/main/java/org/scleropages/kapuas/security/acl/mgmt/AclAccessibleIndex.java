@@ -0,0 +1,431 @@
+/**
+ * Copyright 2001-2005 The Apache Software Foundation.
+ * <p>
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ * <p>
+ * http://www.apache.org/licenses/LICENSE-2.0
+ * <p>
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.scleropages.kapuas.security.acl.mgmt;
+
+import com.google.common.cache.Cache;
+import com.google.common.cache.CacheBuilder;
+import com.google.common.collect.Lists;
+import com.google.common.collect.Maps;
+import com.google.common.collect.Sets;
+import org.scleropages.kapuas.jdbc.ReadReplicaRoutingDataSource;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import org.springframework.beans.factory.InitializingBean;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.stereotype.Component;
+import org.springframework.transaction.support.TransactionSynchronizationAdapter;
+import org.springframework.transaction.support.TransactionSynchronizationManager;
+
+import java.util.BitSet;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.List;
+import java.util.Map;
+import java.util.Objects;
+import java.util.Set;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.function.Supplier;
+
+/**
+ * principal可访问资源内存索引. 以 (principal,resourceType) 为key，对该principal已授权的资源构建位图(每个权限位一个位图)，
+ * 用于 "principal可以看到哪些资源" 类查询直接从内存返回资源集合，数量，以及与候选资源集合的交集.
+ * <p>
+ * 资源id按资源类型映射为连续的序号(字典只增不减，资源类型策略变更或字典超过最大容量时整体重建)，位图使用 {@link BitSet}.
+ * 索引在首次查询时从数据库加载，授权时在事务提交后增量合并权限位，撤销授权时移除对应principal的索引(下次查询重新加载).
+ * 索引按写入时间过期(其他节点的变更由 {@link AclCacheSynchronizer} 同步失效，过期时间作为最终兜底).
+ * 为避免加载过程中并发的写操作导致加载结果过期，写操作记录失效版本号(与 {@link AclDecisionCache} 一致)，加载前版本号小于失效版本号的结果不会被缓存.
+ * 加载固定在主库执行(调用方负责)，当前事务已从只读副本读取时加载结果不缓存.
+ *
+ * @author <a href="mailto:martinmao@icloud.com">Martin Mao</a>
+ */
+@Component
+public class AclAccessibleIndex implements InitializingBean {
+
+    private static final Logger logger = LoggerFactory.getLogger(AclAccessibleIndex.class);
+
+    //失效版本号保留时间，超过该时间仍未完成的加载视为异常情况
+    private static final long INVALIDATION_KEEP_ALIVE_SECONDS = 600;
+
+    @Value("#{ @environment['security.acl.accessible_index.enabled'] ?: false }")
+    private boolean enabled;
+
+    @Value("#{ @environment['security.acl.accessible_index.maximum_size'] ?: 10000 }")
+    private long maximumSize;
+
+    @Value("#{ @environment['security.acl.accessible_index.expire_after_write_seconds'] ?: 600 }")
+    private long expireAfterWriteInSeconds;
+
+    //每个资源类型字典的最大资源数，超过时重建该资源类型(回收已删除资源的序号)
+    @Value("#{ @environment['security.acl.accessible_index.maximum_dictionary_size'] ?: 1000000 }")
+    private int maximumDictionarySize;
+
+    private Cache<IndexKey, PrincipalIndex> indexes;
+
+    private Cache<IndexKey, Long> invalidations;
+
+    private final ConcurrentMap<String, ResourceDictionary> dictionaries = Maps.newConcurrentMap();
+
+    private final AtomicLong version = new AtomicLong();
+
+    //全局失效版本号(principal成员关系变更时)
+    private volatile long allInvalidated = -1;
+
+
+    public boolean isEnabled() {
+        return enabled;
+    }
+
+    /**
+     * return index of given principal and resource type. load by given loader if not indexed(or disabled).
+     *
+     * @param resourceType
+     * @param principal
+     * @param loader       load all granted resource id -> permission mask of given principal and resource type.
+     * @return
+     */
+    public PrincipalIndex get(String resourceType, String principal, Supplier<Map<String, Long>> loader) {
+        IndexKey key = new IndexKey(resourceType, principal);
+        if (enabled) {
+            evictOversizeDictionary(resourceType);
+            PrincipalIndex index = indexes.getIfPresent(key);
+            if (null != index && index.dictionary == dictionaries.get(resourceType))
+                return index;
+        }
+        long loadVersion = version.get();
+        ResourceDictionary dictionary = enabled ? dictionaries.computeIfAbsent(resourceType, type -> new ResourceDictionary()) : new ResourceDictionary();
+        PrincipalIndex index = new PrincipalIndex(dictionary);
+        loader.get().forEach(index::grant);
+        //loaded from lagged replica(connection already bound to current transaction) not indexed.
+        if (enabled && !ReadReplicaRoutingDataSource.isReplicaReadInCurrentTransaction())
+            indexes.asMap().compute(key, (k, exists) -> loadVersion >= invalidatedVersion(k) ? index : exists);
+        return index;
+    }
+
+    /**
+     * merge given grants into loaded indexes after transaction committed.
+     */
+    public void grant(Collection<Grant> grants) {
+        if (!enabled || grants.isEmpty())
+            return;
+        grants.forEach(grant -> markInvalidation(grant.key()));
+        runAfterCommit(() -> grants.forEach(grant -> {
+            markInvalidation(grant.key());
+            indexes.asMap().computeIfPresent(grant.key(), (key, index) -> {
+                index.grant(grant.resourceId, grant.permissionMask);
+                return index;
+            });
+        }));
+        runAfterCommit(() -> grants.stream().map(grant -> grant.resourceType).distinct().forEach(this::evictOversizeDictionary));
+    }
+
+    public void grant(String resourceType, String resourceId, String principal, long permissionMask) {
+        grant(Collections.singletonList(new Grant(resourceType, resourceId, principal, permissionMask)));
+    }
+
+    /**
+     * remove indexes of given principals(reload at next query). grants resource id and permission mask ignored.
+     */
+    public void revoke(Collection<Grant> grants) {
+        if (!enabled || grants.isEmpty())
+            return;
+        Set<IndexKey> keys = Sets.newHashSet();
+        grants.forEach(grant -> keys.add(grant.key()));
+        Runnable invalidation = () -> keys.forEach(key -> {
+            markInvalidation(key);
+            indexes.invalidate(key);
+        });
+        invalidation.run();
+        runAfterCompletion(invalidation);
+    }
+
+    public void revoke(String resourceType, String principal) {
+        revoke(Collections.singletonList(new Grant(resourceType, null, principal, 0)));
+    }
+
+    /**
+     * remove all indexes and resource dictionary of given resource type.
+     */
+    public void evictResourceType(String resourceType) {
+        if (!enabled)
+            return;
+        Runnable invalidation = () -> {
+            markInvalidation(new IndexKey(resourceType, null));
+            dictionaries.remove(resourceType);
+            List<IndexKey> keys = Lists.newArrayList();
+            indexes.asMap().keySet().forEach(key -> {
+                if (Objects.equals(key.resourceType, resourceType))
+                    keys.add(key);
+            });
+            indexes.invalidateAll(keys);
+        };
+        invalidation.run();
+        runAfterCompletion(invalidation);
+    }
+
+    /**
+     * remove indexes of given principals(all resource types). used when principal memberships changed.
+     */
+    public void evictPrincipals(Collection<String> principals) {
+        if (!enabled || principals.isEmpty())
+            return;
+        Set<String> evicts = Sets.newHashSet(principals);
+        Runnable invalidation = () -> {
+            evicts.forEach(principal -> markInvalidation(new IndexKey(null, principal)));
+            List<IndexKey> keys = Lists.newArrayList();
+            indexes.asMap().keySet().forEach(key -> {
+                if (evicts.contains(key.principal))
+                    keys.add(key);
+            });
+            indexes.invalidateAll(keys);
+        };
+        invalidation.run();
+        runAfterCompletion(invalidation);
+    }
+
+    /**
+     * remove all indexes.
+     */
+    public void evictAll() {
+        if (!enabled)
+            return;
+        Runnable invalidation = () -> {
+            allInvalidated = version.incrementAndGet();
+            indexes.invalidateAll();
+        };
+        invalidation.run();
+        runAfterCompletion(invalidation);
+    }
+
+    public long size() {
+        return enabled ? indexes.size() : 0;
+    }
+
+    private void evictOversizeDictionary(String resourceType) {
+        ResourceDictionary dictionary = dictionaries.get(resourceType);
+        if (null != dictionary && dictionary.size() > maximumDictionarySize) {
+            logger.info("resource dictionary of [{}] exceeds maximum size: {}. rebuild indexes.", resourceType, maximumDictionarySize);
+            evictResourceType(resourceType);
+        }
+    }
+
+
+    private void markInvalidation(IndexKey key) {
+        invalidations.put(key, version.incrementAndGet());
+    }
+
+    private long invalidatedVersion(IndexKey key) {
+        Long principalInvalidated = invalidations.getIfPresent(key);
+        Long resourceTypeInvalidated = invalidations.getIfPresent(new IndexKey(key.resourceType, null));
+        Long principalWideInvalidated = invalidations.getIfPresent(new IndexKey(null, key.principal));
+        return Math.max(Math.max(allInvalidated, null != principalWideInvalidated ? principalWideInvalidated : -1),
+                Math.max(null != principalInvalidated ? principalInvalidated : -1, null != resourceTypeInvalidated ? resourceTypeInvalidated : -1));
+    }
+
+    private void runAfterCommit(Runnable runnable) {
+        if (!TransactionSynchronizationManager.isSynchronizationActive()) {
+            runnable.run();
+            return;
+        }
+        TransactionSynchronizationManager.registerSynchronization(new TransactionSynchronizationAdapter() {
+            @Override
+            public void afterCommit() {
+                runnable.run();
+            }
+        });
+    }
+
+    private void runAfterCompletion(Runnable runnable) {
+        if (!TransactionSynchronizationManager.isSynchronizationActive())
+            return;
+        TransactionSynchronizationManager.registerSynchronization(new TransactionSynchronizationAdapter() {
+            @Override
+            public void afterCompletion(int status) {
+                runnable.run();
+            }
+        });
+    }
+
+    @Override
+    public void afterPropertiesSet() throws Exception {
+        if (!enabled)
+            return;
+        indexes = CacheBuilder.newBuilder()
+                .maximumSize(maximumSize)
+                .expireAfterWrite(expireAfterWriteInSeconds, TimeUnit.SECONDS).build();
+        invalidations = CacheBuilder.newBuilder()
+                .expireAfterWrite(INVALIDATION_KEEP_ALIVE_SECONDS, TimeUnit.SECONDS).build();
+        logger.info("acl accessible index enabled. maximum size: {}, expire after write: {}s, maximum dictionary size: {}", maximumSize, expireAfterWriteInSeconds, maximumDictionarySize);
+    }
+
+
+    /**
+     * accessible resources of one principal on one resource type. one bitmap for any permission and one bitmap per permission bit.
+     */
+    public static final class PrincipalIndex {
+
+        private final ResourceDictionary dictionary;
+        private final BitSet granted = new BitSet();
+        private final BitSet[] permissions = new BitSet[Long.SIZE];
+
+        private PrincipalIndex(ResourceDictionary dictionary) {
+            this.dictionary = dictionary;
+        }
+
+        private synchronized void grant(String resourceId, Long permissionMask) {
+            int ordinal = dictionary.ordinal(resourceId);
+            granted.set(ordinal);
+            long mask = null != permissionMask ? permissionMask : 0L;
+            while (mask != 0) {
+                int bit = Long.numberOfTrailingZeros(mask);
+                if (null == permissions[bit])
+                    permissions[bit] = new BitSet();
+                permissions[bit].set(ordinal);
+                mask &= mask - 1;
+            }
+        }
+
+        /**
+         * return snapshot bitmap of resources granted with any permission in given mask. 0 for any permission.
+         */
+        private synchronized BitSet bitmap(long permissionMask) {
+            if (permissionMask == 0)
+                return (BitSet) granted.clone();
+            BitSet bitmap = new BitSet();
+            long mask = permissionMask;
+            while (mask != 0) {
+                int bit = Long.numberOfTrailingZeros(mask);
+                if (null != permissions[bit])
+                    bitmap.or(permissions[bit]);
+                mask &= mask - 1;
+            }
+            return bitmap;
+        }
+
+        /**
+         * return all accessible resource ids.
+         *
+         * @param permissionMask permission mask to match(0 for any permission).
+         * @return
+         */
+        public Set<String> resourceIds(long permissionMask) {
+            BitSet bitmap = bitmap(permissionMask);
+            Set<String> resourceIds = Sets.newLinkedHashSetWithExpectedSize(bitmap.cardinality());
+            bitmap.stream().forEach(ordinal -> resourceIds.add(dictionary.resourceId(ordinal)));
+            return resourceIds;
+        }
+
+        /**
+         * return count of accessible resources.
+         *
+         * @param permissionMask permission mask to match(0 for any permission).
+         * @return
+         */
+        public int count(long permissionMask) {
+            return bitmap(permissionMask).cardinality();
+        }
+
+        /**
+         * return accessible resource ids in given candidates(keep candidates order).
+         *
+         * @param permissionMask permission mask to match(0 for any permission).
+         * @param candidates
+         * @return
+         */
+        public Set<String> intersect(long permissionMask, Collection<String> candidates) {
+            BitSet bitmap = bitmap(permissionMask);
+            Set<String> resourceIds = Sets.newLinkedHashSet();
+            candidates.forEach(candidate -> {
+                int ordinal = dictionary.ordinalIfPresent(candidate);
+                if (ordinal >= 0 && bitmap.get(ordinal))
+                    resourceIds.add(candidate);
+            });
+            return resourceIds;
+        }
+    }
+
+    /**
+     * resource id <-> ordinal of one resource type.
+     */
+    private static final class ResourceDictionary {
+
+        private final Map<String, Integer> ordinals = Maps.newHashMap();
+        private final List<String> resourceIds = Lists.newArrayList();
+
+        private synchronized int ordinal(String resourceId) {
+            return ordinals.computeIfAbsent(resourceId, id -> {
+                resourceIds.add(id);
+                return resourceIds.size() - 1;
+            });
+        }
+
+        private synchronized int ordinalIfPresent(String resourceId) {
+            Integer ordinal = ordinals.get(resourceId);
+            return null != ordinal ? ordinal : -1;
+        }
+
+        private synchronized String resourceId(int ordinal) {
+            return resourceIds.get(ordinal);
+        }
+
+        private synchronized int size() {
+            return resourceIds.size();
+        }
+    }
+
+    public static final class Grant {
+        private final String resourceType;
+        private final String resourceId;
+        private final String principal;
+        private final long permissionMask;
+
+        public Grant(String resourceType, String resourceId, String principal, long permissionMask) {
+            this.resourceType = resourceType;
+            this.resourceId = resourceId;
+            this.principal = principal;
+            this.permissionMask = permissionMask;
+        }
+
+        private IndexKey key() {
+            return new IndexKey(resourceType, principal);
+        }
+    }
+
+    private static final class IndexKey {
+        private final String resourceType;
+        private final String principal;
+
+        private IndexKey(String resourceType, String principal) {
+            this.resourceType = resourceType;
+            this.principal = principal;
+        }
+
+        @Override
+        public boolean equals(Object o) {
+            if (this == o) return true;
+            if (o == null || getClass() != o.getClass()) return false;
+            IndexKey that = (IndexKey) o;
+            return Objects.equals(resourceType, that.resourceType) &&
+                    Objects.equals(principal, that.principal);
+        }
+
+        @Override
+        public int hashCode() {
+            return Objects.hash(resourceType, principal);
+        }
+    }
+}
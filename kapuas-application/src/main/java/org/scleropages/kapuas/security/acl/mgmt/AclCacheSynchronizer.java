@@ -0,0 +1,193 @@
+/**
+ * Copyright 2001-2005 The Apache Software Foundation.
+ * <p>
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ * <p>
+ * http://www.apache.org/licenses/LICENSE-2.0
+ * <p>
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.scleropages.kapuas.security.acl.mgmt;
+
+import com.google.common.collect.Lists;
+import com.google.common.collect.Maps;
+import com.google.common.collect.Sets;
+import org.scleropages.kapuas.security.acl.model.AclChange;
+import org.scleropages.kapuas.security.acl.repo.AclChangeEntityRepository;
+import org.scleropages.kapuas.security.acl.repo.AclPrincipalClosureEntityRepository;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import org.springframework.beans.factory.DisposableBean;
+import org.springframework.beans.factory.InitializingBean;
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.stereotype.Component;
+
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * 跨节点同步 acl 本地缓存失效. 本地缓存({@link AclDecisionCache}，{@link AclAccessibleIndex})只在写操作所在节点失效，其他节点通过消费 {@link AclChangeFeed} 按变更执行相同维度的失效.
+ * <p>
+ * 启动时游标定位到当前最大序号(本地缓存为空，无需回放历史)，之后按固定间隔拉取. 其他节点的缓存最多在 间隔 + 变更流间隙等待时间 内返回旧的决策.
+ * 本节点的变更同样会被拉取并再次失效(变更流不记录来源节点)，只影响命中率.
+ *
+ * @author <a href="mailto:martinmao@icloud.com">Martin Mao</a>
+ */
+@Component
+public class AclCacheSynchronizer implements InitializingBean, DisposableBean {
+
+    private static final Logger logger = LoggerFactory.getLogger(AclCacheSynchronizer.class);
+
+    @Value("#{ @environment['security.acl.cache_sync.enabled'] ?: true }")
+    private boolean enabled;
+
+    @Value("#{ @environment['security.acl.cache_sync.interval_millis'] ?: 1000 }")
+    private long intervalMillis;
+
+    @Value("#{ @environment['security.acl.cache_sync.batch_size'] ?: 1000 }")
+    private int batchSize;
+
+    private AclChangeFeed aclChangeFeed;
+
+    private AclChangeEntityRepository aclChangeEntityRepository;
+
+    private AclDecisionCache aclDecisionCache;
+
+    private AclAccessibleIndex aclAccessibleIndex;
+
+    private AclPrincipalClosureEntityRepository aclPrincipalClosureEntityRepository;
+
+    private ScheduledExecutorService synchronizer;
+
+    private volatile long cursor;
+
+
+    /**
+     * apply changes after cursor to local caches.
+     *
+     * @return number of changes applied.
+     */
+    public int synchronize() {
+        int applied = 0;
+        List<AclChange> changes;
+        do {
+            changes = aclChangeFeed.poll(cursor, batchSize, 0);
+            apply(changes);
+            if (!changes.isEmpty())
+                cursor = changes.get(changes.size() - 1).getSeq();
+            applied += changes.size();
+        } while (changes.size() == batchSize);
+        return applied;
+    }
+
+    protected void apply(List<AclChange> changes) {
+        //resource type -> grant principals of entry changes.
+        Map<String, Set<String>> entryPrincipals = Maps.newHashMap();
+        //members of membership changes.
+        Set<String> members = Sets.newHashSet();
+        for (AclChange change : changes) {
+            switch (change.getType()) {
+                case ACL_CREATED:
+                case ACL_UPDATED:
+                case ACL_DELETED:
+                    aclDecisionCache.evictResource(change.getResourceType(), change.getResourceId());
+                    break;
+                case ENTRY_CREATED:
+                case ENTRY_DELETED:
+                    //members of grant principal inherit entries, evict whole resource.
+                    aclDecisionCache.evictResource(change.getResourceType(), change.getResourceId());
+                    entryPrincipals.computeIfAbsent(change.getResourceType(), resourceType -> Sets.newHashSet()).add(change.getPrincipal());
+                    break;
+                case STRATEGY_CREATED:
+                    aclDecisionCache.evictResourceType(change.getResourceType());
+                    aclAccessibleIndex.evictResourceType(change.getResourceType());
+                    break;
+                case MEMBER_CREATED:
+                case MEMBER_DELETED:
+                    members.add(change.getPrincipal());
+                    break;
+                default:
+                    break;
+            }
+        }
+        if (!members.isEmpty()) {
+            //member and its descendants(one closure query) affected on all resource types.
+            Set<String> affected = Sets.newHashSet(members);
+            affected.addAll(aclPrincipalClosureEntityRepository.findDescendants(members));
+            aclDecisionCache.evictPrincipals(affected);
+            aclAccessibleIndex.evictPrincipals(affected);
+        }
+        if (!aclAccessibleIndex.isEnabled())
+            return;
+        //indexes of grant principals and their members(one closure query per resource type) reloaded at next query.
+        entryPrincipals.forEach((resourceType, principals) -> {
+            Set<String> affected = Sets.newHashSet(principals);
+            affected.addAll(aclPrincipalClosureEntityRepository.findDescendants(principals));
+            List<AclAccessibleIndex.Grant> revokes = Lists.newArrayListWithCapacity(affected.size());
+            affected.forEach(principal -> revokes.add(new AclAccessibleIndex.Grant(resourceType, null, principal, 0)));
+            aclAccessibleIndex.revoke(revokes);
+        });
+    }
+
+    @Override
+    public void afterPropertiesSet() throws Exception {
+        if (!enabled || !aclChangeFeed.isEnabled() || (!aclDecisionCache.isEnabled() && !aclAccessibleIndex.isEnabled()))
+            return;
+        cursor = aclChangeEntityRepository.getMaxId();
+        synchronizer = Executors.newSingleThreadScheduledExecutor(runnable -> {
+            Thread thread = new Thread(runnable, "acl-cache-synchronizer");
+            thread.setDaemon(true);
+            return thread;
+        });
+        synchronizer.scheduleWithFixedDelay(() -> {
+            try {
+                synchronize();
+            } catch (Exception e) {
+                logger.warn("failure to synchronize acl caches: {}", e.getMessage());
+            }
+        }, intervalMillis, intervalMillis, TimeUnit.MILLISECONDS);
+        logger.info("acl cache synchronizer enabled. interval: {}ms, from change: {}", intervalMillis, cursor);
+    }
+
+    @Override
+    public void destroy() throws Exception {
+        if (null != synchronizer)
+            synchronizer.shutdownNow();
+    }
+
+    @Autowired
+    public void setAclChangeFeed(AclChangeFeed aclChangeFeed) {
+        this.aclChangeFeed = aclChangeFeed;
+    }
+
+    @Autowired
+    public void setAclChangeEntityRepository(AclChangeEntityRepository aclChangeEntityRepository) {
+        this.aclChangeEntityRepository = aclChangeEntityRepository;
+    }
+
+    @Autowired
+    public void setAclDecisionCache(AclDecisionCache aclDecisionCache) {
+        this.aclDecisionCache = aclDecisionCache;
+    }
+
+    @Autowired
+    public void setAclAccessibleIndex(AclAccessibleIndex aclAccessibleIndex) {
+        this.aclAccessibleIndex = aclAccessibleIndex;
+    }
+
+    @Autowired
+    public void setAclPrincipalClosureEntityRepository(AclPrincipalClosureEntityRepository aclPrincipalClosureEntityRepository) {
+        this.aclPrincipalClosureEntityRepository = aclPrincipalClosureEntityRepository;
+    }
+}
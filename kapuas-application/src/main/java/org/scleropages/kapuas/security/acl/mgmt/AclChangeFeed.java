@@ -0,0 +1,366 @@
+/**
+ * Copyright 2001-2005 The Apache Software Foundation.
+ * <p>
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ * <p>
+ * http://www.apache.org/licenses/LICENSE-2.0
+ * <p>
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.scleropages.kapuas.security.acl.mgmt;
+
+import com.google.common.collect.Lists;
+import org.apache.commons.lang3.StringUtils;
+import org.scleropages.kapuas.security.acl.entity.AclChangeEntity;
+import org.scleropages.kapuas.security.acl.model.AclChange;
+import org.scleropages.kapuas.security.acl.repo.AclChangeEntityRepository;
+import org.scleropages.kapuas.security.acl.repo.AclChangeHeadEntityRepository;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import org.springframework.beans.factory.DisposableBean;
+import org.springframework.beans.factory.InitializingBean;
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.stereotype.Component;
+import org.springframework.transaction.support.TransactionSynchronizationAdapter;
+import org.springframework.transaction.support.TransactionSynchronizationManager;
+import org.springframework.util.Assert;
+
+import javax.persistence.EntityManager;
+import javax.persistence.PersistenceContext;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.Date;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Queue;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+import java.util.stream.Collectors;
+
+/**
+ * acl变更流(transactional outbox). 写操作在同一事务内追加变更记录，下游按序号游标增量拉取，支持长轮询.
+ * <p>
+ * 变更在事务内缓存，事务提交前(beforeCommit)通过 {@link AclChangeHeadEntityRepository#advance(int)} 一次分配本事务全部序号并写入.
+ * 变更流位置行锁持有至事务结束，序号按事务提交顺序连续分配：较小序号总是先于(或与)较大序号提交，事务回滚时分配一并回滚，不会留下间隙.
+ * <p>
+ * 拉取时只返回游标之后序号连续的记录，遇到缺失的序号(间隙)即停止. 间隙仅可能来自事务外追加(提交不是原子的)或人工删除，
+ * 间隙之后的记录创建超过 gap timeout 后跳过继续返回.
+ * <p>
+ * 长轮询不占用调用线程：没有可用变更时登记等待者，由后台线程在本节点提交时(立即)以及按 recheck 间隔(其他节点的变更)检查，有变更或超时时完成.
+ *
+ * @author <a href="mailto:martinmao@icloud.com">Martin Mao</a>
+ */
+@Component
+public class AclChangeFeed implements InitializingBean, DisposableBean {
+
+    private static final Logger logger = LoggerFactory.getLogger(AclChangeFeed.class);
+
+    private static final String PERMISSION_SEPARATOR = ",";
+
+    private static final int PURGE_CHUNK_SIZE = 1000;
+
+    @Value("#{ @environment['security.acl.change_feed.enabled'] ?: true }")
+    private boolean enabled;
+
+    @Value("#{ @environment['security.acl.change_feed.gap_timeout_millis'] ?: 60000 }")
+    private long gapTimeoutMillis;
+
+    @Value("#{ @environment['security.acl.change_feed.recheck_millis'] ?: 1000 }")
+    private long recheckMillis;
+
+    @Value("#{ @environment['security.acl.change_feed.maximum_wait_millis'] ?: 30000 }")
+    private long maximumWaitMillis;
+
+    @Value("#{ @environment['security.acl.change_feed.insert_chunk_size'] ?: 500 }")
+    private int insertChunkSize;
+
+    @Value("#{ @environment['security.acl.change_feed.retention_millis'] ?: 604800000 }")
+    private long retentionMillis;
+
+    @Value("#{ @environment['security.acl.change_feed.purge_interval_millis'] ?: 3600000 }")
+    private long purgeIntervalMillis;
+
+    private AclChangeEntityRepository aclChangeEntityRepository;
+
+    private AclChangeHeadEntityRepository aclChangeHeadEntityRepository;
+
+    @PersistenceContext
+    private EntityManager entityManager;
+
+    private final Queue<Waiter> waiters = new ConcurrentLinkedQueue<>();
+
+    private ScheduledExecutorService checker;
+
+    private ScheduledExecutorService purger;
+
+
+    public boolean isEnabled() {
+        return enabled;
+    }
+
+    /**
+     * append changes in current transaction. changes written(sequences assigned) before commit, waiting consumers notified after commit.
+     */
+    public void append(AclChange... changes) {
+        append(Lists.newArrayList(changes));
+    }
+
+    public void append(Collection<AclChange> changes) {
+        if (!enabled || changes.isEmpty())
+            return;
+        List<AclChangeEntity> entities = changes.stream().map(change -> {
+            AclChangeEntity entity = new AclChangeEntity();
+            entity.setChangeType(change.getType().name());
+            entity.setResourceType(change.getResourceType());
+            entity.setResourceId(change.getResourceId());
+            entity.setPrincipal(change.getPrincipal());
+            if (null != change.getPermissions() && change.getPermissions().length > 0)
+                entity.setPermissions(StringUtils.join(change.getPermissions(), PERMISSION_SEPARATOR));
+            return entity;
+        }).collect(Collectors.toList());
+        if (!TransactionSynchronizationManager.isSynchronizationActive()) {
+            write(entities);
+            committed();
+            return;
+        }
+        TransactionChanges transactionChanges = (TransactionChanges) TransactionSynchronizationManager.getResource(this);
+        if (null == transactionChanges) {
+            transactionChanges = new TransactionChanges();
+            TransactionSynchronizationManager.bindResource(this, transactionChanges);
+            TransactionSynchronizationManager.registerSynchronization(transactionChanges);
+        }
+        transactionChanges.entities.addAll(entities);
+    }
+
+    /**
+     * assign sequences and write given changes: one head update plus one multi-row insert per chunk, whatever number of changes.
+     * <p>
+     * ordering guarantee: changes of different transactions ordered by commit order, changes of one transaction ordered by append order
+     * (e.g. bulk creation/revoke appends changes in input order).
+     */
+    protected void write(List<AclChangeEntity> entities) {
+        long seq = aclChangeHeadEntityRepository.advance(entities.size()) - entities.size();
+        Date now = new Date();
+        for (AclChangeEntity entity : entities) {
+            entity.setId(++seq);
+            entity.setCreateTime(now);
+        }
+        aclChangeEntityRepository.insertAll(entities, insertChunkSize);
+    }
+
+    /**
+     * return changes after given sequence. if no changes available, wait up to given millis(bounded by maximum wait) for new changes.
+     * calling thread blocked while waiting, use {@link #pollAsync(long, int, long)} in request threads.
+     *
+     * @param after      sequence of last consumed change. 0 to consume from beginning.
+     * @param limit      maximum changes returned.
+     * @param waitMillis 0 for not wait.
+     * @return
+     */
+    public List<AclChange> poll(long after, int limit, long waitMillis) {
+        return pollAsync(after, limit, waitMillis).join();
+    }
+
+    /**
+     * same as {@link #poll(long, int, long)}, but not block calling thread while waiting.
+     * returned future completed by background checker with changes(or empty list if timeout).
+     */
+    public CompletableFuture<List<AclChange>> pollAsync(long after, int limit, long waitMillis) {
+        Assert.isTrue(enabled, "acl change feed not enabled.");
+        Assert.isTrue(limit > 0, "limit must greater than 0.");
+        List<AclChange> changes = read(after, limit);
+        long wait = Math.min(Math.max(waitMillis, 0), maximumWaitMillis);
+        if (!changes.isEmpty() || wait == 0)
+            return CompletableFuture.completedFuture(changes);
+        Waiter waiter = new Waiter(after, limit, System.currentTimeMillis() + wait);
+        waiters.add(waiter);
+        return waiter.future;
+    }
+
+    /**
+     * remove changes created before given time. all consumers must already consumed them.
+     * deleted by sequence range in chunks(each chunk one statement), not hold locks on whole table.
+     */
+    public int purge(Date createdBefore) {
+        long maxId = aclChangeEntityRepository.getMaxIdCreatedBefore(createdBefore);
+        if (maxId == 0)
+            return 0;
+        int purged = 0;
+        for (long from = aclChangeEntityRepository.getMinId(); from <= maxId; from += PURGE_CHUNK_SIZE) {
+            purged += aclChangeEntityRepository.deleteAllByIdBetween(from, Math.min(from + PURGE_CHUNK_SIZE - 1, maxId));
+        }
+        return purged;
+    }
+
+    /**
+     * purge changes out of retention. run on every node(deletes are idempotent).
+     */
+    protected void purgeExpired() {
+        int purged = purge(new Date(System.currentTimeMillis() - retentionMillis));
+        if (purged > 0 && logger.isDebugEnabled())
+            logger.debug("purged {} acl changes out of retention {}ms.", purged, retentionMillis);
+    }
+
+    /**
+     * read changes after given sequence, stop at first gap(missing sequence) not timeout.
+     */
+    protected List<AclChange> read(long after, int limit) {
+        long gapTimeoutBefore = System.currentTimeMillis() - gapTimeoutMillis;
+        List<AclChange> changes = Lists.newArrayList();
+        //0 means from beginning, no gap check before first change.
+        long expected = after > 0 ? after + 1 : -1;
+        for (AclChangeEntity entity : aclChangeEntityRepository.findAllByIdAfter(after, limit)) {
+            if (expected != -1 && entity.getId() != expected && entity.getCreateTime().getTime() > gapTimeoutBefore)
+                break;
+            changes.add(mapAclChange(entity));
+            expected = entity.getId() + 1;
+        }
+        return changes;
+    }
+
+    protected AclChange mapAclChange(AclChangeEntity entity) {
+        AclChange change = new AclChange();
+        change.setSeq(entity.getId());
+        change.setType(AclChange.Type.valueOf(entity.getChangeType()));
+        change.setResourceType(entity.getResourceType());
+        change.setResourceId(entity.getResourceId());
+        change.setPrincipal(entity.getPrincipal());
+        if (null != entity.getPermissions())
+            change.setPermissions(StringUtils.split(entity.getPermissions(), PERMISSION_SEPARATOR));
+        change.setTime(entity.getCreateTime());
+        return change;
+    }
+
+    protected void checkWaiters() {
+        long now = System.currentTimeMillis();
+        for (Iterator<Waiter> iterator = waiters.iterator(); iterator.hasNext(); ) {
+            Waiter waiter = iterator.next();
+            if (waiter.future.isDone()) {
+                iterator.remove();
+                continue;
+            }
+            try {
+                List<AclChange> changes = read(waiter.after, waiter.limit);
+                if (!changes.isEmpty() || now >= waiter.deadline) {
+                    iterator.remove();
+                    waiter.future.complete(changes);
+                }
+            } catch (Exception e) {
+                iterator.remove();
+                waiter.future.completeExceptionally(e);
+            }
+        }
+    }
+
+    private void committed() {
+        if (!waiters.isEmpty() && null != checker)
+            checker.execute(this::checkWaiters);
+    }
+
+    @Override
+    public void afterPropertiesSet() throws Exception {
+        if (!enabled)
+            return;
+        checker = Executors.newSingleThreadScheduledExecutor(runnable -> {
+            Thread thread = new Thread(runnable, "acl-change-feed-checker");
+            thread.setDaemon(true);
+            return thread;
+        });
+        checker.scheduleWithFixedDelay(() -> {
+            try {
+                checkWaiters();
+            } catch (Exception e) {
+                logger.warn("failure to check acl change feed waiters: {}", e.getMessage());
+            }
+        }, recheckMillis, recheckMillis, TimeUnit.MILLISECONDS);
+        if (retentionMillis <= 0)
+            return;
+        Assert.isTrue(retentionMillis > gapTimeoutMillis, "security.acl.change_feed.retention_millis must greater than gap_timeout_millis.");
+        Assert.isTrue(purgeIntervalMillis > 0, "security.acl.change_feed.purge_interval_millis must greater than 0.");
+        purger = Executors.newSingleThreadScheduledExecutor(runnable -> {
+            Thread thread = new Thread(runnable, "acl-change-feed-purger");
+            thread.setDaemon(true);
+            return thread;
+        });
+        purger.scheduleWithFixedDelay(() -> {
+            try {
+                purgeExpired();
+            } catch (Exception e) {
+                logger.warn("failure to purge acl changes: {}", e.getMessage());
+            }
+        }, purgeIntervalMillis, purgeIntervalMillis, TimeUnit.MILLISECONDS);
+    }
+
+    @Override
+    public void destroy() throws Exception {
+        if (null != checker)
+            checker.shutdownNow();
+        if (null != purger)
+            purger.shutdownNow();
+        Waiter waiter;
+        while (null != (waiter = waiters.poll()))
+            waiter.future.complete(Collections.emptyList());
+    }
+
+    @Autowired
+    public void setAclChangeEntityRepository(AclChangeEntityRepository aclChangeEntityRepository) {
+        this.aclChangeEntityRepository = aclChangeEntityRepository;
+    }
+
+    @Autowired
+    public void setAclChangeHeadEntityRepository(AclChangeHeadEntityRepository aclChangeHeadEntityRepository) {
+        this.aclChangeHeadEntityRepository = aclChangeHeadEntityRepository;
+    }
+
+
+    /**
+     * changes appended in one transaction. written before commit, after other pending writes flushed:
+     * change head locked as the last statement of transaction, concurrent acl writers wait for it only during commit.
+     */
+    private final class TransactionChanges extends TransactionSynchronizationAdapter {
+
+        private final List<AclChangeEntity> entities = Lists.newArrayList();
+
+        @Override
+        public void beforeCommit(boolean readOnly) {
+            if (entities.isEmpty())
+                return;
+            entityManager.flush();
+            write(entities);
+        }
+
+        @Override
+        public void afterCommit() {
+            committed();
+        }
+
+        @Override
+        public void afterCompletion(int status) {
+            TransactionSynchronizationManager.unbindResourceIfPossible(AclChangeFeed.this);
+        }
+    }
+
+
+    private static final class Waiter {
+        private final long after;
+        private final int limit;
+        private final long deadline;
+        private final CompletableFuture<List<AclChange>> future = new CompletableFuture<>();
+
+        private Waiter(long after, int limit, long deadline) {
+            this.after = after;
+            this.limit = limit;
+            this.deadline = deadline;
+        }
+    }
+}
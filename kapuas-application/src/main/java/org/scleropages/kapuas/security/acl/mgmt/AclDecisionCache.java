@@ -0,0 +1,291 @@
+/**
+ * Copyright 2001-2005 The Apache Software Foundation.
+ * <p>
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ * <p>
+ * http://www.apache.org/licenses/LICENSE-2.0
+ * <p>
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.scleropages.kapuas.security.acl.mgmt;
+
+import com.google.common.cache.Cache;
+import com.google.common.cache.CacheBuilder;
+import com.google.common.cache.CacheStats;
+import com.google.common.cache.RemovalCause;
+import com.google.common.cache.RemovalListener;
+import com.google.common.collect.Maps;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import org.springframework.beans.factory.InitializingBean;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.stereotype.Component;
+import org.springframework.transaction.support.TransactionSynchronizationAdapter;
+import org.springframework.transaction.support.TransactionSynchronizationManager;
+
+import java.util.Collection;
+import java.util.Objects;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * 访问决策(允许与拒绝)本地缓存，位于 {@link org.scleropages.kapuas.security.acl.provider.AclProvider} 之前，避免重复的 (principal,resourceType,resourceId,permission) 访问判断每次都查询数据库.
+ * <p>
+ * 失效不直接遍历缓存，而是对 资源类型/资源/资源+principal/principal 四个维度记录失效版本号(全局递增)，缓存的决策记录其加载前的版本号，
+ * 读取时如果任一维度的失效版本号大于决策版本号则视为失效. 失效版本号只需保留与决策相同的过期时间，超过该时间的决策本身已经过期.
+ * 失效版本号数量有上限(maximum_invalidations)，因容量被淘汰时按其版本号提升所属资源类型的失效版本号(未限定资源类型时提升全局失效版本号)，
+ * 不会因淘汰而读取到失效前加载的决策.
+ * 为避免读事务在写事务提交前回填旧值，失效在调用时以及事务完成后各记录一次.
+ *
+ * @author <a href="mailto:martinmao@icloud.com">Martin Mao</a>
+ */
+@Component
+public class AclDecisionCache implements InitializingBean {
+
+    private static final Logger logger = LoggerFactory.getLogger(AclDecisionCache.class);
+
+    //resource id 未提供时(判断资源类型下任意资源)使用的占位符
+    private static final String ANY_RESOURCE = "*";
+
+    @Value("#{ @environment['security.acl.decision_cache.enabled'] ?: false }")
+    private boolean enabled;
+
+    @Value("#{ @environment['security.acl.decision_cache.maximum_size'] ?: 100000 }")
+    private long maximumSize;
+
+    @Value("#{ @environment['security.acl.decision_cache.maximum_invalidations'] ?: 100000 }")
+    private long maximumInvalidations;
+
+    @Value("#{ @environment['security.acl.decision_cache.expire_after_write_seconds'] ?: 600 }")
+    private long expireAfterWriteInSeconds;
+
+    private Cache<DecisionKey, Decision> decisions;
+
+    private Cache<DecisionKey, Long> invalidations;
+
+    private final AtomicLong version = new AtomicLong();
+
+    //全局失效版本号(principal成员关系变更或未限定资源类型的失效版本号被淘汰时)
+    private final AtomicLong allInvalidated = new AtomicLong(-1);
+
+    //失效版本号被淘汰时提升的资源类型失效版本号(资源类型数量有限，不淘汰)
+    private final ConcurrentMap<String, Long> resourceTypesInvalidated = Maps.newConcurrentMap();
+
+
+    public boolean isEnabled() {
+        return enabled;
+    }
+
+    /**
+     * return current version. caller must capture it before load decision from database and pass to {@link #put(String, String, String, String, boolean, long)}
+     *
+     * @return
+     */
+    public long version() {
+        return version.get();
+    }
+
+    /**
+     * return cached decision or null if not cached (or invalidated).
+     */
+    public Boolean get(String resourceType, String resourceId, String principal, String permission) {
+        if (!enabled)
+            return null;
+        DecisionKey key = new DecisionKey(resourceType, resourceId, principal, permission);
+        Decision decision = decisions.getIfPresent(key);
+        if (null == decision)
+            return null;
+        if (decision.version < invalidatedVersion(key)) {
+            decisions.invalidate(key);
+            return null;
+        }
+        return decision.accessible;
+    }
+
+    /**
+     * cache a decision that loaded from database at given version.
+     */
+    public void put(String resourceType, String resourceId, String principal, String permission, boolean accessible, long version) {
+        if (!enabled)
+            return;
+        DecisionKey key = new DecisionKey(resourceType, resourceId, principal, permission);
+        if (version < invalidatedVersion(key))
+            return;
+        decisions.put(key, new Decision(accessible, version));
+    }
+
+    /**
+     * invalidate all decisions of given principal on given resource. also invalidate resource type level decisions (resource id not provided) of given principal.
+     */
+    public void evictPrincipal(String resourceType, String resourceId, String principal) {
+        if (!enabled)
+            return;
+        runNowAndAfterCompletion(() -> {
+            long next = version.incrementAndGet();
+            invalidations.put(new DecisionKey(resourceType, resourceId, principal, null), next);
+            invalidations.put(new DecisionKey(resourceType, null, principal, null), next);
+        });
+    }
+
+    /**
+     * invalidate all decisions of given resource. also invalidate resource type level decisions (resource id not provided).
+     */
+    public void evictResource(String resourceType, String resourceId) {
+        if (!enabled)
+            return;
+        runNowAndAfterCompletion(() -> {
+            long next = version.incrementAndGet();
+            invalidations.put(new DecisionKey(resourceType, resourceId, null, null), next);
+            invalidations.put(new DecisionKey(resourceType, null, null, null), next);
+        });
+    }
+
+    /**
+     * invalidate all decisions of given resource type.
+     */
+    public void evictResourceType(String resourceType) {
+        if (!enabled)
+            return;
+        runNowAndAfterCompletion(() -> invalidations.put(new DecisionKey(resourceType, null, null, null, true), version.incrementAndGet()));
+    }
+
+    /**
+     * invalidate all decisions of given principals(all resource types). used when principal memberships changed.
+     */
+    public void evictPrincipals(Collection<String> principals) {
+        if (!enabled || principals.isEmpty())
+            return;
+        runNowAndAfterCompletion(() -> {
+            long next = version.incrementAndGet();
+            principals.forEach(principal -> invalidations.put(new DecisionKey(null, null, principal, null, false), next));
+        });
+    }
+
+    /**
+     * invalidate all decisions.
+     */
+    public void evictAll() {
+        if (!enabled)
+            return;
+        runNowAndAfterCompletion(() -> {
+            allInvalidated.accumulateAndGet(version.incrementAndGet(), Math::max);
+            decisions.invalidateAll();
+        });
+    }
+
+    public CacheStats stats() {
+        return enabled ? decisions.stats() : new CacheStats(0, 0, 0, 0, 0, 0);
+    }
+
+    public long size() {
+        return enabled ? decisions.size() : 0;
+    }
+
+
+    private long invalidatedVersion(DecisionKey key) {
+        long invalidated = allInvalidated.get();
+        if (null != key.resourceType)
+            invalidated = Math.max(invalidated, resourceTypesInvalidated.getOrDefault(key.resourceType, -1L));
+        invalidated = Math.max(invalidated, invalidationMark(new DecisionKey(key.resourceType, null, null, null, true)));
+        invalidated = Math.max(invalidated, invalidationMark(new DecisionKey(key.resourceType, key.resourceId, null, null, false)));
+        invalidated = Math.max(invalidated, invalidationMark(new DecisionKey(key.resourceType, key.resourceId, key.principal, null, false)));
+        invalidated = Math.max(invalidated, invalidationMark(new DecisionKey(null, null, key.principal, null, false)));
+        return invalidated;
+    }
+
+    private long invalidationMark(DecisionKey invalidationKey) {
+        Long invalidated = invalidations.getIfPresent(invalidationKey);
+        return null != invalidated ? invalidated : -1;
+    }
+
+    private void runNowAndAfterCompletion(Runnable invalidation) {
+        invalidation.run();
+        if (TransactionSynchronizationManager.isSynchronizationActive()) {
+            TransactionSynchronizationManager.registerSynchronization(new TransactionSynchronizationAdapter() {
+                @Override
+                public void afterCompletion(int status) {
+                    invalidation.run();
+                }
+            });
+        }
+    }
+
+    @Override
+    public void afterPropertiesSet() throws Exception {
+        if (!enabled)
+            return;
+        decisions = CacheBuilder.newBuilder()
+                .maximumSize(maximumSize)
+                .expireAfterWrite(expireAfterWriteInSeconds, TimeUnit.SECONDS)
+                .recordStats().build();
+        //invalidation marks only need keep alive as long as decisions. any decisions loaded before mark was expired.
+        //evicted by size: decisions loaded before evicted mark may still cached. raise mark of resource type(or all) instead.
+        invalidations = CacheBuilder.newBuilder()
+                .maximumSize(maximumInvalidations)
+                .expireAfterWrite(expireAfterWriteInSeconds, TimeUnit.SECONDS)
+                .removalListener((RemovalListener<DecisionKey, Long>) notification -> {
+                    if (notification.getCause() != RemovalCause.SIZE)
+                        return;
+                    if (null != notification.getKey().resourceType)
+                        resourceTypesInvalidated.merge(notification.getKey().resourceType, notification.getValue(), Math::max);
+                    else
+                        allInvalidated.accumulateAndGet(notification.getValue(), Math::max);
+                }).build();
+        logger.info("acl decision cache enabled. maximum size: {}, maximum invalidations: {}, expire after write: {}s", maximumSize, maximumInvalidations, expireAfterWriteInSeconds);
+    }
+
+
+    private static final class Decision {
+        private final boolean accessible;
+        private final long version;
+
+        private Decision(boolean accessible, long version) {
+            this.accessible = accessible;
+            this.version = version;
+        }
+    }
+
+    private static final class DecisionKey {
+        private final String resourceType;
+        private final String resourceId;
+        private final String principal;
+        private final String permission;
+        private final boolean resourceTypeWide;
+
+        private DecisionKey(String resourceType, String resourceId, String principal, String permission) {
+            this(resourceType, null != resourceId ? resourceId : ANY_RESOURCE, principal, permission, false);
+        }
+
+        private DecisionKey(String resourceType, String resourceId, String principal, String permission, boolean resourceTypeWide) {
+            this.resourceType = resourceType;
+            this.resourceId = resourceId;
+            this.principal = principal;
+            this.permission = permission;
+            this.resourceTypeWide = resourceTypeWide;
+        }
+
+        @Override
+        public boolean equals(Object o) {
+            if (this == o) return true;
+            if (o == null || getClass() != o.getClass()) return false;
+            DecisionKey that = (DecisionKey) o;
+            return resourceTypeWide == that.resourceTypeWide &&
+                    Objects.equals(resourceType, that.resourceType) &&
+                    Objects.equals(resourceId, that.resourceId) &&
+                    Objects.equals(principal, that.principal) &&
+                    Objects.equals(permission, that.permission);
+        }
+
+        @Override
+        public int hashCode() {
+            return Objects.hash(resourceType, resourceId, principal, permission, resourceTypeWide);
+        }
+    }
+}
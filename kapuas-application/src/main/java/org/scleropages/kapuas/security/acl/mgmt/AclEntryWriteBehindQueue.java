@@ -0,0 +1,515 @@
+/**
+ * Copyright 2001-2005 The Apache Software Foundation.
+ * <p>
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ * <p>
+ * http://www.apache.org/licenses/LICENSE-2.0
+ * <p>
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.scleropages.kapuas.security.acl.mgmt;
+
+import com.google.common.collect.Lists;
+import com.google.common.collect.Maps;
+import com.google.common.collect.Sets;
+import org.apache.commons.lang3.ArrayUtils;
+import org.scleropages.kapuas.security.acl.AclManager;
+import org.scleropages.kapuas.security.acl.model.AclEntryGrantModel;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import org.springframework.beans.factory.DisposableBean;
+import org.springframework.beans.factory.InitializingBean;
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.stereotype.Component;
+import org.springframework.transaction.PlatformTransactionManager;
+import org.springframework.transaction.support.TransactionTemplate;
+import org.springframework.util.Assert;
+
+import java.util.ArrayDeque;
+import java.util.Arrays;
+import java.util.Collection;
+import java.util.Date;
+import java.util.Deque;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Map;
+import java.util.Objects;
+import java.util.Set;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.locks.Condition;
+import java.util.concurrent.locks.ReentrantLock;
+
+/**
+ * acl entry 授权/撤销异步写入队列(write-behind). 用于事件驱动的高频授权场景，调用方入队后立即返回，后台线程按批次提交.
+ * <p>
+ * 队列按 (resource type, resource id, principal, permission) 合并，同一元组只保留最后一次操作(先授权后撤销只执行撤销，
+ * 撤销不存在的条目被忽略，授权被抵消不访问数据库). 待处理元组达到 batch_size 或距上次提交超过 flush_interval_millis 时提交一个批次，
+ * 每个批次一个事务：先撤销后授权. 权限继承模型下同一 (resource, principal) 的授权与撤销顺序影响结果(如持有 admin 时先授予 read 再撤销 admin)，
+ * 组成批次时遇到某 (resource, principal) 在批次内已有授权之后的撤销即截断批次，该撤销及之后的操作进入下一批次，
+ * 因此批次内同一 (resource, principal) 的撤销总是先于授权入队，先撤销后授权与顺序执行结果一致. 批次失败时逐条重试，仍然失败的条目进入死信(dead letter)，
+ * 可通过 {@link #deadLetters()} 查看，{@link #retryDeadLetters()} 重新入队.
+ * <p>
+ * 每次入队分配递增序号，合并时元组移动到队尾并使用新序号，因此待处理元组按序号有序. 每个批次提交后已提交水位推进到 (最小待处理序号 - 1)，
+ * 持续入队时水位同样推进. 待处理元组数达到 capacity 时入队阻塞(背压)，超过 offer_timeout_millis 抛出异常.
+ * 需要读己之写的调用方使用 {@link #flush()} 等待之前入队的操作全部提交，其中有操作进入死信时 flush 失败.
+ *
+ * @author <a href="mailto:martinmao@icloud.com">Martin Mao</a>
+ */
+@Component
+public class AclEntryWriteBehindQueue implements InitializingBean, DisposableBean {
+
+    private static final Logger logger = LoggerFactory.getLogger(AclEntryWriteBehindQueue.class);
+
+    @Value("#{ @environment['security.acl.write_behind.enabled'] ?: false }")
+    private boolean enabled;
+
+    @Value("#{ @environment['security.acl.write_behind.capacity'] ?: 100000 }")
+    private int capacity;
+
+    @Value("#{ @environment['security.acl.write_behind.batch_size'] ?: 1000 }")
+    private int batchSize;
+
+    @Value("#{ @environment['security.acl.write_behind.flush_interval_millis'] ?: 50 }")
+    private long flushIntervalMillis;
+
+    @Value("#{ @environment['security.acl.write_behind.offer_timeout_millis'] ?: 5000 }")
+    private long offerTimeoutMillis;
+
+    @Value("#{ @environment['security.acl.write_behind.dead_letter_capacity'] ?: 10000 }")
+    private int deadLetterCapacity;
+
+    private AclManager aclManager;
+
+    private TransactionTemplate transactionTemplate;
+
+    private final ReentrantLock lock = new ReentrantLock();
+
+    private final Condition notFull = lock.newCondition();
+
+    private final Condition flushRequired = lock.newCondition();
+
+    private final Condition flushed = lock.newCondition();
+
+    //合并后的待处理操作(按最后一次入队序号有序)
+    private final Map<Mutation, Operation> pending = Maps.newLinkedHashMap();
+
+    //最大入队序号与已提交水位(该序号及之前入队的操作均已提交或进入死信)，flush() 等待水位追上调用时的入队序号
+    private long enqueued;
+
+    private long applied;
+
+    private final Deque<DeadLetter> deadLetters = new ArrayDeque<>();
+
+    private long deadLettersDropped;
+
+    private boolean flushRequested;
+
+    private long coalesced;
+
+    private volatile boolean running;
+
+    private Thread flusher;
+
+
+    public boolean isEnabled() {
+        return enabled;
+    }
+
+    /**
+     * enqueue grant of given (resource, principal, permissions). returned before persisted.
+     */
+    public void grant(AclEntryGrantModel grant) {
+        enqueue(grant, true);
+    }
+
+    public void grant(Collection<AclEntryGrantModel> grants) {
+        grants.forEach(this::grant);
+    }
+
+    /**
+     * enqueue revoke of given (resource, principal, permissions). returned before persisted.
+     */
+    public void revoke(AclEntryGrantModel grant) {
+        enqueue(grant, false);
+    }
+
+    public void revoke(Collection<AclEntryGrantModel> grants) {
+        grants.forEach(this::revoke);
+    }
+
+    /**
+     * block until all mutations enqueued before this call committed.
+     *
+     * @throws IllegalStateException if any of them failed(moved to dead letters), queue stopped or interrupted while waiting.
+     */
+    public void flush() {
+        if (!enabled)
+            return;
+        lock.lock();
+        try {
+            long from = applied;
+            long target = enqueued;
+            flushRequested = true;
+            flushRequired.signal();
+            while (applied < target && running)
+                flushed.await();
+            if (applied < target)
+                throw new IllegalStateException("acl write-behind queue stopped before flushed.");
+            long failed = deadLetters.stream().filter(deadLetter -> deadLetter.seq > from && deadLetter.seq <= target).count();
+            if (failed > 0)
+                throw new IllegalStateException("acl write-behind flush failure: " + failed + " mutation(s) moved to dead letters.");
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new IllegalStateException("interrupted while flushing acl write-behind queue.", e);
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    /**
+     * return snapshot of dead letters(oldest first).
+     */
+    public List<DeadLetter> deadLetters() {
+        lock.lock();
+        try {
+            return Lists.newArrayList(deadLetters);
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    public long deadLettersDropped() {
+        lock.lock();
+        try {
+            return deadLettersDropped;
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    /**
+     * remove all dead letters and enqueue them again(in original order).
+     *
+     * @return number of dead letters enqueued.
+     */
+    public int retryDeadLetters() {
+        List<DeadLetter> retries;
+        lock.lock();
+        try {
+            retries = Lists.newArrayList(deadLetters);
+            deadLetters.clear();
+        } finally {
+            lock.unlock();
+        }
+        retries.forEach(deadLetter -> enqueue(deadLetter.grant, deadLetter.create));
+        return retries.size();
+    }
+
+    public int pending() {
+        lock.lock();
+        try {
+            return pending.size();
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    public long coalesced() {
+        lock.lock();
+        try {
+            return coalesced;
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    protected void enqueue(AclEntryGrantModel grant, boolean create) {
+        Assert.isTrue(enabled, "acl write-behind queue not enabled.");
+        Assert.isTrue(running, "acl write-behind queue already stopped.");
+        Assert.hasText(grant.getResourceType(), "resource type is required.");
+        Assert.hasText(grant.getResourceId(), "resource id is required.");
+        Assert.hasText(grant.getPrincipal(), "principal is required.");
+        List<Mutation> mutations = Lists.newArrayList();
+        if (ArrayUtils.isEmpty(grant.getPermission()))
+            mutations.add(new Mutation(grant.getResourceType(), grant.getResourceId(), grant.getPrincipal(), null));
+        else
+            Arrays.stream(grant.getPermission()).distinct().forEach(permission -> mutations.add(new Mutation(grant.getResourceType(), grant.getResourceId(), grant.getPrincipal(), permission)));
+        lock.lock();
+        try {
+            long seq = ++enqueued;
+            for (Mutation mutation : mutations) {
+                if (null != pending.remove(mutation))
+                    coalesced++;
+                else {
+                    long nanos = TimeUnit.MILLISECONDS.toNanos(offerTimeoutMillis);
+                    while (pending.size() >= capacity) {
+                        if (nanos <= 0)
+                            throw new IllegalStateException("acl write-behind queue is full. capacity: " + capacity);
+                        nanos = notFull.awaitNanos(nanos);
+                    }
+                }
+                pending.put(mutation, new Operation(create, seq));
+            }
+            if (pending.size() >= batchSize)
+                flushRequired.signal();
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new IllegalStateException("interrupted while waiting acl write-behind queue.", e);
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    protected void runFlusher() {
+        while (true) {
+            Map<Mutation, Operation> batch = Maps.newLinkedHashMap();
+            lock.lock();
+            try {
+                long nanos = TimeUnit.MILLISECONDS.toNanos(flushIntervalMillis);
+                while (running && !flushRequested && pending.size() < batchSize && nanos > 0)
+                    nanos = flushRequired.awaitNanos(nanos);
+                if (pending.isEmpty()) {
+                    applied = enqueued;
+                    flushRequested = false;
+                    flushed.signalAll();
+                    if (!running)
+                        return;
+                    continue;
+                }
+                Iterator<Map.Entry<Mutation, Operation>> iterator = pending.entrySet().iterator();
+                Set<List<String>> granted = Sets.newHashSet();
+                while (iterator.hasNext() && batch.size() < batchSize) {
+                    Map.Entry<Mutation, Operation> next = iterator.next();
+                    //revoke after grant of same (resource, principal) would be applied before the grant. left to next batch.
+                    if (!next.getValue().create && granted.contains(next.getKey().entryKey()))
+                        break;
+                    if (next.getValue().create)
+                        granted.add(next.getKey().entryKey());
+                    batch.put(next.getKey(), next.getValue());
+                    iterator.remove();
+                }
+                notFull.signalAll();
+                if (pending.isEmpty())
+                    flushRequested = false;
+            } catch (InterruptedException e) {
+                //stop accepting mutations. remaining mutations applied in next loops.
+                running = false;
+            } finally {
+                lock.unlock();
+            }
+            if (!batch.isEmpty())
+                apply(batch);
+            lock.lock();
+            try {
+                //pending ordered by seq. all mutations before first pending applied(or moved to dead letters).
+                applied = Math.max(applied, pending.isEmpty() ? enqueued : pending.values().iterator().next().seq - 1);
+                flushed.signalAll();
+            } finally {
+                lock.unlock();
+            }
+        }
+    }
+
+    protected void apply(Map<Mutation, Operation> batch) {
+        Map<AclEntryGrantModel, Long> revokes = mapGrants(batch, false);
+        Map<AclEntryGrantModel, Long> grants = mapGrants(batch, true);
+        try {
+            transactionTemplate.execute(status -> {
+                if (!revokes.isEmpty())
+                    aclManager.deleteAclEntries(revokes.keySet());
+                if (!grants.isEmpty())
+                    aclManager.createAclEntries(grants.keySet());
+                return null;
+            });
+        } catch (RuntimeException e) {
+            logger.warn("failure to apply acl write-behind batch(revokes: {}, grants: {}). retry one by one.", revokes.size(), grants.size(), e);
+            revokes.forEach((revoke, seq) -> applyOne(revoke, false, seq));
+            grants.forEach((grant, seq) -> applyOne(grant, true, seq));
+        }
+    }
+
+    protected void applyOne(AclEntryGrantModel grant, boolean create, long seq) {
+        try {
+            transactionTemplate.execute(status -> {
+                if (create)
+                    aclManager.createAclEntries(Lists.newArrayList(grant));
+                else
+                    aclManager.deleteAclEntries(Lists.newArrayList(grant));
+                return null;
+            });
+        } catch (RuntimeException e) {
+            logger.error("acl write-behind {} moved to dead letters: {},{},{},{}", create ? "grant" : "revoke", grant.getResourceType(), grant.getResourceId(), grant.getPrincipal(),
+                    Arrays.toString(grant.getPermission()), e);
+            deadLetter(new DeadLetter(grant, create, seq, e.getMessage()));
+        }
+    }
+
+    protected void deadLetter(DeadLetter deadLetter) {
+        lock.lock();
+        try {
+            if (deadLetters.size() >= deadLetterCapacity) {
+                DeadLetter dropped = deadLetters.removeFirst();
+                deadLettersDropped++;
+                logger.error("acl write-behind dead letters full. dropped: {},{},{},{}", dropped.grant.getResourceType(), dropped.grant.getResourceId(), dropped.grant.getPrincipal(),
+                        Arrays.toString(dropped.grant.getPermission()));
+            }
+            deadLetters.addLast(deadLetter);
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    /**
+     * merge mutations of same (resource, principal) as one grant model.
+     *
+     * @return grant model -> maximum seq of merged mutations.
+     */
+    protected Map<AclEntryGrantModel, Long> mapGrants(Map<Mutation, Operation> batch, boolean create) {
+        Map<List<String>, List<String>> permissions = Maps.newLinkedHashMap();
+        Map<List<String>, Long> seqs = Maps.newHashMap();
+        batch.forEach((mutation, operation) -> {
+            if (operation.create != create)
+                return;
+            List<String> key = mutation.entryKey();
+            List<String> permissionNames = permissions.computeIfAbsent(key, k -> Lists.newArrayList());
+            if (null != mutation.permission)
+                permissionNames.add(mutation.permission);
+            seqs.merge(key, operation.seq, Math::max);
+        });
+        Map<AclEntryGrantModel, Long> grants = Maps.newLinkedHashMapWithExpectedSize(permissions.size());
+        permissions.forEach((key, permissionNames) -> grants.put(new AclEntryGrantModel(key.get(0), key.get(1), key.get(2),
+                permissionNames.isEmpty() ? null : permissionNames.toArray(new String[permissionNames.size()])), seqs.get(key)));
+        return grants;
+    }
+
+    @Override
+    public void afterPropertiesSet() throws Exception {
+        if (!enabled)
+            return;
+        Assert.isTrue(batchSize > 0 && capacity >= batchSize, "capacity must greater than or equal to batch size.");
+        running = true;
+        flusher = new Thread(this::runFlusher, "acl-write-behind-flusher");
+        flusher.setDaemon(true);
+        flusher.start();
+        logger.info("acl write-behind queue enabled. capacity: {}, batch size: {}, flush interval: {}ms", capacity, batchSize, flushIntervalMillis);
+    }
+
+    @Override
+    public void destroy() throws Exception {
+        if (!enabled || null == flusher)
+            return;
+        lock.lock();
+        try {
+            running = false;
+            flushRequired.signal();
+        } finally {
+            lock.unlock();
+        }
+        //flusher drains remaining mutations before exit.
+        flusher.join(TimeUnit.SECONDS.toMillis(30));
+    }
+
+
+    @Autowired
+    public void setAclManager(AclManager aclManager) {
+        this.aclManager = aclManager;
+    }
+
+    @Autowired
+    public void setTransactionManager(PlatformTransactionManager transactionManager) {
+        this.transactionTemplate = new TransactionTemplate(transactionManager);
+    }
+
+
+    /**
+     * grant or revoke failed after retry.
+     */
+    public static final class DeadLetter {
+        private final AclEntryGrantModel grant;
+        private final boolean create;
+        private final long seq;
+        private final String error;
+        private final Date time = new Date();
+
+        private DeadLetter(AclEntryGrantModel grant, boolean create, long seq, String error) {
+            this.grant = grant;
+            this.create = create;
+            this.seq = seq;
+            this.error = error;
+        }
+
+        public AclEntryGrantModel getGrant() {
+            return grant;
+        }
+
+        public boolean isCreate() {
+            return create;
+        }
+
+        public long getSeq() {
+            return seq;
+        }
+
+        public String getError() {
+            return error;
+        }
+
+        public Date getTime() {
+            return time;
+        }
+    }
+
+    protected static final class Operation {
+        private final boolean create;
+        private final long seq;
+
+        private Operation(boolean create, long seq) {
+            this.create = create;
+            this.seq = seq;
+        }
+    }
+
+    protected static final class Mutation {
+        private final String resourceType;
+        private final String resourceId;
+        private final String principal;
+        private final String permission;
+
+        private Mutation(String resourceType, String resourceId, String principal, String permission) {
+            this.resourceType = resourceType;
+            this.resourceId = resourceId;
+            this.principal = principal;
+            this.permission = permission;
+        }
+
+        /**
+         * (resource type, resource id, principal) of this mutation.
+         */
+        private List<String> entryKey() {
+            return Arrays.asList(resourceType, resourceId, principal);
+        }
+
+        @Override
+        public boolean equals(Object o) {
+            if (this == o) return true;
+            if (o == null || getClass() != o.getClass()) return false;
+            Mutation that = (Mutation) o;
+            return Objects.equals(resourceType, that.resourceType) &&
+                    Objects.equals(resourceId, that.resourceId) &&
+                    Objects.equals(principal, that.principal) &&
+                    Objects.equals(permission, that.permission);
+        }
+
+        @Override
+        public int hashCode() {
+            return Objects.hash(resourceType, resourceId, principal, permission);
+        }
+    }
+}
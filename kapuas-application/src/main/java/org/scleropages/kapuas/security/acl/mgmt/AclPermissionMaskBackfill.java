@@ -0,0 +1,100 @@
+/**
+ * Copyright 2001-2005 The Apache Software Foundation.
+ * <p>
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ * <p>
+ * http://www.apache.org/licenses/LICENSE-2.0
+ * <p>
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.scleropages.kapuas.security.acl.mgmt;
+
+import org.scleropages.kapuas.security.acl.entity.PermissionEntity;
+import org.scleropages.kapuas.security.acl.repo.AclEntryEntityRepository;
+import org.scleropages.kapuas.security.acl.repo.PermissionEntityRepository;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.context.ApplicationListener;
+import org.springframework.context.event.ContextRefreshedEvent;
+import org.springframework.stereotype.Component;
+import org.springframework.transaction.PlatformTransactionManager;
+import org.springframework.transaction.support.TransactionTemplate;
+
+/**
+ * 启动时为权限位引入前创建的 acl entry 补齐 permission_mask_(按其授权的权限计算，与新授权一致)，否则基于权限位的访问判断无法匹配这些记录.
+ * 仅更新 permission_mask_ 为空的记录，可重复执行，每个节点启动时各执行一次(滚动部署期间旧节点写入的记录由之后启动的节点补齐).
+ *
+ * @author <a href="mailto:martinmao@icloud.com">Martin Mao</a>
+ */
+@Component
+public class AclPermissionMaskBackfill implements ApplicationListener<ContextRefreshedEvent> {
+
+    private static final Logger logger = LoggerFactory.getLogger(AclPermissionMaskBackfill.class);
+
+    @Value("#{ @environment['security.acl.permission_mask.backfill_on_startup'] ?: true }")
+    private boolean enabled;
+
+    private PermissionEntityRepository permissionEntityRepository;
+
+    private AclEntryEntityRepository aclEntryEntityRepository;
+
+    private TransactionTemplate transactionTemplate;
+
+    private volatile boolean done;
+
+
+    @Override
+    public void onApplicationEvent(ContextRefreshedEvent event) {
+        if (!enabled || done)
+            return;
+        done = true;
+        backfill();
+    }
+
+    /**
+     * backfill all resource types(one transaction per permission).
+     *
+     * @return total updated rows
+     */
+    public int backfill() {
+        PermissionEntityRepository.LocalPermissionEntityRepository localPermissionEntityRepository = permissionEntityRepository.getLocalPermissionEntityRepository();
+        int updated = 0;
+        for (String resourceType : localPermissionEntityRepository.getAllResourceTypes()) {
+            if (localPermissionEntityRepository.isCoarseGrainedResource(resourceType))//no acl entries.
+                continue;
+            for (PermissionEntity permissionEntity : localPermissionEntityRepository.findAllByResourceType(resourceType)) {
+                long grantMask = localPermissionEntityRepository.getGrantMask(permissionEntity);
+                Integer rows = transactionTemplate.execute(status -> aclEntryEntityRepository.backfillPermissionMaskByResourceTypeIdAndPermission_Id(
+                        permissionEntity.getResourceTypeId(), permissionEntity.getId(), grantMask));
+                updated += null != rows ? rows : 0;
+            }
+        }
+        if (updated > 0)
+            logger.info("permission mask backfilled for {} acl entries.", updated);
+        return updated;
+    }
+
+
+    @Autowired
+    public void setPermissionEntityRepository(PermissionEntityRepository permissionEntityRepository) {
+        this.permissionEntityRepository = permissionEntityRepository;
+    }
+
+    @Autowired
+    public void setAclEntryEntityRepository(AclEntryEntityRepository aclEntryEntityRepository) {
+        this.aclEntryEntityRepository = aclEntryEntityRepository;
+    }
+
+    @Autowired
+    public void setTransactionManager(PlatformTransactionManager transactionManager) {
+        this.transactionTemplate = new TransactionTemplate(transactionManager);
+    }
+}
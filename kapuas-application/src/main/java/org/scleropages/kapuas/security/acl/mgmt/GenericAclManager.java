@@ -15,14 +15,23 @@
  */
 package org.scleropages.kapuas.security.acl.mgmt;
 
+import com.google.common.collect.ImmutableMap;
+import com.google.common.collect.Iterables;
+import com.google.common.collect.Iterators;
 import com.google.common.collect.Lists;
+import com.google.common.collect.Maps;
+import com.google.common.collect.PeekingIterator;
+import com.google.common.collect.Sets;
 import org.apache.commons.collections.MapUtils;
 import org.apache.commons.lang3.StringUtils;
 import org.scleropages.core.mapper.JsonMapper2;
 import org.scleropages.crud.dao.orm.SearchFilter;
+import org.scleropages.crud.dao.orm.jpa.entity.IdEntity;
 import org.scleropages.crud.dao.orm.jpa.SearchFilterSpecifications;
 import org.scleropages.crud.exception.BizError;
 import org.scleropages.crud.exception.BizStateViolationException;
+import org.scleropages.kapuas.jdbc.EntityIdAllocator;
+import org.scleropages.kapuas.jdbc.ReadReplicaRoutingDataSource;
 import org.scleropages.kapuas.security.SecurityBizException;
 import org.scleropages.kapuas.security.acl.Acl;
 import org.scleropages.kapuas.security.acl.AclEntry;
@@ -33,26 +42,38 @@ import org.scleropages.kapuas.security.acl.entity.AbstractAclEntryEntity;
 import org.scleropages.kapuas.security.acl.entity.AclEntity;
 import org.scleropages.kapuas.security.acl.entity.AclEntryEntity;
 import org.scleropages.kapuas.security.acl.entity.AclPrincipalEntity;
+import org.scleropages.kapuas.security.acl.entity.AclPrincipalClosureEntity;
+import org.scleropages.kapuas.security.acl.entity.AclPrincipalMemberEntity;
 import org.scleropages.kapuas.security.acl.entity.AclVariableEntity;
 import org.scleropages.kapuas.security.acl.entity.PermissionEntity;
 import org.scleropages.kapuas.security.acl.entity.SimpleAclEntity;
 import org.scleropages.kapuas.security.acl.entity.SimpleAclPrincipalEntity;
+import org.scleropages.kapuas.security.acl.model.AclChange;
+import org.scleropages.kapuas.security.acl.model.AclEntryDiffModel;
+import org.scleropages.kapuas.security.acl.model.AclEntryGrantModel;
 import org.scleropages.kapuas.security.acl.model.AclEntryModel;
 import org.scleropages.kapuas.security.acl.model.AclModel;
 import org.scleropages.kapuas.security.acl.model.AclPrincipalModel;
 import org.scleropages.kapuas.security.acl.model.AclStrategy;
+import org.scleropages.kapuas.security.acl.model.BulkProgress;
+import org.scleropages.kapuas.security.acl.model.CursorPage;
 import org.scleropages.kapuas.security.acl.model.PermissionModel;
 import org.scleropages.kapuas.security.acl.model.ResourceModel;
+import org.scleropages.kapuas.security.acl.provider.AclEntryGrant;
 import org.scleropages.kapuas.security.acl.provider.AclProvider;
 import org.scleropages.kapuas.security.acl.repo.AbstractAclEntityRepository;
 import org.scleropages.kapuas.security.acl.repo.AbstractAclEntryEntityRepository;
 import org.scleropages.kapuas.security.acl.repo.AclEntityRepository;
 import org.scleropages.kapuas.security.acl.repo.AclEntryEntityRepository;
+import org.scleropages.kapuas.security.acl.repo.AclPrincipalClosureEntityRepository;
 import org.scleropages.kapuas.security.acl.repo.AclPrincipalEntityRepository;
+import org.scleropages.kapuas.security.acl.repo.AclPrincipalMemberEntityRepository;
 import org.scleropages.kapuas.security.acl.repo.AclVariableEntityRepository;
 import org.scleropages.kapuas.security.acl.repo.PermissionEntityRepository;
 import org.scleropages.kapuas.security.acl.repo.SimpleAclEntityRepository;
 import org.scleropages.kapuas.security.acl.repo.SimpleAclPrincipalEntityRepository;
+import org.scleropages.kapuas.security.acl.snapshot.AclSnapshotWriter;
+import org.scleropages.kapuas.security.payload.BizPayloadCodec;
 import org.scleropages.kapuas.security.payload.entity.BizPayloadEntity;
 import org.scleropages.kapuas.security.payload.repo.BizPayloadEntityRepository;
 import org.springframework.beans.factory.annotation.Autowired;
@@ -60,20 +81,37 @@ import org.springframework.beans.factory.annotation.Value;
 import org.springframework.data.domain.Page;
 import org.springframework.data.domain.Pageable;
 import org.springframework.stereotype.Service;
+import org.springframework.transaction.PlatformTransactionManager;
 import org.springframework.transaction.annotation.Transactional;
+import org.springframework.transaction.support.TransactionTemplate;
 import org.springframework.util.Assert;
 import org.springframework.util.CollectionUtils;
 import org.springframework.validation.annotation.Validated;
 
+import javax.validation.ConstraintViolation;
+import javax.validation.ConstraintViolationException;
 import javax.validation.Valid;
+import javax.validation.Validator;
+import java.io.IOException;
+import java.io.OutputStream;
 import java.io.Serializable;
+import java.io.UncheckedIOException;
 import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collection;
 import java.util.Collections;
 import java.util.HashMap;
+import java.util.LinkedHashMap;
 import java.util.List;
 import java.util.Map;
 import java.util.Objects;
 import java.util.Optional;
+import java.util.Set;
+import java.util.concurrent.CompletableFuture;
+import java.util.function.Consumer;
+import java.util.function.Function;
+import java.util.function.LongPredicate;
+import java.util.stream.Collectors;
 import java.util.stream.Stream;
 
 /**
@@ -93,6 +131,24 @@ public class GenericAclManager implements AclManager {
     @Value("#{ @environment['security.acl.maximum_payload_in_query'] ?: -1 }")
     private int maximumBizPayloadAllowedInBatchQuery;
 
+    @Value("#{ @environment['security.acl.maximum_resources_in_accessible_query'] ?: -1 }")
+    private int maximumResourcesAllowedInAccessibleQuery;
+
+    @Value("#{ @environment['security.acl.maximum_entries_in_batch'] ?: -1 }")
+    private int maximumEntriesAllowedInBatch;
+
+    @Value("#{ @environment['security.acl.maximum_cursor_page_size'] ?: 1000 }")
+    private int maximumCursorPageSize;
+
+    @Value("#{ @environment['security.acl.export_fetch_size'] ?: 1000 }")
+    private int exportFetchSize;
+
+    @Value("#{ @environment['security.acl.bulk_chunk_size'] ?: 500 }")
+    private int bulkChunkSize;
+
+    @Value("#{ @environment['security.acl.biz_payload.compress_threshold'] ?: 1024 }")
+    private int bizPayloadCompressThreshold;
+
     private Map<Serializable, AclProvider> aclProviders;
 
     private AclProvider defaultAclProvider = new DefaultAclProvider();
@@ -113,6 +169,22 @@ public class GenericAclManager implements AclManager {
 
     private BizPayloadEntityRepository bizPayloadEntityRepository;
 
+    private AclDecisionCache aclDecisionCache;
+
+    private AclAccessibleIndex aclAccessibleIndex;
+
+    private AclPrincipalMemberEntityRepository aclPrincipalMemberEntityRepository;
+
+    private AclPrincipalClosureEntityRepository aclPrincipalClosureEntityRepository;
+
+    private AclChangeFeed aclChangeFeed;
+
+    private PlatformTransactionManager transactionManager;
+
+    private EntityIdAllocator entityIdAllocator;
+
+    private Validator validator;
+
     @Override
     @Transactional(readOnly = true)
     @BizError("01")
@@ -123,6 +195,16 @@ public class GenericAclManager implements AclManager {
         return getRequiredAclProvider(resourceModel).readEntries(resourceModel, principalProvided ? Optional.of(principal) : Optional.empty(), pageable);
     }
 
+    @Override
+    @Transactional(readOnly = true)
+    @BizError("21")
+    public CursorPage<AclEntry> findEntries(@Validated(ResourceModel.ReadEntriesBySpecifyResource.class) ResourceModel resourceModel,
+                                            AclPrincipalModel principal, String continuationToken, int limit) {
+        boolean principalProvided = null != principal && null != principal.getName();
+        return getRequiredAclProvider(resourceModel).readEntries(resourceModel, principalProvided ? Optional.of(principal) : Optional.empty(),
+                decodeCursor(resourceModel, continuationToken), assertCursorLimit(limit));
+    }
+
     @Override
     @Transactional(readOnly = true)
     @BizError("02")
@@ -147,13 +229,207 @@ public class GenericAclManager implements AclManager {
                 Optional.of(permissionModel) : Optional.empty(), pageable, variablesSearchFilters);
     }
 
+    @Override
+    @Transactional(readOnly = true)
+    @BizError("22")
+    public CursorPage<AclEntry> findPrincipalEntries(@Validated(AclPrincipalModel.CreateAcl.class) AclPrincipalModel principal, @Validated(ResourceModel.ReadEntriesBySpecifyResourceType.class) ResourceModel resourceModel, PermissionModel permissionModel, String continuationToken, int limit, Map<String, SearchFilter> variablesSearchFilters) {
+
+        boolean permissionProvided = null != permissionModel && StringUtils.isNotBlank(permissionModel.getName());
+
+        if (-1 != maximumVariableConditionsAllowedInAclQuery && null != variablesSearchFilters && variablesSearchFilters.size() > maximumVariableConditionsAllowedInAclQuery) {
+            throw new IllegalArgumentException("Not allowed many more variable search filter. maximum: " + maximumVariableConditionsAllowedInAclQuery + ". current: " + variablesSearchFilters.size());
+        }
+
+        return getRequiredAclProvider(resourceModel).readPrincipalEntries(principal, resourceModel, permissionProvided ?
+                Optional.of(permissionModel) : Optional.empty(), decodeCursor(resourceModel, continuationToken), assertCursorLimit(limit), variablesSearchFilters);
+    }
+
+    /**
+     * decode given continuation token and make sure it was issued by same resource type. given resource type id will be set.
+     */
+    protected Optional<CursorPage.Cursor> decodeCursor(ResourceModel resourceModel, String continuationToken) {
+        Long resourceTypeId = permissionEntityRepository.getLocalPermissionEntityRepository().getResourceTypeIdByResourceType(resourceModel.getType());
+        Assert.notNull(resourceTypeId, "no acl strategy found by given resource.");
+        resourceModel.setTypeId(resourceTypeId);
+        CursorPage.Cursor cursor = CursorPage.Cursor.decode(continuationToken);
+        Assert.isTrue(null == cursor || Objects.equals(cursor.getResourceTypeId(), resourceTypeId), "continuation token not issued by given resource type.");
+        return Optional.ofNullable(cursor);
+    }
+
+    protected int assertCursorLimit(int limit) {
+        Assert.isTrue(limit > 0, "limit must greater than 0.");
+        if (-1 != maximumCursorPageSize && limit > maximumCursorPageSize) {
+            throw new IllegalArgumentException("Not allowed many more rows in one page. maximum: " + maximumCursorPageSize + ". current: " + limit);
+        }
+        return limit;
+    }
+
     @Override
     @Transactional(readOnly = true)
     @BizError("04")
     public boolean isAccessible(@Valid ResourceModel resource, @Valid AclPrincipalModel principal, PermissionModel permission) {
         boolean permissionProvided = null != permission && StringUtils.isNotBlank(permission.getName());
-        return getRequiredAclProvider(resource).existsPrincipalEntries(principal, resource, permissionProvided ?
-                Optional.of(permission) : Optional.empty());
+        String permissionName = permissionProvided ? permission.getName() : null;
+        Boolean cached = aclDecisionCache.get(resource.getType(), resource.getId(), principal.getName(), permissionName);
+        if (null != cached)
+            return cached;
+        long version = aclDecisionCache.version();
+        //cached decision must not read from lagged replica.
+        boolean accessible = ReadReplicaRoutingDataSource.onPrimary(() -> getRequiredAclProvider(resource).existsPrincipalEntries(principal, resource, permissionProvided ?
+                Optional.of(permission) : Optional.empty()));
+        if (!ReadReplicaRoutingDataSource.isReplicaReadInCurrentTransaction())
+            aclDecisionCache.put(resource.getType(), resource.getId(), principal.getName(), permissionName, accessible, version);
+        return accessible;
+    }
+
+    @Override
+    @Transactional(readOnly = true)
+    @BizError("18")
+    public Map<String, Boolean> isAccessible(@Validated(ResourceModel.ReadEntriesBySpecifyResourceType.class) ResourceModel resource, @Valid AclPrincipalModel principal, PermissionModel permission, Collection<String> resourceIds) {
+        Assert.notEmpty(resourceIds, "resourceIds must not be empty.");
+        if (-1 != maximumResourcesAllowedInAccessibleQuery && resourceIds.size() > maximumResourcesAllowedInAccessibleQuery) {
+            throw new IllegalArgumentException("Not allowed many more resources accessible check. maximum: " + maximumResourcesAllowedInAccessibleQuery + ". current: " + resourceIds.size());
+        }
+        boolean permissionProvided = null != permission && StringUtils.isNotBlank(permission.getName());
+        String permissionName = permissionProvided ? permission.getName() : null;
+
+        Map<String, Boolean> accessible = new LinkedHashMap<>(resourceIds.size());
+        List<String> missed = Lists.newArrayList();
+        resourceIds.forEach(resourceId -> {
+            Boolean cached = aclDecisionCache.get(resource.getType(), resourceId, principal.getName(), permissionName);
+            if (null != cached)
+                accessible.put(resourceId, cached);
+            else
+                missed.add(resourceId);
+        });
+        if (missed.isEmpty())
+            return accessible;
+        long version = aclDecisionCache.version();
+        Map<String, Boolean> decisions = ReadReplicaRoutingDataSource.onPrimary(() -> getRequiredAclProvider(resource).existsPrincipalEntries(principal, resource, permissionProvided ?
+                Optional.of(permission) : Optional.empty(), missed));
+        boolean cacheable = !ReadReplicaRoutingDataSource.isReplicaReadInCurrentTransaction();
+        decisions.forEach((resourceId, decision) -> {
+            accessible.put(resourceId, decision);
+            if (cacheable)
+                aclDecisionCache.put(resource.getType(), resourceId, principal.getName(), permissionName, decision, version);
+        });
+        return accessible;
+    }
+
+    @Override
+    @Transactional(readOnly = true)
+    @BizError("37")
+    public boolean isAccessibleAny(@Valid ResourceModel resource, @Valid AclPrincipalModel principal, PermissionModel... permissions) {
+        long permissionsMask = getPermissionsMask(resource, permissions);
+        return isEffectivePermissionMaskAccessible(resource, principal, getPermissionsDecisionKey("any", permissions), effectiveMask -> (effectiveMask & permissionsMask) != 0);
+    }
+
+    @Override
+    @Transactional(readOnly = true)
+    @BizError("38")
+    public boolean isAccessibleAll(@Valid ResourceModel resource, @Valid AclPrincipalModel principal, PermissionModel... permissions) {
+        long permissionsMask = getPermissionsMask(resource, permissions);
+        return isEffectivePermissionMaskAccessible(resource, principal, getPermissionsDecisionKey("all", permissions), effectiveMask -> (effectiveMask & permissionsMask) == permissionsMask);
+    }
+
+    /**
+     * decide by effective permission mask and cache decision as given permissions decision key(invalidated same as single permission decisions).
+     */
+    protected boolean isEffectivePermissionMaskAccessible(ResourceModel resource, AclPrincipalModel principal, String permissionsDecisionKey, LongPredicate decision) {
+        Boolean cached = aclDecisionCache.get(resource.getType(), resource.getId(), principal.getName(), permissionsDecisionKey);
+        if (null != cached)
+            return cached;
+        long version = aclDecisionCache.version();
+        //cached decision must not read from lagged replica.
+        boolean accessible = decision.test(ReadReplicaRoutingDataSource.onPrimary(() -> getEffectivePermissionMask(resource, principal)));
+        if (!ReadReplicaRoutingDataSource.isReplicaReadInCurrentTransaction())
+            aclDecisionCache.put(resource.getType(), resource.getId(), principal.getName(), permissionsDecisionKey, accessible, version);
+        return accessible;
+    }
+
+    /**
+     * return decision cache key of given permissions combination. e.g any(read,write)
+     */
+    protected String getPermissionsDecisionKey(String operator, PermissionModel... permissions) {
+        return Stream.of(permissions).map(PermissionModel::getName).distinct().sorted().collect(Collectors.joining(",", operator + "(", ")"));
+    }
+
+    @Override
+    @Transactional(readOnly = true)
+    @BizError("39")
+    public Set<String> findEffectivePermissions(@Valid ResourceModel resource, @Valid AclPrincipalModel principal) {
+        long effectiveMask = getEffectivePermissionMask(resource, principal);
+        PermissionEntityRepository.LocalPermissionEntityRepository localPermissionEntityRepository = permissionEntityRepository.getLocalPermissionEntityRepository();
+        Set<String> permissions = Sets.newLinkedHashSet();
+        localPermissionEntityRepository.findAllByResourceType(resource.getType()).forEach(entity -> {
+            if ((effectiveMask & localPermissionEntityRepository.getPermissionMask(entity)) != 0)
+                permissions.add(entity.getName());
+        });
+        return permissions;
+    }
+
+    /**
+     * return effective permission mask of given principal on given resource. fine-grained acl model only.
+     */
+    protected long getEffectivePermissionMask(ResourceModel resource, AclPrincipalModel principal) {
+        PermissionEntity permissionEntity = permissionEntityRepository.getLocalPermissionEntityRepository().getFirstByResourceType(resource.getType());
+        if (permissionEntity.isNotSupport())
+            throw new BizStateViolationException("current resource is coarse-grained acl model(see acl strategy). not support permission argument.");
+        resource.setTypeId(permissionEntity.getResourceTypeId());
+        return getRequiredAclProvider(resource).readEffectivePermissionMask(principal, resource);
+    }
+
+    /**
+     * return merged mask of given permissions.
+     */
+    protected long getPermissionsMask(ResourceModel resource, PermissionModel... permissions) {
+        Assert.notEmpty(permissions, "permissions must not be empty.");
+        PermissionEntityRepository.LocalPermissionEntityRepository localPermissionEntityRepository = permissionEntityRepository.getLocalPermissionEntityRepository();
+        long permissionsMask = 0;
+        for (PermissionModel permission : permissions) {
+            Assert.isTrue(null != permission && StringUtils.isNotBlank(permission.getName()), "permission name must not be empty.");
+            permissionsMask |= localPermissionEntityRepository.getPermissionMask(localPermissionEntityRepository.getPermissionEntity(resource.getType(), permission.getName()));
+        }
+        return permissionsMask;
+    }
+
+    @Override
+    @Transactional(readOnly = true)
+    @BizError("24")
+    public Set<String> findAccessibleResourceIds(@Validated(ResourceModel.ReadEntriesBySpecifyResourceType.class) ResourceModel resource, @Valid AclPrincipalModel principal, PermissionModel permission) {
+        return getAccessibleIndex(resource, principal).resourceIds(getAccessiblePermissionMask(resource, permission));
+    }
+
+    @Override
+    @Transactional(readOnly = true)
+    @BizError("25")
+    public int countAccessibleResources(@Validated(ResourceModel.ReadEntriesBySpecifyResourceType.class) ResourceModel resource, @Valid AclPrincipalModel principal, PermissionModel permission) {
+        return getAccessibleIndex(resource, principal).count(getAccessiblePermissionMask(resource, permission));
+    }
+
+    @Override
+    @Transactional(readOnly = true)
+    @BizError("26")
+    public Set<String> findAccessibleResourceIds(@Validated(ResourceModel.ReadEntriesBySpecifyResourceType.class) ResourceModel resource, @Valid AclPrincipalModel principal, PermissionModel permission, Collection<String> candidateResourceIds) {
+        Assert.notNull(candidateResourceIds, "candidateResourceIds must not be null.");
+        return getAccessibleIndex(resource, principal).intersect(getAccessiblePermissionMask(resource, permission), candidateResourceIds);
+    }
+
+    protected AclAccessibleIndex.PrincipalIndex getAccessibleIndex(ResourceModel resource, AclPrincipalModel principal) {
+        return aclAccessibleIndex.get(resource.getType(), principal.getName(), () -> ReadReplicaRoutingDataSource.onPrimary(() -> getRequiredAclProvider(resource).readPrincipalPermissionMasks(principal, resource)));
+    }
+
+    /**
+     * return permission mask to match in accessible index. 0 if permission not provided(any permission).
+     */
+    protected long getAccessiblePermissionMask(ResourceModel resource, PermissionModel permission) {
+        PermissionEntityRepository.LocalPermissionEntityRepository localPermissionEntityRepository = permissionEntityRepository.getLocalPermissionEntityRepository();
+        boolean permissionProvided = null != permission && StringUtils.isNotBlank(permission.getName());
+        if (localPermissionEntityRepository.getFirstByResourceType(resource.getType()).isNotSupport()) {
+            Assert.isTrue(!permissionProvided, "current resource is coarse-grained acl model(see acl strategy). not support permission argument.");
+            return 0;
+        }
+        return permissionProvided ? localPermissionEntityRepository.getPermissionMask(localPermissionEntityRepository.getPermissionEntity(resource.getType(), permission.getName())) : 0;
     }
 
     @Override
@@ -195,17 +471,123 @@ public class GenericAclManager implements AclManager {
         return getRequiredAclProvider(resourceModel).readAcl(resourceModel, permissionEntity, pageable, variablesSearchFilters);
     }
 
+    @Override
+    @Transactional(readOnly = true)
+    @Validated(ResourceModel.ReadEntriesBySpecifyResourceType.class)
+    @BizError("23")
+    public CursorPage<Acl> findAcl(ResourceModel resourceModel, String continuationToken, int limit, Map<String, SearchFilter> variablesSearchFilters) {
+        PermissionEntity permissionEntity = permissionEntityRepository.getLocalPermissionEntityRepository().getFirstByResourceType(resourceModel.getType());
+        if (-1 != maximumVariableConditionsAllowedInAclQuery && null != variablesSearchFilters && variablesSearchFilters.size() > maximumVariableConditionsAllowedInAclQuery) {
+            throw new IllegalArgumentException("Not allowed many more variable search filter. maximum: " + maximumVariableConditionsAllowedInAclQuery + ". current: " + variablesSearchFilters.size());
+        }
+        return getRequiredAclProvider(resourceModel).readAcl(resourceModel, permissionEntity, decodeCursor(resourceModel, continuationToken), assertCursorLimit(limit), variablesSearchFilters);
+    }
+
+    @Override
+    @Transactional(readOnly = true)
+    @BizError("30")
+    public void exportAcl(@Validated(ResourceModel.ReadEntriesBySpecifyResourceType.class) ResourceModel resourceModel, boolean withVariables, boolean withBizPayload, Consumer<Acl> consumer) {
+        PermissionEntity permissionEntity = permissionEntityRepository.getLocalPermissionEntityRepository().getFirstByResourceType(resourceModel.getType());
+        resourceModel.setTypeId(permissionEntity.getResourceTypeId());
+        getRequiredAclProvider(resourceModel).exportAcl(resourceModel, permissionEntity, withVariables, withBizPayload, consumer);
+    }
+
+    @Override
+    @Transactional(readOnly = true)
+    @BizError("31")
+    public void exportEntries(@Validated(ResourceModel.ReadEntriesBySpecifyResourceType.class) ResourceModel resourceModel, Consumer<AclEntry> consumer) {
+        PermissionEntity permissionEntity = permissionEntityRepository.getLocalPermissionEntityRepository().getFirstByResourceType(resourceModel.getType());
+        resourceModel.setTypeId(permissionEntity.getResourceTypeId());
+        getRequiredAclProvider(resourceModel).exportEntries(resourceModel, permissionEntity, consumer);
+    }
+
+    /**
+     * acl ids and entries are read by export cursors(see {@link #exportAcl(ResourceModel, boolean, boolean, Consumer)}). descendants of granted principals(members of groups/roles)
+     * written with their granted ancestors so that snapshot reader match same as {@link #isAccessible(ResourceModel, AclPrincipalModel, PermissionModel)}.
+     */
+    @Override
+    @Transactional(readOnly = true)
+    @BizError("36")
+    public void exportAclSnapshot(@Validated(ResourceModel.ReadEntriesBySpecifyResourceType.class) ResourceModel resourceModel, OutputStream outputStream) {
+        PermissionEntityRepository.LocalPermissionEntityRepository localPermissionEntityRepository = permissionEntityRepository.getLocalPermissionEntityRepository();
+        PermissionEntity permissionEntity = localPermissionEntityRepository.getFirstByResourceType(resourceModel.getType());
+        resourceModel.setTypeId(permissionEntity.getResourceTypeId());
+        AclProvider aclProvider = getRequiredAclProvider(resourceModel);
+
+        AclSnapshotWriter snapshotWriter = new AclSnapshotWriter(resourceModel.getType(), System.currentTimeMillis(), permissionEntity.isNotSupport());
+        Map<String, Long> grantMasks = Maps.newHashMap();
+        if (!permissionEntity.isNotSupport()) {
+            localPermissionEntityRepository.findAllByResourceType(resourceModel.getType()).forEach(entity -> {
+                snapshotWriter.permission(entity.getName(), localPermissionEntityRepository.getPermissionMask(entity));
+                grantMasks.put(entity.getExtensionAndName(), localPermissionEntityRepository.getGrantMask(entity));
+            });
+        }
+        Map<String, Long> aclIds = Maps.newHashMap();
+        aclProvider.exportAcl(resourceModel, permissionEntity, false, false, acl -> aclIds.put(String.valueOf(acl.resource().id()), ((Number) acl.id()).longValue()));
+        Set<String> principals = Sets.newHashSet();
+        aclProvider.exportEntries(resourceModel, permissionEntity, entry -> {
+            AclEntryModel entryModel = (AclEntryModel) entry;
+            Long aclId = aclIds.get(entryModel.getResourceId());
+            Long grantMask = grantMasks.get(entryModel.getPermissionName());
+            snapshotWriter.entry(null != aclId ? aclId : 0L, entryModel.getResourceId(), entryModel.getAclPrincipalName(), null != grantMask ? grantMask : 0L);
+            principals.add(entryModel.getAclPrincipalName());
+        });
+        Iterables.partition(principals, 1000).forEach(ancestors ->
+                aclPrincipalClosureEntityRepository.findDescendantAncestors(ancestors).forEach((descendant, descendantAncestors) ->
+                        descendantAncestors.forEach(ancestor -> snapshotWriter.ancestor(descendant, ancestor))));
+        try {
+            snapshotWriter.writeTo(outputStream);
+        } catch (IOException e) {
+            throw new UncheckedIOException(e);
+        }
+    }
+
     @Override
     @Transactional(readOnly = true)
     @Validated(ResourceModel.ReadEntriesBySpecifyResourceType.class)
     @BizError("08")
-    public List<String> findAllAclBizPayload(ResourceModel resourceModel, Long... aclIds) {
+    public Map<Long, String> findAllAclBizPayload(ResourceModel resourceModel, Long... aclIds) {
         if (-1 != maximumBizPayloadAllowedInBatchQuery && null != aclIds && aclIds.length > maximumBizPayloadAllowedInBatchQuery) {
             throw new IllegalArgumentException("Not allowed many more payload search. maximum: " + maximumBizPayloadAllowedInBatchQuery + ". current: " + aclIds.length);
         }
 
         Long typeId = permissionEntityRepository.getLocalPermissionEntityRepository().getResourceTypeIdByResourceType(resourceModel.getType());
-        return bizPayloadEntityRepository.findAllTextByBizIdAndTypeIdAndPayloadId(ACL_BIZ_PAYLOAD_ID, typeId, aclIds);
+        //decompress once. a transformValues view re-inflates on every access.
+        ImmutableMap.Builder<Long, String> payloads = ImmutableMap.builder();
+        bizPayloadEntityRepository.findAllTextByBizIdAndTypeIdAndPayloadId(ACL_BIZ_PAYLOAD_ID, typeId, aclIds)
+                .forEach((aclId, text) -> {
+                    if (null != text)
+                        payloads.put(aclId, BizPayloadCodec.decode(text));
+                });
+        return payloads.build();
+    }
+
+    @Override
+    @Transactional
+    @Validated(ResourceModel.ReadEntriesBySpecifyResourceType.class)
+    @BizError("34")
+    public void saveAllAclBizPayload(ResourceModel resourceModel, Map<Long, String> payloads) {
+        Assert.notEmpty(payloads, "payloads must not be empty.");
+        if (-1 != maximumBizPayloadAllowedInBatchQuery && payloads.size() > maximumBizPayloadAllowedInBatchQuery) {
+            throw new IllegalArgumentException("Not allowed many more payload save. maximum: " + maximumBizPayloadAllowedInBatchQuery + ". current: " + payloads.size());
+        }
+        PermissionEntity permissionEntity = permissionEntityRepository.getLocalPermissionEntityRepository().getFirstByResourceType(resourceModel.getType());
+        Long typeId = permissionEntity.getResourceTypeId();
+        AbstractAclEntityRepository abstractAclEntityRepository = permissionEntity.isNotSupport() ? simpleAclEntityRepository : aclEntityRepository;
+        Assert.isTrue(abstractAclEntityRepository.countByResourceTypeIdAndIdIn(typeId, payloads.keySet()) == payloads.size(), "no acl found by given resource type and acl id(s).");
+        Long[] ids = entityIdAllocator.allocate(BizPayloadEntity.class, payloads.size());
+        List<BizPayloadEntity> payloadsToSave = Lists.newArrayListWithCapacity(payloads.size());
+        payloads.forEach((aclId, payload) -> {
+            Assert.hasText(payload, "payload must not be empty text.");
+            BizPayloadEntity bizPayloadEntity = new BizPayloadEntity();
+            bizPayloadEntity.setId(ids[payloadsToSave.size()]);
+            bizPayloadEntity.setBizId(ACL_BIZ_PAYLOAD_ID);
+            bizPayloadEntity.setTypeId(typeId);
+            bizPayloadEntity.setPayloadId(aclId);
+            bizPayloadEntity.setText(BizPayloadCodec.encode(payload, bizPayloadCompressThreshold));
+            payloadsToSave.add(bizPayloadEntity);
+        });
+        bizPayloadEntityRepository.upsertAll(payloadsToSave);
     }
 
     @Override
@@ -218,6 +600,66 @@ public class GenericAclManager implements AclManager {
         Assert.notNull(principalEntity, "no principal found by given resource owner.");
         resource.setTypeId(permissionEntity.getResourceTypeId());
         getRequiredAclProvider(resource).createAcl(resource, permissionEntity, principalEntity);
+        aclChangeFeed.append(new AclChange(AclChange.Type.ACL_CREATED, resource.getType(), resource.getId(), resource.getOwner()));
+    }
+
+    @Override
+    @Transactional
+    @Validated(ResourceModel.ReadAcl.class)
+    @BizError("35")
+    public void patchAclVariables(ResourceModel resource) {
+        Assert.notEmpty(resource.getVariables(), "variables must not be empty.");
+        PermissionEntity permissionEntity = permissionEntityRepository.getLocalPermissionEntityRepository().getFirstByResourceType(resource.getType());
+        resource.setTypeId(permissionEntity.getResourceTypeId());
+        getRequiredAclProvider(resource).patchAclVariables(resource, permissionEntity);
+        aclChangeFeed.append(new AclChange(AclChange.Type.ACL_UPDATED, resource.getType(), resource.getId(), null));
+    }
+
+    /**
+     * not transactional. each chunk committed in its own transaction, import of millions resources not held in one transaction.
+     */
+    @Override
+    @BizError("33")
+    public BulkProgress createAcls(String resourceType, Stream<ResourceModel> resources, Consumer<BulkProgress> progress) {
+        Assert.hasText(resourceType, "given resource type must not be empty text.");
+        PermissionEntity permissionEntity = permissionEntityRepository.getLocalPermissionEntityRepository().getFirstByResourceType(resourceType);
+        Assert.notNull(permissionEntity, "no acl strategy found by given resource type.");
+        ResourceModel resourceTypeModel = new ResourceModel();
+        resourceTypeModel.setType(resourceType);
+        AclProvider aclProvider = getRequiredAclProvider(resourceTypeModel);
+        Map<String, AclPrincipalEntity> owners = Maps.newHashMap();
+        BulkProgress bulkProgress = new BulkProgress();
+        TransactionTemplate transactionTemplate = new TransactionTemplate(transactionManager);
+        //validated(same validation group as createAcl(ResourceModel)) before partitioned into chunks.
+        Stream<ResourceModel> validatedResources = resources.peek(resource -> {
+            resource.setType(resourceType);
+            resource.setTypeId(permissionEntity.getResourceTypeId());
+            Set<ConstraintViolation<ResourceModel>> violations = validator.validate(resource, ResourceModel.Create.class);
+            if (!violations.isEmpty())
+                throw new ConstraintViolationException(violations);
+        });
+        Iterators.partition(validatedResources.iterator(), bulkChunkSize).forEachRemaining(chunk -> {
+            List<ResourceModel> created = transactionTemplate.execute(status -> {
+                resolveOwners(owners, chunk);
+                List<ResourceModel> createdResources = aclProvider.createAcls(chunk, permissionEntity, owners);
+                aclChangeFeed.append(createdResources.stream().map(resource -> new AclChange(AclChange.Type.ACL_CREATED, resourceType, resource.getId(), resource.getOwner())).collect(Collectors.toList()));
+                return createdResources;
+            });
+            bulkProgress.chunkCommitted(chunk.size(), created.size());
+            progress.accept(bulkProgress);
+        });
+        return bulkProgress;
+    }
+
+    /**
+     * load owners not resolved yet by one IN query.
+     */
+    protected void resolveOwners(Map<String, AclPrincipalEntity> owners, List<ResourceModel> resources) {
+        Set<String> unresolved = resources.stream().map(ResourceModel::getOwner).filter(owner -> !owners.containsKey(owner)).collect(Collectors.toSet());
+        if (unresolved.isEmpty())
+            return;
+        aclPrincipalEntityRepository.findAllByNameIn(unresolved).forEach(principalEntity -> owners.put(principalEntity.getName(), principalEntity));
+        unresolved.forEach(owner -> Assert.isTrue(owners.containsKey(owner), "no principal found by given resource owner: " + owner));
     }
 
     @Override
@@ -233,8 +675,10 @@ public class GenericAclManager implements AclManager {
             AclPrincipalEntity principalEntity = aclPrincipalEntityRepository.getByName(owner);
             Assert.notNull(principalEntity, "no principal found by given resource owner.");
             getRequiredAclProvider(resource).updateAcl(resource, permissionEntity, Optional.of(principalEntity));
+            aclDecisionCache.evictResource(resource.getType(), resource.getId());
         } else
             getRequiredAclProvider(resource).updateAcl(resource, permissionEntity, Optional.empty());
+        aclChangeFeed.append(new AclChange(AclChange.Type.ACL_UPDATED, resource.getType(), resource.getId(), owner));
     }
 
     @Override
@@ -246,6 +690,8 @@ public class GenericAclManager implements AclManager {
         Long resourceTypeId = permissionEntityRepository.getLocalPermissionEntityRepository().getResourceTypeIdByResourceType(resource.getType());
         resource.setTypeId(resourceTypeId);
         getRequiredAclProvider(resource).deleteAcl(resource, permissionEntity);
+        aclDecisionCache.evictResource(resource.getType(), resource.getId());
+        aclChangeFeed.append(new AclChange(AclChange.Type.ACL_DELETED, resource.getType(), resource.getId(), null));
     }
 
     @Override
@@ -257,48 +703,15 @@ public class GenericAclManager implements AclManager {
         AclPrincipalEntity principalEntity = aclPrincipalEntityRepository.getByName(grant.getName());
         List<PermissionEntity> permissionEntities = permissionEntityRepository.getLocalPermissionEntityRepository().findAllByResourceType(resource.getType());
         assertAclEntryArgumentsValid(resource, principalEntity, permissionEntities, permission);
-        List<PermissionEntity> hits = Lists.newArrayList();
-
-        /*
-        for each grants permissions do follow things:
-        1.check given permission already defined in acl strategy
-        2.inherit permission merge:
-        admin>write>read(given admin,write,read)->admin
-        admin>publish,subscribe(given publish,subscribe)->publish,subscribe
-        */
-        if (null != permission) {
-            PermissionEntity permissionEntity = null;
-            for (PermissionModel model : permission) {
-                for (PermissionEntity entity : permissionEntities) {
-                    if (Objects.equals(entity.getName(), model.getName())) {
-                        permissionEntity = entity;
-                        break;
-                    }
-                }
-                Assert.notNull(permissionEntity, "no match permission[" + model.getName() + "] definition found by given resource: " + resource.getType());
-                int action = 0;
-                int replaceIdx = -1;
-                for (int i = 0; i < hits.size(); i++) {
-                    if (StringUtils.contains(hits.get(i).getExtension(), permissionEntity.getName())) {
-                        action = -1;
-                        break;
-                    }
-                    if (StringUtils.contains(permissionEntity.getExtension(), hits.get(i).getName())) {
-                        action = 1;
-                        replaceIdx = i;
-                        break;
-                    }
-                }
-                if (action == 0)
-                    hits.add(permissionEntity);
-                if (action == 1)
-                    hits.set(replaceIdx, permissionEntity);
-            }
-        }
+        List<PermissionEntity> hits = mergeInheritPermissions(resource, permissionEntities, permission);
         if (hits.size() > 0)
             getRequiredAclProvider(resource).createAclEntry(resource, principalEntity, hits.toArray(new PermissionEntity[hits.size()]));
         else
             getRequiredAclProvider(resource).createAclEntryWithoutPermission(resource, principalEntity);
+        aclDecisionCache.evictPrincipal(resource.getType(), resource.getId(), grant.getName());
+        aclAccessibleIndex.grant(resource.getType(), resource.getId(), grant.getName(), getGrantMask(hits));
+        evictInheritedPrincipals(resource, Collections.singleton(grant.getName()));
+        aclChangeFeed.append(new AclChange(AclChange.Type.ENTRY_CREATED, resource.getType(), resource.getId(), grant.getName(), getPermissionNames(hits)));
     }
 
 
@@ -309,24 +722,254 @@ public class GenericAclManager implements AclManager {
         AclPrincipalEntity principalEntity = aclPrincipalEntityRepository.getByName(grant.getName());
         List<PermissionEntity> permissionEntities = permissionEntityRepository.getLocalPermissionEntityRepository().findAllByResourceType(resource.getType());
         assertAclEntryArgumentsValid(resource, principalEntity, permissionEntities, permission);
-        List<PermissionEntity> deletedPermissionEntries = Lists.newArrayList();
-
-        if (null != permission) {
-            for (PermissionModel model : permission) {
-                boolean hit = false;
-                for (PermissionEntity entity : permissionEntities) {
-                    if (hit = Objects.equals(entity.getName(), model.getName())) {
-                        deletedPermissionEntries.add(entity);
-                        break;
-                    }
-                }
-                Assert.isTrue(hit, "no permission definition found by given permission: " + model.getName());
-            }
-        }
+        List<PermissionEntity> deletedPermissionEntries = matchPermissions(permissionEntities, permission);
         if (deletedPermissionEntries.size() > 0)
             getRequiredAclProvider(resource).deleteAclEntry(resource, principalEntity, deletedPermissionEntries.toArray(new PermissionEntity[deletedPermissionEntries.size()]));
         else
             getRequiredAclProvider(resource).deleteAclEntryWithoutPermission(resource, principalEntity);
+        aclDecisionCache.evictPrincipal(resource.getType(), resource.getId(), grant.getName());
+        aclAccessibleIndex.revoke(resource.getType(), grant.getName());
+        evictInheritedPrincipals(resource, Collections.singleton(grant.getName()));
+        aclChangeFeed.append(new AclChange(AclChange.Type.ENTRY_DELETED, resource.getType(), resource.getId(), grant.getName(), getPermissionNames(deletedPermissionEntries)));
+    }
+
+    @Override
+    @Transactional
+    @BizError("19")
+    public void createAclEntries(Collection<AclEntryGrantModel> grants) {
+        List<AclEntryGrant> aclEntryGrants = applyCreateAclEntries(grants);
+        //批量操作按资源类型整体失效，避免为每个条目注册事务回调
+        grants.stream().map(AclEntryGrantModel::getResourceType).distinct().forEach(aclDecisionCache::evictResourceType);
+        aclAccessibleIndex.grant(aclEntryGrants.stream()
+                .map(grant -> new AclAccessibleIndex.Grant(grant.getResource().getType(), grant.getResource().getId(), grant.getGrant().getName(), getGrantMask(Arrays.asList(grant.getPermissions()))))
+                .collect(Collectors.toList()));
+        evictInheritedPrincipals(grants);
+        aclChangeFeed.append(mapAclChanges(AclChange.Type.ENTRY_CREATED, grants));
+    }
+
+    @Override
+    @Transactional
+    @BizError("20")
+    public void deleteAclEntries(Collection<AclEntryGrantModel> grants) {
+        applyDeleteAclEntries(grants);
+        grants.stream().map(AclEntryGrantModel::getResourceType).distinct().forEach(aclDecisionCache::evictResourceType);
+        aclAccessibleIndex.revoke(grants.stream().map(grant -> new AclAccessibleIndex.Grant(grant.getResourceType(), grant.getResourceId(), grant.getPrincipal(), 0)).collect(Collectors.toList()));
+        evictInheritedPrincipals(grants);
+        aclChangeFeed.append(mapAclChanges(AclChange.Type.ENTRY_DELETED, grants));
+    }
+
+    /**
+     * current grants of resource loaded once and diffed with desired grants. desired permissions are merged by inherit rules(admin>write>read given admin,read -> admin)
+     * before diff, so only tuples actually changed are revoked(first) and granted in one transaction. partitions applied to providers only,
+     * caches of resource evicted and changes recorded to feed once after all partitions applied.
+     */
+    @Override
+    @Transactional
+    @BizError("40")
+    public AclEntryDiffModel reconcileEntries(@Validated(ResourceModel.ReadAcl.class) ResourceModel resource, Map<String, Set<String>> desiredGrants) {
+        Assert.notNull(desiredGrants, "desiredGrants must not be null.");
+        List<PermissionEntity> permissionEntities = permissionEntityRepository.getLocalPermissionEntityRepository().findAllByResourceType(resource.getType());
+        Assert.notEmpty(permissionEntities, "no acl strategy found by given resource.");
+        PermissionEntity permissionEntity = permissionEntities.get(0);
+        resource.setTypeId(permissionEntity.getResourceTypeId());
+        boolean coarseGrained = permissionEntity.isNotSupport();
+        Map<String, Set<String>> currentGrants = getRequiredAclProvider(resource).readResourceGrants(resource, permissionEntity);
+
+        List<AclEntryGrantModel> grants = Lists.newArrayList();
+        List<AclEntryGrantModel> revokes = Lists.newArrayList();
+        desiredGrants.forEach((principal, permissions) -> {
+            Assert.hasText(principal, "principal must not be empty.");
+            Set<String> current = currentGrants.get(principal);
+            if (coarseGrained) {
+                if (!CollectionUtils.isEmpty(permissions))
+                    throw new BizStateViolationException("current resource is coarse-grained acl model(see acl strategy). not support permission argument.");
+                if (null == current)
+                    grants.add(new AclEntryGrantModel(resource.getType(), resource.getId(), principal));
+                return;
+            }
+            Set<String> desired = CollectionUtils.isEmpty(permissions) ? Collections.emptySet() : mergeInheritPermissions(resource, permissionEntities,
+                    permissions.stream().map(PermissionModel::new).toArray(PermissionModel[]::new)).stream().map(PermissionEntity::getName).collect(Collectors.toSet());
+            Set<String> toRevoke = null != current ? Sets.difference(current, desired) : Collections.emptySet();
+            Set<String> toGrant = null != current ? Sets.difference(desired, current) : desired;
+            if (!toRevoke.isEmpty())
+                revokes.add(new AclEntryGrantModel(resource.getType(), resource.getId(), principal, toRevoke.toArray(new String[0])));
+            if (!toGrant.isEmpty())
+                grants.add(new AclEntryGrantModel(resource.getType(), resource.getId(), principal, toGrant.toArray(new String[0])));
+        });
+        currentGrants.forEach((principal, permissions) -> {
+            if (desiredGrants.containsKey(principal))
+                return;
+            revokes.add(coarseGrained ? new AclEntryGrantModel(resource.getType(), resource.getId(), principal)
+                    : new AclEntryGrantModel(resource.getType(), resource.getId(), principal, permissions.toArray(new String[0])));
+        });
+        //revoke first: lower permissions replaced by a higher one are removed before grant merge.
+        partitionGrants(revokes).forEach(this::applyDeleteAclEntries);
+        partitionGrants(grants).forEach(this::applyCreateAclEntries);
+        if (revokes.isEmpty() && grants.isEmpty())
+            return new AclEntryDiffModel(grants, revokes);
+        Set<String> changedPrincipals = Sets.newHashSet();
+        revokes.forEach(revoke -> changedPrincipals.add(revoke.getPrincipal()));
+        grants.forEach(grant -> changedPrincipals.add(grant.getPrincipal()));
+        aclDecisionCache.evictResource(resource.getType(), resource.getId());
+        //indexes of changed principals reload at next query(revoked and granted permissions both applied).
+        aclAccessibleIndex.revoke(changedPrincipals.stream().map(principal -> new AclAccessibleIndex.Grant(resource.getType(), resource.getId(), principal, 0)).collect(Collectors.toList()));
+        evictInheritedPrincipals(resource, changedPrincipals);
+        List<AclChange> changes = mapAclChanges(AclChange.Type.ENTRY_DELETED, revokes);
+        changes.addAll(mapAclChanges(AclChange.Type.ENTRY_CREATED, grants));
+        aclChangeFeed.append(changes);
+        return new AclEntryDiffModel(grants, revokes);
+    }
+
+    /**
+     * write given grants to acl providers only. caches and change feed not touched.
+     *
+     * @param grants
+     * @return grants resolved(inherit permissions merged) and applied.
+     */
+    protected List<AclEntryGrant> applyCreateAclEntries(Collection<AclEntryGrantModel> grants) {
+        Map<AclProvider, List<AclEntryGrant>> aclEntryGrants = mapAclEntryGrants(grants, true);
+        aclEntryGrants.forEach((aclProvider, providerGrants) -> aclProvider.createAclEntries(providerGrants));
+        return aclEntryGrants.values().stream().flatMap(List::stream).collect(Collectors.toList());
+    }
+
+    /**
+     * delete given grants from acl providers only. caches and change feed not touched.
+     *
+     * @param grants
+     */
+    protected void applyDeleteAclEntries(Collection<AclEntryGrantModel> grants) {
+        mapAclEntryGrants(grants, false).forEach((aclProvider, aclEntryGrants) -> aclProvider.deleteAclEntries(aclEntryGrants));
+    }
+
+    protected Iterable<List<AclEntryGrantModel>> partitionGrants(List<AclEntryGrantModel> grants) {
+        if (grants.isEmpty())
+            return Collections.emptyList();
+        return Iterables.partition(grants, maximumEntriesAllowedInBatch > 0 ? maximumEntriesAllowedInBatch : grants.size());
+    }
+
+    protected List<AclChange> mapAclChanges(AclChange.Type type, Collection<AclEntryGrantModel> grants) {
+        return grants.stream().map(grant -> new AclChange(type, grant.getResourceType(), grant.getResourceId(), grant.getPrincipal(), grant.getPermission())).collect(Collectors.toList());
+    }
+
+    protected String[] getPermissionNames(List<PermissionEntity> permissionEntities) {
+        return permissionEntities.stream().map(PermissionEntity::getName).toArray(String[]::new);
+    }
+
+    /**
+     * members of given principals(groups/roles) inherit changed grants. invalidate their cached decisions and accessible indexes.
+     */
+    protected void evictInheritedPrincipals(ResourceModel resource, Collection<String> principals) {
+        Set<String> inheritedPrincipals = aclPrincipalClosureEntityRepository.findDescendants(principals);
+        if (inheritedPrincipals.isEmpty())
+            return;
+        aclDecisionCache.evictResource(resource.getType(), resource.getId());
+        aclAccessibleIndex.revoke(inheritedPrincipals.stream().map(principal -> new AclAccessibleIndex.Grant(resource.getType(), resource.getId(), principal, 0)).collect(Collectors.toList()));
+    }
+
+    protected void evictInheritedPrincipals(Collection<AclEntryGrantModel> grants) {
+        grants.stream().collect(Collectors.groupingBy(AclEntryGrantModel::getResourceType, Collectors.mapping(AclEntryGrantModel::getPrincipal, Collectors.toSet())))
+                .forEach((resourceType, principals) -> {
+                    Set<String> inheritedPrincipals = aclPrincipalClosureEntityRepository.findDescendants(principals);
+                    if (!inheritedPrincipals.isEmpty())
+                        aclAccessibleIndex.revoke(inheritedPrincipals.stream().map(principal -> new AclAccessibleIndex.Grant(resourceType, null, principal, 0)).collect(Collectors.toList()));
+                });
+    }
+
+    /**
+     * resolve given grants in bulk and group by acl provider. tuples of same (resource, principal) merged as one grant.
+     *
+     * @param grants
+     * @param create true: merge inherit permissions. false: match permissions only.
+     * @return
+     */
+    protected Map<AclProvider, List<AclEntryGrant>> mapAclEntryGrants(Collection<AclEntryGrantModel> grants, boolean create) {
+        Assert.notEmpty(grants, "grants must not be empty.");
+        Assert.isTrue(maximumEntriesAllowedInBatch < 0 || grants.size() <= maximumEntriesAllowedInBatch, "too many grants. maximum allowed: " + maximumEntriesAllowedInBatch);
+
+        Map<String, AclPrincipalEntity> principals = Maps.newHashMap();
+        aclPrincipalEntityRepository.findAllByNameIn(grants.stream().map(AclEntryGrantModel::getPrincipal).collect(Collectors.toSet()))
+                .forEach(principalEntity -> principals.put(principalEntity.getName(), principalEntity));
+
+        Map<List<String>, List<PermissionModel>> mergedGrants = Maps.newLinkedHashMap();
+        grants.forEach(grant -> {
+            List<PermissionModel> permissions = mergedGrants.computeIfAbsent(Arrays.asList(grant.getResourceType(), grant.getResourceId(), grant.getPrincipal()), key -> Lists.newArrayList());
+            if (null != grant.getPermission())
+                Stream.of(grant.getPermission()).forEach(name -> permissions.add(new PermissionModel(name)));
+        });
+
+        Map<AclProvider, List<AclEntryGrant>> providerGrants = Maps.newLinkedHashMap();
+        mergedGrants.forEach((key, permissions) -> {
+            ResourceModel resource = new ResourceModel();
+            resource.setType(key.get(0));
+            resource.setId(key.get(1));
+            AclPrincipalEntity principalEntity = principals.get(key.get(2));
+            PermissionModel[] permission = permissions.isEmpty() ? null : permissions.toArray(new PermissionModel[permissions.size()]);
+            List<PermissionEntity> permissionEntities = permissionEntityRepository.getLocalPermissionEntityRepository().findAllByResourceType(resource.getType());
+            assertAclEntryArgumentsValid(resource, principalEntity, permissionEntities, permission);
+            List<PermissionEntity> resolved = create ? mergeInheritPermissions(resource, permissionEntities, permission) : matchPermissions(permissionEntities, permission);
+            providerGrants.computeIfAbsent(getRequiredAclProvider(resource), aclProvider -> Lists.newArrayList())
+                    .add(new AclEntryGrant(resource, principalEntity, resolved.toArray(new PermissionEntity[resolved.size()])));
+        });
+        return providerGrants;
+    }
+
+    /**
+     * for each grants permissions do follow things:
+     * 1.check given permission already defined in acl strategy
+     * 2.inherit permission merge:
+     * admin>write>read(given admin,write,read)->admin
+     * admin>publish,subscribe(given publish,subscribe)->publish,subscribe
+     */
+    protected List<PermissionEntity> mergeInheritPermissions(ResourceModel resource, List<PermissionEntity> permissionEntities, PermissionModel... permission) {
+        List<PermissionEntity> hits = Lists.newArrayList();
+        if (null == permission)
+            return hits;
+        PermissionEntityRepository.LocalPermissionEntityRepository localPermissionEntityRepository = permissionEntityRepository.getLocalPermissionEntityRepository();
+        for (PermissionModel model : permission) {
+            PermissionEntity permissionEntity = null;
+            for (PermissionEntity entity : permissionEntities) {
+                if (Objects.equals(entity.getName(), model.getName())) {
+                    permissionEntity = entity;
+                    break;
+                }
+            }
+            Assert.notNull(permissionEntity, "no match permission[" + model.getName() + "] definition found by given resource: " + resource.getType());
+            int action = 0;
+            int replaceIdx = -1;
+            for (int i = 0; i < hits.size(); i++) {
+                if ((localPermissionEntityRepository.getInheritMask(hits.get(i)) & localPermissionEntityRepository.getPermissionMask(permissionEntity)) != 0) {
+                    action = -1;
+                    break;
+                }
+                if ((localPermissionEntityRepository.getInheritMask(permissionEntity) & localPermissionEntityRepository.getPermissionMask(hits.get(i))) != 0) {
+                    action = 1;
+                    replaceIdx = i;
+                    break;
+                }
+            }
+            if (action == 0)
+                hits.add(permissionEntity);
+            if (action == 1)
+                hits.set(replaceIdx, permissionEntity);
+        }
+        return hits;
+    }
+
+    protected List<PermissionEntity> matchPermissions(List<PermissionEntity> permissionEntities, PermissionModel... permission) {
+        List<PermissionEntity> matches = Lists.newArrayList();
+        if (null == permission)
+            return matches;
+        for (PermissionModel model : permission) {
+            boolean hit = false;
+            for (PermissionEntity entity : permissionEntities) {
+                if (hit = Objects.equals(entity.getName(), model.getName())) {
+                    matches.add(entity);
+                    break;
+                }
+            }
+            Assert.isTrue(hit, "no permission definition found by given permission: " + model.getName());
+        }
+        return matches;
     }
 
     protected void assertAclEntryArgumentsValid(ResourceModel resource, AclPrincipalEntity principalEntity, List<PermissionEntity> permissionEntities, PermissionModel... permission) {
@@ -359,7 +1002,7 @@ public class GenericAclManager implements AclManager {
             mapAbstractAclEntity(abstractAclEntity, resource, permissionEntity, principalEntity);
             abstractAclEntity = (AbstractAclEntity) abstractAclEntityRepository.save(abstractAclEntity);
 
-            aclVariableEntityRepository.save(mapAclVariableEntities(resource, abstractAclEntity));
+            aclVariableEntityRepository.save(allocateIds(mapAclVariableEntities(resource, abstractAclEntity), AclVariableEntity.class));
 
             String bizPayLoad = resource.getBizPayload();
             if (StringUtils.isBlank(bizPayLoad) && null != resource.getBizBody()) {
@@ -370,11 +1013,53 @@ public class GenericAclManager implements AclManager {
                 bizPayloadEntity.setBizId(ACL_BIZ_PAYLOAD_ID);
                 bizPayloadEntity.setTypeId(resource.getTypeId());
                 bizPayloadEntity.setPayloadId(abstractAclEntity.getId());
-                bizPayloadEntity.setText(bizPayLoad);
+                bizPayloadEntity.setText(BizPayloadCodec.encode(bizPayLoad, bizPayloadCompressThreshold));
                 bizPayloadEntityRepository.save(bizPayloadEntity);
             }
         }
 
+        @Override
+        public List<ResourceModel> createAcls(List<ResourceModel> resources, PermissionEntity permissionEntity, Map<String, AclPrincipalEntity> owners) {
+            AbstractAclEntityRepository abstractAclEntityRepository = getAclEntityRepository(permissionEntity);
+            Long resourceTypeId = permissionEntity.getResourceTypeId();
+            //duplicated resource in same chunk, first wins.
+            Map<String, ResourceModel> resourcesToCreate = Maps.newLinkedHashMap();
+            resources.forEach(resource -> resourcesToCreate.putIfAbsent(resource.getId(), resource));
+            resourcesToCreate.keySet().removeAll(abstractAclEntityRepository.findAllResourceIdByResourceTypeIdAndResourceIdIn(resourceTypeId, resourcesToCreate.keySet()));
+            if (resourcesToCreate.isEmpty())
+                return Collections.emptyList();
+            List<AbstractAclEntity> aclEntities = Lists.newArrayListWithCapacity(resourcesToCreate.size());
+            resourcesToCreate.values().forEach(resource -> {
+                AbstractAclEntity abstractAclEntity = permissionEntity.isNotSupport() ? new SimpleAclEntity() : new AclEntity();
+                mapAbstractAclEntity(abstractAclEntity, resource, permissionEntity, owners.get(resource.getOwner()));
+                aclEntities.add(abstractAclEntity);
+            });
+            Map<String, Long> aclIds = abstractAclEntityRepository.insertAll(resourceTypeId, aclEntities);
+
+            List<AclVariableEntity> variablesToSave = Lists.newArrayList();
+            List<BizPayloadEntity> bizPayloadsToSave = Lists.newArrayList();
+            for (AbstractAclEntity abstractAclEntity : aclEntities) {
+                abstractAclEntity.setId(aclIds.get(abstractAclEntity.getResourceId()));
+                ResourceModel resource = resourcesToCreate.get(abstractAclEntity.getResourceId());
+                variablesToSave.addAll(mapAclVariableEntities(resource, abstractAclEntity));
+                String bizPayLoad = resource.getBizPayload();
+                if (StringUtils.isBlank(bizPayLoad) && null != resource.getBizBody()) {
+                    bizPayLoad = JsonMapper2.toJson(resource.getBizBody());
+                }
+                if (StringUtils.isNotBlank(bizPayLoad)) {
+                    BizPayloadEntity bizPayloadEntity = new BizPayloadEntity();
+                    bizPayloadEntity.setBizId(ACL_BIZ_PAYLOAD_ID);
+                    bizPayloadEntity.setTypeId(resourceTypeId);
+                    bizPayloadEntity.setPayloadId(abstractAclEntity.getId());
+                    bizPayloadEntity.setText(BizPayloadCodec.encode(bizPayLoad, bizPayloadCompressThreshold));
+                    bizPayloadsToSave.add(bizPayloadEntity);
+                }
+            }
+            aclVariableEntityRepository.insertAll(allocateIds(variablesToSave, AclVariableEntity.class), bulkChunkSize);
+            bizPayloadEntityRepository.insertAll(allocateIds(bizPayloadsToSave, BizPayloadEntity.class));
+            return Lists.newArrayList(resourcesToCreate.values());
+        }
+
         @Override
         public void updateAcl(ResourceModel resource, PermissionEntity permissionEntity, Optional<AclPrincipalEntity> aclPrincipalEntity) {
             AbstractAclEntityRepository abstractAclEntityRepository = getAclEntityRepository(permissionEntity);
@@ -390,10 +1075,58 @@ public class GenericAclManager implements AclManager {
                 bizPayLoad = JsonMapper2.toJson(resource.getBizBody());
             }
             if (StringUtils.isNotBlank(bizPayLoad)) {
-                bizPayloadEntityRepository.saveTextByBizIdAndTypeIdAndPayloadId(ACL_BIZ_PAYLOAD_ID, abstractAclEntity.getResourceTypeId(), abstractAclEntity.getId(), bizPayLoad);
+                bizPayloadEntityRepository.saveTextByBizIdAndTypeIdAndPayloadId(entityIdAllocator.allocate(BizPayloadEntity.class), ACL_BIZ_PAYLOAD_ID, abstractAclEntity.getResourceTypeId(), abstractAclEntity.getId(), BizPayloadCodec.encode(bizPayLoad, bizPayloadCompressThreshold));
+            }
+            saveVariableChanges(abstractAclEntity, resource.getVariables(), true);
+        }
+
+        @Override
+        public void patchAclVariables(ResourceModel resource, PermissionEntity permissionEntity) {
+            Long aclId = getAclEntityRepository(permissionEntity).getIdByResourceTypeIdAndResourceId(resource.getTypeId(), resource.getId());
+            AbstractAclEntity abstractAclEntity = permissionEntity.isNotSupport() ? new SimpleAclEntity() : new AclEntity();
+            abstractAclEntity.setId(aclId);
+            abstractAclEntity.setResourceTypeId(resource.getTypeId());
+            saveVariableChanges(abstractAclEntity, resource.getVariables(), false);
+        }
+
+        /**
+         * diff stored variables with given variables, only changed variables inserted, updated or deleted(one jdbc batch).
+         *
+         * @param aclEntity
+         * @param variables null value means remove variable.
+         * @param replace   true: stored variables not in given variables removed. false: only given variables applied(partial update).
+         */
+        protected void saveVariableChanges(AbstractAclEntity aclEntity, Map<String, Object> variables, boolean replace) {
+            Map<String, AclVariableEntity> storedVariables = Maps.newHashMap();
+            aclVariableEntityRepository.findAllByAclIdAndResourceTypeId(aclEntity.getId(), aclEntity.getResourceTypeId())
+                    .forEach(variableEntity -> storedVariables.put(variableEntity.getName(), variableEntity));
+            List<AclVariableEntity> inserts = Lists.newArrayList();
+            List<AclVariableEntity> updates = Lists.newArrayList();
+            List<Long> deleteIds = Lists.newArrayList();
+            if (null != variables) {
+                variables.forEach((name, value) -> {
+                    AclVariableEntity storedVariable = storedVariables.remove(name);
+                    if (null == value) {
+                        if (null != storedVariable)
+                            deleteIds.add(storedVariable.getId());
+                        return;
+                    }
+                    AclVariableEntity variableEntity = new AclVariableEntity();
+                    variableEntity.setAclId(aclEntity.getId());
+                    variableEntity.setResourceTypeId(aclEntity.getResourceTypeId());
+                    variableEntity.setName(name);
+                    variableEntity.setValue(value);
+                    if (null == storedVariable)
+                        inserts.add(variableEntity);
+                    else if (!storedVariable.isSameValue(variableEntity)) {
+                        variableEntity.setId(storedVariable.getId());
+                        updates.add(variableEntity);
+                    }
+                });
             }
-            aclVariableEntityRepository.deleteAllByAclIdAndResourceTypeId(abstractAclEntity.getId(), abstractAclEntity.getResourceTypeId());
-            aclVariableEntityRepository.save(mapAclVariableEntities(resource, abstractAclEntity));
+            if (replace)
+                storedVariables.values().forEach(variableEntity -> deleteIds.add(variableEntity.getId()));
+            aclVariableEntityRepository.saveChanges(aclEntity.getResourceTypeId(), allocateIds(inserts, AclVariableEntity.class), updates, deleteIds);
         }
 
         @Override
@@ -406,7 +1139,18 @@ public class GenericAclManager implements AclManager {
 
             Assert.isTrue(!aclEntryEntityRepository.existsByResourceTypeIdAndResourceId(resource.getTypeId(), resource.getId()), "can't delete acl when contains exists associated entries.");
 
-            aclEntityRepository.deleteById(aclId);
+            aclEntityRepository.deleteByResourceTypeIdAndId(resource.getTypeId(), aclId);
+        }
+
+        /**
+         * jooq 批量写入不经过 hibernate 标识生成器，写入前按块预分配 id.
+         */
+        private <T extends IdEntity> List<T> allocateIds(List<T> entities, Class<T> entityClass) {
+            Long[] ids = entityIdAllocator.allocate(entityClass, entities.size());
+            for (int i = 0; i < ids.length; i++) {
+                entities.get(i).setId(ids[i]);
+            }
+            return entities;
         }
 
         private List<AclVariableEntity> mapAclVariableEntities(ResourceModel resource, AbstractAclEntity aclEntity) {
@@ -449,37 +1193,87 @@ public class GenericAclManager implements AclManager {
             });
         }
 
+        @Override
+        public CursorPage<Acl> readAcl(ResourceModel resourceModel, PermissionEntity permissionEntity, Optional<CursorPage.Cursor> after, int limit, Map<String, SearchFilter> variablesSearchFilters) {
+            List<? extends AbstractAclEntity> aclEntities = getAclEntityRepository(permissionEntity).findByResourceTypeIdAfter(permissionEntity.getResourceTypeId(),
+                    after.map(CursorPage.Cursor::getResourceId).orElse(null), after.map(CursorPage.Cursor::getId).orElse(null), limit + 1, variablesSearchFilters);
+            return this.<AbstractAclEntity, Acl>mapCursorPage(aclEntities, limit, entity -> {
+                AclModel aclModel = new AclModel();
+                mapAclModel(aclModel, entity, false, false);
+                return aclModel;
+            }, entity -> new CursorPage.Cursor(entity.getResourceTypeId(), entity.getResourceId(), entity.getId()));
+        }
+
+        /**
+         * acl(s) are read in id ordered batches(keyset), variables and payloads of each batch read by acl id range and merged in one pass(no per-acl query).
+         * three sources read sequentially, never more than one open cursor on the connection.
+         */
+        @Override
+        public void exportAcl(ResourceModel resourceModel, PermissionEntity permissionEntity, boolean withVariables, boolean withBizPayload, Consumer<Acl> consumer) {
+            Long resourceTypeId = getResourceTypeIdByResourceModel(resourceModel);
+            AbstractAclEntityRepository abstractAclEntityRepository = getAclEntityRepository(permissionEntity);
+            Long lastId = null;
+            List<? extends AbstractAclEntity> aclEntities;
+            do {
+                aclEntities = abstractAclEntityRepository.findByResourceTypeIdAndIdAfter(resourceTypeId, lastId, exportFetchSize);
+                if (aclEntities.isEmpty())
+                    return;
+                Long firstId = aclEntities.get(0).getId();
+                lastId = aclEntities.get(aclEntities.size() - 1).getId();
+                PeekingIterator<AclVariableEntity> variables = Iterators.peekingIterator(withVariables ?
+                        aclVariableEntityRepository.findAllByResourceTypeIdAndAclIdBetween(resourceTypeId, firstId, lastId).iterator() : Collections.<AclVariableEntity>emptyIterator());
+                PeekingIterator<BizPayloadEntity> bizPayloads = Iterators.peekingIterator(withBizPayload ?
+                        bizPayloadEntityRepository.findAllByBizIdAndTypeIdAndPayloadIdBetween(ACL_BIZ_PAYLOAD_ID, resourceTypeId, firstId, lastId).iterator() : Collections.<BizPayloadEntity>emptyIterator());
+                for (AbstractAclEntity aclEntity : aclEntities) {
+                    AclModel aclModel = new AclModel();
+                    mapAclModel(aclModel, aclEntity, false, false);
+                    Long aclId = aclEntity.getId();
+                    //跳过已删除acl的残留记录
+                    while (variables.hasNext() && variables.peek().getAclId() < aclId)
+                        variables.next();
+                    Map<String, Object> aclVariables = Maps.newHashMap();
+                    while (variables.hasNext() && variables.peek().getAclId().equals(aclId)) {
+                        AclVariableEntity variableEntity = variables.next();
+                        aclVariables.put(variableEntity.getName(), variableEntity.getValue());
+                    }
+                    if (!aclVariables.isEmpty())
+                        aclModel.setVariables(aclVariables);
+                    while (bizPayloads.hasNext() && bizPayloads.peek().getPayloadId() < aclId)
+                        bizPayloads.next();
+                    if (bizPayloads.hasNext() && bizPayloads.peek().getPayloadId().equals(aclId))
+                        aclModel.setBizPayload(BizPayloadCodec.decode(bizPayloads.next().getText()));
+                    consumer.accept(aclModel);
+                }
+            } while (aclEntities.size() == exportFetchSize);
+        }
+
+        @Override
+        public void exportEntries(ResourceModel resourceModel, PermissionEntity permissionEntity, Consumer<AclEntry> consumer) {
+            try (Stream<? extends AbstractAclEntryEntity> entryEntities = getAclEntryEntityRepository(permissionEntity).streamByResourceTypeId(getResourceTypeIdByResourceModel(resourceModel), exportFetchSize)) {
+                entryEntities.forEach(entryEntity -> consumer.accept(mapAclEntryModel(entryEntity)));
+            }
+        }
+
         @Override
         public void createAclEntry(ResourceModel resource, AclPrincipalEntity aclPrincipalEntity, PermissionEntity... permissionEntity) {
 
             AclEntity aclEntity = aclEntityRepository.getByResourceTypeIdAndResourceId(resource.getTypeId(), resource.getId());
             Assert.notNull(aclEntity, "resource not found.");
+            PermissionEntityRepository.LocalPermissionEntityRepository localPermissionEntityRepository = permissionEntityRepository.getLocalPermissionEntityRepository();
+            boolean hierarchyPermission = localPermissionEntityRepository.isHierarchyPermissionResource(permissionEntity[0].getResourceType());
 
             for (PermissionEntity item : permissionEntity) {
                 Assert.isTrue(!aclEntryEntityRepository.existsByAcl_IdAndGrant_IdAndPermission_Id(aclEntity.getId(), aclPrincipalEntity.getId(), item.getId()),
                         "principal already have permit: " + item.getName());
-                AclEntryEntity aclEntryEntity = new AclEntryEntity();
-                aclEntryEntity.setResourceId(resource.getId());
-                aclEntryEntity.setResourceTypeId(item.getResourceTypeId());
-                aclEntryEntity.setAclPrincipalName(aclPrincipalEntity.getName());
-                aclEntryEntity.setPermissionName((null != item.getExtension() ? item.getExtension() + PermissionEntity.PERMISSION_EXTENSION_SEPARATOR : "") + item.getName());
-                aclEntryEntity.setAcl(aclEntity);
-                aclEntryEntity.setGrant(aclPrincipalEntity);
-                aclEntryEntity.setPermission(item);
-                aclEntryEntityRepository.save(aclEntryEntity);
-            }
-            if (!permissionEntityRepository.getLocalPermissionEntityRepository().isHierarchyPermissionResource(permissionEntity[0].getResourceType())) {
-                return;
-            }
-            //对比分配权限列表，如果存在权限包含关系，则删除被包含的权限，此实现思路可以支持权限升级，但不支持权限降级，即admin->write->read，如果已经具备了admin权限的，此时赋予write或read，不会产生任何变化
-            //要实现权限降级，必须先删除高级的acl entry在创建新的条目
-            List<AclEntryEntity> grants = aclEntryEntityRepository.findByAcl_IdAndGrant_Id(aclEntity.getId(), aclPrincipalEntity.getId());
-            for (AclEntryEntity grant : grants) {
-                for (AclEntryEntity compareGrant : grants) {
-                    if (compareGrant.getPermission().isInheritInclude(grant.getPermission())) {
-                        aclEntryEntityRepository.delete(grant);
-                    }
-                }
+                Long permissionMask = localPermissionEntityRepository.getGrantMask(item);
+                //权限继承时，如果已经具备了更高级的权限则不产生任何变化(不支持权限降级)
+                if (hierarchyPermission && aclEntryEntityRepository.existsCoveredByResourceTypeIdAndAcl_IdAndGrant_Id(resource.getTypeId(), aclEntity.getId(), aclPrincipalEntity.getId(), permissionMask))
+                    continue;
+                aclEntryEntityRepository.save(mapAclEntryEntity(resource, aclEntity, aclPrincipalEntity, item, permissionMask));
+                //对比已分配权限，如果存在权限包含关系，则删除被包含的权限(权限位为新权限位子集)，此实现思路可以支持权限升级，但不支持权限降级，即admin->write->read，如果已经具备了admin权限的，此时赋予write或read，不会产生任何变化
+                //要实现权限降级，必须先删除高级的acl entry在创建新的条目
+                if (hierarchyPermission)
+                    aclEntryEntityRepository.deleteSubsumedByResourceTypeIdAndAcl_IdAndGrant_Id(resource.getTypeId(), aclEntity.getId(), aclPrincipalEntity.getId(), permissionMask);
             }
         }
 
@@ -490,21 +1284,165 @@ public class GenericAclManager implements AclManager {
             Assert.isTrue(!simpleAclPrincipalEntityRepository.existsByAcl_IdAndGrant_Id(aclEntity.getId(), aclPrincipalEntity.getId()),
                     "principal already have owned by resource.");
 
+            simpleAclPrincipalEntityRepository.save(mapSimpleAclPrincipalEntity(resource, aclEntity, aclPrincipalEntity));
+        }
+
+        @Override
+        public void createAclEntries(List<AclEntryGrant> grants) {
+            Map<Boolean, List<AclEntryGrant>> partitionedGrants = grants.stream().collect(Collectors.partitioningBy(AclEntryGrant::isWithoutPermission));
+            createAclEntriesWithPermission(partitionedGrants.get(false));
+            createAclEntriesWithoutPermission(partitionedGrants.get(true));
+        }
+
+        /**
+         * acl(s) and existing entries of all grants loaded in one query(per resource type). new entries inserted by one insert-ignore statement in one jdbc batch,
+         * and lower grants subsumed by inherit permission removed by one statement per (acl,principal) in one jdbc batch.
+         */
+        protected void createAclEntriesWithPermission(List<AclEntryGrant> grants) {
+            if (grants.isEmpty())
+                return;
+            PermissionEntityRepository.LocalPermissionEntityRepository localPermissionEntityRepository = permissionEntityRepository.getLocalPermissionEntityRepository();
+            Map<List<Object>, AclEntity> aclEntities = findAclEntities(aclEntityRepository, grants);
+            Map<List<Long>, List<AclEntryEntity>> existingEntries = findAclEntries(aclEntryEntityRepository, aclEntities.values(), grants)
+                    .stream().collect(Collectors.groupingBy(entry -> Arrays.asList(entry.getAcl().getId(), entry.getGrant().getId())));
+
+            List<AclEntryEntity> entriesToSave = Lists.newArrayList();
+            List<AclEntryEntity> entriesToMerge = Lists.newArrayList();
+            grants.forEach(grant -> {
+                ResourceModel resource = grant.getResource();
+                AclEntity aclEntity = aclEntities.get(Arrays.asList(resource.getTypeId(), resource.getId()));
+                Assert.notNull(aclEntity, () -> "resource not found: " + resource.getType() + "," + resource.getId());
+                List<AclEntryEntity> existing = existingEntries.getOrDefault(Arrays.asList(aclEntity.getId(), grant.getGrant().getId()), Collections.emptyList());
+                boolean hierarchyPermission = localPermissionEntityRepository.isHierarchyPermissionResource(resource.getType());
+                for (PermissionEntity item : grant.getPermissions()) {
+                    long permissionMask = localPermissionEntityRepository.getGrantMask(item);
+                    //已存在(或权限继承时已经具备了更高级的权限)则忽略
+                    boolean granted = existing.stream().anyMatch(entry -> Objects.equals(entry.getPermission().getId(), item.getId())
+                            || (hierarchyPermission && null != entry.getPermissionMask() && (entry.getPermissionMask() & permissionMask) == permissionMask));
+                    if (granted)
+                        continue;
+                    AclEntryEntity aclEntryEntity = mapAclEntryEntity(resource, aclEntity, grant.getGrant(), item, permissionMask);
+                    entriesToSave.add(aclEntryEntity);
+                    if (hierarchyPermission)
+                        entriesToMerge.add(aclEntryEntity);
+                }
+            });
+            //entries granted concurrently after existing entries loaded are skipped by insert-ignore(no unique constraint failure).
+            aclEntryEntityRepository.insertIgnoreAll(allocateIds(entriesToSave, AclEntryEntity.class));
+            aclEntryEntityRepository.deleteSubsumedByResourceTypeIdAndAcl_IdAndGrant_Id(entriesToMerge);
+        }
+
+        protected void createAclEntriesWithoutPermission(List<AclEntryGrant> grants) {
+            if (grants.isEmpty())
+                return;
+            Map<List<Object>, SimpleAclEntity> aclEntities = findAclEntities(simpleAclEntityRepository, grants);
+            Set<List<Long>> existingEntries = findAclEntries(simpleAclPrincipalEntityRepository, aclEntities.values(), grants)
+                    .stream().map(entry -> Arrays.asList(entry.getAcl().getId(), entry.getGrant().getId())).collect(Collectors.toSet());
+
+            List<SimpleAclPrincipalEntity> entriesToSave = Lists.newArrayList();
+            grants.forEach(grant -> {
+                ResourceModel resource = grant.getResource();
+                SimpleAclEntity aclEntity = aclEntities.get(Arrays.asList(resource.getTypeId(), resource.getId()));
+                Assert.notNull(aclEntity, () -> "resource not found: " + resource.getType() + "," + resource.getId());
+                if (existingEntries.add(Arrays.asList(aclEntity.getId(), grant.getGrant().getId())))
+                    entriesToSave.add(mapSimpleAclPrincipalEntity(resource, aclEntity, grant.getGrant()));
+            });
+            simpleAclPrincipalEntityRepository.insertIgnoreAll(allocateIds(entriesToSave, SimpleAclPrincipalEntity.class));
+        }
+
+        @Override
+        public void deleteAclEntries(List<AclEntryGrant> grants) {
+            Map<Boolean, List<AclEntryGrant>> partitionedGrants = grants.stream().collect(Collectors.partitioningBy(AclEntryGrant::isWithoutPermission));
+            List<AclEntryGrant> grantsWithPermission = partitionedGrants.get(false);
+            if (!grantsWithPermission.isEmpty()) {
+                Map<List<Object>, AclEntity> aclEntities = findAclEntities(aclEntityRepository, grantsWithPermission);
+                Map<List<Long>, Set<Long>> permissionsToDelete = Maps.newHashMap();
+                grantsWithPermission.forEach(grant -> {
+                    AclEntity aclEntity = aclEntities.get(Arrays.asList(grant.getResource().getTypeId(), grant.getResource().getId()));
+                    Assert.notNull(aclEntity, () -> "resource not found: " + grant.getResource().getType() + "," + grant.getResource().getId());
+                    Stream.of(grant.getPermissions()).forEach(permission -> permissionsToDelete.computeIfAbsent(Arrays.asList(aclEntity.getId(), grant.getGrant().getId()), key -> Sets.newHashSet()).add(permission.getId()));
+                });
+                List<AclEntryEntity> entriesToDelete = findAclEntries(aclEntryEntityRepository, aclEntities.values(), grantsWithPermission)
+                        .stream().filter(entry -> permissionsToDelete.getOrDefault(Arrays.asList(entry.getAcl().getId(), entry.getGrant().getId()), Collections.emptySet()).contains(entry.getPermission().getId()))
+                        .collect(Collectors.toList());
+                deleteAclEntries(aclEntryEntityRepository, entriesToDelete);
+            }
+            List<AclEntryGrant> grantsWithoutPermission = partitionedGrants.get(true);
+            if (!grantsWithoutPermission.isEmpty()) {
+                Map<List<Object>, SimpleAclEntity> aclEntities = findAclEntities(simpleAclEntityRepository, grantsWithoutPermission);
+                Set<List<Long>> entriesToDeleteKeys = grantsWithoutPermission.stream().map(grant -> {
+                    SimpleAclEntity aclEntity = aclEntities.get(Arrays.asList(grant.getResource().getTypeId(), grant.getResource().getId()));
+                    Assert.notNull(aclEntity, () -> "resource not found: " + grant.getResource().getType() + "," + grant.getResource().getId());
+                    return Arrays.asList(aclEntity.getId(), grant.getGrant().getId());
+                }).collect(Collectors.toSet());
+                List<SimpleAclPrincipalEntity> entriesToDelete = findAclEntries(simpleAclPrincipalEntityRepository, aclEntities.values(), grantsWithoutPermission)
+                        .stream().filter(entry -> entriesToDeleteKeys.contains(Arrays.asList(entry.getAcl().getId(), entry.getGrant().getId())))
+                        .collect(Collectors.toList());
+                deleteAclEntries(simpleAclPrincipalEntityRepository, entriesToDelete);
+            }
+        }
+
+        /**
+         * load existing entries of given acl(s) and grant principals. one query per resource type(routed to single shard).
+         */
+        protected <E extends AbstractAclEntryEntity> List<E> findAclEntries(AbstractAclEntryEntityRepository<E, ?, ?> repository, Collection<? extends AbstractAclEntity> aclEntities, List<AclEntryGrant> grants) {
+            Set<Long> principalIds = grants.stream().map(grant -> grant.getGrant().getId()).collect(Collectors.toSet());
+            List<E> entries = Lists.newArrayList();
+            aclEntities.stream().collect(Collectors.groupingBy(AbstractAclEntity::getResourceTypeId, Collectors.mapping(AbstractAclEntity::getId, Collectors.toSet())))
+                    .forEach((resourceTypeId, aclIds) -> entries.addAll(repository.findAllByResourceTypeIdAndAcl_IdInAndGrant_IdIn(resourceTypeId, aclIds, principalIds)));
+            return entries;
+        }
+
+        /**
+         * delete given entries. one statement per resource type(routed to single shard).
+         */
+        protected <E extends AbstractAclEntryEntity> void deleteAclEntries(AbstractAclEntryEntityRepository<E, ?, ?> repository, List<E> entries) {
+            entries.stream().collect(Collectors.groupingBy(AbstractAclEntryEntity::getResourceTypeId, Collectors.mapping(AbstractAclEntryEntity::getId, Collectors.toList())))
+                    .forEach(repository::deleteByResourceTypeIdAndIdIn);
+        }
+
+        /**
+         * load acl(s) of given grants. one query per resource type.
+         *
+         * @return (resource type id, resource id) -> acl
+         */
+        protected <A extends AbstractAclEntity> Map<List<Object>, A> findAclEntities(AbstractAclEntityRepository<A, ?, ?> repository, List<AclEntryGrant> grants) {
+            Map<List<Object>, A> aclEntities = Maps.newHashMap();
+            grants.stream().collect(Collectors.groupingBy(grant -> grant.getResource().getTypeId(), Collectors.mapping(grant -> grant.getResource().getId(), Collectors.toSet())))
+                    .forEach((resourceTypeId, resourceIds) -> repository.findAllByResourceTypeIdAndResourceIdIn(resourceTypeId, resourceIds)
+                            .forEach(aclEntity -> aclEntities.put(Arrays.asList(aclEntity.getResourceTypeId(), aclEntity.getResourceId()), aclEntity)));
+            return aclEntities;
+        }
+
+        protected AclEntryEntity mapAclEntryEntity(ResourceModel resource, AclEntity aclEntity, AclPrincipalEntity aclPrincipalEntity, PermissionEntity permission, Long permissionMask) {
+            AclEntryEntity aclEntryEntity = new AclEntryEntity();
+            aclEntryEntity.setResourceId(resource.getId());
+            aclEntryEntity.setResourceTypeId(permission.getResourceTypeId());
+            aclEntryEntity.setAclPrincipalName(aclPrincipalEntity.getName());
+            aclEntryEntity.setPermissionName(permission.getExtensionAndName());
+            aclEntryEntity.setAcl(aclEntity);
+            aclEntryEntity.setGrant(aclPrincipalEntity);
+            aclEntryEntity.setPermission(permission);
+            aclEntryEntity.setPermissionMask(permissionMask);
+            return aclEntryEntity;
+        }
+
+        protected SimpleAclPrincipalEntity mapSimpleAclPrincipalEntity(ResourceModel resource, SimpleAclEntity aclEntity, AclPrincipalEntity aclPrincipalEntity) {
             SimpleAclPrincipalEntity simpleAclPrincipalEntity = new SimpleAclPrincipalEntity();
             simpleAclPrincipalEntity.setGrant(aclPrincipalEntity);
             simpleAclPrincipalEntity.setAcl(aclEntity);
             simpleAclPrincipalEntity.setAclPrincipalName(aclPrincipalEntity.getName());
             simpleAclPrincipalEntity.setResourceId(resource.getId());
             simpleAclPrincipalEntity.setResourceTypeId(resource.getTypeId());
-            simpleAclPrincipalEntityRepository.save(simpleAclPrincipalEntity);
+            return simpleAclPrincipalEntity;
         }
 
         @Override
         public void deleteAclEntry(ResourceModel resource, AclPrincipalEntity aclPrincipalEntity, PermissionEntity... permissionEntity) {
             Long aclId = aclEntityRepository.getIdByResourceTypeIdAndResourceId(resource.getTypeId(), resource.getId());
             Stream.of(permissionEntity).forEach(permission -> {
-                Long entryId = aclEntryEntityRepository.getIdByAcl_IdAndGrant_IdAndPermission_Id(aclId, aclPrincipalEntity.getId(), permission.getId());
-                aclEntryEntityRepository.deleteById(entryId);
+                Long entryId = aclEntryEntityRepository.getIdByResourceTypeIdAndAcl_IdAndGrant_IdAndPermission_Id(resource.getTypeId(), aclId, aclPrincipalEntity.getId(), permission.getId());
+                aclEntryEntityRepository.deleteByResourceTypeIdAndIdIn(resource.getTypeId(), Collections.singletonList(entryId));
             });
         }
 
@@ -512,8 +1450,8 @@ public class GenericAclManager implements AclManager {
         public void deleteAclEntryWithoutPermission(ResourceModel resource, AclPrincipalEntity aclPrincipalEntity) {
 
             Long aclId = simpleAclEntityRepository.getIdByResourceTypeIdAndResourceId(resource.getTypeId(), resource.getId());
-            Long entryId = simpleAclPrincipalEntityRepository.getIdByAcl_IdAndGrant_Id(aclId, aclPrincipalEntity.getId());
-            simpleAclPrincipalEntityRepository.deleteById(entryId);
+            Long entryId = simpleAclPrincipalEntityRepository.getIdByResourceTypeIdAndAcl_IdAndGrant_Id(resource.getTypeId(), aclId, aclPrincipalEntity.getId());
+            simpleAclPrincipalEntityRepository.deleteByResourceTypeIdAndIdIn(resource.getTypeId(), Collections.singletonList(entryId));
         }
 
         protected AbstractAclEntryEntityRepository getAclEntryEntityRepository(PermissionEntity permissionEntity) {
@@ -551,17 +1489,19 @@ public class GenericAclManager implements AclManager {
 
             if (StringUtils.isNotBlank(resourceId)) {
                 if (permission.isPresent()) {
-                    String permissionToMatch = permissionEntityRepository.getLocalPermissionEntityRepository().getPermissionEntity(resourceType, permission.get().getName()).getExtensionAndName();
+                    PermissionEntity permissionToMatchEntity = permissionEntityRepository.getLocalPermissionEntityRepository().getPermissionEntity(resourceType, permission.get().getName());
+                    String permissionToMatch = permissionToMatchEntity.getExtensionAndName();
                     entryEntities = hierarchyPermission ?
-                            aclEntryEntityRepository.findByAclPrincipalNameAndResourceTypeIdAndResourceIdAndPermissionNameLike(principal.getName(), resourceTypeId, resourceId, permissionToMatch + "%", pageable)
+                            aclEntryEntityRepository.findByAclPrincipalNameAndResourceTypeIdAndResourceIdAndPermissionMask(principal.getName(), resourceTypeId, resourceId, permissionEntityRepository.getLocalPermissionEntityRepository().getPermissionMask(permissionToMatchEntity), pageable)
                             : aclEntryEntityRepository.findByAclPrincipalNameAndResourceTypeIdAndResourceIdAndPermissionName(principal.getName(), resourceTypeId, resourceId, permissionToMatch, pageable);
                 } else
                     entryEntities = abstractAclEntryEntityRepository.findByAclPrincipalNameAndResourceTypeIdAndResourceId(principal.getName(), resourceTypeId, resourceId, pageable);
             } else {
                 if (permission.isPresent()) {
-                    String permissionToMatch = permissionEntityRepository.getLocalPermissionEntityRepository().getPermissionEntity(resourceType, permission.get().getName()).getExtensionAndName();
+                    PermissionEntity permissionToMatchEntity = permissionEntityRepository.getLocalPermissionEntityRepository().getPermissionEntity(resourceType, permission.get().getName());
+                    String permissionToMatch = permissionToMatchEntity.getExtensionAndName();
                     entryEntities = hierarchyPermission ?
-                            aclEntryEntityRepository.findByAclPrincipalNameAndResourceTypeIdAndPermissionNameLike(principal.getName(), resourceTypeId, permissionToMatch + "%", pageable, variablesSearchFilters)
+                            aclEntryEntityRepository.findByAclPrincipalNameAndResourceTypeIdAndPermissionMask(principal.getName(), resourceTypeId, permissionEntityRepository.getLocalPermissionEntityRepository().getPermissionMask(permissionToMatchEntity), pageable, variablesSearchFilters)
                             : aclEntryEntityRepository.findByAclPrincipalNameAndResourceTypeIdAndPermissionName(principal.getName(), resourceTypeId, permissionToMatch, pageable, variablesSearchFilters);
                 } else
                     entryEntities = abstractAclEntryEntityRepository.findByAclPrincipalNameAndResourceTypeId(principal.getName(), resourceTypeId, pageable, variablesSearchFilters);
@@ -570,6 +1510,51 @@ public class GenericAclManager implements AclManager {
         }
 
 
+        @Override
+        public CursorPage<AclEntry> readEntries(ResourceModel resourceModel, Optional<AclPrincipalModel> principalModel, Optional<CursorPage.Cursor> after, int limit) {
+            PermissionEntity permissionEntity = permissionEntityRepository.getLocalPermissionEntityRepository().getFirstByResourceType(resourceModel.getType());
+            List<? extends AbstractAclEntryEntity> entryEntities = getAclEntryEntityRepository(permissionEntity).findByResourceTypeIdAndResourceIdAfter(getResourceTypeIdByResourceModel(resourceModel),
+                    resourceModel.getId(), principalModel.map(AclPrincipalModel::getName).orElse(null), after.map(CursorPage.Cursor::getId).orElse(null), limit + 1);
+            return this.<AbstractAclEntryEntity, AclEntry>mapCursorPage(entryEntities, limit, this::mapAclEntryModel, this::mapCursor);
+        }
+
+        @Override
+        public CursorPage<AclEntry> readPrincipalEntries(AclPrincipalModel principal, ResourceModel resourceModel, Optional<PermissionModel> permission, Optional<CursorPage.Cursor> after, int limit, Map<String, SearchFilter> variablesSearchFilters) {
+            String resourceType = resourceModel.getType();
+            PermissionEntity permissionEntity = assertPermissionModel(resourceModel, permission);
+
+            String resourceId = StringUtils.isNotBlank(resourceModel.getId()) ? resourceModel.getId() : null;
+            Long resourceTypeId = getResourceTypeIdByResourceModel(resourceModel);
+            String lastResourceId = after.map(CursorPage.Cursor::getResourceId).orElse(null);
+            Long lastId = after.map(CursorPage.Cursor::getId).orElse(null);
+
+            List<? extends AbstractAclEntryEntity> entryEntities;
+            if (permission.isPresent()) {
+                PermissionEntity permissionToMatchEntity = permissionEntityRepository.getLocalPermissionEntityRepository().getPermissionEntity(resourceType, permission.get().getName());
+                entryEntities = permissionEntityRepository.getLocalPermissionEntityRepository().isHierarchyPermissionResource(resourceType) ?
+                        aclEntryEntityRepository.findByAclPrincipalNameAndResourceTypeIdAndResourceIdAndPermissionMaskAfter(principal.getName(), resourceTypeId, resourceId,
+                                permissionEntityRepository.getLocalPermissionEntityRepository().getPermissionMask(permissionToMatchEntity), lastResourceId, lastId, limit + 1, variablesSearchFilters)
+                        : aclEntryEntityRepository.findByAclPrincipalNameAndResourceTypeIdAndResourceIdAndPermissionNameAfter(principal.getName(), resourceTypeId, resourceId,
+                        permissionToMatchEntity.getExtensionAndName(), lastResourceId, lastId, limit + 1, variablesSearchFilters);
+            } else
+                entryEntities = getAclEntryEntityRepository(permissionEntity).findByAclPrincipalNameAndResourceTypeIdAndResourceIdAfter(principal.getName(), resourceTypeId, resourceId,
+                        lastResourceId, lastId, limit + 1, variablesSearchFilters);
+            return this.<AbstractAclEntryEntity, AclEntry>mapCursorPage(entryEntities, limit, this::mapAclEntryModel, this::mapCursor);
+        }
+
+        /**
+         * map a page from given rows(fetched limit + 1 rows to determine if next page exists).
+         */
+        protected <E, T> CursorPage<T> mapCursorPage(List<? extends E> rows, int limit, Function<E, T> mapper, Function<E, CursorPage.Cursor> cursorMapper) {
+            boolean hasNext = rows.size() > limit;
+            List<? extends E> content = hasNext ? rows.subList(0, limit) : rows;
+            return new CursorPage<>(content.stream().map(mapper).collect(Collectors.toList()), hasNext ? cursorMapper.apply(content.get(limit - 1)) : null);
+        }
+
+        protected CursorPage.Cursor mapCursor(AbstractAclEntryEntity entryEntity) {
+            return new CursorPage.Cursor(entryEntity.getResourceTypeId(), entryEntity.getResourceId(), entryEntity.getId());
+        }
+
         @Override
         public Boolean existsPrincipalEntries(AclPrincipalModel principal, ResourceModel resourceModel, Optional<PermissionModel> permission) {
             PermissionEntity permissionEntity = assertPermissionModel(resourceModel, permission);
@@ -584,23 +1569,92 @@ public class GenericAclManager implements AclManager {
 
             if (StringUtils.isNotBlank(resourceId)) {
                 if (permission.isPresent()) {
-                    String permissionToMatch = permissionEntityRepository.getLocalPermissionEntityRepository().getPermissionEntity(resourceType, permission.get().getName()).getExtensionAndName();
+                    PermissionEntity permissionToMatchEntity = permissionEntityRepository.getLocalPermissionEntityRepository().getPermissionEntity(resourceType, permission.get().getName());
+                    String permissionToMatch = permissionToMatchEntity.getExtensionAndName();
                     return hierarchyPermission ?
-                            aclEntryEntityRepository.existsByAclPrincipalNameAndResourceTypeIdAndResourceIdAndPermissionNameLike(principal.getName(), resourceTypeId, resourceId, permissionToMatch + "%")
+                            aclEntryEntityRepository.existsByAclPrincipalNameAndResourceTypeIdAndResourceIdAndPermissionMask(principal.getName(), resourceTypeId, resourceId, permissionEntityRepository.getLocalPermissionEntityRepository().getPermissionMask(permissionToMatchEntity))
                             : aclEntryEntityRepository.existsByAclPrincipalNameAndResourceTypeIdAndResourceIdAndPermissionName(principal.getName(), resourceTypeId, resourceId, permissionToMatch);
                 } else
                     return abstractAclEntryEntityRepository.existsByAclPrincipalNameAndResourceTypeIdAndResourceId(principal.getName(), resourceTypeId, resourceId);
             } else {
                 if (permission.isPresent()) {
-                    String permissionToMatch = permissionEntityRepository.getLocalPermissionEntityRepository().getPermissionEntity(resourceType, permission.get().getName()).getExtensionAndName();
+                    PermissionEntity permissionToMatchEntity = permissionEntityRepository.getLocalPermissionEntityRepository().getPermissionEntity(resourceType, permission.get().getName());
+                    String permissionToMatch = permissionToMatchEntity.getExtensionAndName();
                     return hierarchyPermission ?
-                            aclEntryEntityRepository.existsByAclPrincipalNameAndResourceTypeIdAndPermissionNameLike(principal.getName(), resourceTypeId, permissionToMatch + "%")
+                            aclEntryEntityRepository.existsByAclPrincipalNameAndResourceTypeIdAndPermissionMask(principal.getName(), resourceTypeId, permissionEntityRepository.getLocalPermissionEntityRepository().getPermissionMask(permissionToMatchEntity))
                             : aclEntryEntityRepository.existsByAclPrincipalNameAndResourceTypeIdAndPermissionName(principal.getName(), resourceTypeId, permissionToMatch);
                 } else
                     return abstractAclEntryEntityRepository.existsByAclPrincipalNameAndResourceTypeId(principal.getName(), resourceTypeId);
             }
         }
 
+        @Override
+        public Map<String, Boolean> existsPrincipalEntries(AclPrincipalModel principal, ResourceModel resourceModel, Optional<PermissionModel> permission, Collection<String> resourceIds) {
+            PermissionEntity permissionEntity = assertPermissionModel(resourceModel, permission);
+
+            String resourceType = resourceModel.getType();
+            Long resourceTypeId = getResourceTypeIdByResourceModel(resourceModel);
+
+            List<String> accessibleResourceIds;
+            if (permission.isPresent()) {
+                PermissionEntity permissionToMatchEntity = permissionEntityRepository.getLocalPermissionEntityRepository().getPermissionEntity(resourceType, permission.get().getName());
+                String permissionToMatch = permissionToMatchEntity.getExtensionAndName();
+                accessibleResourceIds = permissionEntityRepository.getLocalPermissionEntityRepository().isHierarchyPermissionResource(resourceType) ?
+                        aclEntryEntityRepository.findResourceIdByAclPrincipalNameAndResourceTypeIdAndPermissionMaskAndResourceIdIn(principal.getName(), resourceTypeId, permissionEntityRepository.getLocalPermissionEntityRepository().getPermissionMask(permissionToMatchEntity), resourceIds)
+                        : aclEntryEntityRepository.findResourceIdByAclPrincipalNameAndResourceTypeIdAndPermissionNameAndResourceIdIn(principal.getName(), resourceTypeId, permissionToMatch, resourceIds);
+            } else
+                accessibleResourceIds = getAclEntryEntityRepository(permissionEntity).findResourceIdByAclPrincipalNameAndResourceTypeIdAndResourceIdIn(principal.getName(), resourceTypeId, resourceIds);
+
+            Map<String, Boolean> accessible = new LinkedHashMap<>(resourceIds.size());
+            resourceIds.forEach(resourceId -> accessible.put(resourceId, false));
+            accessibleResourceIds.forEach(resourceId -> accessible.put(resourceId, true));
+            return accessible;
+        }
+
+        @Override
+        public Map<String, Long> readPrincipalPermissionMasks(AclPrincipalModel principal, ResourceModel resourceModel) {
+            PermissionEntity permissionEntity = permissionEntityRepository.getLocalPermissionEntityRepository().getFirstByResourceType(resourceModel.getType());
+            Long resourceTypeId = getResourceTypeIdByResourceModel(resourceModel);
+            if (!permissionEntity.isNotSupport())
+                return aclEntryEntityRepository.findPermissionMaskByAclPrincipalNameAndResourceTypeId(principal.getName(), resourceTypeId);
+            Map<String, Long> permissionMasks = Maps.newHashMap();
+            simpleAclPrincipalEntityRepository.findResourceIdByAclPrincipalNameAndResourceTypeId(principal.getName(), resourceTypeId).forEach(resourceId -> permissionMasks.put(resourceId, 0L));
+            return permissionMasks;
+        }
+
+        @Override
+        public Map<String, Set<String>> readResourceGrants(ResourceModel resourceModel, PermissionEntity permissionEntity) {
+            Map<String, String> permissionNames = Maps.newHashMap();
+            permissionEntityRepository.getLocalPermissionEntityRepository().findAllByResourceType(resourceModel.getType()).forEach(entity -> permissionNames.put(entity.getExtensionAndName(), entity.getName()));
+            Map<String, Set<String>> grants = Maps.newHashMap();
+            Page<? extends AbstractAclEntryEntity> entryEntities = getAclEntryEntityRepository(permissionEntity).findByResourceTypeIdAndResourceId(getResourceTypeIdByResourceModel(resourceModel), resourceModel.getId(), Pageable.unpaged());
+            entryEntities.forEach(entryEntity -> {
+                Set<String> permissions = grants.computeIfAbsent(entryEntity.getAclPrincipalName(), principal -> Sets.newHashSet());
+                if (entryEntity instanceof AclEntryEntity)
+                    permissions.add(permissionNames.getOrDefault(((AclEntryEntity) entryEntity).getPermissionName(), ((AclEntryEntity) entryEntity).getPermissionName()));
+            });
+            return grants;
+        }
+
+        /**
+         * granted masks already include inherit permissions(grant mask). rows written before permission mask assigned are expanded by permission name.
+         */
+        @Override
+        public long readEffectivePermissionMask(AclPrincipalModel principal, ResourceModel resourceModel) {
+            PermissionEntityRepository.LocalPermissionEntityRepository localPermissionEntityRepository = permissionEntityRepository.getLocalPermissionEntityRepository();
+            Map<String, PermissionEntity> permissionEntities = Maps.newHashMap();
+            localPermissionEntityRepository.findAllByResourceType(resourceModel.getType()).forEach(entity -> permissionEntities.put(entity.getExtensionAndName(), entity));
+            long effectiveMask = 0;
+            for (Map.Entry<String, Long> granted : aclEntryEntityRepository.findPermissionMaskByAclPrincipalNameAndResourceTypeIdAndResourceId(principal.getName(),
+                    getResourceTypeIdByResourceModel(resourceModel), StringUtils.isNotBlank(resourceModel.getId()) ? resourceModel.getId() : null).entrySet()) {
+                effectiveMask |= granted.getValue();
+                PermissionEntity grantedEntity = permissionEntities.get(granted.getKey());
+                if (null != grantedEntity)
+                    effectiveMask |= localPermissionEntityRepository.getGrantMask(grantedEntity);
+            }
+            return effectiveMask;
+        }
+
         protected Long getResourceTypeIdByResourceModel(ResourceModel resourceModel) {
             return null != resourceModel.getTypeId() ? resourceModel.getTypeId() : permissionEntityRepository.getLocalPermissionEntityRepository().getResourceTypeIdByResourceType(resourceModel.getType());
         }
@@ -665,8 +1719,56 @@ public class GenericAclManager implements AclManager {
         aclPrincipalEntity.setTag(aclPrincipalModel.getTag());
         aclPrincipalEntity.setName(aclPrincipalModel.getName());
         aclPrincipalEntityRepository.save(aclPrincipalEntity);
+        aclChangeFeed.append(new AclChange(AclChange.Type.PRINCIPAL_CREATED, null, null, aclPrincipalModel.getName()));
+    }
+
+
+    @Override
+    @Transactional
+    @BizError("27")
+    public void createAclPrincipalMember(@Validated(AclPrincipalModel.CreateAcl.class) AclPrincipalModel member, @Validated(AclPrincipalModel.CreateAcl.class) AclPrincipalModel parent) {
+        AclPrincipalEntity memberEntity = aclPrincipalEntityRepository.getByName(member.getName());
+        Assert.notNull(memberEntity, "no principal found by given member.");
+        AclPrincipalEntity parentEntity = aclPrincipalEntityRepository.getByName(parent.getName());
+        Assert.notNull(parentEntity, "no principal found by given parent.");
+        Assert.isTrue(!Objects.equals(memberEntity.getId(), parentEntity.getId()), "principal can not be member of itself.");
+        Assert.isTrue(!aclPrincipalMemberEntityRepository.existsByMember_IdAndParent_Id(memberEntity.getId(), parentEntity.getId()), "principal already member of given parent.");
+        Assert.isTrue(!aclPrincipalClosureEntityRepository.existsByAncestorAndDescendant(memberEntity.getName(), parentEntity.getName()), "circular membership not allowed.");
+        AclPrincipalMemberEntity memberRelationship = new AclPrincipalMemberEntity();
+        memberRelationship.setMember(memberEntity);
+        memberRelationship.setParent(parentEntity);
+        aclPrincipalMemberEntityRepository.save(memberRelationship);
+        Set<String> affected = aclPrincipalClosureEntityRepository.connect(memberEntity.getName(), parentEntity.getName(),
+                count -> entityIdAllocator.allocate(AclPrincipalClosureEntity.class, count));
+        //只有member及其下级的祖先集合变化，按principal失效(所有资源类型)
+        aclDecisionCache.evictPrincipals(affected);
+        aclAccessibleIndex.evictPrincipals(affected);
+        aclChangeFeed.append(new AclChange(AclChange.Type.MEMBER_CREATED, null, parentEntity.getName(), memberEntity.getName()));
     }
 
+    @Override
+    @Transactional
+    @BizError("28")
+    public void deleteAclPrincipalMember(@Validated(AclPrincipalModel.CreateAcl.class) AclPrincipalModel member, @Validated(AclPrincipalModel.CreateAcl.class) AclPrincipalModel parent) {
+        AclPrincipalEntity memberEntity = aclPrincipalEntityRepository.getByName(member.getName());
+        Assert.notNull(memberEntity, "no principal found by given member.");
+        AclPrincipalEntity parentEntity = aclPrincipalEntityRepository.getByName(parent.getName());
+        Assert.notNull(parentEntity, "no principal found by given parent.");
+        AclPrincipalMemberEntity memberRelationship = aclPrincipalMemberEntityRepository.getByMember_IdAndParent_Id(memberEntity.getId(), parentEntity.getId());
+        Assert.notNull(memberRelationship, "principal not member of given parent.");
+        aclPrincipalMemberEntityRepository.delete(memberRelationship);
+        Set<String> affected = aclPrincipalClosureEntityRepository.disconnect(memberEntity.getName(), parentEntity.getName());
+        aclDecisionCache.evictPrincipals(affected);
+        aclAccessibleIndex.evictPrincipals(affected);
+        aclChangeFeed.append(new AclChange(AclChange.Type.MEMBER_DELETED, null, parentEntity.getName(), memberEntity.getName()));
+    }
+
+    @Override
+    @Transactional(readOnly = true)
+    @BizError("29")
+    public Set<String> findAclPrincipalAncestors(@Validated(AclPrincipalModel.CreateAcl.class) AclPrincipalModel principal) {
+        return aclPrincipalClosureEntityRepository.findAncestors(principal.getName()).keySet();
+    }
 
     @Override
     @Transactional(readOnly = true)
@@ -704,6 +1806,7 @@ public class GenericAclManager implements AclManager {
             } else {
                 splitExpressions = aclStrategy.splitExpressionByPermissionSeparator();
             }
+            Assert.isTrue(splitExpressions.length <= PermissionEntity.MAXIMUM_PERMISSION_BITS, "too many permissions. maximum allowed: " + PermissionEntity.MAXIMUM_PERMISSION_BITS);
             String extension = "";
             for (int i = splitExpressions.length - 1; i > -1; i--) {
                 PermissionEntity permissionEntity = new PermissionEntity();
@@ -712,6 +1815,8 @@ public class GenericAclManager implements AclManager {
                 String name = nameTag[0];
                 permissionEntity.setName(name);
                 permissionEntity.setTag(nameTag.length == 2 ? nameTag[1] : name);
+                //按保存顺序分配权限位，与未分配权限位时按id顺序计算保持一致
+                permissionEntity.setBit(splitExpressions.length - 1 - i);
                 if (inherit && StringUtils.isNotBlank(extension)) {
                     permissionEntity.setExtension(StringUtils.removeEnd(extension, PermissionEntity.PERMISSION_EXTENSION_SEPARATOR));
                 }
@@ -730,6 +1835,38 @@ public class GenericAclManager implements AclManager {
             permissionEntity = permissionEntityRepository.save(permissionEntity);
             permissionEntity.setResourceTypeId(permissionEntity.getId());
         }
+        permissionEntityRepository.increaseStrategyVersion();
+        aclDecisionCache.evictResourceType(resource);
+        aclAccessibleIndex.evictResourceType(resource);
+        aclChangeFeed.append(new AclChange(AclChange.Type.STRATEGY_CREATED, resource, null, null));
+    }
+
+    /**
+     * return merged grant mask of given permissions. 0 for coarse-grained model(no permissions).
+     */
+    protected long getGrantMask(List<PermissionEntity> permissionEntities) {
+        long grantMask = 0;
+        for (PermissionEntity permissionEntity : permissionEntities) {
+            grantMask |= permissionEntityRepository.getLocalPermissionEntityRepository().getGrantMask(permissionEntity);
+        }
+        return grantMask;
+    }
+
+    /**
+     * long poll without transaction, avoid holding connection while waiting.
+     */
+    @Override
+    @BizError("32")
+    public List<AclChange> findAclChanges(long after, int limit, long waitMillis) {
+        Assert.isTrue(limit <= maximumCursorPageSize, "limit too large. maximum allowed: " + maximumCursorPageSize);
+        return aclChangeFeed.poll(after, limit, waitMillis);
+    }
+
+    @Override
+    @BizError("41")
+    public CompletableFuture<List<AclChange>> findAclChangesAsync(long after, int limit, long waitMillis) {
+        Assert.isTrue(limit <= maximumCursorPageSize, "limit too large. maximum allowed: " + maximumCursorPageSize);
+        return aclChangeFeed.pollAsync(after, limit, waitMillis);
     }
 
     @Override
@@ -825,4 +1962,44 @@ public class GenericAclManager implements AclManager {
     public void setBizPayloadEntityRepository(BizPayloadEntityRepository bizPayloadEntityRepository) {
         this.bizPayloadEntityRepository = bizPayloadEntityRepository;
     }
+
+    @Autowired
+    public void setAclDecisionCache(AclDecisionCache aclDecisionCache) {
+        this.aclDecisionCache = aclDecisionCache;
+    }
+
+    @Autowired
+    public void setAclAccessibleIndex(AclAccessibleIndex aclAccessibleIndex) {
+        this.aclAccessibleIndex = aclAccessibleIndex;
+    }
+
+    @Autowired
+    public void setAclPrincipalMemberEntityRepository(AclPrincipalMemberEntityRepository aclPrincipalMemberEntityRepository) {
+        this.aclPrincipalMemberEntityRepository = aclPrincipalMemberEntityRepository;
+    }
+
+    @Autowired
+    public void setAclPrincipalClosureEntityRepository(AclPrincipalClosureEntityRepository aclPrincipalClosureEntityRepository) {
+        this.aclPrincipalClosureEntityRepository = aclPrincipalClosureEntityRepository;
+    }
+
+    @Autowired
+    public void setAclChangeFeed(AclChangeFeed aclChangeFeed) {
+        this.aclChangeFeed = aclChangeFeed;
+    }
+
+    @Autowired
+    public void setEntityIdAllocator(EntityIdAllocator entityIdAllocator) {
+        this.entityIdAllocator = entityIdAllocator;
+    }
+
+    @Autowired
+    public void setValidator(Validator validator) {
+        this.validator = validator;
+    }
+
+    @Autowired
+    public void setTransactionManager(PlatformTransactionManager transactionManager) {
+        this.transactionManager = transactionManager;
+    }
 }
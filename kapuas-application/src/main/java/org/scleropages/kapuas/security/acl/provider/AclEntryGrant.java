@@ -0,0 +1,57 @@
+/**
+ * Copyright 2001-2005 The Apache Software Foundation.
+ * <p>
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ * <p>
+ * http://www.apache.org/licenses/LICENSE-2.0
+ * <p>
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.scleropages.kapuas.security.acl.provider;
+
+import org.scleropages.kapuas.security.acl.entity.AclPrincipalEntity;
+import org.scleropages.kapuas.security.acl.entity.PermissionEntity;
+import org.scleropages.kapuas.security.acl.model.ResourceModel;
+
+/**
+ * resolved (resource, principal, permissions) tuple used by bulk acl entries operations of {@link AclProvider}.
+ * permissions is empty for coarse-grained acl model.
+ *
+ * @author <a href="mailto:martinmao@icloud.com">Martin Mao</a>
+ */
+public class AclEntryGrant {
+
+    private final ResourceModel resource;
+
+    private final AclPrincipalEntity grant;
+
+    private final PermissionEntity[] permissions;
+
+    public AclEntryGrant(ResourceModel resource, AclPrincipalEntity grant, PermissionEntity... permissions) {
+        this.resource = resource;
+        this.grant = grant;
+        this.permissions = null != permissions ? permissions : new PermissionEntity[0];
+    }
+
+    public ResourceModel getResource() {
+        return resource;
+    }
+
+    public AclPrincipalEntity getGrant() {
+        return grant;
+    }
+
+    public PermissionEntity[] getPermissions() {
+        return permissions;
+    }
+
+    public boolean isWithoutPermission() {
+        return permissions.length == 0;
+    }
+}
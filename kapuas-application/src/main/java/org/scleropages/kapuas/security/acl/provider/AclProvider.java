@@ -21,14 +21,19 @@ import org.scleropages.kapuas.security.acl.AclEntry;
 import org.scleropages.kapuas.security.acl.entity.AclPrincipalEntity;
 import org.scleropages.kapuas.security.acl.entity.PermissionEntity;
 import org.scleropages.kapuas.security.acl.model.AclPrincipalModel;
+import org.scleropages.kapuas.security.acl.model.CursorPage;
 import org.scleropages.kapuas.security.acl.model.PermissionModel;
 import org.scleropages.kapuas.security.acl.model.ResourceModel;
 import org.springframework.data.domain.Page;
 import org.springframework.data.domain.Pageable;
 
 import java.io.Serializable;
+import java.util.Collection;
+import java.util.List;
 import java.util.Map;
 import java.util.Optional;
+import java.util.Set;
+import java.util.function.Consumer;
 
 /**
  * SPI interface. help any domain's easy way to management access control.
@@ -59,6 +64,16 @@ public interface AclProvider {
      */
     void createAcl(ResourceModel resource, PermissionEntity permissionEntity, AclPrincipalEntity aclPrincipalEntity);
 
+    /**
+     * create acl(s) for a chunk of resources(same resource type) in current transaction. resources already exists are skipped.
+     *
+     * @param resources        associated resources.
+     * @param permissionEntity associated acl strategy for given resources.
+     * @param owners           owner name -> owner principal of given resources.
+     * @return created resources.
+     */
+    List<ResourceModel> createAcls(List<ResourceModel> resources, PermissionEntity permissionEntity, Map<String, AclPrincipalEntity> owners);
+
     /**
      * update a acl info for specify resource.
      *
@@ -67,6 +82,14 @@ public interface AclProvider {
      */
     void updateAcl(ResourceModel resource, PermissionEntity permissionEntity, Optional<AclPrincipalEntity> aclPrincipalEntity);
 
+    /**
+     * partial update variables of a acl. only given variables applied, variables with null value removed.
+     *
+     * @param resource         associated resource(variables is required).
+     * @param permissionEntity associated acl strategy for given resource.
+     */
+    void patchAclVariables(ResourceModel resource, PermissionEntity permissionEntity);
+
 
     /**
      * delete a acl for specify resource.
@@ -97,6 +120,31 @@ public interface AclProvider {
     Page<Acl> readAcl(ResourceModel resourceModel, PermissionEntity permissionEntity, Pageable pageable, Map<String, SearchFilter> variablesSearchFilters);
 
 
+    /**
+     * keyset(seek) pagination version of {@link #readAcl(ResourceModel, PermissionEntity, Pageable, Map)}. no total count provided.
+     *
+     * @param resourceModel          associated resource type.
+     * @param permissionEntity       associated acl strategy for given resource.
+     * @param after                  last row of previous page. empty for first page.
+     * @param limit                  page size.
+     * @param variablesSearchFilters
+     * @return
+     */
+    CursorPage<Acl> readAcl(ResourceModel resourceModel, PermissionEntity permissionEntity, Optional<CursorPage.Cursor> after, int limit, Map<String, SearchFilter> variablesSearchFilters);
+
+
+    /**
+     * export all acl(s) of given resource type in one pass. implementation should read rows in constant memory(lazy cursor).
+     *
+     * @param resourceModel    associated resource type.
+     * @param permissionEntity associated acl strategy for given resource.
+     * @param withVariables    inline variables of each acl.
+     * @param withBizPayload   inline business payload of each acl.
+     * @param consumer
+     */
+    void exportAcl(ResourceModel resourceModel, PermissionEntity permissionEntity, boolean withVariables, boolean withBizPayload, Consumer<Acl> consumer);
+
+
     /**
      * create a acl entry for specify resource.
      *
@@ -133,6 +181,38 @@ public interface AclProvider {
     void deleteAclEntryWithoutPermission(ResourceModel resource, AclPrincipalEntity aclPrincipalEntity);
 
 
+    /**
+     * create acl entries in bulk. grants already exists will be ignored.
+     * default implementation delegate to {@link #createAclEntry(ResourceModel, AclPrincipalEntity, PermissionEntity...)} one by one.
+     *
+     * @param grants resolved grants(permissions already merged by inherit rules).
+     */
+    default void createAclEntries(List<AclEntryGrant> grants) {
+        grants.forEach(grant -> {
+            if (grant.isWithoutPermission())
+                createAclEntryWithoutPermission(grant.getResource(), grant.getGrant());
+            else
+                createAclEntry(grant.getResource(), grant.getGrant(), grant.getPermissions());
+        });
+    }
+
+
+    /**
+     * delete acl entries in bulk. grants not exists will be ignored.
+     * default implementation delegate to {@link #deleteAclEntry(ResourceModel, AclPrincipalEntity, PermissionEntity...)} one by one.
+     *
+     * @param grants resolved grants.
+     */
+    default void deleteAclEntries(List<AclEntryGrant> grants) {
+        grants.forEach(grant -> {
+            if (grant.isWithoutPermission())
+                deleteAclEntryWithoutPermission(grant.getResource(), grant.getGrant());
+            else
+                deleteAclEntry(grant.getResource(), grant.getGrant(), grant.getPermissions());
+        });
+    }
+
+
     /**
      * read acl entries by specify (id and type) resource model.
      * {@link org.scleropages.kapuas.security.acl.AclManager} do not validate any rules(just make sure required arguments provided).other rules validation provided
@@ -146,6 +226,28 @@ public interface AclProvider {
     Page<AclEntry> readEntries(ResourceModel resourceModel, Optional<AclPrincipalModel> principalModel, Pageable pageable);
 
 
+    /**
+     * keyset(seek) pagination version of {@link #readEntries(ResourceModel, Optional, Pageable)}. no total count provided.
+     *
+     * @param resourceModel  resource for query(id and type required)
+     * @param principalModel optional for query
+     * @param after          last row of previous page. empty for first page.
+     * @param limit          page size.
+     * @return
+     */
+    CursorPage<AclEntry> readEntries(ResourceModel resourceModel, Optional<AclPrincipalModel> principalModel, Optional<CursorPage.Cursor> after, int limit);
+
+
+    /**
+     * export all acl entries of given resource type in one pass. implementation should read rows in constant memory(lazy cursor).
+     *
+     * @param resourceModel    associated resource type.
+     * @param permissionEntity associated acl strategy for given resource.
+     * @param consumer
+     */
+    void exportEntries(ResourceModel resourceModel, PermissionEntity permissionEntity, Consumer<AclEntry> consumer);
+
+
     /**
      * read principal entries by specify resource type.
      * {@link org.scleropages.kapuas.security.acl.AclManager} do not validate any rules(just make sure required arguments provided).other rules validation provided
@@ -160,6 +262,52 @@ public interface AclProvider {
     Page<AclEntry> readPrincipalEntries(AclPrincipalModel principal, ResourceModel resourceModel, Optional<PermissionModel> permission, Pageable pageable, Map<String, SearchFilter> variablesSearchFilters);
 
 
+    /**
+     * keyset(seek) pagination version of {@link #readPrincipalEntries(AclPrincipalModel, ResourceModel, Optional, Pageable, Map)}. no total count provided.
+     *
+     * @param principal              granted principal
+     * @param resourceModel          resource type for query(type required)
+     * @param permission             optional for query for specify permission returned
+     * @param after                  last row of previous page. empty for first page.
+     * @param limit                  page size.
+     * @param variablesSearchFilters
+     * @return
+     */
+    CursorPage<AclEntry> readPrincipalEntries(AclPrincipalModel principal, ResourceModel resourceModel, Optional<PermissionModel> permission, Optional<CursorPage.Cursor> after, int limit, Map<String, SearchFilter> variablesSearchFilters);
+
+
+    /**
+     * read all granted resource ids and permission masks(see {@link org.scleropages.kapuas.security.acl.repo.PermissionEntityRepository.LocalPermissionEntityRepository#getGrantMask(PermissionEntity)})
+     * of given principal by resource type. used to build in-memory accessible index. permission mask is 0 for coarse-grained model.
+     *
+     * @param principal     granted principal
+     * @param resourceModel resource type for query(type required)
+     * @return resource id -> permission mask
+     */
+    Map<String, Long> readPrincipalPermissionMasks(AclPrincipalModel principal, ResourceModel resourceModel);
+
+
+    /**
+     * read all grants of given resource in one query. used to reconcile entries.
+     *
+     * @param resourceModel    resource for query(type and id required)
+     * @param permissionEntity associated acl strategy for given resource.
+     * @return principal -> granted permission names(empty for coarse-grained model)
+     */
+    Map<String, Set<String>> readResourceGrants(ResourceModel resourceModel, PermissionEntity permissionEntity);
+
+
+    /**
+     * read effective permission mask of given principal(include its ancestors) on given resource in one query. implied permissions(see {@link PermissionEntity#isInheritInclude(PermissionEntity)})
+     * are expanded. fine-grained model only.
+     *
+     * @param principal     granted principal
+     * @param resourceModel resource for query(type required. id optional: any resource of given type)
+     * @return permission mask(see {@link org.scleropages.kapuas.security.acl.repo.PermissionEntityRepository.LocalPermissionEntityRepository#getPermissionMask(PermissionEntity)})
+     */
+    long readEffectivePermissionMask(AclPrincipalModel principal, ResourceModel resourceModel);
+
+
     /**
      * Return true if given principal has permit to specify resource.
      * @param principal granted principal
@@ -169,4 +317,15 @@ public interface AclProvider {
      */
     Boolean existsPrincipalEntries(AclPrincipalModel principal, ResourceModel resourceModel, Optional<PermissionModel> permission);
 
+
+    /**
+     * Return accessible decision per resource id if given principal has permit to specify resources.
+     * @param principal granted principal
+     * @param resourceModel resource type for query(type required)
+     * @param permission optional for query for specify permission returned
+     * @param resourceIds resource ids to check
+     * @return resource id -> accessible
+     */
+    Map<String, Boolean> existsPrincipalEntries(AclPrincipalModel principal, ResourceModel resourceModel, Optional<PermissionModel> permission, Collection<String> resourceIds);
+
 }
\ No newline at end of file
@@ -15,7 +15,13 @@
  */
 package org.scleropages.kapuas.security.acl.web;
 
+import com.fasterxml.jackson.databind.MappingIterator;
+import com.fasterxml.jackson.databind.ObjectMapper;
+import com.google.common.cache.CacheStats;
+import com.google.common.collect.Maps;
+import com.google.common.collect.Streams;
 import org.apache.commons.collections.MapUtils;
+import org.scleropages.core.mapper.JsonMapper2;
 import org.scleropages.crud.dao.orm.SearchFilter;
 import org.scleropages.crud.types.NamedPrimitive;
 import org.scleropages.crud.web.GenericAction;
@@ -24,10 +30,16 @@ import org.scleropages.kapuas.security.acl.Acl;
 import org.scleropages.kapuas.security.acl.AclEntry;
 import org.scleropages.kapuas.security.acl.AclManager;
 import org.scleropages.kapuas.security.acl.AclPrincipal;
+import org.scleropages.kapuas.security.acl.mgmt.AclDecisionCache;
+import org.scleropages.kapuas.security.acl.mgmt.AclEntryWriteBehindQueue;
+import org.scleropages.kapuas.security.acl.model.AclChange;
+import org.scleropages.kapuas.security.acl.model.AclEntryDiffModel;
+import org.scleropages.kapuas.security.acl.model.AclEntryGrantModel;
 import org.scleropages.kapuas.security.acl.model.AclEntryModel;
 import org.scleropages.kapuas.security.acl.model.AclModel;
 import org.scleropages.kapuas.security.acl.model.AclPrincipalModel;
 import org.scleropages.kapuas.security.acl.model.AclStrategy;
+import org.scleropages.kapuas.security.acl.model.CursorPage;
 import org.scleropages.kapuas.security.acl.model.PermissionModel;
 import org.scleropages.kapuas.security.acl.model.ResourceModel;
 import org.scleropages.openapi.annotation.ApiIgnore;
@@ -35,9 +47,12 @@ import org.scleropages.openapi.annotation.ApiModel;
 import org.springframework.beans.factory.annotation.Autowired;
 import org.springframework.data.domain.Page;
 import org.springframework.data.domain.Pageable;
+import org.springframework.http.MediaType;
+import org.springframework.http.ResponseEntity;
 import org.springframework.util.StringUtils;
 import org.springframework.web.bind.annotation.DeleteMapping;
 import org.springframework.web.bind.annotation.GetMapping;
+import org.springframework.web.bind.annotation.PatchMapping;
 import org.springframework.web.bind.annotation.PathVariable;
 import org.springframework.web.bind.annotation.PostMapping;
 import org.springframework.web.bind.annotation.PutMapping;
@@ -45,10 +60,25 @@ import org.springframework.web.bind.annotation.RequestBody;
 import org.springframework.web.bind.annotation.RequestMapping;
 import org.springframework.web.bind.annotation.RequestParam;
 import org.springframework.web.bind.annotation.RestController;
+import org.springframework.web.context.request.async.DeferredResult;
+import org.springframework.web.servlet.mvc.method.annotation.StreamingResponseBody;
 
+import javax.servlet.http.HttpServletRequest;
+import javax.servlet.http.HttpServletResponse;
 import javax.validation.Valid;
+import java.io.BufferedWriter;
+import java.io.IOException;
+import java.io.OutputStreamWriter;
+import java.io.UncheckedIOException;
+import java.io.Writer;
+import java.nio.charset.StandardCharsets;
+import java.util.Collections;
 import java.util.List;
 import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.CompletionException;
+import java.util.function.Consumer;
+import java.util.stream.Stream;
 
 /**
  * @author <a href="mailto:martinmao@icloud.com">Martin Mao</a>
@@ -57,8 +87,18 @@ import java.util.Map;
 @RequestMapping("acl")
 public class AclAction implements GenericAction {
 
+    private static final String NDJSON_MEDIA_TYPE = "application/x-ndjson";
+
+    private static final long ASYNC_TIMEOUT_MARGIN_MILLIS = 5000;
+
     private AclManager aclManager;
 
+    private AclDecisionCache aclDecisionCache;
+
+    private AclEntryWriteBehindQueue aclEntryWriteBehindQueue;
+
+    private ObjectMapper objectMapper;
+
     @PostMapping("strategy")
     public void createAclStrategy(@ApiIgnore(AclStrategy.Create.class) @RequestBody AclStrategy aclStrategy) {
         aclManager.createAclStrategy(aclStrategy);
@@ -86,6 +126,37 @@ public class AclAction implements GenericAction {
         return aclManager.findAclPrincipals(searchFilter.getSearchFilterMap(), pageable);
     }
 
+    @PostMapping("principal/{parent}/members/{member}")
+    public void createPrincipalMember(@PathVariable String parent, @PathVariable String member) {
+        aclManager.createAclPrincipalMember(new AclPrincipalModel(member), new AclPrincipalModel(parent));
+    }
+
+    @DeleteMapping("principal/{parent}/members/{member}")
+    public void deletePrincipalMember(@PathVariable String parent, @PathVariable String member) {
+        aclManager.deleteAclPrincipalMember(new AclPrincipalModel(member), new AclPrincipalModel(parent));
+    }
+
+    @GetMapping("principal/{principal}/ancestors")
+    public Set<String> findPrincipalAncestors(@PathVariable String principal) {
+        return aclManager.findAclPrincipalAncestors(new AclPrincipalModel(principal));
+    }
+
+    /**
+     * long poll completed asynchronously, servlet thread not held while waiting.
+     */
+    @GetMapping("changes")
+    public DeferredResult<List<AclChange>> findAclChanges(@RequestParam(defaultValue = "0") long after, @RequestParam(defaultValue = "100") int limit, @RequestParam(defaultValue = "0") long wait) {
+        //feed completes with empty list at deadline, async timeout only as a safeguard.
+        DeferredResult<List<AclChange>> result = new DeferredResult<>(Math.max(wait, 0) + ASYNC_TIMEOUT_MARGIN_MILLIS, Collections.emptyList());
+        aclManager.findAclChangesAsync(after, limit, wait).whenComplete((changes, e) -> {
+            if (null != e)
+                result.setErrorResult(e instanceof CompletionException && null != e.getCause() ? e.getCause() : e);
+            else
+                result.setResult(changes);
+        });
+        return result;
+    }
+
     @PostMapping("resource")
     public void createAcl(@ApiIgnore(ResourceModel.Create.class) @RequestBody ResourceModel resourceModel) {
         aclManager.createAcl(resourceModel);
@@ -119,6 +190,15 @@ public class AclAction implements GenericAction {
         aclManager.updateAcl(resourceModel);
     }
 
+    @PatchMapping("resource/{resourceType}/{resourceId}/variables")
+    public void patchAclVariables(@PathVariable String resourceType, @PathVariable String resourceId, @RequestBody Map<String, Object> variables) {
+        ResourceModel resourceModel = new ResourceModel();
+        resourceModel.setType(resourceType);
+        resourceModel.setId(resourceId);
+        resourceModel.setVariables(variables);
+        aclManager.patchAclVariables(resourceModel);
+    }
+
     @DeleteMapping("resource/{resourceType}/{resourceId}")
     public void deleteAcl(@PathVariable String resourceType, @PathVariable String resourceId) {
         ResourceModel model = new ResourceModel();
@@ -128,12 +208,19 @@ public class AclAction implements GenericAction {
     }
 
     @GetMapping("resource/payload/{resourceType}")
-    public List<String> findAllAclBizPayload(@PathVariable String resourceType, @RequestParam(name = "aclId") Long... aclIds) {
+    public Map<Long, String> findAllAclBizPayload(@PathVariable String resourceType, @RequestParam(name = "aclId") Long... aclIds) {
         ResourceModel resourceModel = new ResourceModel();
         resourceModel.setType(resourceType);
         return aclManager.findAllAclBizPayload(resourceModel, aclIds);
     }
 
+    @PutMapping("resource/payload/{resourceType}")
+    public void saveAllAclBizPayload(@PathVariable String resourceType, @RequestBody Map<Long, String> payloads) {
+        ResourceModel resourceModel = new ResourceModel();
+        resourceModel.setType(resourceType);
+        aclManager.saveAllAclBizPayload(resourceModel, payloads);
+    }
+
     @PostMapping("entries/{resourceType}/{resourceId}")
     public void createAclEntry(@PathVariable String resourceType, @PathVariable String resourceId, @RequestBody @Valid CreateAclEntryRequest request) {
         ResourceModel resourceModel = new ResourceModel();
@@ -173,6 +260,60 @@ public class AclAction implements GenericAction {
         aclManager.deleteAclEntry(model, aclPrincipalModel, permissionModels);
     }
 
+    @PostMapping("entries")
+    public void createAclEntries(@RequestBody List<AclEntryGrantModel> grants) {
+        aclManager.createAclEntries(grants);
+    }
+
+    @PostMapping("entries/revoke")
+    public void deleteAclEntries(@RequestBody List<AclEntryGrantModel> grants) {
+        aclManager.deleteAclEntries(grants);
+    }
+
+    @PutMapping("entries/{resourceType}/{resourceId}")
+    public AclEntryDiffModel reconcileAclEntries(@PathVariable String resourceType, @PathVariable String resourceId, @RequestBody Map<String, Set<String>> desiredGrants) {
+        ResourceModel resourceModel = new ResourceModel();
+        resourceModel.setType(resourceType);
+        resourceModel.setId(resourceId);
+        return aclManager.reconcileEntries(resourceModel, desiredGrants);
+    }
+
+    @PostMapping("entries/write_behind")
+    public void enqueueAclEntries(@RequestBody List<AclEntryGrantModel> grants) {
+        aclEntryWriteBehindQueue.grant(grants);
+    }
+
+    @PostMapping("entries/write_behind/revoke")
+    public void enqueueAclEntriesRevoke(@RequestBody List<AclEntryGrantModel> grants) {
+        aclEntryWriteBehindQueue.revoke(grants);
+    }
+
+    @PostMapping("entries/write_behind/flush")
+    public void flushAclEntries() {
+        aclEntryWriteBehindQueue.flush();
+    }
+
+    @GetMapping("entries/write_behind/stats")
+    public Map<String, Object> getAclEntriesWriteBehindStats() {
+        Map<String, Object> result = Maps.newLinkedHashMap();
+        result.put("enabled", aclEntryWriteBehindQueue.isEnabled());
+        result.put("pending", aclEntryWriteBehindQueue.pending());
+        result.put("coalesced", aclEntryWriteBehindQueue.coalesced());
+        result.put("deadLetters", aclEntryWriteBehindQueue.deadLetters().size());
+        result.put("deadLettersDropped", aclEntryWriteBehindQueue.deadLettersDropped());
+        return result;
+    }
+
+    @GetMapping("entries/write_behind/dead_letters")
+    public List<AclEntryWriteBehindQueue.DeadLetter> findAclEntriesWriteBehindDeadLetters() {
+        return aclEntryWriteBehindQueue.deadLetters();
+    }
+
+    @PostMapping("entries/write_behind/dead_letters/retry")
+    public int retryAclEntriesWriteBehindDeadLetters() {
+        return aclEntryWriteBehindQueue.retryDeadLetters();
+    }
+
     @GetMapping("entries/{resourceType}/{resourceId}")
     @ApiModel(AclEntryModel.class)
     public Page<AclEntry> findAclEntries(@PathVariable String resourceType, @PathVariable String resourceId, String principal,Pageable pageable) {
@@ -194,6 +335,96 @@ public class AclAction implements GenericAction {
         return aclManager.findPrincipalEntries(new AclPrincipalModel(principal), resourceModel, new PermissionModel(permission), pageable, SearchFilter.SearchFilterBuilder.build(variablesSearchParams));
     }
 
+    @GetMapping("cursor/resource/{resourceType}")
+    public CursorPage<Acl> findAcl(@PathVariable String resourceType, @RequestParam(required = false) String next, @RequestParam(defaultValue = "20") int limit, @RequestParam(required = false) String variables) {
+        ResourceModel model = new ResourceModel();
+        model.setType(resourceType);
+        Map<String, Object> variablesSearchParams = StringUtils.hasText(variables) ? buildObjectFromJsonPayload(variables, Map.class) : MapUtils.EMPTY_MAP;
+        return aclManager.findAcl(model, next, limit, SearchFilter.SearchFilterBuilder.build(variablesSearchParams));
+    }
+
+    @GetMapping("cursor/entries/{resourceType}/{resourceId}")
+    public CursorPage<AclEntry> findAclEntries(@PathVariable String resourceType, @PathVariable String resourceId, String principal, @RequestParam(required = false) String next, @RequestParam(defaultValue = "20") int limit) {
+        ResourceModel resourceModel = new ResourceModel();
+        resourceModel.setType(resourceType);
+        resourceModel.setId(resourceId);
+        return aclManager.findEntries(resourceModel, new AclPrincipalModel(principal), next, limit);
+    }
+
+    @GetMapping("cursor/principal_entries/{principal}/{resourceType}")
+    public CursorPage<AclEntry> findPrincipalAclEntries(@PathVariable String principal, @PathVariable String resourceType,
+                                                        String resourceId, String permission, String variables, @RequestParam(required = false) String next, @RequestParam(defaultValue = "20") int limit) {
+        ResourceModel resourceModel = new ResourceModel();
+        resourceModel.setType(resourceType);
+        resourceModel.setId(resourceId);
+        Map<String, Object> variablesSearchParams = StringUtils.hasText(variables) ? buildObjectFromJsonPayload(variables, Map.class) : MapUtils.EMPTY_MAP;
+
+        return aclManager.findPrincipalEntries(new AclPrincipalModel(principal), resourceModel, new PermissionModel(permission), next, limit, SearchFilter.SearchFilterBuilder.build(variablesSearchParams));
+    }
+
+    /**
+     * bulk import resources. request body is ndjson(one resource per line, consumed lazily), progress written as ndjson line after each chunk committed.
+     */
+    @PostMapping(value = "resource/bulk/{resourceType}", consumes = NDJSON_MEDIA_TYPE, produces = NDJSON_MEDIA_TYPE)
+    public void createAcls(@PathVariable String resourceType, HttpServletRequest request, HttpServletResponse response) throws IOException {
+        response.setContentType(NDJSON_MEDIA_TYPE);
+        Writer writer = new BufferedWriter(new OutputStreamWriter(response.getOutputStream(), StandardCharsets.UTF_8));
+        try (MappingIterator<ResourceModel> resources = objectMapper.readerFor(ResourceModel.class).readValues(request.getInputStream())) {
+            aclManager.createAcls(resourceType, Streams.stream(resources), progress -> {
+                writeLine(writer, progress);
+                try {
+                    writer.flush();
+                } catch (IOException e) {
+                    throw new UncheckedIOException(e);
+                }
+            });
+        }
+        writer.flush();
+    }
+
+    @GetMapping(value = "export/resource/{resourceType}", produces = NDJSON_MEDIA_TYPE)
+    public ResponseEntity<StreamingResponseBody> exportAcl(@PathVariable String resourceType, @RequestParam(defaultValue = "false") boolean variables, @RequestParam(defaultValue = "false") boolean payload) {
+        ResourceModel resourceModel = new ResourceModel();
+        resourceModel.setType(resourceType);
+        return ndjson(writer -> aclManager.exportAcl(resourceModel, variables, payload, acl -> writeLine(writer, acl)));
+    }
+
+    @GetMapping(value = "export/entries/{resourceType}", produces = NDJSON_MEDIA_TYPE)
+    public ResponseEntity<StreamingResponseBody> exportAclEntries(@PathVariable String resourceType) {
+        ResourceModel resourceModel = new ResourceModel();
+        resourceModel.setType(resourceType);
+        return ndjson(writer -> aclManager.exportEntries(resourceModel, entry -> writeLine(writer, entry)));
+    }
+
+    @GetMapping(value = "export/snapshot/{resourceType}", produces = MediaType.APPLICATION_OCTET_STREAM_VALUE)
+    public ResponseEntity<StreamingResponseBody> exportAclSnapshot(@PathVariable String resourceType) {
+        ResourceModel resourceModel = new ResourceModel();
+        resourceModel.setType(resourceType);
+        StreamingResponseBody body = outputStream -> aclManager.exportAclSnapshot(resourceModel, outputStream);
+        return ResponseEntity.ok().contentType(MediaType.APPLICATION_OCTET_STREAM).body(body);
+    }
+
+    /**
+     * write each row as one json line. rows are written as soon as read from database(constant memory).
+     */
+    protected ResponseEntity<StreamingResponseBody> ndjson(Consumer<Writer> export) {
+        StreamingResponseBody body = outputStream -> {
+            Writer writer = new BufferedWriter(new OutputStreamWriter(outputStream, StandardCharsets.UTF_8));
+            export.accept(writer);
+            writer.flush();
+        };
+        return ResponseEntity.ok().contentType(MediaType.parseMediaType(NDJSON_MEDIA_TYPE)).body(body);
+    }
+
+    protected void writeLine(Writer writer, Object row) {
+        try {
+            writer.write(JsonMapper2.toJson(row));
+            writer.write('\n');
+        } catch (IOException e) {
+            throw new UncheckedIOException(e);
+        }
+    }
+
     @GetMapping("accessible/{principal}/{resourceType}/{resourceId}")
     public NamedPrimitive<Boolean> isAccessible(@PathVariable String principal, @PathVariable String resourceType, @PathVariable String resourceId, @RequestParam(name = "permission", required = false) String permission) {
         ResourceModel resourceModel = new ResourceModel();
@@ -203,8 +434,99 @@ public class AclAction implements GenericAction {
         return new NamedPrimitive<>("accessible", accessible);
     }
 
+    @GetMapping("accessible/{principal}/{resourceType}/{resourceId}/any")
+    public NamedPrimitive<Boolean> isAccessibleAny(@PathVariable String principal, @PathVariable String resourceType, @PathVariable String resourceId, @RequestParam(name = "permission") List<String> permissions) {
+        ResourceModel resourceModel = new ResourceModel();
+        resourceModel.setType(resourceType);
+        resourceModel.setId(resourceId);
+        boolean accessible = aclManager.isAccessibleAny(resourceModel, new AclPrincipalModel(principal), permissions.stream().map(PermissionModel::new).toArray(PermissionModel[]::new));
+        return new NamedPrimitive<>("accessible", accessible);
+    }
+
+    @GetMapping("accessible/{principal}/{resourceType}/{resourceId}/all")
+    public NamedPrimitive<Boolean> isAccessibleAll(@PathVariable String principal, @PathVariable String resourceType, @PathVariable String resourceId, @RequestParam(name = "permission") List<String> permissions) {
+        ResourceModel resourceModel = new ResourceModel();
+        resourceModel.setType(resourceType);
+        resourceModel.setId(resourceId);
+        boolean accessible = aclManager.isAccessibleAll(resourceModel, new AclPrincipalModel(principal), permissions.stream().map(PermissionModel::new).toArray(PermissionModel[]::new));
+        return new NamedPrimitive<>("accessible", accessible);
+    }
+
+    /**
+     * permission matrix of given principal on given resource in one round-trip. all permissions of acl strategy if no permission provided.
+     */
+    @GetMapping("permissions/{principal}/{resourceType}/{resourceId}")
+    public Map<String, Boolean> findEffectivePermissions(@PathVariable String principal, @PathVariable String resourceType, @PathVariable String resourceId, @RequestParam(name = "permission", required = false) List<String> permissions) {
+        ResourceModel resourceModel = new ResourceModel();
+        resourceModel.setType(resourceType);
+        resourceModel.setId(resourceId);
+        Set<String> effectivePermissions = aclManager.findEffectivePermissions(resourceModel, new AclPrincipalModel(principal));
+        Map<String, Boolean> matrix = Maps.newLinkedHashMap();
+        if (null != permissions && !permissions.isEmpty())
+            permissions.forEach(permission -> matrix.put(permission, effectivePermissions.contains(permission)));
+        else
+            Stream.of(aclManager.getAclStrategy(resourceType).getPermissions()).forEach(permission -> matrix.put(permission.getName(), effectivePermissions.contains(permission.getName())));
+        return matrix;
+    }
+
+    @PostMapping("accessible/{principal}/{resourceType}")
+    public Map<String, Boolean> isAccessible(@PathVariable String principal, @PathVariable String resourceType, @RequestParam(name = "permission", required = false) String permission, @RequestBody Set<String> resourceIds) {
+        ResourceModel resourceModel = new ResourceModel();
+        resourceModel.setType(resourceType);
+        return aclManager.isAccessible(resourceModel, new AclPrincipalModel(principal), new PermissionModel(permission), resourceIds);
+    }
+
+    @GetMapping("accessible_index/{principal}/{resourceType}")
+    public Set<String> findAccessibleResourceIds(@PathVariable String principal, @PathVariable String resourceType, @RequestParam(name = "permission", required = false) String permission) {
+        ResourceModel resourceModel = new ResourceModel();
+        resourceModel.setType(resourceType);
+        return aclManager.findAccessibleResourceIds(resourceModel, new AclPrincipalModel(principal), new PermissionModel(permission));
+    }
+
+    @GetMapping("accessible_index/{principal}/{resourceType}/count")
+    public NamedPrimitive<Integer> countAccessibleResources(@PathVariable String principal, @PathVariable String resourceType, @RequestParam(name = "permission", required = false) String permission) {
+        ResourceModel resourceModel = new ResourceModel();
+        resourceModel.setType(resourceType);
+        return new NamedPrimitive<>("count", aclManager.countAccessibleResources(resourceModel, new AclPrincipalModel(principal), new PermissionModel(permission)));
+    }
+
+    @PostMapping("accessible_index/{principal}/{resourceType}")
+    public Set<String> findAccessibleResourceIds(@PathVariable String principal, @PathVariable String resourceType, @RequestParam(name = "permission", required = false) String permission, @RequestBody Set<String> candidateResourceIds) {
+        ResourceModel resourceModel = new ResourceModel();
+        resourceModel.setType(resourceType);
+        return aclManager.findAccessibleResourceIds(resourceModel, new AclPrincipalModel(principal), new PermissionModel(permission), candidateResourceIds);
+    }
+
+    @GetMapping("decision_cache/stats")
+    public Map<String, Object> getDecisionCacheStats() {
+        CacheStats stats = aclDecisionCache.stats();
+        Map<String, Object> result = Maps.newLinkedHashMap();
+        result.put("enabled", aclDecisionCache.isEnabled());
+        result.put("size", aclDecisionCache.size());
+        result.put("hit_count", stats.hitCount());
+        result.put("miss_count", stats.missCount());
+        result.put("hit_rate", stats.hitRate());
+        result.put("eviction_count", stats.evictionCount());
+        return result;
+    }
+
     @Autowired
     public void setAclManager(AclManager aclManager) {
         this.aclManager = aclManager;
     }
+
+    @Autowired
+    public void setAclDecisionCache(AclDecisionCache aclDecisionCache) {
+        this.aclDecisionCache = aclDecisionCache;
+    }
+
+    @Autowired
+    public void setAclEntryWriteBehindQueue(AclEntryWriteBehindQueue aclEntryWriteBehindQueue) {
+        this.aclEntryWriteBehindQueue = aclEntryWriteBehindQueue;
+    }
+
+    @Autowired
+    public void setObjectMapper(ObjectMapper objectMapper) {
+        this.objectMapper = objectMapper;
+    }
 }
@@ -0,0 +1,126 @@
+/**
+ * Copyright 2001-2005 The Apache Software Foundation.
+ * <p>
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ * <p>
+ * http://www.apache.org/licenses/LICENSE-2.0
+ * <p>
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.scleropages.kapuas.tenant.mgmt;
+
+import org.scleropages.kapuas.security.acl.AclManager;
+import org.scleropages.kapuas.security.acl.model.AclPrincipalModel;
+import org.scleropages.kapuas.tenant.model.Role;
+import org.scleropages.kapuas.tenant.user.model.Group;
+import org.scleropages.kapuas.tenant.user.model.User;
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.stereotype.Component;
+import org.springframework.transaction.annotation.Transactional;
+import org.springframework.util.Assert;
+
+/**
+ * 租户 用户/组/角色 与 acl principal 的映射. 租户侧在创建实体或变更成员关系时调用对应的 hook，成员关系写入 acl principal 成员闭包
+ * (见 {@link AclManager#createAclPrincipalMember(AclPrincipalModel, AclPrincipalModel)})，授予组或角色的权限由其成员继承.
+ * <p>
+ * principal 名称: user:{id}，group:{id}，role:{id}. 成员关系方向: 用户 -> 组 -> 上级组，用户/组 -> 角色.
+ *
+ * @author <a href="mailto:martinmao@icloud.com">Martin Mao</a>
+ */
+@Component
+public class TenantAclMembershipHooks {
+
+    public static final String USER_PRINCIPAL_PREFIX = "user:";
+
+    public static final String GROUP_PRINCIPAL_PREFIX = "group:";
+
+    public static final String ROLE_PRINCIPAL_PREFIX = "role:";
+
+    private AclManager aclManager;
+
+
+    public void onUserCreated(User user) {
+        createPrincipal(principalOf(user), user.tag());
+    }
+
+    /**
+     * create group principal and connect it to parent group(if present).
+     */
+    @Transactional
+    public void onGroupCreated(Group group) {
+        createPrincipal(principalOf(group), group.getName());
+        if (null != group.getParentGroup())
+            aclManager.createAclPrincipalMember(principalOf(group), principalOf(group.getParentGroup()));
+    }
+
+    public void onRoleCreated(Role role) {
+        createPrincipal(principalOf(role), role.tag());
+    }
+
+    public void onUserJoinedGroup(User user, Group group) {
+        aclManager.createAclPrincipalMember(principalOf(user), principalOf(group));
+    }
+
+    public void onUserLeftGroup(User user, Group group) {
+        aclManager.deleteAclPrincipalMember(principalOf(user), principalOf(group));
+    }
+
+    /**
+     * move group from previous parent to current parent({@link Group#getParentGroup()}). both can be null.
+     */
+    @Transactional
+    public void onGroupParentChanged(Group group, Group previousParent) {
+        if (null != previousParent)
+            aclManager.deleteAclPrincipalMember(principalOf(group), principalOf(previousParent));
+        if (null != group.getParentGroup())
+            aclManager.createAclPrincipalMember(principalOf(group), principalOf(group.getParentGroup()));
+    }
+
+    public void onUserRoleGranted(User user, Role role) {
+        aclManager.createAclPrincipalMember(principalOf(user), principalOf(role));
+    }
+
+    public void onUserRoleRevoked(User user, Role role) {
+        aclManager.deleteAclPrincipalMember(principalOf(user), principalOf(role));
+    }
+
+    public void onGroupRoleGranted(Group group, Role role) {
+        aclManager.createAclPrincipalMember(principalOf(group), principalOf(role));
+    }
+
+    public void onGroupRoleRevoked(Group group, Role role) {
+        aclManager.deleteAclPrincipalMember(principalOf(group), principalOf(role));
+    }
+
+
+    public static AclPrincipalModel principalOf(User user) {
+        Assert.notNull(user.id(), "user id must not be null.");
+        return new AclPrincipalModel(USER_PRINCIPAL_PREFIX + user.id());
+    }
+
+    public static AclPrincipalModel principalOf(Group group) {
+        Assert.notNull(group.getId(), "group id must not be null.");
+        return new AclPrincipalModel(GROUP_PRINCIPAL_PREFIX + group.getId());
+    }
+
+    public static AclPrincipalModel principalOf(Role role) {
+        Assert.notNull(role.getId(), "role id must not be null.");
+        return new AclPrincipalModel(ROLE_PRINCIPAL_PREFIX + role.getId());
+    }
+
+    protected void createPrincipal(AclPrincipalModel principal, String tag) {
+        principal.setTag(null != tag ? tag : principal.getName());
+        aclManager.createAclPrincipal(principal);
+    }
+
+    @Autowired
+    public void setAclManager(AclManager aclManager) {
+        this.aclManager = aclManager;
+    }
+}
@@ -1,16 +1,37 @@
 package org.scleropages.kapuas.security.acl;
 
+import com.google.common.collect.Lists;
+import com.google.common.collect.Maps;
+import com.google.common.collect.Sets;
 import org.junit.AfterClass;
 import org.junit.Assert;
 import org.junit.BeforeClass;
 import org.junit.Test;
 import org.junit.runner.RunWith;
+import org.scleropages.kapuas.security.acl.entity.AclVariableEntity;
+import org.scleropages.kapuas.security.acl.model.AclEntryDiffModel;
+import org.scleropages.kapuas.security.acl.model.AclEntryGrantModel;
+import org.scleropages.kapuas.security.acl.model.AclEntryModel;
+import org.scleropages.kapuas.security.acl.model.AclPrincipalModel;
+import org.scleropages.kapuas.security.acl.model.AclStrategy;
+import org.scleropages.kapuas.security.acl.model.CursorPage;
+import org.scleropages.kapuas.security.acl.model.PermissionModel;
 import org.scleropages.kapuas.security.acl.model.ResourceModel;
+import org.scleropages.kapuas.security.acl.repo.AclVariableEntityRepository;
+import org.scleropages.kapuas.security.acl.snapshot.AclSnapshotFormat;
 import org.springframework.beans.factory.annotation.Autowired;
 import org.springframework.boot.test.context.SpringBootTest;
 import org.springframework.test.context.junit4.SpringJUnit4ClassRunner;
 import org.springframework.transaction.annotation.Transactional;
 
+import java.io.ByteArrayOutputStream;
+import java.nio.ByteBuffer;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.stream.Collectors;
+import java.util.zip.CRC32;
+
 /**
  * @author <a href="mailto:martinmao@icloud.com">Martin Mao</a>
  */
@@ -21,6 +42,9 @@ public class AclManagerTest {
     @Autowired
     private AclManager aclManager;
 
+    @Autowired
+    private AclVariableEntityRepository aclVariableEntityRepository;
+
 
     @BeforeClass
     public static void setup() {
@@ -50,4 +74,355 @@ public class AclManagerTest {
         Assert.assertEquals("martinmao@icloud.com", acl.owners().get(0).id());
         Assert.assertEquals("毛崇", acl.owners().get(0).tag());
     }
-}
\ No newline at end of file
+
+    /**
+     * not transactional: decision cache evicted after write transaction committed.
+     */
+    @Test
+    public void testDecisionCacheInvalidation() {
+        String resourceType = createStrategy("write=修改>read=读取>execute=执行");
+        AclPrincipalModel principal = createPrincipal("cache_user");
+        ResourceModel resource = createResource(resourceType, "cache_resource", principal.getName());
+
+        Assert.assertFalse(aclManager.isAccessible(resource, principal, new PermissionModel("read")));
+        Assert.assertFalse(aclManager.isAccessible(resource, principal, new PermissionModel("read")));//cached
+
+        aclManager.createAclEntry(resource, principal, new PermissionModel("read"));
+        Assert.assertTrue(aclManager.isAccessible(resource, principal, new PermissionModel("read")));
+        Assert.assertTrue(aclManager.isAccessible(resource, principal, new PermissionModel("read")));//cached
+
+        aclManager.deleteAclEntry(resource, principal, new PermissionModel("read"));
+        Assert.assertFalse(aclManager.isAccessible(resource, principal, new PermissionModel("read")));
+    }
+
+
+    /**
+     * higher permission implies lower ones(write>read>execute), lower not implies higher.
+     */
+    @Test
+    @Transactional
+    public void testPermissionMaskHierarchy() {
+        String resourceType = createStrategy("write=修改>read=读取>execute=执行");
+        AclPrincipalModel writer = createPrincipal("mask_writer");
+        AclPrincipalModel reader = createPrincipal("mask_reader");
+        ResourceModel resource = createResource(resourceType, "mask_resource", writer.getName());
+
+        aclManager.createAclEntry(resource, writer, new PermissionModel("write"));
+        aclManager.createAclEntry(resource, reader, new PermissionModel("read"));
+
+        Assert.assertTrue(aclManager.isAccessible(resource, writer, new PermissionModel("write")));
+        Assert.assertTrue(aclManager.isAccessible(resource, writer, new PermissionModel("read")));
+        Assert.assertTrue(aclManager.isAccessible(resource, writer, new PermissionModel("execute")));
+
+        Assert.assertFalse(aclManager.isAccessible(resource, reader, new PermissionModel("write")));
+        Assert.assertTrue(aclManager.isAccessible(resource, reader, new PermissionModel("read")));
+        Assert.assertTrue(aclManager.isAccessible(resource, reader, new PermissionModel("execute")));
+
+        Assert.assertTrue(aclManager.isAccessibleAll(resource, reader, new PermissionModel("read"), new PermissionModel("execute")));
+        Assert.assertFalse(aclManager.isAccessibleAll(resource, reader, new PermissionModel("read"), new PermissionModel("write")));
+        Assert.assertTrue(aclManager.isAccessibleAny(resource, reader, new PermissionModel("write"), new PermissionModel("read")));
+
+        //revoke lower permission not affects implied permissions of higher one.
+        aclManager.deleteAclEntry(resource, reader, new PermissionModel("read"));
+        Assert.assertFalse(aclManager.isAccessible(resource, reader, new PermissionModel("read")));
+        Assert.assertTrue(aclManager.isAccessible(resource, writer, new PermissionModel("read")));
+    }
+
+    /**
+     * walk all pages by continuation token. every row returned once, last page has no next token.
+     */
+    @Test
+    @Transactional
+    public void testKeysetPaging() {
+        String resourceType = createStrategy("write=修改>read=读取>execute=执行");
+        AclPrincipalModel principal = createPrincipal("paging_user");
+        Set<String> resourceIds = Sets.newHashSet();
+        for (int i = 0; i < 5; i++) {
+            ResourceModel resource = createResource(resourceType, "paging_resource_" + i, principal.getName());
+            aclManager.createAclEntry(resource, principal, new PermissionModel("read"));
+            resourceIds.add(resource.getId());
+        }
+        ResourceModel query = new ResourceModel();
+        query.setType(resourceType);
+
+        List<String> acls = Lists.newArrayList();
+        String token = null;
+        int pages = 0;
+        do {
+            CursorPage<Acl> page = aclManager.findAcl(query, token, 2, null);
+            page.getContent().forEach(acl -> acls.add(String.valueOf(acl.resource().id())));
+            token = page.hasNext() ? page.getNext() : null;
+            pages++;
+        } while (null != token);
+        Assert.assertEquals(3, pages);
+        Assert.assertEquals(5, acls.size());
+        Assert.assertEquals(resourceIds, Sets.newHashSet(acls));
+
+        List<String> entries = Lists.newArrayList();
+        token = null;
+        do {
+            CursorPage<AclEntry> page = aclManager.findPrincipalEntries(principal, query, new PermissionModel("read"), token, 2, null);
+            page.getContent().forEach(entry -> entries.add(((AclEntryModel) entry).getResourceId()));
+            token = page.hasNext() ? page.getNext() : null;
+        } while (null != token);
+        Assert.assertEquals(5, entries.size());
+        Assert.assertEquals(resourceIds, Sets.newHashSet(entries));
+    }
+
+    /**
+     * members inherit grants of ancestors(transitive) until disconnected.
+     */
+    @Test
+    @Transactional
+    public void testPrincipalClosure() {
+        String resourceType = createStrategy("write=修改>read=读取>execute=执行");
+        AclPrincipalModel role = createPrincipal("closure_role");
+        AclPrincipalModel group = createPrincipal("closure_group");
+        AclPrincipalModel user = createPrincipal("closure_user");
+        ResourceModel resource = createResource(resourceType, "closure_resource", role.getName());
+        aclManager.createAclEntry(resource, role, new PermissionModel("read"));
+        Assert.assertFalse(aclManager.isAccessible(resource, user, new PermissionModel("read")));
+
+        aclManager.createAclPrincipalMember(group, role);
+        aclManager.createAclPrincipalMember(user, group);
+        Assert.assertEquals(Sets.newHashSet(group.getName(), role.getName()), without(aclManager.findAclPrincipalAncestors(user), user.getName()));
+        Assert.assertTrue(aclManager.isAccessible(resource, group, new PermissionModel("read")));
+        Assert.assertTrue(aclManager.isAccessible(resource, user, new PermissionModel("read")));
+        Assert.assertFalse(aclManager.isAccessible(resource, user, new PermissionModel("write")));
+
+        //disconnect middle link: user no longer reaches role.
+        aclManager.deleteAclPrincipalMember(group, role);
+        Assert.assertEquals(Sets.newHashSet(group.getName()), without(aclManager.findAclPrincipalAncestors(user), user.getName()));
+        Assert.assertFalse(aclManager.isAccessible(resource, group, new PermissionModel("read")));
+        Assert.assertFalse(aclManager.isAccessible(resource, user, new PermissionModel("read")));
+
+        aclManager.deleteAclPrincipalMember(user, group);
+        Assert.assertTrue(without(aclManager.findAclPrincipalAncestors(user), user.getName()).isEmpty());
+    }
+
+    /**
+     * exported snapshot read back by file format: header counts, checksum and (resource id, principal, permission) entries.
+     */
+    @Test
+    @Transactional
+    public void testAclSnapshotRoundTrip() {
+        String resourceType = createStrategy("write=修改>read=读取>execute=执行");
+        AclPrincipalModel reader = createPrincipal("snapshot_reader");
+        AclPrincipalModel writer = createPrincipal("snapshot_writer");
+        ResourceModel first = createResource(resourceType, "snapshot_resource", reader.getName());
+        ResourceModel second = createResource(resourceType, "snapshot_resource", reader.getName());
+        aclManager.createAclEntry(first, reader, new PermissionModel("read"));
+        aclManager.createAclEntry(second, reader, new PermissionModel("read"));
+        aclManager.createAclEntry(second, writer, new PermissionModel("write"));
+
+        ResourceModel query = new ResourceModel();
+        query.setType(resourceType);
+        ByteArrayOutputStream out = new ByteArrayOutputStream();
+        aclManager.exportAclSnapshot(query, out);
+        ByteBuffer buffer = ByteBuffer.wrap(out.toByteArray());
+
+        Assert.assertEquals(AclSnapshotFormat.MAGIC, buffer.getInt(AclSnapshotFormat.OFFSET_MAGIC));
+        Assert.assertEquals(AclSnapshotFormat.FORMAT_VERSION, buffer.getInt(AclSnapshotFormat.OFFSET_FORMAT_VERSION));
+        int permissionCount = buffer.getInt(AclSnapshotFormat.OFFSET_PERMISSION_COUNT);
+        int principalCount = buffer.getInt(AclSnapshotFormat.OFFSET_PRINCIPAL_COUNT);
+        int ancestorCount = buffer.getInt(AclSnapshotFormat.OFFSET_ANCESTOR_COUNT);
+        int entryCount = buffer.getInt(AclSnapshotFormat.OFFSET_ENTRY_COUNT);
+        int charCount = buffer.getInt(AclSnapshotFormat.OFFSET_CHAR_COUNT);
+        Assert.assertEquals(AclSnapshotFormat.fileSize(permissionCount, principalCount, ancestorCount, entryCount, charCount), buffer.capacity());
+        Assert.assertEquals(3, permissionCount);
+        //grants of same (resource, principal) merged as one entry.
+        Assert.assertEquals(3, entryCount);
+
+        int trailerOffset = buffer.capacity() - AclSnapshotFormat.TRAILER_SIZE;
+        CRC32 crc32 = new CRC32();
+        crc32.update(buffer.array(), 0, trailerOffset);
+        Assert.assertEquals(crc32.getValue(), buffer.getLong(trailerOffset));
+
+        int principalsOffset = AclSnapshotFormat.HEADER_SIZE + permissionCount * AclSnapshotFormat.PERMISSION_RECORD_SIZE;
+        int entriesOffset = principalsOffset + principalCount * AclSnapshotFormat.PRINCIPAL_RECORD_SIZE + ancestorCount * AclSnapshotFormat.ANCESTOR_RECORD_SIZE;
+        int charsOffset = entriesOffset + entryCount * AclSnapshotFormat.ENTRY_RECORD_SIZE;
+        Assert.assertEquals(resourceType, snapshotString(buffer, charsOffset, AclSnapshotFormat.OFFSET_RESOURCE_TYPE));
+
+        Map<String, Long> permissionMasks = Maps.newHashMap();
+        for (int i = 0; i < permissionCount; i++) {
+            int record = AclSnapshotFormat.HEADER_SIZE + i * AclSnapshotFormat.PERMISSION_RECORD_SIZE;
+            permissionMasks.put(snapshotString(buffer, charsOffset, record), buffer.getLong(record + 8));
+        }
+        Map<String, Long> entryMasks = Maps.newHashMap();
+        for (int i = 0; i < entryCount; i++) {
+            int record = entriesOffset + i * AclSnapshotFormat.ENTRY_RECORD_SIZE;
+            String principal = snapshotString(buffer, charsOffset, principalsOffset + buffer.getInt(record + 8) * AclSnapshotFormat.PRINCIPAL_RECORD_SIZE);
+            entryMasks.put(snapshotString(buffer, charsOffset, record) + "/" + principal, buffer.getLong(record + 24));
+        }
+        Assert.assertEquals(Sets.newHashSet(first.getId() + "/" + reader.getName(), second.getId() + "/" + reader.getName(), second.getId() + "/" + writer.getName()), entryMasks.keySet());
+        long readerMask = entryMasks.get(first.getId() + "/" + reader.getName());
+        Assert.assertNotEquals(0, readerMask & permissionMasks.get("read"));
+        Assert.assertEquals(0, readerMask & permissionMasks.get("write"));
+        long writerMask = entryMasks.get(second.getId() + "/" + writer.getName());
+        Assert.assertNotEquals(0, writerMask & permissionMasks.get("write"));
+        Assert.assertNotEquals(0, writerMask & permissionMasks.get("read"));
+    }
+
+    /**
+     * only changed tuples revoked/granted. reconcile again with same desired state is a no-op.
+     */
+    @Test
+    @Transactional
+    public void testReconcileEntries() {
+        String resourceType = createStrategy("write=修改>read=读取>execute=执行");
+        AclPrincipalModel upgraded = createPrincipal("reconcile_upgraded");
+        AclPrincipalModel removed = createPrincipal("reconcile_removed");
+        AclPrincipalModel added = createPrincipal("reconcile_added");
+        ResourceModel resource = createResource(resourceType, "reconcile_resource", upgraded.getName());
+        aclManager.createAclEntry(resource, upgraded, new PermissionModel("read"));
+        aclManager.createAclEntry(resource, removed, new PermissionModel("write"));
+
+        Map<String, Set<String>> desired = Maps.newHashMap();
+        desired.put(upgraded.getName(), Sets.newHashSet("write", "read"));
+        desired.put(added.getName(), Sets.newHashSet("read"));
+        AclEntryDiffModel diff = aclManager.reconcileEntries(resource, desired);
+
+        Assert.assertEquals(Sets.newHashSet(upgraded.getName(), added.getName()), diff.getGranted().stream().map(AclEntryGrantModel::getPrincipal).collect(Collectors.toSet()));
+        //desired write,read merged as write. lower read replaced.
+        Assert.assertEquals(Sets.newHashSet(upgraded.getName(), removed.getName()), diff.getRevoked().stream().map(AclEntryGrantModel::getPrincipal).collect(Collectors.toSet()));
+        diff.getGranted().stream().filter(grant -> grant.getPrincipal().equals(upgraded.getName()))
+                .forEach(grant -> Assert.assertArrayEquals(new String[]{"write"}, grant.getPermission()));
+        diff.getRevoked().stream().filter(revoke -> revoke.getPrincipal().equals(upgraded.getName()))
+                .forEach(revoke -> Assert.assertArrayEquals(new String[]{"read"}, revoke.getPermission()));
+
+        Assert.assertTrue(aclManager.isAccessible(resource, upgraded, new PermissionModel("write")));
+        Assert.assertTrue(aclManager.isAccessible(resource, upgraded, new PermissionModel("read")));
+        Assert.assertTrue(aclManager.isAccessible(resource, added, new PermissionModel("read")));
+        Assert.assertFalse(aclManager.isAccessible(resource, added, new PermissionModel("write")));
+        Assert.assertFalse(aclManager.isAccessible(resource, removed, new PermissionModel("read")));
+
+        diff = aclManager.reconcileEntries(resource, desired);
+        Assert.assertTrue(diff.getGranted().isEmpty());
+        Assert.assertTrue(diff.getRevoked().isEmpty());
+    }
+
+    @Test
+    @Transactional
+    public void testBatchAccessible() {
+        String resourceType = createStrategy("write=修改>read=读取>execute=执行");
+        AclPrincipalModel principal = createPrincipal("batch_user");
+        ResourceModel granted = createResource(resourceType, "batch_granted", principal.getName());
+        ResourceModel notGranted = createResource(resourceType, "batch_not_granted", principal.getName());
+        aclManager.createAclEntry(granted, principal, new PermissionModel("read"));
+
+        ResourceModel query = new ResourceModel();
+        query.setType(resourceType);
+        String unknown = "batch_unknown_" + System.nanoTime();
+        Map<String, Boolean> accessible = aclManager.isAccessible(query, principal, new PermissionModel("read"), Lists.newArrayList(granted.getId(), notGranted.getId(), unknown));
+        Assert.assertEquals(Lists.newArrayList(granted.getId(), notGranted.getId(), unknown), Lists.newArrayList(accessible.keySet()));
+        Assert.assertTrue(accessible.get(granted.getId()));
+        Assert.assertFalse(accessible.get(notGranted.getId()));
+        Assert.assertFalse(accessible.get(unknown));
+        Assert.assertFalse(aclManager.isAccessible(query, principal, new PermissionModel("write"), Lists.newArrayList(granted.getId())).get(granted.getId()));
+    }
+
+    /**
+     * only changed variables written: unchanged kept(same row), changed updated in place, null removed, new inserted.
+     * not transactional: variables written by jooq, read back without stale persistence context.
+     */
+    @Test
+    public void testPatchAclVariables() {
+        String resourceType = createStrategy("write=修改>read=读取>execute=执行");
+        AclPrincipalModel owner = createPrincipal("variable_owner");
+        ResourceModel resource = new ResourceModel();
+        resource.setType(resourceType);
+        resource.setId("variable_resource_" + System.nanoTime());
+        resource.setTag("/acl/test/" + resource.getId());
+        resource.setOwner(owner.getName());
+        Map<String, Object> variables = Maps.newHashMap();
+        variables.put("path", "/docs/a.pdf");
+        variables.put("size", 1);
+        variables.put("order", 0.5);
+        resource.setVariables(variables);
+        aclManager.createAcl(resource);
+        Map<String, AclVariableEntity> created = storedVariables(resource);
+        Assert.assertEquals(Sets.newHashSet("path", "size", "order"), created.keySet());
+
+        ResourceModel patch = new ResourceModel();
+        patch.setType(resourceType);
+        patch.setId(resource.getId());
+        Map<String, Object> changes = Maps.newHashMap();
+        changes.put("path", "/docs/a.pdf");
+        changes.put("size", 2);
+        changes.put("order", null);
+        changes.put("owner_dept", "rd");
+        patch.setVariables(changes);
+        aclManager.patchAclVariables(patch);
+
+        Map<String, AclVariableEntity> patched = storedVariables(resource);
+        Assert.assertEquals(Sets.newHashSet("path", "size", "owner_dept"), patched.keySet());
+        Assert.assertEquals(created.get("path").getId(), patched.get("path").getId());
+        Assert.assertEquals("/docs/a.pdf", patched.get("path").getValue());
+        Assert.assertEquals(created.get("size").getId(), patched.get("size").getId());
+        Assert.assertEquals(2L, patched.get("size").getValue());
+        Assert.assertEquals("rd", patched.get("owner_dept").getValue());
+
+        //update replaces variables: stored variables not given removed, unchanged kept.
+        ResourceModel update = new ResourceModel();
+        update.setType(resourceType);
+        update.setId(resource.getId());
+        Map<String, Object> replaced = Maps.newHashMap();
+        replaced.put("path", "/docs/a.pdf");
+        update.setVariables(replaced);
+        aclManager.updateAcl(update);
+        Map<String, AclVariableEntity> updated = storedVariables(resource);
+        Assert.assertEquals(Sets.newHashSet("path"), updated.keySet());
+        Assert.assertEquals(created.get("path").getId(), updated.get("path").getId());
+    }
+
+    private String createStrategy(String expression) {
+        String resourceType = "acl_test_" + System.nanoTime();
+        AclStrategy strategy = new AclStrategy();
+        strategy.setResource(resourceType);
+        strategy.setExpression(expression);
+        aclManager.createAclStrategy(strategy);
+        return resourceType;
+    }
+
+    private AclPrincipalModel createPrincipal(String prefix) {
+        AclPrincipalModel principal = new AclPrincipalModel(prefix + "_" + System.nanoTime());
+        principal.setTag(prefix);
+        aclManager.createAclPrincipal(principal);
+        return principal;
+    }
+
+    private ResourceModel createResource(String resourceType, String prefix, String owner) {
+        ResourceModel resource = new ResourceModel();
+        resource.setType(resourceType);
+        resource.setId(prefix + "_" + System.nanoTime());
+        resource.setTag("/acl/test/" + resource.getId());
+        resource.setOwner(owner);
+        aclManager.createAcl(resource);
+        return resource;
+    }
+
+    private Map<String, AclVariableEntity> storedVariables(ResourceModel resource) {
+        Long aclId = (Long) aclManager.getAcl(resource).id();
+        return aclVariableEntityRepository.findAllByAclIdAndResourceTypeId(aclId, resource.getTypeId()).stream()
+                .collect(Collectors.toMap(AclVariableEntity::getName, variable -> variable));
+    }
+
+    private Set<String> without(Set<String> principals, String principal) {
+        Set<String> result = Sets.newHashSet(principals);
+        result.remove(principal);
+        return result;
+    }
+
+    /**
+     * read string of snapshot char pool referenced by (offset, length) at given record position.
+     */
+    private String snapshotString(ByteBuffer buffer, int charsOffset, int record) {
+        int offset = buffer.getInt(record);
+        int length = buffer.getInt(record + 4);
+        char[] chars = new char[length];
+        for (int i = 0; i < length; i++) {
+            chars[i] = buffer.getChar(charsOffset + (offset + i) * 2);
+        }
+        return new String(chars);
+    }
+}
@@ -0,0 +1,194 @@
+/**
+ * Copyright 2001-2005 The Apache Software Foundation.
+ * <p>
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ * <p>
+ * http://www.apache.org/licenses/LICENSE-2.0
+ * <p>
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.scleropages.kapuas.security.acl.mgmt;
+
+import com.google.common.collect.Lists;
+import org.junit.Assert;
+import org.junit.Test;
+import org.junit.runner.RunWith;
+import org.scleropages.kapuas.security.acl.entity.AclChangeEntity;
+import org.scleropages.kapuas.security.acl.model.AclChange;
+import org.scleropages.kapuas.security.acl.repo.AclChangeEntityRepository;
+import org.scleropages.kapuas.security.acl.repo.AclChangeHeadEntityRepository;
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.boot.test.context.SpringBootTest;
+import org.springframework.test.context.junit4.SpringJUnit4ClassRunner;
+import org.springframework.transaction.PlatformTransactionManager;
+import org.springframework.transaction.support.TransactionTemplate;
+
+import java.util.Date;
+import java.util.List;
+import java.util.UUID;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * @author <a href="mailto:martinmao@icloud.com">Martin Mao</a>
+ */
+@RunWith(SpringJUnit4ClassRunner.class)
+@SpringBootTest
+public class AclChangeFeedTest {
+
+    @Autowired
+    private AclChangeFeed aclChangeFeed;
+
+    @Autowired
+    private AclChangeEntityRepository aclChangeEntityRepository;
+
+    @Autowired
+    private AclChangeHeadEntityRepository aclChangeHeadEntityRepository;
+
+    @Autowired
+    private PlatformTransactionManager transactionManager;
+
+    @Test
+    public void testRollbackLeavesNoGap() {
+        long after = appendCommitted(change("init"));
+
+        TransactionTemplate transactionTemplate = new TransactionTemplate(transactionManager);
+        transactionTemplate.execute(status -> {
+            aclChangeFeed.append(change("rollback-1"), change("rollback-2"));
+            status.setRollbackOnly();
+            return null;
+        });
+        AclChange committed = change("committed");
+        appendCommitted(committed);
+
+        List<AclChange> changes = aclChangeFeed.read(after, 10);
+        Assert.assertEquals(1, changes.size());
+        Assert.assertEquals(after + 1, changes.get(0).getSeq().longValue());
+        Assert.assertEquals(committed.getResourceId(), changes.get(0).getResourceId());
+    }
+
+    @Test
+    public void testAppendOrderInTransaction() {
+        long after = appendCommitted(change("init"));
+        AclChange first = change("first");
+        AclChange second = change("second");
+        AclChange third = change("third");
+        new TransactionTemplate(transactionManager).execute(status -> {
+            aclChangeFeed.append(first);
+            aclChangeFeed.append(second, third);
+            //not written before commit.
+            Assert.assertTrue(aclChangeFeed.read(after, 10).isEmpty());
+            return null;
+        });
+        List<AclChange> changes = aclChangeFeed.read(after, 10);
+        Assert.assertEquals(3, changes.size());
+        Assert.assertEquals(first.getResourceId(), changes.get(0).getResourceId());
+        Assert.assertEquals(second.getResourceId(), changes.get(1).getResourceId());
+        Assert.assertEquals(third.getResourceId(), changes.get(2).getResourceId());
+        Assert.assertEquals(after + 3, changes.get(2).getSeq().longValue());
+    }
+
+    @Test
+    public void testBulkAppendInChunks() {
+        long after = appendCommitted(change("init"));
+        List<AclChange> bulk = Lists.newArrayList();
+        for (int i = 0; i < 1201; i++) {
+            bulk.add(change("bulk-" + i));
+        }
+        new TransactionTemplate(transactionManager).execute(status -> {
+            aclChangeFeed.append(bulk);
+            return null;
+        });
+        List<AclChange> changes = aclChangeFeed.read(after, 2000);
+        Assert.assertEquals(bulk.size(), changes.size());
+        for (int i = 0; i < bulk.size(); i++) {
+            Assert.assertEquals(after + i + 1, changes.get(i).getSeq().longValue());
+            Assert.assertEquals(bulk.get(i).getResourceId(), changes.get(i).getResourceId());
+        }
+    }
+
+    @Test
+    public void testReadStopsAtRecentGap() {
+        //reserve 3 sequences, only last one written: gap at middle one.
+        long last = advance(3);
+        insert(last, new Date());
+        Assert.assertTrue(aclChangeFeed.read(last - 2, 10).isEmpty());
+        Assert.assertEquals(1, aclChangeFeed.read(last - 1, 10).size());
+    }
+
+    @Test
+    public void testReadSkipsTimeoutGap() {
+        long last = advance(3);
+        insert(last, new Date(System.currentTimeMillis() - TimeUnit.MINUTES.toMillis(10)));
+        List<AclChange> changes = aclChangeFeed.read(last - 2, 10);
+        Assert.assertEquals(1, changes.size());
+        Assert.assertEquals(last, changes.get(0).getSeq().longValue());
+    }
+
+    @Test
+    public void testLongPollCompletedByCommit() throws Exception {
+        long after = appendCommitted(change("init"));
+        CompletableFuture<List<AclChange>> future = aclChangeFeed.pollAsync(after, 10, 10000);
+        Assert.assertFalse(future.isDone());
+        AclChange committed = change("committed");
+        appendCommitted(committed);
+        List<AclChange> changes = future.get(5, TimeUnit.SECONDS);
+        Assert.assertEquals(1, changes.size());
+        Assert.assertEquals(committed.getResourceId(), changes.get(0).getResourceId());
+    }
+
+    @Test
+    public void testLongPollTimeout() throws Exception {
+        long after = appendCommitted(change("init"));
+        long start = System.currentTimeMillis();
+        List<AclChange> changes = aclChangeFeed.pollAsync(after, 10, 500).get(5, TimeUnit.SECONDS);
+        Assert.assertTrue(changes.isEmpty());
+        Assert.assertTrue(System.currentTimeMillis() - start >= 500);
+        Assert.assertTrue(aclChangeFeed.pollAsync(after, 10, 0).isDone());
+    }
+
+    @Test
+    public void testPurge() {
+        long seq = appendCommitted(change("purged"));
+        Assert.assertTrue(aclChangeFeed.purge(new Date(System.currentTimeMillis() + 1000)) > 0);
+        Assert.assertTrue(aclChangeFeed.read(seq - 1, 10).isEmpty());
+        Assert.assertEquals(0, aclChangeEntityRepository.getMaxIdCreatedBefore(new Date(System.currentTimeMillis() + 1000)));
+        //positions continue after purge.
+        Assert.assertEquals(seq + 1, appendCommitted(change("after-purge")));
+    }
+
+    /**
+     * append given change in a committed transaction, return its sequence.
+     */
+    private long appendCommitted(AclChange change) {
+        new TransactionTemplate(transactionManager).execute(status -> {
+            aclChangeFeed.append(change);
+            return null;
+        });
+        return aclChangeEntityRepository.getMaxId();
+    }
+
+    private long advance(int count) {
+        return new TransactionTemplate(transactionManager).execute(status -> aclChangeHeadEntityRepository.advance(count));
+    }
+
+    private void insert(long seq, Date createTime) {
+        AclChangeEntity entity = new AclChangeEntity();
+        entity.setId(seq);
+        entity.setChangeType(AclChange.Type.ACL_UPDATED.name());
+        entity.setResourceType("change_feed_test");
+        entity.setResourceId(UUID.randomUUID().toString());
+        entity.setCreateTime(createTime);
+        aclChangeEntityRepository.insertAll(Lists.newArrayList(entity), 1);
+    }
+
+    private AclChange change(String prefix) {
+        return new AclChange(AclChange.Type.ACL_UPDATED, "change_feed_test", prefix + "-" + UUID.randomUUID().toString(), null);
+    }
+}
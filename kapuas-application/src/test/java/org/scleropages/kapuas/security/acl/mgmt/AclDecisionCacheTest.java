@@ -0,0 +1,72 @@
+/**
+ * Copyright 2001-2005 The Apache Software Foundation.
+ * <p>
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ * <p>
+ * http://www.apache.org/licenses/LICENSE-2.0
+ * <p>
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.scleropages.kapuas.security.acl.mgmt;
+
+import com.google.common.collect.Lists;
+import org.junit.Assert;
+import org.junit.Before;
+import org.junit.Test;
+import org.springframework.test.util.ReflectionTestUtils;
+
+/**
+ * invalidation marks evicted by size of {@link AclDecisionCache}.
+ *
+ * @author <a href="mailto:martinmao@icloud.com">Martin Mao</a>
+ */
+public class AclDecisionCacheTest {
+
+    private AclDecisionCache decisionCache;
+
+    @Before
+    public void setup() throws Exception {
+        decisionCache = new AclDecisionCache();
+        ReflectionTestUtils.setField(decisionCache, "enabled", true);
+        ReflectionTestUtils.setField(decisionCache, "maximumSize", 1000L);
+        ReflectionTestUtils.setField(decisionCache, "maximumInvalidations", 4L);
+        ReflectionTestUtils.setField(decisionCache, "expireAfterWriteInSeconds", 600L);
+        decisionCache.afterPropertiesSet();
+    }
+
+    @Test
+    public void testResourceMarkEvicted() {
+        decisionCache.put("document", "d1", "martin", "read", true, decisionCache.version());
+        decisionCache.put("folder", "f1", "martin", "read", true, decisionCache.version());
+        decisionCache.evictResource("document", "d1");
+        for (int i = 2; i < 100; i++) {
+            decisionCache.evictResource("document", "d" + i);
+        }
+        //mark of d1 evicted: resource type level mark raised.
+        Assert.assertNull(decisionCache.get("document", "d1", "martin", "read"));
+        //other resource types not affected.
+        Assert.assertEquals(Boolean.TRUE, decisionCache.get("folder", "f1", "martin", "read"));
+        //decisions loaded after eviction cached.
+        decisionCache.put("document", "d1", "martin", "read", false, decisionCache.version());
+        Assert.assertEquals(Boolean.FALSE, decisionCache.get("document", "d1", "martin", "read"));
+    }
+
+    @Test
+    public void testPrincipalMarkEvicted() {
+        decisionCache.put("document", "d1", "martin", "read", true, decisionCache.version());
+        decisionCache.evictPrincipals(Lists.newArrayList("martin"));
+        for (int i = 0; i < 100; i++) {
+            decisionCache.evictPrincipals(Lists.newArrayList("user" + i));
+        }
+        //principal mark has no resource type: all decisions invalidated.
+        Assert.assertNull(decisionCache.get("document", "d1", "martin", "read"));
+        decisionCache.put("document", "d1", "martin", "read", true, decisionCache.version());
+        Assert.assertEquals(Boolean.TRUE, decisionCache.get("document", "d1", "martin", "read"));
+    }
+}
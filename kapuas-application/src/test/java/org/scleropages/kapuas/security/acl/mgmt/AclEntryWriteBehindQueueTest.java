@@ -0,0 +1,128 @@
+/**
+ * Copyright 2001-2005 The Apache Software Foundation.
+ * <p>
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ * <p>
+ * http://www.apache.org/licenses/LICENSE-2.0
+ * <p>
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.scleropages.kapuas.security.acl.mgmt;
+
+import com.google.common.collect.Lists;
+import org.junit.Assert;
+import org.junit.Test;
+import org.junit.runner.RunWith;
+import org.scleropages.kapuas.security.acl.AclManager;
+import org.scleropages.kapuas.security.acl.model.AclEntryGrantModel;
+import org.scleropages.kapuas.security.acl.model.AclPrincipalModel;
+import org.scleropages.kapuas.security.acl.model.AclStrategy;
+import org.scleropages.kapuas.security.acl.model.PermissionModel;
+import org.scleropages.kapuas.security.acl.model.ResourceModel;
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.boot.test.context.SpringBootTest;
+import org.springframework.test.context.junit4.SpringJUnit4ClassRunner;
+
+/**
+ * not transactional: write-behind mutations applied in flusher transactions.
+ *
+ * @author <a href="mailto:martinmao@icloud.com">Martin Mao</a>
+ */
+@RunWith(SpringJUnit4ClassRunner.class)
+@SpringBootTest(properties = "security.acl.write_behind.enabled=true")
+public class AclEntryWriteBehindQueueTest {
+
+    @Autowired
+    private AclManager aclManager;
+
+    @Autowired
+    private AclEntryWriteBehindQueue aclEntryWriteBehindQueue;
+
+    @Test
+    public void testWriteBehindFlush() {
+        Assert.assertTrue(aclEntryWriteBehindQueue.isEnabled());
+        String resourceType = createStrategy("write=修改>read=读取>execute=执行");
+        AclPrincipalModel principal = createPrincipal("write_behind_user");
+        ResourceModel resource = createResource(resourceType, "write_behind_resource", principal.getName());
+        AclEntryGrantModel grant = new AclEntryGrantModel(resourceType, resource.getId(), principal.getName(), "read");
+
+        //grant then revoke then grant again coalesced as one grant.
+        aclEntryWriteBehindQueue.grant(grant);
+        aclEntryWriteBehindQueue.revoke(grant);
+        aclEntryWriteBehindQueue.grant(grant);
+        aclEntryWriteBehindQueue.flush();
+        Assert.assertEquals(0, aclEntryWriteBehindQueue.pending());
+        Assert.assertTrue(aclManager.isAccessible(resource, principal, new PermissionModel("read")));
+
+        aclEntryWriteBehindQueue.revoke(grant);
+        aclEntryWriteBehindQueue.flush();
+        Assert.assertFalse(aclManager.isAccessible(resource, principal, new PermissionModel("read")));
+
+        //unknown principal moved to dead letters and reported by flush.
+        int deadLetters = aclEntryWriteBehindQueue.deadLetters().size();
+        aclEntryWriteBehindQueue.grant(new AclEntryGrantModel(resourceType, resource.getId(), "write_behind_unknown_" + System.nanoTime(), "read"));
+        try {
+            aclEntryWriteBehindQueue.flush();
+            Assert.fail("flush must report failed mutations.");
+        } catch (IllegalStateException e) {
+            Assert.assertEquals(deadLetters + 1, aclEntryWriteBehindQueue.deadLetters().size());
+        }
+    }
+
+    /**
+     * revoke enqueued after grant of same (resource, principal) must not be applied before it.
+     */
+    @Test
+    public void testRevokeAfterGrantOrdered() {
+        String resourceType = createStrategy("write=修改>read=读取>execute=执行");
+        AclPrincipalModel principal = createPrincipal("write_behind_order_user");
+        ResourceModel queued = createResource(resourceType, "write_behind_queued", principal.getName());
+        ResourceModel sequential = createResource(resourceType, "write_behind_sequential", principal.getName());
+        aclManager.createAclEntries(Lists.newArrayList(new AclEntryGrantModel(resourceType, queued.getId(), principal.getName(), "write"),
+                new AclEntryGrantModel(resourceType, sequential.getId(), principal.getName(), "write")));
+
+        aclEntryWriteBehindQueue.grant(new AclEntryGrantModel(resourceType, queued.getId(), principal.getName(), "read"));
+        aclEntryWriteBehindQueue.revoke(new AclEntryGrantModel(resourceType, queued.getId(), principal.getName(), "write"));
+        aclEntryWriteBehindQueue.flush();
+
+        aclManager.createAclEntries(Lists.newArrayList(new AclEntryGrantModel(resourceType, sequential.getId(), principal.getName(), "read")));
+        aclManager.deleteAclEntries(Lists.newArrayList(new AclEntryGrantModel(resourceType, sequential.getId(), principal.getName(), "write")));
+
+        for (String permission : new String[]{"write", "read", "execute"}) {
+            Assert.assertEquals(permission, aclManager.isAccessible(sequential, principal, new PermissionModel(permission)),
+                    aclManager.isAccessible(queued, principal, new PermissionModel(permission)));
+        }
+    }
+
+    private String createStrategy(String expression) {
+        String resourceType = "acl_test_" + System.nanoTime();
+        AclStrategy strategy = new AclStrategy();
+        strategy.setResource(resourceType);
+        strategy.setExpression(expression);
+        aclManager.createAclStrategy(strategy);
+        return resourceType;
+    }
+
+    private AclPrincipalModel createPrincipal(String prefix) {
+        AclPrincipalModel principal = new AclPrincipalModel(prefix + "_" + System.nanoTime());
+        principal.setTag(prefix);
+        aclManager.createAclPrincipal(principal);
+        return principal;
+    }
+
+    private ResourceModel createResource(String resourceType, String prefix, String owner) {
+        ResourceModel resource = new ResourceModel();
+        resource.setType(resourceType);
+        resource.setId(prefix + "_" + System.nanoTime());
+        resource.setTag("/acl/test/" + resource.getId());
+        resource.setOwner(owner);
+        aclManager.createAcl(resource);
+        return resource;
+    }
+}
@@ -0,0 +1,202 @@
+/**
+ * Copyright 2001-2005 The Apache Software Foundation.
+ * <p>
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ * <p>
+ * http://www.apache.org/licenses/LICENSE-2.0
+ * <p>
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.scleropages.kapuas.security.acl.repo;
+
+import com.google.common.collect.Maps;
+import com.google.common.collect.Sets;
+import org.jooq.Field;
+import org.jooq.Record;
+import org.jooq.SelectQuery;
+import org.jooq.Table;
+import org.junit.Assert;
+import org.junit.Test;
+import org.junit.runner.RunWith;
+import org.scleropages.crud.dao.orm.SearchFilter;
+import org.scleropages.kapuas.security.acl.AclManager;
+import org.scleropages.kapuas.security.acl.entity.AbstractAclEntity;
+import org.scleropages.kapuas.security.acl.model.AclPrincipalModel;
+import org.scleropages.kapuas.security.acl.model.AclStrategy;
+import org.scleropages.kapuas.security.acl.model.ResourceModel;
+import org.scleropages.kapuas.security.acl.repo.AbstractAclEntityRepository.VariableConditionsAssembler;
+import org.scleropages.kapuas.security.acl.repo.AbstractAclEntityRepository.VariableQueryStrategy;
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.boot.test.context.SpringBootTest;
+import org.springframework.data.domain.Pageable;
+import org.springframework.test.context.junit4.SpringJUnit4ClassRunner;
+
+import java.util.Map;
+import java.util.Set;
+
+/**
+ * EXISTS and GROUP_BY variable conditions must match the same acls as JOIN.
+ * not transactional: acls created by manager committed before queried by jooq.
+ *
+ * @author <a href="mailto:martinmao@icloud.com">Martin Mao</a>
+ */
+@RunWith(SpringJUnit4ClassRunner.class)
+@SpringBootTest
+public class VariableConditionsAssemblerTest {
+
+    @Autowired
+    private AclManager aclManager;
+
+    @Autowired
+    private AclEntityRepository aclEntityRepository;
+
+    @Test
+    public void testExistsConditions() {
+        Fixture fixture = new Fixture();
+
+        //range on same variable twice, mixed with other operators.
+        Map<String, Object> params = Maps.newHashMap();
+        params.put("GTE_level", 2);
+        params.put("LT_level", 3);
+        params.put("GT_score", 1.0);
+        params.put("EQ_dept", "rd");
+        assertSameAsJoin(fixture, params, VariableQueryStrategy.EXISTS, fixture.aclIds("r2", "r6"));
+
+        params = Maps.newHashMap();
+        params.put("GTE_level", 1);
+        params.put("LTE_level", 3);
+        params.put("EQ_dept", "rd");
+        assertSameAsJoin(fixture, params, VariableQueryStrategy.EXISTS, fixture.aclIds("r1", "r2", "r4", "r6"));
+
+        //r5 has no score: absent variable never matches.
+        params = Maps.newHashMap();
+        params.put("EQ_dept", "ops");
+        params.put("GTE_score", 0.0);
+        params.put("EQ_level", 2);
+        assertSameAsJoin(fixture, params, VariableQueryStrategy.EXISTS, fixture.aclIds());
+    }
+
+    @Test
+    public void testGroupByConditions() {
+        Fixture fixture = new Fixture();
+
+        //two conditions on same variable merged into one match condition.
+        Map<String, Object> params = Maps.newHashMap();
+        params.put("EQ_dept", "rd");
+        params.put("IN_level", "2,3");
+        params.put("EQ_level", 2);
+        assertSameAsJoin(fixture, params, VariableQueryStrategy.GROUP_BY, fixture.aclIds("r2", "r6"));
+
+        params = Maps.newHashMap();
+        params.put("IN_dept", "rd,qa");
+        params.put("EQ_level", 2);
+        params.put("EQ_score", 2.5);
+        assertSameAsJoin(fixture, params, VariableQueryStrategy.GROUP_BY, fixture.aclIds("r3"));
+
+        //same variable with conflicting values: nothing matched.
+        params = Maps.newHashMap();
+        params.put("EQ_dept", "rd");
+        params.put("IN_dept", "qa,ops");
+        params.put("EQ_level", 2);
+        assertSameAsJoin(fixture, params, VariableQueryStrategy.GROUP_BY, fixture.aclIds());
+
+        //r5 has no score: count of matched names less than required.
+        params = Maps.newHashMap();
+        params.put("EQ_dept", "ops");
+        params.put("EQ_level", 2);
+        params.put("IN_score", "1.5,2.5");
+        assertSameAsJoin(fixture, params, VariableQueryStrategy.GROUP_BY, fixture.aclIds());
+    }
+
+    private void assertSameAsJoin(Fixture fixture, Map<String, Object> params, VariableQueryStrategy strategy, Set<Long> expected) {
+        Set<Long> joined = findAclIds(fixture.resourceTypeId, params, VariableQueryStrategy.JOIN);
+        Assert.assertEquals(expected, joined);
+        Assert.assertEquals(joined, findAclIds(fixture.resourceTypeId, params, strategy));
+    }
+
+    private Set<Long> findAclIds(Long resourceTypeId, Map<String, Object> params, VariableQueryStrategy strategy) {
+        Map<String, SearchFilter> variablesSearchFilters = SearchFilter.SearchFilterBuilder.build(params);
+        Table actualAclTable = aclEntityRepository.dslTable();
+        SelectQuery<Record> query = aclEntityRepository.dslContext().selectDistinct(actualAclTable.fields()).from(actualAclTable).getQuery();
+        query.addConditions(actualAclTable.field(AbstractAclEntity.RESOURCE_TYPE_ID_COLUMN.toUpperCase()).eq(resourceTypeId));
+        switch (strategy) {
+            case EXISTS:
+                VariableConditionsAssembler.applyExistsConditions(query, variablesSearchFilters, actualAclTable, resourceTypeId);
+                break;
+            case GROUP_BY:
+                VariableConditionsAssembler.applyGroupByConditions(query, variablesSearchFilters, actualAclTable, resourceTypeId);
+                break;
+            default:
+                VariableConditionsAssembler.applyJoinConditions(query, Pageable.unpaged(), variablesSearchFilters, actualAclTable, resourceTypeId);
+        }
+        Field<Long> idField = actualAclTable.field(AbstractAclEntity.ID_COLUMN.toUpperCase());
+        return Sets.newHashSet(query.fetch(idField));
+    }
+
+    /**
+     * one resource type per test with acls:
+     * <pre>
+     * r1: dept=rd,  level=1, score=0.5
+     * r2: dept=rd,  level=2, score=1.5
+     * r3: dept=qa,  level=2, score=2.5
+     * r4: dept=rd,  level=3, score=3.5
+     * r5: dept=ops, level=2
+     * r6: dept=rd,  level=2, score=2.0
+     * </pre>
+     */
+    private class Fixture {
+
+        private final Map<String, Long> aclIds = Maps.newHashMap();
+
+        private final Long resourceTypeId;
+
+        private Fixture() {
+            String resourceType = "variable_conditions_" + System.nanoTime();
+            AclStrategy strategy = new AclStrategy();
+            strategy.setResource(resourceType);
+            strategy.setExpression("write=修改>read=读取>execute=执行");
+            aclManager.createAclStrategy(strategy);
+            AclPrincipalModel owner = new AclPrincipalModel("variable_conditions_owner_" + System.nanoTime());
+            owner.setTag("variable_conditions_owner");
+            aclManager.createAclPrincipal(owner);
+
+            create(resourceType, owner, "r1", "rd", 1, 0.5);
+            create(resourceType, owner, "r2", "rd", 2, 1.5);
+            create(resourceType, owner, "r3", "qa", 2, 2.5);
+            create(resourceType, owner, "r4", "rd", 3, 3.5);
+            create(resourceType, owner, "r5", "ops", 2, null);
+            resourceTypeId = create(resourceType, owner, "r6", "rd", 2, 2.0);
+        }
+
+        private Long create(String resourceType, AclPrincipalModel owner, String name, String dept, int level, Double score) {
+            ResourceModel resource = new ResourceModel();
+            resource.setType(resourceType);
+            resource.setId(name + "_" + System.nanoTime());
+            resource.setTag("/acl/test/" + resource.getId());
+            resource.setOwner(owner.getName());
+            Map<String, Object> variables = Maps.newHashMap();
+            variables.put("dept", dept);
+            variables.put("level", level);
+            if (null != score)
+                variables.put("score", score);
+            resource.setVariables(variables);
+            aclManager.createAcl(resource);
+            aclIds.put(name, (Long) aclManager.getAcl(resource).id());
+            return resource.getTypeId();
+        }
+
+        private Set<Long> aclIds(String... names) {
+            Set<Long> ids = Sets.newHashSet();
+            for (String name : names) {
+                ids.add(aclIds.get(name));
+            }
+            return ids;
+        }
+    }
+}
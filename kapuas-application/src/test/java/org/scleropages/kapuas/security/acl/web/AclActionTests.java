@@ -16,14 +16,21 @@
 package org.scleropages.kapuas.security.acl.web;
 
 import com.google.common.collect.Maps;
+import com.google.common.collect.Sets;
+import org.junit.Assert;
 import org.junit.FixMethodOrder;
 import org.junit.Test;
 import org.junit.runner.RunWith;
 import org.junit.runners.MethodSorters;
 import org.scleropages.core.mapper.JsonMapper;
 import org.scleropages.core.mapper.JsonMapper2;
+import org.scleropages.kapuas.security.acl.AclManager;
+import org.scleropages.kapuas.security.acl.entity.AclVariableEntity;
+import org.scleropages.kapuas.security.acl.model.AclPrincipalModel;
 import org.scleropages.kapuas.security.acl.model.AclStrategy;
 import org.scleropages.kapuas.security.acl.model.ResourceModel;
+import org.scleropages.kapuas.security.acl.repo.AclVariableEntityRepository;
+import org.scleropages.kapuas.security.acl.repo.PermissionEntityRepository;
 import org.springframework.beans.factory.annotation.Autowired;
 import org.springframework.boot.test.autoconfigure.web.servlet.AutoConfigureMockMvc;
 import org.springframework.boot.test.context.SpringBootTest;
@@ -38,6 +45,7 @@ import java.nio.charset.Charset;
 import java.util.Date;
 import java.util.Map;
 import java.util.function.Consumer;
+import java.util.stream.Collectors;
 
 /**
  * @author <a href="mailto:martinmao@icloud.com">Martin Mao</a>
@@ -51,6 +59,15 @@ public class AclActionTests {
     @Autowired
     private MockMvc mockMvc;
 
+    @Autowired
+    private AclManager aclManager;
+
+    @Autowired
+    private AclVariableEntityRepository aclVariableEntityRepository;
+
+    @Autowired
+    private PermissionEntityRepository permissionEntityRepository;
+
     @Test
     public void _1_strategy() throws Exception {
 
@@ -233,6 +250,59 @@ public class AclActionTests {
     }
 
 
+    /**
+     * PATCH variables: unchanged variables kept(same row), changed updated in place, null removed, others not touched.
+     */
+    @Test
+    public void _2_patchVariables() throws Exception {
+        String resourceType = "patch_variables_" + System.nanoTime();
+        createStrategy(resourceType, "write=修改>read=读取>execute=执行", resultActions -> {
+        });
+        AclPrincipalModel owner = new AclPrincipalModel("patch_variables_owner_" + System.nanoTime());
+        owner.setTag("patch_variables_owner");
+        mockMvc.perform(MockMvcRequestBuilders.post("/acl/principal")
+                .contentType(MediaType.APPLICATION_JSON)
+                .content(JsonMapper.nonEmptyMapper().toJson(owner))).andExpect(MockMvcResultMatchers.status().isOk());
+
+        ResourceModel resource = new ResourceModel();
+        resource.setId(String.valueOf(System.currentTimeMillis()));
+        resource.setTag("/shared/docs/" + resource.getId() + ".pdf");
+        resource.setType(resourceType);
+        resource.setOwner(owner.getName());
+        Map<String, Object> variables = Maps.newHashMap();
+        variables.put("path", resource.getTag());
+        variables.put("size", 1);
+        variables.put("order", 0.5);
+        variables.put("kept", "kept");
+        resource.setVariables(variables);
+        mockMvc.perform(MockMvcRequestBuilders.post("/acl/resource")
+                .contentType(MediaType.APPLICATION_JSON)
+                .content(JsonMapper2.toJson(resource))).andExpect(MockMvcResultMatchers.status().isOk());
+        Map<String, AclVariableEntity> created = storedVariables(resource);
+
+        Map<String, Object> changes = Maps.newHashMap();
+        changes.put("path", resource.getTag());
+        changes.put("size", 2);
+        changes.put("order", null);
+        mockMvc.perform(MockMvcRequestBuilders.patch("/acl/resource/" + resourceType + "/" + resource.getId() + "/variables")
+                .contentType(MediaType.APPLICATION_JSON)
+                .content(JsonMapper2.toJson(changes))).andExpect(MockMvcResultMatchers.status().isOk());
+
+        Map<String, AclVariableEntity> patched = storedVariables(resource);
+        Assert.assertEquals(Sets.newHashSet("path", "size", "kept"), patched.keySet());
+        Assert.assertEquals(created.get("path").getId(), patched.get("path").getId());
+        Assert.assertEquals(created.get("kept").getId(), patched.get("kept").getId());
+        Assert.assertEquals(created.get("size").getId(), patched.get("size").getId());
+        Assert.assertEquals(2L, patched.get("size").getValue());
+    }
+
+    private Map<String, AclVariableEntity> storedVariables(ResourceModel resource) {
+        Long aclId = (Long) aclManager.getAcl(resource).id();
+        Long resourceTypeId = permissionEntityRepository.getLocalPermissionEntityRepository().getResourceTypeIdByResourceType(resource.getType());
+        return aclVariableEntityRepository.findAllByAclIdAndResourceTypeId(aclId, resourceTypeId).stream()
+                .collect(Collectors.toMap(AclVariableEntity::getName, variable -> variable));
+    }
+
     private void createStrategy(String resource, String expression, Consumer<ResultActions> resultActionsConsumer) throws Exception {
         AclStrategy strategy = new AclStrategy();
         strategy.setResource(resource);
@@ -0,0 +1,213 @@
+/**
+ * Copyright 2001-2005 The Apache Software Foundation.
+ * <p>
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ * <p>
+ * http://www.apache.org/licenses/LICENSE-2.0
+ * <p>
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.scleropages.kapuas.session.provider.shiro;
+
+import com.google.common.collect.Lists;
+import com.google.common.collect.Maps;
+import com.google.common.collect.Sets;
+import org.junit.Assert;
+import org.junit.Before;
+import org.junit.Test;
+import org.mockito.Mockito;
+import org.scleropages.connector.redis.RedisKey;
+import org.springframework.data.redis.core.HashOperations;
+import org.springframework.data.redis.core.RedisOperations;
+import org.springframework.data.redis.core.ValueOperations;
+import org.springframework.test.util.ReflectionTestUtils;
+
+import java.util.Collection;
+import java.util.Collections;
+import java.util.Date;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.TimeUnit;
+import java.util.function.Consumer;
+
+/**
+ * hash layout writes and touch write-behind of {@link RedisSessionDao}. script evaluation and pipelines captured instead of running against redis.
+ *
+ * @author <a href="mailto:martinmao@icloud.com">Martin Mao</a>
+ */
+public class RedisSessionDaoTest {
+
+    private static final String META_FIELD = "__session_meta";
+
+    private final List<HashWrite> writes = Lists.newArrayList();
+
+    private boolean failNextWrite;
+
+    private final RedisOperations<Object, Object> pipeline = mockPipeline();
+
+    private List<Object> pipelineResults;
+
+    private boolean failNextPipeline;
+
+    private RedisSessionDao sessionDao;
+
+    private ObservableSession session;
+
+    @Before
+    public void setup() {
+        sessionDao = new RedisSessionDao(null) {
+            @Override
+            protected boolean evalHashScript(byte[] script, RedisKey key, long ttl, boolean rewrite, Map<Object, Object> puts, Collection<Object> deletes) {
+                if (failNextWrite) {
+                    failNextWrite = false;
+                    throw new IllegalStateException("redis unavailable.");
+                }
+                writes.add(new HashWrite(ttl, rewrite, puts, deletes));
+                return true;
+            }
+
+            @Override
+            protected List<Object> executePipelined(Consumer<RedisOperations<Object, Object>> redisOps) {
+                if (failNextPipeline) {
+                    failNextPipeline = false;
+                    throw new IllegalStateException("redis unavailable.");
+                }
+                redisOps.accept(pipeline);
+                return pipelineResults;
+            }
+        };
+        ReflectionTestUtils.setField(sessionDao, "layout", "hash");
+        ReflectionTestUtils.setField(sessionDao, "sessionKeyCatalog", "kapuas");
+        ReflectionTestUtils.setField(sessionDao, "sessionKeyType", "simple_session");
+        session = new ObservableSession(Collections.emptySet());
+        session.setId("session-" + System.nanoTime());
+        session.setAttribute("kept", "kept");
+        session.setAttribute("updated", "before");
+        session.setAttribute("removed", "removed");
+        session.drainDirtyAttributes();//persisted.
+    }
+
+    @Test
+    public void testPartialUpdate() {
+        session.setAttribute("updated", "after");
+        session.removeAttribute("removed");
+        Assert.assertTrue(sessionDao.doRemoteUpdate(session, 30));
+
+        HashWrite write = writes.get(0);
+        Assert.assertFalse(write.rewrite);
+        Assert.assertEquals(30 * 60 * 1000L, write.ttl);
+        Assert.assertEquals(Sets.newHashSet(META_FIELD, "updated"), write.puts.keySet());
+        Assert.assertEquals("after", write.puts.get("updated"));
+        Assert.assertNull(((SimpleSessionAdapter) write.puts.get(META_FIELD)).getAttributes());
+        Assert.assertEquals(Lists.newArrayList("removed"), write.deletes);
+
+        //nothing changed since: metadata only.
+        Assert.assertTrue(sessionDao.doRemoteUpdate(session, 30));
+        Assert.assertEquals(Sets.newHashSet(META_FIELD), writes.get(1).puts.keySet());
+        Assert.assertTrue(writes.get(1).deletes.isEmpty());
+    }
+
+    @Test
+    public void testRewriteAfterForceChangeOrFailure() {
+        session.forceChange();
+        Assert.assertTrue(sessionDao.doRemoteUpdate(session, 30));
+        Assert.assertTrue(writes.get(0).rewrite);
+        Assert.assertEquals(Sets.newHashSet(META_FIELD, "kept", "updated", "removed"), writes.get(0).puts.keySet());
+
+        //changes not written by failed update are rewritten by next one.
+        session.setAttribute("updated", "after");
+        failNextWrite = true;
+        try {
+            sessionDao.doRemoteUpdate(session, 30);
+            Assert.fail("write failure must be thrown.");
+        } catch (IllegalStateException e) {
+        }
+        Assert.assertTrue(sessionDao.doRemoteUpdate(session, 30));
+        HashWrite write = writes.get(1);
+        Assert.assertTrue(write.rewrite);
+        Assert.assertEquals(Sets.newHashSet(META_FIELD, "kept", "updated", "removed"), write.puts.keySet());
+        Assert.assertEquals("after", write.puts.get("updated"));
+    }
+
+    @Test
+    public void testTouchFlush() {
+        ReflectionTestUtils.setField(sessionDao, "touchWriteBehindEnabled", true);
+        session.resetChangeState();
+        session.setLastAccessTime(new Date(1000));
+        sessionDao.doUpdate(session);
+        session.setLastAccessTime(new Date(3000));
+        sessionDao.doUpdate(session);
+        //touch only: not written, coalesced to latest last access time.
+        Assert.assertTrue(writes.isEmpty());
+
+        //failed flush retried next round.
+        failNextPipeline = true;
+        sessionDao.flushTouches();
+        Mockito.verifyNoInteractions(pipeline);
+
+        pipelineResults = Lists.newArrayList(true, true);
+        sessionDao.flushTouches();
+        long ttl = TimeUnit.MINUTES.toMillis(120);
+        Mockito.verify(pipeline).expire(Mockito.any(RedisKey.class), Mockito.eq(ttl), Mockito.eq(TimeUnit.MILLISECONDS));
+        Mockito.verify(pipeline.opsForValue()).set(Mockito.any(RedisKey.class), Mockito.eq(3000L), Mockito.eq(ttl), Mockito.eq(TimeUnit.MILLISECONDS));
+
+        //nothing pending after flushed.
+        Mockito.clearInvocations(pipeline);
+        sessionDao.flushTouches();
+        Mockito.verifyNoInteractions(pipeline);
+    }
+
+    @Test
+    public void testMergeLastAccessTimeOnRead() {
+        ReflectionTestUtils.setField(sessionDao, "touchWriteBehindEnabled", true);
+        session.setLastAccessTime(new Date(1000));
+        Map<Object, Object> fields = Maps.newHashMap();
+        fields.put(META_FIELD, new SimpleSessionAdapter(session));
+        fields.put("kept", "kept");
+
+        //touch flushed after session written: newer last access time applied.
+        pipelineResults = Lists.newArrayList(fields, 3000L);
+        SimpleSessionAdapter read = sessionDao.doRemoteRead(session.getId());
+        Assert.assertEquals(3000L, read.getLastAccessTime().getTime());
+        Assert.assertEquals("kept", read.getAttributes().get("kept"));
+
+        //session written after touch: older touch ignored.
+        fields.put(META_FIELD, new SimpleSessionAdapter(session));
+        pipelineResults = Lists.newArrayList(fields, 500L);
+        Assert.assertEquals(1000L, sessionDao.doRemoteRead(session.getId()).getLastAccessTime().getTime());
+
+        //no touch recorded.
+        fields.put(META_FIELD, new SimpleSessionAdapter(session));
+        pipelineResults = Lists.newArrayList(fields, null);
+        Assert.assertEquals(1000L, sessionDao.doRemoteRead(session.getId()).getLastAccessTime().getTime());
+    }
+
+    @SuppressWarnings("unchecked")
+    private static RedisOperations<Object, Object> mockPipeline() {
+        RedisOperations<Object, Object> pipeline = Mockito.mock(RedisOperations.class);
+        Mockito.when(pipeline.opsForValue()).thenReturn(Mockito.mock(ValueOperations.class));
+        Mockito.when(pipeline.opsForHash()).thenReturn(Mockito.mock(HashOperations.class));
+        return pipeline;
+    }
+
+
+    private static final class HashWrite {
+        private final long ttl;
+        private final boolean rewrite;
+        private final Map<Object, Object> puts;
+        private final List<Object> deletes;
+
+        private HashWrite(long ttl, boolean rewrite, Map<Object, Object> puts, Collection<Object> deletes) {
+            this.ttl = ttl;
+            this.rewrite = rewrite;
+            this.puts = Maps.newHashMap(puts);
+            this.deletes = Lists.newArrayList(deletes);
+        }
+    }
+}
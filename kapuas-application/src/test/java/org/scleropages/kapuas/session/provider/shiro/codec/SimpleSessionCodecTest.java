@@ -0,0 +1,127 @@
+/**
+ * Copyright 2001-2005 The Apache Software Foundation.
+ * <p>
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ * <p>
+ * http://www.apache.org/licenses/LICENSE-2.0
+ * <p>
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.scleropages.kapuas.session.provider.shiro.codec;
+
+import com.esotericsoftware.kryo.Kryo;
+import com.esotericsoftware.kryo.Serializer;
+import com.esotericsoftware.kryo.io.Input;
+import com.esotericsoftware.kryo.io.Output;
+import com.esotericsoftware.kryo.serializers.FieldSerializer;
+import com.google.common.base.Strings;
+import com.google.common.collect.Lists;
+import com.google.common.collect.Maps;
+import org.apache.shiro.subject.SimplePrincipalCollection;
+import org.junit.Assert;
+import org.junit.Test;
+import org.objenesis.strategy.SerializingInstantiatorStrategy;
+import org.scleropages.kapuas.configuration.shiro.ShiroSessionConfiguration;
+import org.scleropages.kapuas.session.provider.shiro.SimpleSessionAdapter;
+
+import java.util.Date;
+import java.util.Map;
+
+/**
+ * @author <a href="mailto:martinmao@icloud.com">Martin Mao</a>
+ */
+public class SimpleSessionCodecTest {
+
+    @Test
+    public void testRoundTrip() {
+        SimpleSessionCodec codec = new SimpleSessionCodec(-1);
+        SimpleSessionAdapter session = createSession(Strings.repeat("attribute value ", 4));
+        byte[] bytes = codec.encode(session, SimpleSessionCodec.JDK_FALLBACK);
+        Assert.assertEquals(SimpleSessionCodec.FORMAT_VERSION, bytes[0]);
+        Assert.assertEquals(0, bytes[1]);
+        assertSessionEquals(session, codec.decode(bytes, SimpleSessionCodec.JDK_FALLBACK));
+    }
+
+    @Test
+    public void testCompressedRoundTrip() {
+        SimpleSessionCodec codec = new SimpleSessionCodec(64);
+        SimpleSessionAdapter session = createSession(Strings.repeat("attribute value ", 256));
+        byte[] bytes = codec.encode(session, SimpleSessionCodec.JDK_FALLBACK);
+        Assert.assertEquals(1, bytes[1]);//lz4
+        assertSessionEquals(session, codec.decode(bytes, SimpleSessionCodec.JDK_FALLBACK));
+    }
+
+    /**
+     * sessions written by kryo FieldSerializer(before compact codec enabled) read by legacy serializer. sessions written after are marked.
+     */
+    @Test
+    public void testKryoFallbackForUnmarkedSession() {
+        Kryo kryo = new Kryo();
+        kryo.setRegistrationRequired(false);
+        kryo.setInstantiatorStrategy(new Kryo.DefaultInstantiatorStrategy(new SerializingInstantiatorStrategy()));
+        FieldSerializer<SimpleSessionAdapter> legacy = new FieldSerializer<>(kryo, SimpleSessionAdapter.class);
+        Serializer<SimpleSessionAdapter> compact = new ShiroSessionConfiguration() {
+            Serializer<SimpleSessionAdapter> serializer() {
+                return simpleSessionSerializer(new SimpleSessionCodec(1024), legacy);
+            }
+        }.serializer();
+        SimpleSessionAdapter session = createSession("attribute value");
+
+        Output output = new Output(1024, -1);
+        kryo.writeObject(output, session, legacy);
+        assertSessionEquals(session, kryo.readObject(new Input(output.toBytes()), SimpleSessionAdapter.class, compact));
+
+        output = new Output(1024, -1);
+        kryo.writeObject(output, session, compact);
+        byte[] bytes = output.toBytes();
+        Assert.assertTrue(SimpleSessionCodec.isMagic(bytes[0], bytes[1]));
+        assertSessionEquals(session, kryo.readObject(new Input(bytes), SimpleSessionAdapter.class, compact));
+    }
+
+
+    private SimpleSessionAdapter createSession(String text) {
+        SimpleSessionAdapter session = new SimpleSessionAdapter();
+        session.setId("session-" + System.nanoTime());
+        session.setTimeout(1800000);
+        session.setStartTimestamp(new Date(System.currentTimeMillis() - 60000));
+        session.setLastAccessTime(new Date());
+        session.setHost("127.0.0.1");
+        SimplePrincipalCollection principals = new SimplePrincipalCollection("martinmao@icloud.com", "default_realm");
+        Map<Object, Object> attributes = Maps.newLinkedHashMap();
+        attributes.put("principals", principals);
+        attributes.put("text", text);
+        attributes.put("int", -42);
+        attributes.put("long", Long.MAX_VALUE);
+        attributes.put("bool", Boolean.TRUE);
+        attributes.put("double", 0.5d);
+        attributes.put("date", new Date(0));
+        attributes.put("bytes", new byte[]{1, 2, 3});
+        attributes.put("fallback", Lists.newArrayList(text, text));//no type tag: written by fallback.
+        attributes.put("null", null);
+        session.setAttributes(attributes);
+        return session;
+    }
+
+    private void assertSessionEquals(SimpleSessionAdapter expected, SimpleSessionAdapter actual) {
+        Assert.assertEquals(expected.getId(), actual.getId());
+        Assert.assertEquals(expected.getTimeout(), actual.getTimeout());
+        Assert.assertEquals(expected.getStartTimestamp(), actual.getStartTimestamp());
+        Assert.assertEquals(expected.getStopTimestamp(), actual.getStopTimestamp());
+        Assert.assertEquals(expected.getLastAccessTime(), actual.getLastAccessTime());
+        Assert.assertEquals(expected.isExpired(), actual.isExpired());
+        Assert.assertEquals(expected.getHost(), actual.getHost());
+        Assert.assertEquals(expected.getAttributes().keySet(), actual.getAttributes().keySet());
+        expected.getAttributes().forEach((key, value) -> {
+            if (value instanceof byte[])
+                Assert.assertArrayEquals((byte[]) value, (byte[]) actual.getAttributes().get(key));
+            else
+                Assert.assertEquals(value, actual.getAttributes().get(key));
+        });
+    }
+}
@@ -0,0 +1,168 @@
+/**
+ * Copyright 2001-2005 The Apache Software Foundation.
+ * <p>
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ * <p>
+ * http://www.apache.org/licenses/LICENSE-2.0
+ * <p>
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.scleropages.kapuas.security.acl.snapshot;
+
+import com.google.common.collect.Maps;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import org.springframework.beans.factory.DisposableBean;
+import org.springframework.beans.factory.InitializingBean;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.attribute.FileTime;
+import java.util.Collection;
+import java.util.List;
+import java.util.Map;
+import java.util.Objects;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+import java.util.stream.Collectors;
+
+/**
+ * hold latest {@link MappedAclSnapshot} of each resource type. 新版本映射并校验通过后原子替换，进行中的查找继续使用旧快照，旧版本(version 不大于当前)被忽略.
+ * <p>
+ * 配置的快照文件定期检查修改时间与大小，变更后重新加载. 也可以通过 {@link #publish(InputStream, Path)} 将服务端导出的快照写入临时文件后原子替换并加载.
+ *
+ * @author <a href="mailto:martinmao@icloud.com">Martin Mao</a>
+ */
+public class AclSnapshotRegistry implements InitializingBean, DisposableBean {
+
+    private static final Logger logger = LoggerFactory.getLogger(AclSnapshotRegistry.class);
+
+    private final List<Path> locations;
+
+    private final long reloadIntervalMillis;
+
+    private final ConcurrentMap<String, MappedAclSnapshot> snapshots = Maps.newConcurrentMap();
+
+    private final Map<Path, String> loadedStamps = Maps.newConcurrentMap();
+
+    private ScheduledExecutorService reloader;
+
+    /**
+     * @param locations            snapshot files to load(and watch).
+     * @param reloadIntervalMillis check interval of snapshot files. &lt;=0 disable reload.
+     */
+    public AclSnapshotRegistry(Collection<Path> locations, long reloadIntervalMillis) {
+        this.locations = locations.stream().map(path -> path.toAbsolutePath().normalize()).collect(Collectors.toList());
+        this.reloadIntervalMillis = reloadIntervalMillis;
+    }
+
+    /**
+     * return true if given principal granted given permission on given resource. false if no snapshot loaded for given resource type.
+     */
+    public boolean isAccessible(String resourceType, String resourceId, String principal, String permission) {
+        MappedAclSnapshot snapshot = snapshots.get(resourceType);
+        return null != snapshot && snapshot.isAccessible(principal, resourceId, permission);
+    }
+
+    /**
+     * return true if given principal granted given permission on any resource of given resource type.
+     */
+    public boolean isAccessible(String resourceType, String principal, String permission) {
+        MappedAclSnapshot snapshot = snapshots.get(resourceType);
+        return null != snapshot && snapshot.isAccessible(principal, permission);
+    }
+
+    /**
+     * return current snapshot of given resource type or null if not loaded.
+     */
+    public MappedAclSnapshot getSnapshot(String resourceType) {
+        return snapshots.get(resourceType);
+    }
+
+    /**
+     * map given snapshot file and swap it in if newer than current.
+     *
+     * @return true if swapped.
+     */
+    public boolean load(Path file) throws IOException {
+        MappedAclSnapshot loaded = MappedAclSnapshot.map(file);
+        MappedAclSnapshot current = snapshots.merge(loaded.resourceType(), loaded, (previous, next) -> next.version() > previous.version() ? next : previous);
+        boolean swapped = current == loaded;
+        if (swapped)
+            logger.info("acl snapshot loaded: {} from: {}", loaded, file);
+        else
+            logger.debug("ignore acl snapshot: {} from: {}. not newer than current.", loaded, file);
+        return swapped;
+    }
+
+    /**
+     * write given snapshot content to a temporary file in same directory, validate and atomic move to target then load it.
+     */
+    public boolean publish(InputStream snapshot, Path target) throws IOException {
+        Path file = target.toAbsolutePath().normalize();
+        Path directory = file.getParent();
+        Files.createDirectories(directory);
+        Path temp = Files.createTempFile(directory, file.getFileName().toString(), ".tmp");
+        try {
+            Files.copy(snapshot, temp, StandardCopyOption.REPLACE_EXISTING);
+            MappedAclSnapshot.map(temp);
+            Files.move(temp, file, StandardCopyOption.ATOMIC_MOVE, StandardCopyOption.REPLACE_EXISTING);
+        } finally {
+            Files.deleteIfExists(temp);
+        }
+        boolean swapped = load(file);
+        loadedStamps.put(file, stamp(file));
+        return swapped;
+    }
+
+    protected void reload() {
+        for (Path location : locations) {
+            try {
+                if (!Files.isRegularFile(location))
+                    continue;
+                String stamp = stamp(location);
+                if (Objects.equals(stamp, loadedStamps.get(location)))
+                    continue;
+                load(location);
+                loadedStamps.put(location, stamp);
+            } catch (Exception e) {
+                logger.warn("failure to load acl snapshot from: " + location + ". keep current.", e);
+            }
+        }
+    }
+
+    private String stamp(Path file) throws IOException {
+        FileTime lastModified = Files.getLastModifiedTime(file);
+        return lastModified.toMillis() + ":" + Files.size(file);
+    }
+
+    @Override
+    public void afterPropertiesSet() throws Exception {
+        reload();
+        if (reloadIntervalMillis <= 0 || locations.isEmpty())
+            return;
+        reloader = Executors.newSingleThreadScheduledExecutor(runnable -> {
+            Thread thread = new Thread(runnable, "acl-snapshot-reloader");
+            thread.setDaemon(true);
+            return thread;
+        });
+        reloader.scheduleWithFixedDelay(this::reload, reloadIntervalMillis, reloadIntervalMillis, TimeUnit.MILLISECONDS);
+    }
+
+    @Override
+    public void destroy() throws Exception {
+        if (null != reloader)
+            reloader.shutdownNow();
+    }
+}
@@ -0,0 +1,253 @@
+/**
+ * Copyright 2001-2005 The Apache Software Foundation.
+ * <p>
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ * <p>
+ * http://www.apache.org/licenses/LICENSE-2.0
+ * <p>
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.scleropages.kapuas.security.acl.snapshot;
+
+import org.springframework.util.Assert;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.CharBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.util.zip.CRC32;
+
+import static org.scleropages.kapuas.security.acl.snapshot.AclSnapshotFormat.*;
+
+/**
+ * read-only acl snapshot(see {@link AclSnapshotFormat}) memory-mapped from file.
+ * <p>
+ * 查找只使用 mapped buffer 的绝对位置读取与二分查找，字符串直接逐字符与 buffer 比较，单次判断不产生堆内存分配. thread-safe.
+ * 映射在文件关闭后依然有效，发布新版本应写入临时文件后原子替换(rename)，不要原地修改已映射的文件.
+ *
+ * @author <a href="mailto:martinmao@icloud.com">Martin Mao</a>
+ */
+public class MappedAclSnapshot {
+
+    private final ByteBuffer buffer;
+
+    private final CharBuffer chars;
+
+    private final String resourceType;
+
+    private final long version;
+
+    private final long createdAt;
+
+    private final boolean coarseGrained;
+
+    private final int permissionCount;
+    private final int principalCount;
+    private final int entryCount;
+
+    private final int permissionsOffset;
+    private final int principalsOffset;
+    private final int ancestorsOffset;
+    private final int entriesOffset;
+
+    public MappedAclSnapshot(ByteBuffer buffer) {
+        this.buffer = buffer;
+        Assert.isTrue(buffer.capacity() >= HEADER_SIZE + TRAILER_SIZE, "invalid acl snapshot: too small.");
+        Assert.isTrue(buffer.getInt(OFFSET_MAGIC) == MAGIC, "invalid acl snapshot: magic mismatch.");
+        int formatVersion = buffer.getInt(OFFSET_FORMAT_VERSION);
+        Assert.isTrue(formatVersion == FORMAT_VERSION, () -> "unsupported acl snapshot format version: " + formatVersion);
+        version = buffer.getLong(OFFSET_VERSION);
+        createdAt = buffer.getLong(OFFSET_CREATED_AT);
+        permissionCount = buffer.getInt(OFFSET_PERMISSION_COUNT);
+        principalCount = buffer.getInt(OFFSET_PRINCIPAL_COUNT);
+        int ancestorCount = buffer.getInt(OFFSET_ANCESTOR_COUNT);
+        entryCount = buffer.getInt(OFFSET_ENTRY_COUNT);
+        int charCount = buffer.getInt(OFFSET_CHAR_COUNT);
+        coarseGrained = (buffer.getInt(OFFSET_FLAGS) & FLAG_COARSE_GRAINED) != 0;
+        Assert.isTrue(fileSize(permissionCount, principalCount, ancestorCount, entryCount, charCount) == buffer.capacity(), "invalid acl snapshot: size mismatch.");
+
+        permissionsOffset = HEADER_SIZE;
+        principalsOffset = permissionsOffset + permissionCount * PERMISSION_RECORD_SIZE;
+        ancestorsOffset = principalsOffset + principalCount * PRINCIPAL_RECORD_SIZE;
+        entriesOffset = ancestorsOffset + ancestorCount * ANCESTOR_RECORD_SIZE;
+        int charsOffset = entriesOffset + entryCount * ENTRY_RECORD_SIZE;
+        int trailerOffset = charsOffset + charCount * 2;
+
+        ByteBuffer checked = buffer.duplicate();
+        checked.position(0).limit(trailerOffset);
+        CRC32 crc32 = new CRC32();
+        crc32.update(checked);
+        Assert.isTrue(crc32.getValue() == buffer.getLong(trailerOffset), "invalid acl snapshot: checksum mismatch.");
+
+        ByteBuffer charSection = buffer.duplicate();
+        charSection.position(charsOffset).limit(trailerOffset);
+        chars = charSection.slice().asCharBuffer();
+        resourceType = chars.subSequence(buffer.getInt(OFFSET_RESOURCE_TYPE), buffer.getInt(OFFSET_RESOURCE_TYPE) + buffer.getInt(OFFSET_RESOURCE_TYPE_LENGTH)).toString();
+    }
+
+    /**
+     * map given snapshot file(read-only).
+     */
+    public static MappedAclSnapshot map(Path file) throws IOException {
+        try (FileChannel channel = FileChannel.open(file, StandardOpenOption.READ)) {
+            Assert.isTrue(channel.size() <= Integer.MAX_VALUE, "acl snapshot too large: " + file);
+            MappedByteBuffer buffer = channel.map(FileChannel.MapMode.READ_ONLY, 0, channel.size());
+            return new MappedAclSnapshot(buffer);
+        }
+    }
+
+    /**
+     * return true if given principal(or its ancestors) granted given permission on given resource.
+     *
+     * @param principal
+     * @param resourceId
+     * @param permission permission name. null: any permission(coarse-grained resource type must be null).
+     * @return false if permission not defined in snapshot.
+     */
+    public boolean isAccessible(String principal, String resourceId, String permission) {
+        long mask = permissionMask(permission);
+        if (mask == 0)
+            return false;
+        int principalIndex = findPrincipal(principal);
+        if (principalIndex < 0)
+            return false;
+        if ((principalAnyMask(principalIndex) & mask) == 0)
+            return false;
+        if ((entryMask(resourceId, principalIndex) & mask) != 0)
+            return true;
+        int record = principalsOffset + principalIndex * PRINCIPAL_RECORD_SIZE;
+        int ancestorStart = buffer.getInt(record + 16);
+        int ancestorCount = buffer.getInt(record + 20);
+        for (int i = 0; i < ancestorCount; i++) {
+            if ((entryMask(resourceId, buffer.getInt(ancestorsOffset + (ancestorStart + i) * ANCESTOR_RECORD_SIZE)) & mask) != 0)
+                return true;
+        }
+        return false;
+    }
+
+    /**
+     * return true if given principal(or its ancestors) granted given permission on any resource of this resource type.
+     */
+    public boolean isAccessible(String principal, String permission) {
+        long mask = permissionMask(permission);
+        if (mask == 0)
+            return false;
+        int principalIndex = findPrincipal(principal);
+        return principalIndex >= 0 && (principalAnyMask(principalIndex) & mask) != 0;
+    }
+
+    public String resourceType() {
+        return resourceType;
+    }
+
+    public long version() {
+        return version;
+    }
+
+    public long createdAt() {
+        return createdAt;
+    }
+
+    public int entryCount() {
+        return entryCount;
+    }
+
+    public boolean isCoarseGrained() {
+        return coarseGrained;
+    }
+
+    /**
+     * return mask of given permission name. {@link AclSnapshotFormat#ALL_PERMISSIONS_MASK} if not provided. 0 if not defined.
+     */
+    protected long permissionMask(String permission) {
+        if (null == permission)
+            return ALL_PERMISSIONS_MASK;
+        if (coarseGrained)
+            return 0;
+        int low = 0, high = permissionCount - 1;
+        while (low <= high) {
+            int mid = (low + high) >>> 1;
+            int record = permissionsOffset + mid * PERMISSION_RECORD_SIZE;
+            int compare = compare(buffer.getInt(record), buffer.getInt(record + 4), permission);
+            if (compare < 0)
+                low = mid + 1;
+            else if (compare > 0)
+                high = mid - 1;
+            else
+                return buffer.getLong(record + 8);
+        }
+        return 0;
+    }
+
+    protected int findPrincipal(String principal) {
+        int low = 0, high = principalCount - 1;
+        while (low <= high) {
+            int mid = (low + high) >>> 1;
+            int record = principalsOffset + mid * PRINCIPAL_RECORD_SIZE;
+            int compare = compare(buffer.getInt(record), buffer.getInt(record + 4), principal);
+            if (compare < 0)
+                low = mid + 1;
+            else if (compare > 0)
+                high = mid - 1;
+            else
+                return mid;
+        }
+        return -1;
+    }
+
+    protected long principalAnyMask(int principalIndex) {
+        return buffer.getLong(principalsOffset + principalIndex * PRINCIPAL_RECORD_SIZE + 8);
+    }
+
+    /**
+     * return granted mask of given (resource,principal). 0 if not granted.
+     */
+    protected long entryMask(String resourceId, int principalIndex) {
+        int low = 0, high = entryCount - 1;
+        while (low <= high) {
+            int mid = (low + high) >>> 1;
+            int record = entriesOffset + mid * ENTRY_RECORD_SIZE;
+            int compare = compare(buffer.getInt(record), buffer.getInt(record + 4), resourceId);
+            if (compare == 0)
+                compare = Integer.compare(buffer.getInt(record + 8), principalIndex);
+            if (compare < 0)
+                low = mid + 1;
+            else if (compare > 0)
+                high = mid - 1;
+            else
+                return buffer.getLong(record + 24);
+        }
+        return 0;
+    }
+
+    /**
+     * compare string in char pool with given value. same as {@link String#compareTo(String)}.
+     */
+    private int compare(int offset, int length, String value) {
+        int limit = Math.min(length, value.length());
+        for (int i = 0; i < limit; i++) {
+            int compare = chars.get(offset + i) - value.charAt(i);
+            if (compare != 0)
+                return compare;
+        }
+        return length - value.length();
+    }
+
+    @Override
+    public String toString() {
+        return "MappedAclSnapshot{" +
+                "resourceType='" + resourceType + '\'' +
+                ", version=" + version +
+                ", entries=" + entryCount +
+                '}';
+    }
+}
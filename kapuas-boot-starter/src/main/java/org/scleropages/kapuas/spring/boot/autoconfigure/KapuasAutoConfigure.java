@@ -16,16 +16,21 @@
 package org.scleropages.kapuas.spring.boot.autoconfigure;
 
 import org.scleropages.kapuas.KapuasSignatureKeyProvider;
+import org.scleropages.kapuas.security.acl.snapshot.AclSnapshotRegistry;
 import org.scleropages.kapuas.security.authc.token.server.jwt.JwtTokenFactory;
 import org.springframework.boot.autoconfigure.AutoConfigureAfter;
 import org.springframework.boot.autoconfigure.condition.ConditionalOnClass;
 import org.springframework.boot.autoconfigure.condition.ConditionalOnMissingBean;
+import org.springframework.boot.autoconfigure.condition.ConditionalOnProperty;
 import org.springframework.boot.autoconfigure.web.client.RestTemplateAutoConfiguration;
 import org.springframework.boot.context.properties.EnableConfigurationProperties;
 import org.springframework.context.annotation.Bean;
 import org.springframework.context.annotation.Configuration;
 import org.springframework.web.client.RestTemplate;
 
+import java.nio.file.Paths;
+import java.util.stream.Collectors;
+
 /**
  * @author <a href="mailto:martinmao@icloud.com">Martin Mao</a>
  */
@@ -40,4 +45,12 @@ public class KapuasAutoConfigure {
     public KapuasSignatureKeyProvider kapuasSignatureKeyProvider(KapuasProperties kapuasProperties, RestTemplate restTemplate) {
         return new KapuasSignatureKeyProvider(kapuasProperties, restTemplate);
     }
+
+    @Bean
+    @ConditionalOnMissingBean
+    @ConditionalOnProperty(prefix = "kapuas.acl-snapshot", name = "locations")
+    public AclSnapshotRegistry aclSnapshotRegistry(KapuasProperties kapuasProperties) {
+        KapuasProperties.AclSnapshot aclSnapshot = kapuasProperties.getAclSnapshot();
+        return new AclSnapshotRegistry(aclSnapshot.getLocations().stream().map(Paths::get).collect(Collectors.toList()), aclSnapshot.getReloadIntervalMillis());
+    }
 }
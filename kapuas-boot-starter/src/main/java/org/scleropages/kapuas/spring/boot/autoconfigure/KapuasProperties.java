@@ -17,6 +17,9 @@ package org.scleropages.kapuas.spring.boot.autoconfigure;
 
 import org.springframework.boot.context.properties.ConfigurationProperties;
 
+import java.util.ArrayList;
+import java.util.List;
+
 /**
  * @author <a href="mailto:martinmao@icloud.com">Martin Mao</a>
  */
@@ -27,6 +30,8 @@ public class KapuasProperties {
 
     private String appId;
 
+    private final AclSnapshot aclSnapshot = new AclSnapshot();
+
     public String getGateway() {
         return gateway;
     }
@@ -42,4 +47,31 @@ public class KapuasProperties {
     public void setAppId(String appId) {
         this.appId = appId;
     }
+
+    public AclSnapshot getAclSnapshot() {
+        return aclSnapshot;
+    }
+
+    public static class AclSnapshot {
+
+        private List<String> locations = new ArrayList<>();
+
+        private long reloadIntervalMillis = 10000;
+
+        public List<String> getLocations() {
+            return locations;
+        }
+
+        public long getReloadIntervalMillis() {
+            return reloadIntervalMillis;
+        }
+
+        public void setLocations(List<String> locations) {
+            this.locations = locations;
+        }
+
+        public void setReloadIntervalMillis(long reloadIntervalMillis) {
+            this.reloadIntervalMillis = reloadIntervalMillis;
+        }
+    }
 }
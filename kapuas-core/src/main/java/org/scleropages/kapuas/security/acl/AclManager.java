@@ -16,16 +16,27 @@
 package org.scleropages.kapuas.security.acl;
 
 import org.scleropages.crud.dao.orm.SearchFilter;
+import org.scleropages.kapuas.security.acl.model.AclChange;
+import org.scleropages.kapuas.security.acl.model.AclEntryDiffModel;
+import org.scleropages.kapuas.security.acl.model.AclEntryGrantModel;
 import org.scleropages.kapuas.security.acl.model.AclPrincipalModel;
 import org.scleropages.kapuas.security.acl.model.AclStrategy;
+import org.scleropages.kapuas.security.acl.model.BulkProgress;
+import org.scleropages.kapuas.security.acl.model.CursorPage;
 import org.scleropages.kapuas.security.acl.model.PermissionModel;
 import org.scleropages.kapuas.security.acl.model.ResourceModel;
 import org.springframework.data.domain.Page;
 import org.springframework.data.domain.Pageable;
 
 import javax.validation.Valid;
+import java.io.OutputStream;
+import java.util.Collection;
 import java.util.List;
 import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.CompletableFuture;
+import java.util.function.Consumer;
+import java.util.stream.Stream;
 
 /**
  * Manager used for management access control list (acl).
@@ -90,14 +101,64 @@ public interface AclManager {
     Page<Acl> findAcl(@Valid ResourceModel resourceModel, Pageable pageable, Map<String, SearchFilter> variablesSearchFilters);
 
 
+    /**
+     * read acl(s) by given resource type with keyset(seek) pagination. no total count provided.
+     *
+     * @param resourceModel          (type is required)
+     * @param continuationToken      {@link CursorPage#getNext()} of previous page. null for first page.
+     * @param limit                  page size.
+     * @param variablesSearchFilters
+     * @return
+     */
+    CursorPage<Acl> findAcl(@Valid ResourceModel resourceModel, String continuationToken, int limit, Map<String, SearchFilter> variablesSearchFilters);
+
+
+    /**
+     * export all acl(s) of given resource type in one pass(ordered by acl id). each acl passed to consumer as soon as read from database.
+     *
+     * @param resourceModel    (type is required)
+     * @param withVariables    inline variables of each acl.
+     * @param withBizPayload   inline business payload of each acl.
+     * @param consumer
+     */
+    void exportAcl(@Valid ResourceModel resourceModel, boolean withVariables, boolean withBizPayload, Consumer<Acl> consumer);
+
+
+    /**
+     * export all acl entries of given resource type in one pass(ordered by entry id).
+     *
+     * @param resourceModel (type is required)
+     * @param consumer
+     */
+    void exportEntries(@Valid ResourceModel resourceModel, Consumer<AclEntry> consumer);
+
+
+    /**
+     * export acl state(acl ids, resource ids, principals and permission masks) of given resource type as one sorted binary snapshot(see AclSnapshotFormat).
+     * client services memory-map it and evaluate access decisions locally.
+     *
+     * @param resourceModel (type is required)
+     * @param outputStream  snapshot written to. not closed.
+     */
+    void exportAclSnapshot(@Valid ResourceModel resourceModel, OutputStream outputStream);
+
+
     /**
      * fetch all business payload by given resource(type is required) and acl ids.
      *
      * @param resourceModel
      * @param aclIds
-     * @return
+     * @return acl id -> payload(acl without payload not included).
      */
-    List<String> findAllAclBizPayload(@Valid ResourceModel resourceModel, Long... aclIds);
+    Map<Long, String> findAllAclBizPayload(@Valid ResourceModel resourceModel, Long... aclIds);
+
+    /**
+     * batch save(insert or update) business payload of given acl(s).
+     *
+     * @param resourceModel resource type is required.
+     * @param payloads      acl id -> payload
+     */
+    void saveAllAclBizPayload(@Valid ResourceModel resourceModel, Map<Long, String> payloads);
 
     /**
      * read acl entries by specify (id and type) resource.
@@ -110,6 +171,18 @@ public interface AclManager {
     Page<AclEntry> findEntries(@Valid ResourceModel resourceModel, AclPrincipalModel principal, Pageable pageable);
 
 
+    /**
+     * read acl entries by specify (id and type) resource with keyset(seek) pagination. no total count provided.
+     *
+     * @param resourceModel     (id and type is required)
+     * @param principal         optional query condition.
+     * @param continuationToken {@link CursorPage#getNext()} of previous page. null for first page.
+     * @param limit             page size.
+     * @return
+     */
+    CursorPage<AclEntry> findEntries(@Valid ResourceModel resourceModel, AclPrincipalModel principal, String continuationToken, int limit);
+
+
     /**
      * read acl entries by specify(from principal) resource.
      *
@@ -135,6 +208,20 @@ public interface AclManager {
     Page<AclEntry> findPrincipalEntries(@Valid AclPrincipalModel principal, @Valid ResourceModel resourceModel, PermissionModel permission, Pageable pageable, Map<String, SearchFilter> variablesSearchFilters);
 
 
+    /**
+     * read acl entries by specify(from principal) resource with keyset(seek) pagination. no total count provided.
+     *
+     * @param principal              grant to specify principal.
+     * @param resourceModel          by resource type(type is required and id is optional)
+     * @param permission             optional query condition
+     * @param continuationToken      {@link CursorPage#getNext()} of previous page. null for first page.
+     * @param limit                  page size.
+     * @param variablesSearchFilters
+     * @return
+     */
+    CursorPage<AclEntry> findPrincipalEntries(@Valid AclPrincipalModel principal, @Valid ResourceModel resourceModel, PermissionModel permission, String continuationToken, int limit, Map<String, SearchFilter> variablesSearchFilters);
+
+
     /**
      * create acl model by given {@link AclStrategy}
      *
@@ -149,6 +236,50 @@ public interface AclManager {
      */
     void createAclPrincipal(@Valid AclPrincipalModel aclPrincipalModel);
 
+    /**
+     * make given member principal(user or group) belongs to parent principal(group or role). member inherit all acl entries granted to parent(and parent's ancestors).
+     *
+     * @param member
+     * @param parent
+     */
+    void createAclPrincipalMember(@Valid AclPrincipalModel member, @Valid AclPrincipalModel parent);
+
+    /**
+     * remove membership of given member principal from parent principal.
+     *
+     * @param member
+     * @param parent
+     */
+    void deleteAclPrincipalMember(@Valid AclPrincipalModel member, @Valid AclPrincipalModel parent);
+
+    /**
+     * return all principal names(groups/roles, transitive) given principal belongs to.
+     *
+     * @param principal
+     * @return
+     */
+    Set<String> findAclPrincipalAncestors(@Valid AclPrincipalModel principal);
+
+    /**
+     * return acl changes after given sequence in sequence order(change feed). if no changes available wait for new changes(long poll).
+     *
+     * @param after      sequence of last consumed change. 0 from beginning.
+     * @param limit      maximum changes returned.
+     * @param waitMillis maximum time to wait if no changes available. 0 return immediately.
+     * @return
+     */
+    List<AclChange> findAclChanges(long after, int limit, long waitMillis);
+
+    /**
+     * same as {@link #findAclChanges(long, int, long)}, calling thread not blocked while waiting.
+     *
+     * @param after      sequence of last consumed change. 0 from beginning.
+     * @param limit      maximum changes returned.
+     * @param waitMillis maximum time to wait if no changes available. 0 return immediately.
+     * @return
+     */
+    CompletableFuture<List<AclChange>> findAclChangesAsync(long after, int limit, long waitMillis);
+
     /**
      * create acl by given resource and owned principal.
      *
@@ -156,6 +287,17 @@ public interface AclManager {
      */
     void createAcl(@Valid ResourceModel resource);
 
+    /**
+     * bulk create acl(s) of given resource type. resources are consumed in chunks, each chunk committed in its own transaction.
+     * resources already exists are skipped.
+     *
+     * @param resourceType resource type of all resources.
+     * @param resources    resources to create(id, tag and owner is required.) consumed lazily.
+     * @param progress     notified after each chunk committed.
+     * @return total progress.
+     */
+    BulkProgress createAcls(String resourceType, Stream<ResourceModel> resources, Consumer<BulkProgress> progress);
+
 
     /**
      * update acl by given resource.
@@ -164,6 +306,13 @@ public interface AclManager {
      */
     void updateAcl(@Valid ResourceModel resource);
 
+    /**
+     * partial update variables of given resource. only given variables applied(others not changed), variables with null value removed.
+     *
+     * @param resource (id type and variables is required.)
+     */
+    void patchAclVariables(@Valid ResourceModel resource);
+
 
     /**
      * delete a acl by given resource.
@@ -193,6 +342,34 @@ public interface AclManager {
     void deleteAclEntry(@Valid ResourceModel resource, @Valid AclPrincipalModel grant, PermissionModel... permission);
 
 
+    /**
+     * create acl entries in bulk(one transaction). tuples of same resource and principal are merged,
+     * grants already exists are ignored.
+     *
+     * @param grants (resource, principal, permissions) tuples.
+     */
+    void createAclEntries(@Valid Collection<AclEntryGrantModel> grants);
+
+
+    /**
+     * delete acl entries in bulk(one transaction). grants not exists are ignored.
+     *
+     * @param grants (resource, principal, permissions) tuples. permissions must not provided for coarse-grained acl model.
+     */
+    void deleteAclEntries(@Valid Collection<AclEntryGrantModel> grants);
+
+
+    /**
+     * reconcile acl entries of given resource to desired state in one transaction. current entries are loaded once, only changed grants are revoked/granted.
+     * principals not in desired grants are revoked.
+     *
+     * @param resource      target resource(type and id required).
+     * @param desiredGrants principal -> permissions. permissions must be empty for coarse-grained acl model. empty permissions of fine-grained model revoke all.
+     * @return applied diff.
+     */
+    AclEntryDiffModel reconcileEntries(@Valid ResourceModel resource, Map<String, Set<String>> desiredGrants);
+
+
     /**
      * Return true if given principal was granted permissions for given resource.
      *
@@ -203,6 +380,82 @@ public interface AclManager {
     boolean isAccessible(@Valid ResourceModel resource, @Valid AclPrincipalModel principal, PermissionModel permission);
 
 
+    /**
+     * Return accessible decision for each given resource id(same resource type) in one call.
+     *
+     * @param resource    asserts resource (type is required).
+     * @param principal   grants principal.
+     * @param permission  a group optional permissions.
+     * @param resourceIds resource ids to check.
+     * @return resource id -> accessible.
+     */
+    Map<String, Boolean> isAccessible(@Valid ResourceModel resource, @Valid AclPrincipalModel principal, PermissionModel permission, Collection<String> resourceIds);
+
+
+    /**
+     * Return true if given principal was granted any of given permissions(include implied by inherit permissions) for given resource. fine-grained acl model only.
+     *
+     * @param resource    asserts resource.
+     * @param principal   grants principal.
+     * @param permissions permissions to check.
+     */
+    boolean isAccessibleAny(@Valid ResourceModel resource, @Valid AclPrincipalModel principal, PermissionModel... permissions);
+
+
+    /**
+     * Return true if given principal was granted all of given permissions(include implied by inherit permissions) for given resource. fine-grained acl model only.
+     *
+     * @param resource    asserts resource.
+     * @param principal   grants principal.
+     * @param permissions permissions to check.
+     */
+    boolean isAccessibleAll(@Valid ResourceModel resource, @Valid AclPrincipalModel principal, PermissionModel... permissions);
+
+
+    /**
+     * Return all permissions(include implied by inherit permissions) given principal holds on given resource in one query. fine-grained acl model only.
+     *
+     * @param resource  asserts resource (id optional: any resource of given type).
+     * @param principal grants principal.
+     * @return permission names ordered as acl strategy.
+     */
+    Set<String> findEffectivePermissions(@Valid ResourceModel resource, @Valid AclPrincipalModel principal);
+
+
+    /**
+     * Return all resource ids(same resource type) given principal was granted. answered from in-memory index.
+     *
+     * @param resource   resource type(type is required).
+     * @param principal  grants principal.
+     * @param permission optional permission(any permission if not provided).
+     * @return accessible resource ids.
+     */
+    Set<String> findAccessibleResourceIds(@Valid ResourceModel resource, @Valid AclPrincipalModel principal, PermissionModel permission);
+
+
+    /**
+     * Return count of resources(same resource type) given principal was granted. answered from in-memory index.
+     *
+     * @param resource   resource type(type is required).
+     * @param principal  grants principal.
+     * @param permission optional permission(any permission if not provided).
+     * @return
+     */
+    int countAccessibleResources(@Valid ResourceModel resource, @Valid AclPrincipalModel principal, PermissionModel permission);
+
+
+    /**
+     * Return resource ids in given candidates that given principal was granted(intersection). answered from in-memory index.
+     *
+     * @param resource             resource type(type is required).
+     * @param principal            grants principal.
+     * @param permission           optional permission(any permission if not provided).
+     * @param candidateResourceIds candidate resource ids.
+     * @return accessible resource ids(keep candidates order).
+     */
+    Set<String> findAccessibleResourceIds(@Valid ResourceModel resource, @Valid AclPrincipalModel principal, PermissionModel permission, Collection<String> candidateResourceIds);
+
+
     /**
      * check if given principal was granted permissions for given resource.
      *
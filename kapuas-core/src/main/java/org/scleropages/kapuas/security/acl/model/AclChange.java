@@ -0,0 +1,116 @@
+/**
+ * Copyright 2001-2005 The Apache Software Foundation.
+ * <p>
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ * <p>
+ * http://www.apache.org/licenses/LICENSE-2.0
+ * <p>
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.scleropages.kapuas.security.acl.model;
+
+import java.util.Date;
+
+/**
+ * one record of acl change feed. consumers use {@link #getSeq()} of last record as next cursor.
+ *
+ * @author <a href="mailto:martinmao@icloud.com">Martin Mao</a>
+ */
+public class AclChange {
+
+    public enum Type {
+        ACL_CREATED, ACL_UPDATED, ACL_DELETED, ENTRY_CREATED, ENTRY_DELETED, STRATEGY_CREATED, PRINCIPAL_CREATED, MEMBER_CREATED, MEMBER_DELETED
+    }
+
+    private Long seq;
+
+    private Type type;
+
+    private String resourceType;
+
+    private String resourceId;
+
+    private String principal;
+
+    private String[] permissions;
+
+    private Date time;
+
+    public AclChange() {
+    }
+
+    public AclChange(Type type, String resourceType, String resourceId, String principal, String... permissions) {
+        this.type = type;
+        this.resourceType = resourceType;
+        this.resourceId = resourceId;
+        this.principal = principal;
+        this.permissions = permissions;
+    }
+
+    public Long getSeq() {
+        return seq;
+    }
+
+    public Type getType() {
+        return type;
+    }
+
+    public String getResourceType() {
+        return resourceType;
+    }
+
+    public String getResourceId() {
+        return resourceId;
+    }
+
+    /**
+     * owner of acl(ACL_*), grant principal of entries(ENTRY_*), created principal(PRINCIPAL_CREATED) or member of parent(MEMBER_*, parent in resourceId).
+     *
+     * @return
+     */
+    public String getPrincipal() {
+        return principal;
+    }
+
+    public String[] getPermissions() {
+        return permissions;
+    }
+
+    public Date getTime() {
+        return time;
+    }
+
+    public void setSeq(Long seq) {
+        this.seq = seq;
+    }
+
+    public void setType(Type type) {
+        this.type = type;
+    }
+
+    public void setResourceType(String resourceType) {
+        this.resourceType = resourceType;
+    }
+
+    public void setResourceId(String resourceId) {
+        this.resourceId = resourceId;
+    }
+
+    public void setPrincipal(String principal) {
+        this.principal = principal;
+    }
+
+    public void setPermissions(String[] permissions) {
+        this.permissions = permissions;
+    }
+
+    public void setTime(Date time) {
+        this.time = time;
+    }
+}
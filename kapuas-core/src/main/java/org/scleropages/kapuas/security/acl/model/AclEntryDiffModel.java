@@ -0,0 +1,54 @@
+/**
+ * Copyright 2001-2005 The Apache Software Foundation.
+ * <p>
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ * <p>
+ * http://www.apache.org/licenses/LICENSE-2.0
+ * <p>
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.scleropages.kapuas.security.acl.model;
+
+import java.util.List;
+
+/**
+ * applied diff of acl entries reconcile(see {@link org.scleropages.kapuas.security.acl.AclManager#reconcileEntries(ResourceModel, java.util.Map)}).
+ *
+ * @author <a href="mailto:martinmao@icloud.com">Martin Mao</a>
+ */
+public class AclEntryDiffModel {
+
+    private List<AclEntryGrantModel> granted;
+
+    private List<AclEntryGrantModel> revoked;
+
+    public AclEntryDiffModel() {
+    }
+
+    public AclEntryDiffModel(List<AclEntryGrantModel> granted, List<AclEntryGrantModel> revoked) {
+        this.granted = granted;
+        this.revoked = revoked;
+    }
+
+    public List<AclEntryGrantModel> getGranted() {
+        return granted;
+    }
+
+    public List<AclEntryGrantModel> getRevoked() {
+        return revoked;
+    }
+
+    public void setGranted(List<AclEntryGrantModel> granted) {
+        this.granted = granted;
+    }
+
+    public void setRevoked(List<AclEntryGrantModel> revoked) {
+        this.revoked = revoked;
+    }
+}
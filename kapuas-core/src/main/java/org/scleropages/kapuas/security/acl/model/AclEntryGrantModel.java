@@ -0,0 +1,79 @@
+/**
+ * Copyright 2001-2005 The Apache Software Foundation.
+ * <p>
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ * <p>
+ * http://www.apache.org/licenses/LICENSE-2.0
+ * <p>
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.scleropages.kapuas.security.acl.model;
+
+import javax.validation.constraints.NotBlank;
+
+/**
+ * one (resource, principal, permissions) tuple of bulk acl entries grant/revoke.
+ *
+ * @author <a href="mailto:martinmao@icloud.com">Martin Mao</a>
+ */
+public class AclEntryGrantModel {
+
+    private String resourceType;
+
+    private String resourceId;
+
+    private String principal;
+
+    private String[] permission;
+
+    public AclEntryGrantModel() {
+    }
+
+    public AclEntryGrantModel(String resourceType, String resourceId, String principal, String... permission) {
+        this.resourceType = resourceType;
+        this.resourceId = resourceId;
+        this.principal = principal;
+        this.permission = permission;
+    }
+
+    @NotBlank
+    public String getResourceType() {
+        return resourceType;
+    }
+
+    @NotBlank
+    public String getResourceId() {
+        return resourceId;
+    }
+
+    @NotBlank
+    public String getPrincipal() {
+        return principal;
+    }
+
+    public String[] getPermission() {
+        return permission;
+    }
+
+    public void setResourceType(String resourceType) {
+        this.resourceType = resourceType;
+    }
+
+    public void setResourceId(String resourceId) {
+        this.resourceId = resourceId;
+    }
+
+    public void setPrincipal(String principal) {
+        this.principal = principal;
+    }
+
+    public void setPermission(String[] permission) {
+        this.permission = permission;
+    }
+}
@@ -43,6 +43,7 @@ public class AclModel implements Acl {
     private List<AclEntry> aclEntries;
     private Map<String, Object> variables;
     private EntryList<String, Object> variableEntries;
+    private String bizPayload;
 
 
     public Long getId() {
@@ -89,6 +90,11 @@ public class AclModel implements Acl {
         return variableEntries;
     }
 
+    @ApiIgnore({PageItem.class, Info.class})
+    public String getBizPayload() {
+        return bizPayload;
+    }
+
     public void setId(Long id) {
         this.id = id;
     }
@@ -127,6 +133,10 @@ public class AclModel implements Acl {
         this.variables = variableEntries.toMap();
     }
 
+    public void setBizPayload(String bizPayload) {
+        this.bizPayload = bizPayload;
+    }
+
     @Override
     public Serializable id() {
         return id;
@@ -0,0 +1,60 @@
+/**
+ * Copyright 2001-2005 The Apache Software Foundation.
+ * <p>
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ * <p>
+ * http://www.apache.org/licenses/LICENSE-2.0
+ * <p>
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.scleropages.kapuas.security.acl.model;
+
+/**
+ * progress of bulk operation. reported after each chunk committed.
+ *
+ * @author <a href="mailto:martinmao@icloud.com">Martin Mao</a>
+ */
+public class BulkProgress {
+
+    private long processed;
+
+    private long created;
+
+    private long skipped;
+
+    private int chunks;
+
+    public void chunkCommitted(int processed, int created) {
+        this.processed += processed;
+        this.created += created;
+        this.skipped += processed - created;
+        this.chunks++;
+    }
+
+    public long getProcessed() {
+        return processed;
+    }
+
+    public long getCreated() {
+        return created;
+    }
+
+    /**
+     * already exists(or duplicated in input) and skipped.
+     *
+     * @return
+     */
+    public long getSkipped() {
+        return skipped;
+    }
+
+    public int getChunks() {
+        return chunks;
+    }
+}
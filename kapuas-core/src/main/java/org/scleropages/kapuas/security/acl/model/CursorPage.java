@@ -0,0 +1,114 @@
+/**
+ * Copyright 2001-2005 The Apache Software Foundation.
+ * <p>
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ * <p>
+ * http://www.apache.org/licenses/LICENSE-2.0
+ * <p>
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.scleropages.kapuas.security.acl.model;
+
+import org.apache.commons.lang3.StringUtils;
+
+import java.nio.charset.StandardCharsets;
+import java.util.Base64;
+import java.util.Collections;
+import java.util.List;
+
+/**
+ * a page of keyset(seek) pagination. no total count provided. use {@link #getNext()} as continuation token to fetch next page.
+ *
+ * @author <a href="mailto:martinmao@icloud.com">Martin Mao</a>
+ */
+public class CursorPage<T> {
+
+    private final List<T> content;
+
+    private final String next;
+
+    public CursorPage(List<T> content, Cursor next) {
+        this.content = null != content ? content : Collections.emptyList();
+        this.next = null != next ? next.encode() : null;
+    }
+
+    public List<T> getContent() {
+        return content;
+    }
+
+    /**
+     * return continuation token of next page or null if no more pages.
+     *
+     * @return
+     */
+    public String getNext() {
+        return next;
+    }
+
+    public boolean hasNext() {
+        return null != next;
+    }
+
+
+    /**
+     * last row key (resource_type_id, resource_id, id) of a page. encoded as opaque token.
+     */
+    public static class Cursor {
+
+        private static final String SEPARATOR = ":";
+
+        private final Long resourceTypeId;
+
+        private final String resourceId;
+
+        private final Long id;
+
+        public Cursor(Long resourceTypeId, String resourceId, Long id) {
+            this.resourceTypeId = resourceTypeId;
+            this.resourceId = resourceId;
+            this.id = id;
+        }
+
+        public Long getResourceTypeId() {
+            return resourceTypeId;
+        }
+
+        public String getResourceId() {
+            return resourceId;
+        }
+
+        public Long getId() {
+            return id;
+        }
+
+        public String encode() {
+            //resource id may contains separator, so placed at last.
+            String key = resourceTypeId + SEPARATOR + id + SEPARATOR + resourceId;
+            return Base64.getUrlEncoder().withoutPadding().encodeToString(key.getBytes(StandardCharsets.UTF_8));
+        }
+
+        /**
+         * decode given continuation token. return null if token is blank(first page).
+         *
+         * @param token
+         * @return
+         * @throws IllegalArgumentException if given token is invalid.
+         */
+        public static Cursor decode(String token) {
+            if (StringUtils.isBlank(token))
+                return null;
+            try {
+                String[] key = new String(Base64.getUrlDecoder().decode(token), StandardCharsets.UTF_8).split(SEPARATOR, 3);
+                return new Cursor(Long.valueOf(key[0]), key[2], Long.valueOf(key[1]));
+            } catch (RuntimeException e) {
+                throw new IllegalArgumentException("invalid continuation token: " + token);
+            }
+        }
+    }
+}
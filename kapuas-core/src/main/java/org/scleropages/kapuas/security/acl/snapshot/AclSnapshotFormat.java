@@ -0,0 +1,84 @@
+/**
+ * Copyright 2001-2005 The Apache Software Foundation.
+ * <p>
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ * <p>
+ * http://www.apache.org/licenses/LICENSE-2.0
+ * <p>
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.scleropages.kapuas.security.acl.snapshot;
+
+/**
+ * 资源类型 acl 快照文件格式(big-endian). 文件由 {@link AclSnapshotWriter} 生成，客户端只读映射到内存后直接查找.
+ * <pre>
+ * header(64 bytes):
+ *   int magic, int format version, long snapshot version, long created at,
+ *   int resource type(char offset), int resource type(char length),
+ *   int permission count, int principal count, int ancestor count, int entry count, int char count, int flags, 8 bytes reserved.
+ * permissions(sorted by name):   int name offset, int name length, long mask.
+ * principals(sorted by name):    int name offset, int name length, long any mask(include ancestors), int ancestor start, int ancestor count.
+ * ancestors:                     int principal index.
+ * entries(sorted by resource id, principal index): int resource id offset, int resource id length, int principal index, int reserved, long acl id, long mask.
+ * chars:                         utf-16 string pool referenced by offset/length above.
+ * trailer:                       long crc32 of all bytes above.
+ * </pre>
+ * 字符串比较使用 {@link String#compareTo(String)} 语义(utf-16 code unit)，写入与查找顺序一致.
+ *
+ * @author <a href="mailto:martinmao@icloud.com">Martin Mao</a>
+ */
+public final class AclSnapshotFormat {
+
+    public static final int MAGIC = 0x4B41434C;//"KACL"
+
+    public static final int FORMAT_VERSION = 1;
+
+    public static final int HEADER_SIZE = 64;
+
+    public static final int PERMISSION_RECORD_SIZE = 16;
+
+    public static final int PRINCIPAL_RECORD_SIZE = 24;
+
+    public static final int ANCESTOR_RECORD_SIZE = 4;
+
+    public static final int ENTRY_RECORD_SIZE = 32;
+
+    public static final int TRAILER_SIZE = 8;
+
+    /**
+     * coarse-grained resource type(no permission definitions). entries mask is {@link #ALL_PERMISSIONS_MASK}.
+     */
+    public static final int FLAG_COARSE_GRAINED = 1;
+
+    public static final long ALL_PERMISSIONS_MASK = -1L;
+
+    public static final int OFFSET_MAGIC = 0;
+    public static final int OFFSET_FORMAT_VERSION = 4;
+    public static final int OFFSET_VERSION = 8;
+    public static final int OFFSET_CREATED_AT = 16;
+    public static final int OFFSET_RESOURCE_TYPE = 24;
+    public static final int OFFSET_RESOURCE_TYPE_LENGTH = 28;
+    public static final int OFFSET_PERMISSION_COUNT = 32;
+    public static final int OFFSET_PRINCIPAL_COUNT = 36;
+    public static final int OFFSET_ANCESTOR_COUNT = 40;
+    public static final int OFFSET_ENTRY_COUNT = 44;
+    public static final int OFFSET_CHAR_COUNT = 48;
+    public static final int OFFSET_FLAGS = 52;
+
+    /**
+     * return total file size by given section counts.
+     */
+    public static long fileSize(int permissionCount, int principalCount, int ancestorCount, int entryCount, int charCount) {
+        return (long) HEADER_SIZE + (long) permissionCount * PERMISSION_RECORD_SIZE + (long) principalCount * PRINCIPAL_RECORD_SIZE
+                + (long) ancestorCount * ANCESTOR_RECORD_SIZE + (long) entryCount * ENTRY_RECORD_SIZE + (long) charCount * 2 + TRAILER_SIZE;
+    }
+
+    private AclSnapshotFormat() {
+    }
+}
@@ -0,0 +1,226 @@
+/**
+ * Copyright 2001-2005 The Apache Software Foundation.
+ * <p>
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ * <p>
+ * http://www.apache.org/licenses/LICENSE-2.0
+ * <p>
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.scleropages.kapuas.security.acl.snapshot;
+
+import com.google.common.collect.Lists;
+import com.google.common.collect.Maps;
+import com.google.common.collect.Sets;
+import org.springframework.util.Assert;
+
+import java.io.BufferedOutputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.util.Comparator;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.TreeMap;
+import java.util.TreeSet;
+import java.util.zip.CRC32;
+import java.util.zip.CheckedOutputStream;
+
+import static org.scleropages.kapuas.security.acl.snapshot.AclSnapshotFormat.*;
+
+/**
+ * build acl snapshot of one resource type and write it as {@link AclSnapshotFormat}.
+ * 同一 (resource,principal) 的多条授权合并为一条(mask 按位或). principal 的 ancestors(所属组/角色) 随快照写出，查找时展开.
+ * <p>
+ * not thread-safe.
+ *
+ * @author <a href="mailto:martinmao@icloud.com">Martin Mao</a>
+ */
+public class AclSnapshotWriter {
+
+    private final String resourceType;
+
+    private final long version;
+
+    private final boolean coarseGrained;
+
+    private final Map<String, Long> permissions = new TreeMap<>();
+
+    private final Map<String, Set<String>> ancestors = Maps.newHashMap();
+
+    private final List<Entry> entries = Lists.newArrayList();
+
+    public AclSnapshotWriter(String resourceType, long version, boolean coarseGrained) {
+        Assert.hasText(resourceType, "resourceType must not be empty.");
+        this.resourceType = resourceType;
+        this.version = version;
+        this.coarseGrained = coarseGrained;
+    }
+
+    public AclSnapshotWriter permission(String name, long mask) {
+        Assert.isTrue(!coarseGrained, "coarse-grained resource type not support permission.");
+        Assert.hasText(name, "permission name must not be empty.");
+        permissions.put(name, mask);
+        return this;
+    }
+
+    /**
+     * @param aclId
+     * @param resourceId
+     * @param principal
+     * @param mask       grant mask(include inherit permissions). ignored for coarse-grained resource type.
+     * @return
+     */
+    public AclSnapshotWriter entry(long aclId, String resourceId, String principal, long mask) {
+        Assert.hasText(resourceId, "resourceId must not be empty.");
+        Assert.hasText(principal, "principal must not be empty.");
+        entries.add(new Entry(aclId, resourceId, principal, coarseGrained ? ALL_PERMISSIONS_MASK : mask));
+        return this;
+    }
+
+    /**
+     * principal inherit grants of given ancestor(group/role it belongs to).
+     */
+    public AclSnapshotWriter ancestor(String principal, String ancestor) {
+        if (!principal.equals(ancestor))
+            ancestors.computeIfAbsent(principal, key -> Sets.newHashSet()).add(ancestor);
+        return this;
+    }
+
+    public int entrySize() {
+        return entries.size();
+    }
+
+    public void writeTo(OutputStream outputStream) throws IOException {
+        StringBuilder chars = new StringBuilder();
+        int resourceTypeOffset = append(chars, resourceType);
+
+        //principal indexes(sorted by name)
+        TreeSet<String> principalNames = new TreeSet<>();
+        entries.forEach(entry -> principalNames.add(entry.principal));
+        ancestors.forEach((principal, principalAncestors) -> {
+            principalNames.add(principal);
+            principalNames.addAll(principalAncestors);
+        });
+        Map<String, Integer> principalIndexes = Maps.newHashMapWithExpectedSize(principalNames.size());
+        String[] principals = principalNames.toArray(new String[0]);
+        for (int i = 0; i < principals.length; i++)
+            principalIndexes.put(principals[i], i);
+
+        //merge entries of same (resource,principal)
+        entries.forEach(entry -> entry.principalIndex = principalIndexes.get(entry.principal));
+        entries.sort(Comparator.<Entry, String>comparing(entry -> entry.resourceId).thenComparingInt(entry -> entry.principalIndex));
+        List<Entry> merged = Lists.newArrayListWithExpectedSize(entries.size());
+        long[] ownMasks = new long[principals.length];
+        for (Entry entry : entries) {
+            Entry last = merged.isEmpty() ? null : merged.get(merged.size() - 1);
+            if (null != last && last.principalIndex == entry.principalIndex && last.resourceId.equals(entry.resourceId))
+                last.mask |= entry.mask;
+            else
+                merged.add(entry);
+            ownMasks[entry.principalIndex] |= entry.mask;
+        }
+
+        int[] principalOffsets = new int[principals.length];
+        for (int i = 0; i < principals.length; i++)
+            principalOffsets[i] = append(chars, principals[i]);
+        Map<String, Integer> permissionOffsets = Maps.newHashMap();
+        permissions.keySet().forEach(name -> permissionOffsets.put(name, append(chars, name)));
+        int[] resourceOffsets = new int[merged.size()];
+        for (int i = 0; i < merged.size(); i++) {
+            //entries sorted by resource id, reuse previous offset for same resource.
+            resourceOffsets[i] = i > 0 && merged.get(i - 1).resourceId.equals(merged.get(i).resourceId) ? resourceOffsets[i - 1] : append(chars, merged.get(i).resourceId);
+        }
+
+        int ancestorCount = 0;
+        for (Set<String> principalAncestors : ancestors.values())
+            ancestorCount += principalAncestors.size();
+
+        CRC32 crc32 = new CRC32();
+        DataOutputStream out = new DataOutputStream(new CheckedOutputStream(new BufferedOutputStream(outputStream, 64 * 1024), crc32));
+        out.writeInt(MAGIC);
+        out.writeInt(FORMAT_VERSION);
+        out.writeLong(version);
+        out.writeLong(System.currentTimeMillis());
+        out.writeInt(resourceTypeOffset);
+        out.writeInt(resourceType.length());
+        out.writeInt(permissions.size());
+        out.writeInt(principals.length);
+        out.writeInt(ancestorCount);
+        out.writeInt(merged.size());
+        out.writeInt(chars.length());
+        out.writeInt(coarseGrained ? FLAG_COARSE_GRAINED : 0);
+        out.writeLong(0);
+
+        for (Map.Entry<String, Long> permission : permissions.entrySet()) {
+            out.writeInt(permissionOffsets.get(permission.getKey()));
+            out.writeInt(permission.getKey().length());
+            out.writeLong(permission.getValue());
+        }
+
+        List<int[]> principalAncestorIndexes = Lists.newArrayListWithExpectedSize(principals.length);
+        int ancestorStart = 0;
+        for (int i = 0; i < principals.length; i++) {
+            Set<String> principalAncestors = ancestors.get(principals[i]);
+            int[] ancestorIndexes = null == principalAncestors ? new int[0] : principalAncestors.stream().mapToInt(principalIndexes::get).sorted().toArray();
+            long anyMask = ownMasks[i];
+            for (int ancestorIndex : ancestorIndexes)
+                anyMask |= ownMasks[ancestorIndex];
+            out.writeInt(principalOffsets[i]);
+            out.writeInt(principals[i].length());
+            out.writeLong(anyMask);
+            out.writeInt(ancestorStart);
+            out.writeInt(ancestorIndexes.length);
+            ancestorStart += ancestorIndexes.length;
+            principalAncestorIndexes.add(ancestorIndexes);
+        }
+        for (int[] ancestorIndexes : principalAncestorIndexes) {
+            for (int ancestorIndex : ancestorIndexes)
+                out.writeInt(ancestorIndex);
+        }
+
+        for (int i = 0; i < merged.size(); i++) {
+            Entry entry = merged.get(i);
+            out.writeInt(resourceOffsets[i]);
+            out.writeInt(entry.resourceId.length());
+            out.writeInt(entry.principalIndex);
+            out.writeInt(0);
+            out.writeLong(entry.aclId);
+            out.writeLong(entry.mask);
+        }
+        out.writeChars(chars.toString());
+        out.flush();
+        //crc not include itself.
+        new DataOutputStream(outputStream).writeLong(crc32.getValue());
+        outputStream.flush();
+    }
+
+    private int append(StringBuilder chars, String value) {
+        int offset = chars.length();
+        chars.append(value);
+        return offset;
+    }
+
+
+    private static final class Entry {
+        private final long aclId;
+        private final String resourceId;
+        private final String principal;
+        private long mask;
+        private int principalIndex;
+
+        private Entry(long aclId, String resourceId, String principal, long mask) {
+            this.aclId = aclId;
+            this.resourceId = resourceId;
+            this.principal = principal;
+            this.mask = mask;
+        }
+    }
+}
@@ -19,6 +19,9 @@ import com.fasterxml.jackson.core.JsonProcessingException;
 import com.fasterxml.jackson.databind.ObjectMapper;
 import com.google.common.cache.Cache;
 import com.google.common.cache.CacheBuilder;
+import com.google.common.cache.RemovalCause;
+import com.google.common.cache.RemovalListener;
+import com.google.common.collect.Maps;
 import org.apache.commons.lang3.builder.ToStringBuilder;
 import org.apache.commons.lang3.builder.ToStringStyle;
 import org.apache.shiro.session.Session;
@@ -28,25 +31,42 @@ import org.apache.shiro.session.mgt.SimpleSession;
 import org.apache.shiro.session.mgt.ValidatingSession;
 import org.apache.shiro.session.mgt.eis.CachingSessionDAO;
 import org.scleropages.crud.FrameworkContext;
+import org.scleropages.kapuas.session.provider.shiro.invalidation.SessionInvalidation;
+import org.scleropages.kapuas.session.provider.shiro.invalidation.SessionInvalidationTransport;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
+import org.springframework.beans.factory.DisposableBean;
 import org.springframework.beans.factory.InitializingBean;
 import org.springframework.beans.factory.annotation.Value;
 import org.springframework.util.Assert;
 
 import java.io.Serializable;
+import java.util.Map;
+import java.util.UUID;
+import java.util.concurrent.ConcurrentMap;
 import java.util.concurrent.ExecutionException;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
 import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
 
 /**
  * 该实现扩展 {@link CachingSessionDAO} 使其可以作为一级缓存降低远程io开销，当前实现不确保1-2级缓存一致性。
  * 仅用于降低完全依赖远程缓存造成的网络带宽瓶颈，所以为最大减少1级缓存中数据的中间状态持续时间，应将一级缓存策略在满足远程缓存的性能前提下尽量设置的短一些.
  * 此外，每次提供了touch的限流，同样减少每次请求都会去update远程状态，降低网络开销，在touch限流开启的情况下，本地会对每个key维护一个最后更新时间，如果请求间隔
  * 时间小于 minimumTouchTimeInMs，则不会进行remote update，但有一种情况例外，即更新了session attributes，会话属性一旦更新都会调用远程update.
+ * <p>
+ * touch write-behind 开启后，仅更新了最后访问时间的 {@link ObservableSession} 不再写入整个会话，而是记录在本地(同一会话合并为最后访问时间)，由后台任务按
+ * flushIntervalInMs 批量刷新(延长远程过期时间并记录最后访问时间，见 {@link #doRemoteTouch(Map, long)}). 会话属性变更依然同步写入远程.
+ * <p>
+ * 设置了 {@link SessionInvalidationTransport} 后，本节点写入(非touch)或删除远程会话时广播失效通知. 其他节点收到后记录失效版本号(本地递增)，
+ * 一级缓存中的会话副本记录其读取前的版本号，读取缓存时副本版本号小于失效版本号则视为过期并重新读取远程. 删除通知直接移除本地副本.
+ * <p>
+ * lazy-attributes 开启后会话还原为 {@link LazyObservableSession}，实现类可以将属性值以序列化形式({@link LazyObservableSession.LazyAttribute})返回，首次访问时才反序列化.
  *
  * @author <a href="mailto:martinmao@icloud.com">Martin Mao</a>
  */
-public abstract class AbstractRemotingSessionDao extends CachingSessionDAO implements InitializingBean {
+public abstract class AbstractRemotingSessionDao extends CachingSessionDAO implements InitializingBean, DisposableBean {
 
     protected final Logger logger = LoggerFactory.getLogger(getClass());
 
@@ -68,20 +88,130 @@ public abstract class AbstractRemotingSessionDao extends CachingSessionDAO imple
     //记录最后一次touch时间，减少touch次数
     private Cache<Serializable, Long> touchTimestamps;
 
+    //touch write-behind
+    @Value("#{ @environment['session.remote-session.touch-write-behind.enabled'] ?: false }")
+    private boolean touchWriteBehindEnabled;
+    @Value("#{ @environment['session.remote-session.touch-write-behind.flush-interval-ms'] ?: 1000 }")
+    private long touchFlushIntervalInMs;
+
+    //待刷新的touch: session id -> 最后访问时间
+    private final ConcurrentMap<Serializable, Long> pendingTouches = Maps.newConcurrentMap();
+
+    private ScheduledExecutorService touchFlusher;
+
+    @Value("#{ @environment['session.remote-session.lazy-attributes.enabled'] ?: false }")
+    private boolean lazyAttributesEnabled;
+
     private SessionFactory sessionFactory;
 
+    //cross-node invalidation
+    private SessionInvalidationTransport invalidationTransport;
+
+    private final String nodeId = UUID.randomUUID().toString();
+
+    private final AtomicLong invalidationVersion = new AtomicLong();
+
+    //session id -> 收到失效通知时的版本号
+    private Cache<String, Long> invalidatedVersions;
+
+    //session id -> 本地副本缓存时的版本号
+    private Cache<String, Long> cachedVersions;
+
+    //失效通知可能丢失(订阅中断)时的版本号，之前缓存的所有副本视为过期
+    private volatile long resyncVersion = -1;
+
+    @Value("#{ @environment['session.remote-session.invalidation.maximum-versions'] ?: 100000 }")
+    private long maximumInvalidationVersions;
+
     @Override
     protected void doUpdate(Session session) {
+        if (touchWriteBehindEnabled && isTouchOnly(session)) {
+            pendingTouches.merge(session.getId(), session.getLastAccessTime().getTime(), Math::max);
+            return;
+        }
         if (!needUpdate(session))
             return;
         session.setTimeout(TimeUnit.MINUTES.toMillis(sessionTimeoutInMinutes));//session timeout会被shiro重置
         debugSession("session updating for: {}", session);
-        Assert.state(doRemoteUpdate(wrap(session), sessionTimeoutInMinutes), "failure to do session update. may given session may not exists: " + session);
+        //write-behind 模式下写入前重置变更状态，写入期间发生的变更会在下次update时写入
+        boolean changeStateReset = touchWriteBehindEnabled && session instanceof ObservableSession && ((ObservableSession) session).resetChangeState();
+        try {
+            Assert.state(doRemoteUpdate(session, sessionTimeoutInMinutes), "failure to do session update. may given session may not exists: " + session);
+        } catch (RuntimeException e) {
+            if (changeStateReset)
+                ((ObservableSession) session).forceChange();
+            throw e;
+        }
+        if (touchWriteBehindEnabled)
+            pendingTouches.remove(session.getId());//full update already contains last access time.
         if (touchFlowControlEnabled)
             touchTimestamps.put(session.getId(), System.currentTimeMillis());
+        stampCachedVersion(session.getId(), invalidationVersion.get());
+        publishInvalidation(SessionInvalidation.Type.UPDATED, session.getId());
+    }
+
+    /**
+     * return true if only last access time changed since previously update. session not observable always considered changed.
+     *
+     * @param session
+     * @return
+     */
+    protected boolean isTouchOnly(Session session) {
+        return session instanceof ObservableSession && !((ObservableSession) session).attributeChanged() && null != session.getLastAccessTime();
+    }
+
+    /**
+     * flush pending touches in batch. touches failed to flush will retry in next round(unless newer touch recorded).
+     */
+    protected void flushTouches() {
+        if (pendingTouches.isEmpty())
+            return;
+        Map<Serializable, Long> touches = Maps.newHashMap();
+        for (Serializable sessionId : pendingTouches.keySet()) {
+            Long lastAccessTime = pendingTouches.remove(sessionId);
+            if (null != lastAccessTime)
+                touches.put(sessionId, lastAccessTime);
+        }
+        if (touches.isEmpty())
+            return;
+        try {
+            doRemoteTouch(touches, sessionTimeoutInMinutes);
+            logger.debug("{} session touches flushed.", touches.size());
+        } catch (Exception e) {
+            logger.warn("failure to flush session touches: " + e.getMessage() + ". will retry next round.", e);
+            touches.forEach((sessionId, lastAccessTime) -> pendingTouches.merge(sessionId, lastAccessTime, Math::max));
+        }
+    }
+
+    /**
+     * extend remote session ttl and record last access time for given touches in batch(session not re-written).
+     * implementation must apply recorded last access time when reading session(see {@link #doRemoteRead(Serializable)}).
+     *
+     * @param touches                 session id -> last access time(in ms)
+     * @param sessionTimeoutInMinutes
+     */
+    protected abstract void doRemoteTouch(Map<Serializable, Long> touches, long sessionTimeoutInMinutes);
+
+    protected boolean isTouchWriteBehindEnabled() {
+        return touchWriteBehindEnabled;
+    }
+
+    protected boolean isLazyAttributesEnabled() {
+        return lazyAttributesEnabled;
     }
 
 
+    /**
+     * true if success return false may given session not exists. by default write whole session(see {@link #doRemoteUpdate(SimpleSessionAdapter, long)}),
+     * implementation can override to write changed attributes only(see {@link ObservableSession#drainDirtyAttributes()}).
+     *
+     * @param session
+     * @return
+     */
+    protected boolean doRemoteUpdate(Session session, long sessionTimeoutInMinutes) {
+        return doRemoteUpdate(wrap(session), sessionTimeoutInMinutes);
+    }
+
     /**
      * true if success return false may given session not exists
      *
@@ -125,9 +255,12 @@ public abstract class AbstractRemotingSessionDao extends CachingSessionDAO imple
     @Override
     protected void doDelete(Session session) {
         debugSession("session deleting for: {}", session);
+        if (touchWriteBehindEnabled)
+            pendingTouches.remove(session.getId());
         Assert.state(doRemoteDelete(session), "failure to do session delete. may given session may not exists: " + session);
         if (touchFlowControlEnabled)
             touchTimestamps.invalidate(session.getId());
+        publishInvalidation(SessionInvalidation.Type.DELETED, session.getId());
     }
 
     /**
@@ -144,6 +277,8 @@ public abstract class AbstractRemotingSessionDao extends CachingSessionDAO imple
         Serializable sessionId = generateSessionId(session);
         assignSessionId(session, sessionId);
         session.setTimeout(TimeUnit.MINUTES.toMillis(sessionTimeoutInMinutes));
+        if (session instanceof ObservableSession)//all attributes written on create.
+            ((ObservableSession) session).drainDirtyAttributes();
         debugSession("session creating for: {}", session);
         boolean success = doRemoteCreate(sessionId, wrap(session), sessionTimeoutInMinutes);
         if (!success) {//检查可能的sessionId碰撞，重新生成
@@ -152,6 +287,7 @@ public abstract class AbstractRemotingSessionDao extends CachingSessionDAO imple
         }
         if (touchFlowControlEnabled)
             touchTimestamps.put(session.getId(), System.currentTimeMillis());
+        stampCachedVersion(sessionId, invalidationVersion.get());
         return sessionId;
     }
 
@@ -169,11 +305,13 @@ public abstract class AbstractRemotingSessionDao extends CachingSessionDAO imple
         if (logger.isDebugEnabled()) {
             logger.debug("session reading for id: " + sessionId);
         }
+        long version = invalidationVersion.get();//capture before remote read. invalidations received during read will expire this copy.
         SimpleSessionAdapter _session = doRemoteRead(sessionId);
         if (null == _session)
             return null;
         Session session = unwrap(_session);
         cache(session, sessionId);//refresh level-1 cache
+        stampCachedVersion(sessionId, version);
         debugSession("session read: {}", session);
         return session;
     }
@@ -181,6 +319,61 @@ public abstract class AbstractRemotingSessionDao extends CachingSessionDAO imple
     protected abstract SimpleSessionAdapter doRemoteRead(Serializable sessionId);
 
 
+    /**
+     * return null if local copy was invalidated by other nodes after it cached.
+     */
+    @Override
+    protected Session getCachedSession(Serializable sessionId) {
+        Session session = super.getCachedSession(sessionId);
+        if (null == session || null == invalidatedVersions)
+            return session;
+        String key = String.valueOf(sessionId);
+        Long invalidated = invalidatedVersions.getIfPresent(key);
+        long expired = Math.max(resyncVersion, null != invalidated ? invalidated : -1);
+        if (expired < 0)
+            return session;
+        //version evicted(maximum size) treated as expired.
+        Long cached = cachedVersions.getIfPresent(key);
+        if (null != cached && cached >= expired)
+            return session;
+        logger.debug("local session copy invalidated by other node: {}", sessionId);
+        return null;
+    }
+
+    protected void onInvalidation(SessionInvalidation invalidation) {
+        if (nodeId.equals(invalidation.getOrigin()))
+            return;
+        invalidatedVersions.put(invalidation.getSessionId(), invalidationVersion.incrementAndGet());
+        if (SessionInvalidation.Type.DELETED == invalidation.getType()) {
+            org.apache.shiro.cache.Cache<Serializable, Session> activeSessions = getActiveSessionsCache();
+            if (null != activeSessions)
+                activeSessions.remove(invalidation.getSessionId());
+        }
+    }
+
+    /**
+     * invalidations may have been lost. expire all local copies cached before.
+     */
+    protected void onInvalidationResync() {
+        resyncVersion = invalidationVersion.incrementAndGet();
+    }
+
+    private void publishInvalidation(SessionInvalidation.Type type, Serializable sessionId) {
+        if (null == invalidationTransport)
+            return;
+        try {
+            invalidationTransport.publish(new SessionInvalidation(nodeId, type, String.valueOf(sessionId)));
+        } catch (Exception e) {//remote state already written. other nodes will see it after local cache expired.
+            logger.warn("failure to publish session invalidation: " + e.getMessage(), e);
+        }
+    }
+
+    private void stampCachedVersion(Serializable sessionId, long version) {
+        if (null != cachedVersions)
+            cachedVersions.put(String.valueOf(sessionId), version);
+    }
+
+
     protected void debugSession(String msg, Session session) {
         if (logger.isDebugEnabled()) {
             ToStringBuilder toStringBuilder = new ToStringBuilder(session, ToStringStyle.MULTI_LINE_STYLE)
@@ -258,6 +451,10 @@ public abstract class AbstractRemotingSessionDao extends CachingSessionDAO imple
     }
 
     protected Session unwrap(SimpleSessionAdapter simpleSessionAdapter) {
+        if (lazyAttributesEnabled)
+            return simpleSessionAdapter.populateProperties(
+                    sessionFactory instanceof ObservableSessionFactory ?
+                            new LazyObservableSession(((ObservableSessionFactory) sessionFactory).getAttributeChangesConsumers()) : new LazyObservableSession());
         return simpleSessionAdapter.populateProperties(
                 null != sessionFactory ?
                         sessionFactory instanceof ObservableSessionFactory ?
@@ -270,10 +467,45 @@ public abstract class AbstractRemotingSessionDao extends CachingSessionDAO imple
         this.sessionFactory = sessionFactory;
     }
 
+    public void setInvalidationTransport(SessionInvalidationTransport invalidationTransport) {
+        this.invalidationTransport = invalidationTransport;
+    }
+
     @Override
     public void afterPropertiesSet() throws Exception {
         if (touchFlowControlEnabled)
             touchTimestamps = CacheBuilder.newBuilder().maximumSize(touchMonitorSize).expireAfterWrite(minimumTouchTimeInMs, TimeUnit.MILLISECONDS).build();
+        if (touchWriteBehindEnabled) {
+            touchFlusher = Executors.newSingleThreadScheduledExecutor(runnable -> {
+                Thread thread = new Thread(runnable, "remote-session-touch-flusher");
+                thread.setDaemon(true);
+                return thread;
+            });
+            touchFlusher.scheduleWithFixedDelay(this::flushTouches, touchFlushIntervalInMs, touchFlushIntervalInMs, TimeUnit.MILLISECONDS);
+            logger.info("remote session touch write-behind enabled. flush interval: {}ms", touchFlushIntervalInMs);
+        }
+        if (null != invalidationTransport) {
+            //versions only need keep alive as long as session. expired session will not be read.
+            //cached version evicted by size: local copy treated as expired(re-read). invalidated version evicted by size: all copies cached before expired.
+            invalidatedVersions = CacheBuilder.newBuilder().maximumSize(maximumInvalidationVersions).expireAfterWrite(sessionTimeoutInMinutes, TimeUnit.MINUTES)
+                    .removalListener((RemovalListener<String, Long>) notification -> {
+                        if (notification.getCause() == RemovalCause.SIZE)
+                            resyncVersion = Math.max(resyncVersion, notification.getValue());
+                    }).build();
+            cachedVersions = CacheBuilder.newBuilder().maximumSize(maximumInvalidationVersions).expireAfterWrite(sessionTimeoutInMinutes, TimeUnit.MINUTES).build();
+            invalidationTransport.subscribe(this::onInvalidation);
+            invalidationTransport.subscribeResync(this::onInvalidationResync);
+            logger.info("remote session cross-node invalidation enabled. node id: {}", nodeId);
+        }
+    }
+
+    @Override
+    public void destroy() throws Exception {
+        if (null == touchFlusher)
+            return;
+        touchFlusher.shutdown();
+        touchFlusher.awaitTermination(touchFlushIntervalInMs, TimeUnit.MILLISECONDS);
+        flushTouches();
     }
 
 }
@@ -0,0 +1,91 @@
+/**
+ * Copyright 2001-2005 The Apache Software Foundation.
+ * <p>
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ * <p>
+ * http://www.apache.org/licenses/LICENSE-2.0
+ * <p>
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.scleropages.kapuas.session.provider.shiro;
+
+import java.util.Map;
+import java.util.Set;
+import java.util.function.Function;
+
+/**
+ * 属性延迟反序列化的 {@link ObservableSession}. 从远程读取的属性值保持序列化形式({@link LazyAttribute})，首次 {@link #getAttribute(Object)} 时才反序列化.
+ * 反序列化后替换原值但不标记为变更，写回时仍然只写入变更过的属性(见 {@link #drainDirtyAttributes()}).
+ *
+ * @author <a href="mailto:martinmao@icloud.com">Martin Mao</a>
+ */
+public class LazyObservableSession extends ObservableSession {
+
+    public LazyObservableSession() {
+    }
+
+    public LazyObservableSession(Set<SessionAttributeChangeConsumer> attributeChangesConsumers) {
+        super(attributeChangesConsumers);
+    }
+
+    @Override
+    public Object getAttribute(Object key) {
+        Object value = super.getAttribute(key);
+        if (!(value instanceof LazyAttribute))
+            return value;
+        Object decoded = ((LazyAttribute) value).get();
+        getAttributes().replace(key, value, decoded);//existing key, no structural modification.
+        return decoded;
+    }
+
+    @Override
+    public Object removeAttribute(Object key) {
+        return LazyAttribute.unwrap(super.removeAttribute(key));
+    }
+
+    /**
+     * decode all attributes not decoded yet. used when whole session must be written.
+     */
+    public void materializeAttributes() {
+        Map<Object, Object> attributes = getAttributes();
+        if (null != attributes)
+            attributes.replaceAll((key, value) -> LazyAttribute.unwrap(value));
+    }
+
+
+    /**
+     * attribute value in serialized form.
+     */
+    public static final class LazyAttribute {
+
+        private final byte[] bytes;
+
+        private final Function<byte[], Object> decoder;
+
+        private volatile Object decoded;
+
+        public LazyAttribute(byte[] bytes, Function<byte[], Object> decoder) {
+            this.bytes = bytes;
+            this.decoder = decoder;
+        }
+
+        public Object get() {
+            Object value = decoded;
+            if (null == value) {
+                value = decoder.apply(bytes);
+                decoded = value;
+            }
+            return value;
+        }
+
+        public static Object unwrap(Object value) {
+            return value instanceof LazyAttribute ? ((LazyAttribute) value).get() : value;
+        }
+    }
+}
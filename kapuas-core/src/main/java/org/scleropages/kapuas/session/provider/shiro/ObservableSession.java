@@ -20,7 +20,10 @@ import org.apache.shiro.session.mgt.SimpleSession;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 
+import com.google.common.collect.Sets;
+
 import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
 import java.util.concurrent.atomic.AtomicBoolean;
 import java.util.function.BiConsumer;
 
@@ -29,6 +32,8 @@ import java.util.function.BiConsumer;
  * <p>
  * NOTE:该类并非用于完整监控session属性变化，目前用于远程session序列化，在session属性未发生变化时，减少update次数.降低io开销
  * 需注意线程安全，父类 {@link SimpleSession} 并非线程安全实现
+ * <p>
+ * 此外记录自上次 {@link #drainDirtyAttributes()} 以来变更(更新或删除)的属性key，用于远程session按属性增量写入.
  *
  * @author <a href="mailto:martinmao@icloud.com">Martin Mao</a>
  */
@@ -45,6 +50,11 @@ public class ObservableSession extends SimpleSession {
 
     private final transient Set<SessionAttributeChangeConsumer> attributeChangesConsumers;
 
+    private transient Set<Object> dirtyAttributes = ConcurrentHashMap.newKeySet();
+
+    //forceChange 或无法确定变更属性时需要完整写入
+    private transient AtomicBoolean allDirty = new AtomicBoolean(false);
+
 
     public ObservableSession() {
         attributeChangesConsumers = null;
@@ -62,12 +72,14 @@ public class ObservableSession extends SimpleSession {
     @Override
     public void setAttribute(Object key, Object value) {
         super.setAttribute(key, value);
+        markDirty(key);
         notifyIfNecessary("updated", key);
     }
 
     @Override
     public Object removeAttribute(Object key) {
         Object object = super.removeAttribute(key);
+        markDirty(key);
         notifyIfNecessary("removed", key);
         return object;
     }
@@ -81,9 +93,30 @@ public class ObservableSession extends SimpleSession {
     }
 
     public void forceChange() {
+        allDirty.set(true);
         notifyIfNecessary("force-changed", null);
     }
 
+    protected void markDirty(Object key) {
+        if (null != key)
+            dirtyAttributes.add(key);
+    }
+
+    /**
+     * return attribute keys changed(updated or removed) since previously drain and clear them.
+     *
+     * @return null if all attributes must be written(see {@link #forceChange()}).
+     */
+    public Set<Object> drainDirtyAttributes() {
+        boolean all = allDirty.getAndSet(false);
+        Set<Object> drained = Sets.newHashSet();
+        for (Object key : dirtyAttributes) {
+            if (dirtyAttributes.remove(key))
+                drained.add(key);
+        }
+        return all ? null : drained;
+    }
+
     public boolean resetChangeState() {
         if (attributeChanges.compareAndSet(true, false)) {
             LOGGER.debug("performing reset session-attributes changes for session: {}.", getId());
@@ -15,24 +15,73 @@
  */
 package org.scleropages.kapuas.session.provider.shiro;
 
+import com.google.common.collect.Lists;
+import com.google.common.collect.Maps;
 import org.apache.shiro.session.Session;
 import org.scleropages.connector.redis.RedisClient;
 import org.scleropages.connector.redis.RedisKey;
 import org.scleropages.serialize.LookupSerializerFactory;
 import org.springframework.beans.factory.InitializingBean;
 import org.springframework.beans.factory.annotation.Value;
+import org.springframework.dao.DataAccessException;
+import org.springframework.data.redis.connection.ReturnType;
+import org.springframework.data.redis.core.RedisCallback;
+import org.springframework.data.redis.core.RedisOperations;
+import org.springframework.data.redis.core.RedisTemplate;
+import org.springframework.data.redis.core.SessionCallback;
+import org.springframework.data.redis.serializer.RedisSerializer;
 import org.springframework.util.StringUtils;
 
 import java.io.Serializable;
+import java.nio.charset.StandardCharsets;
 import java.util.Collection;
+import java.util.Collections;
+import java.util.Date;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
 import java.util.concurrent.TimeUnit;
+import java.util.function.Consumer;
 import java.util.function.Function;
+import java.util.stream.Collectors;
 
 /**
+ * touch write-behind 开启时，最后访问时间单独记录在 {@code <key-type>_touch} 键中(与会话键相同的 slot key)，会话读取时合并.
+ * <p>
+ * layout=hash 时会话存储为 redis hash，元数据(不含属性)与每个属性各为一个 field，更新时只写入变更的属性(见 {@link ObservableSession#drainDirtyAttributes()}).
+ * hash layout 的创建与更新通过 lua 脚本执行，键存在性检查、字段写入与ttl设置原子完成.
+ * hash layout 下开启 lazy-attributes 时读取原始字节，属性值在首次访问时才反序列化(见 {@link LazyObservableSession}).
+ *
  * @author <a href="mailto:martinmao@icloud.com">Martin Mao</a>
  */
 public class RedisSessionDao extends AbstractRemotingSessionDao implements InitializingBean {
 
+    private static final String TOUCH_KEY_TYPE_SUFFIX = "_touch";
+
+    private static final String LAYOUT_HASH = "hash";
+
+    //hash layout 中会话元数据(不含属性)字段
+    private static final String META_FIELD = "__session_meta";
+
+    /*
+     * hash layout 写入脚本. KEYS[1]: 会话键. ARGV[1]: ttl(毫秒), ARGV[2]: 1 先删除整个hash(全量重写), ARGV[3]: 写入字段数 n,
+     * 之后 n 组 field/value(HSET)，剩余参数为删除字段(HDEL). 写入与 PEXPIRE 在同一脚本中原子执行.
+     */
+    private static final String HASH_WRITE_SCRIPT_BODY = "if ARGV[2] == '1' then redis.call('del', KEYS[1]) end\n"
+            + "local puts = tonumber(ARGV[3])\n"
+            + "for i = 4, 3 + puts * 2, 2 do redis.call('hset', KEYS[1], ARGV[i], ARGV[i + 1]) end\n"
+            + "for i = 4 + puts * 2, #ARGV do redis.call('hdel', KEYS[1], ARGV[i]) end\n"
+            + "redis.call('pexpire', KEYS[1], ARGV[1])\n"
+            + "return 1";
+
+    //仅当会话键存在时写入(会话过期或删除后不会重建无ttl的键).
+    private static final byte[] HASH_UPDATE_SCRIPT = ("if redis.call('exists', KEYS[1]) == 0 then return 0 end\n"
+            + HASH_WRITE_SCRIPT_BODY).getBytes(StandardCharsets.UTF_8);
+
+    //仅当会话键不存在时写入.
+    private static final byte[] HASH_CREATE_SCRIPT = ("if redis.call('exists', KEYS[1]) == 1 then return 0 end\n"
+            + HASH_WRITE_SCRIPT_BODY).getBytes(StandardCharsets.UTF_8);
+
     private final RedisClient redisClient;
 
     @Value("#{ @environment['session.remote-session.redis.key-namespace'] ?: 'shiro' }")
@@ -47,6 +96,10 @@ public class RedisSessionDao extends AbstractRemotingSessionDao implements Initi
     @Value("#{ @environment['session.remote-session.redis.serialize'] ?: null }")
     private String serialize;
 
+    //value: 整个会话序列化为一个值. hash: 每个属性一个 hash field，按属性增量写入
+    @Value("#{ @environment['session.remote-session.redis.layout'] ?: 'value' }")
+    private String layout;
+
     private LookupSerializerFactory serializerFactory;
 
 
@@ -75,6 +128,24 @@ public class RedisSessionDao extends AbstractRemotingSessionDao implements Initi
     }
 
 
+    /**
+     * 执行 pipeline，返回各命令结果(按执行顺序)
+     *
+     * @param redisOps
+     * @return
+     */
+    protected List<Object> executePipelined(Consumer<RedisOperations<Object, Object>> redisOps) {
+        return execute(redis -> redis.objectValueTemplate().executePipelined(new SessionCallback<Object>() {
+            @Override
+            @SuppressWarnings("unchecked")
+            public <K, V> Object execute(RedisOperations<K, V> operations) throws DataAccessException {
+                redisOps.accept((RedisOperations<Object, Object>) operations);
+                return null;
+            }
+        }));
+    }
+
+
     @Override
     protected boolean doRemoteUpdate(SimpleSessionAdapter session, long sessionTimeoutInMinutes) {
         return execute(redis ->
@@ -82,21 +153,207 @@ public class RedisSessionDao extends AbstractRemotingSessionDao implements Initi
     }
 
 
+    /**
+     * hash layout: one script writes metadata field and changed attributes only(HSET/HDEL). whole hash rewritten if changed attributes unknown.
+     * script runs only if session key exists and resets ttl atomically.
+     */
+    @Override
+    protected boolean doRemoteUpdate(Session session, long sessionTimeoutInMinutes) {
+        if (!isHashLayout())
+            return super.doRemoteUpdate(session, sessionTimeoutInMinutes);
+        Set<Object> dirtyAttributes = session instanceof ObservableSession ? ((ObservableSession) session).drainDirtyAttributes() : null;
+        RedisKey key = fromSessionId(session.getId());
+        long ttl = TimeUnit.MINUTES.toMillis(sessionTimeoutInMinutes);
+        SimpleSessionAdapter metadata = wrap(session);
+        Map<Object, Object> attributes = metadata.getAttributes();
+        metadata.setAttributes(null);
+        try {
+            if (null == dirtyAttributes)
+                return evalHashScript(HASH_UPDATE_SCRIPT, key, ttl, true, toHashFields(metadata, attributes), Collections.emptyList());
+            Map<Object, Object> puts = Maps.newHashMapWithExpectedSize(dirtyAttributes.size() + 1);
+            List<Object> deletes = Lists.newArrayList();
+            puts.put(META_FIELD, metadata);
+            dirtyAttributes.forEach(attributeKey -> {
+                Object value = null != attributes ? attributes.get(attributeKey) : null;
+                if (null != value)
+                    puts.put(attributeKey, LazyObservableSession.LazyAttribute.unwrap(value));
+                else
+                    deletes.add(attributeKey);
+            });
+            return evalHashScript(HASH_UPDATE_SCRIPT, key, ttl, false, puts, deletes);
+        } catch (RuntimeException e) {
+            if (session instanceof ObservableSession)//changes not written. rewrite all in next update.
+                ((ObservableSession) session).forceChange();
+            throw e;
+        }
+    }
+
+    /**
+     * run given hash layout write script(see {@link #HASH_UPDATE_SCRIPT}). fields and values encoded by hash key/value serializer of template.
+     *
+     * @return true if script applied.
+     */
+    @SuppressWarnings("unchecked")
+    protected boolean evalHashScript(byte[] script, RedisKey key, long ttl, boolean rewrite, Map<Object, Object> puts, Collection<Object> deletes) {
+        return execute(redis -> {
+            RedisTemplate<Object, Object> template = (RedisTemplate<Object, Object>) redis.objectValueTemplate();
+            RedisSerializer<Object> keySerializer = (RedisSerializer<Object>) template.getKeySerializer();
+            RedisSerializer<Object> hashKeySerializer = (RedisSerializer<Object>) template.getHashKeySerializer();
+            RedisSerializer<Object> hashValueSerializer = (RedisSerializer<Object>) template.getHashValueSerializer();
+            byte[][] keysAndArgs = new byte[4 + puts.size() * 2 + deletes.size()][];
+            int i = 0;
+            keysAndArgs[i++] = keySerializer.serialize(key);
+            keysAndArgs[i++] = String.valueOf(ttl).getBytes(StandardCharsets.UTF_8);
+            keysAndArgs[i++] = (rewrite ? "1" : "0").getBytes(StandardCharsets.UTF_8);
+            keysAndArgs[i++] = String.valueOf(puts.size()).getBytes(StandardCharsets.UTF_8);
+            for (Map.Entry<Object, Object> put : puts.entrySet()) {
+                keysAndArgs[i++] = hashKeySerializer.serialize(put.getKey());
+                keysAndArgs[i++] = hashValueSerializer.serialize(put.getValue());
+            }
+            for (Object delete : deletes)
+                keysAndArgs[i++] = hashKeySerializer.serialize(delete);
+            Long result = template.execute((RedisCallback<Long>) connection -> connection.eval(script, ReturnType.INTEGER, 1, keysAndArgs));
+            return Long.valueOf(1).equals(result);
+        });
+    }
+
+
+    /**
+     * one pipeline: PEXPIRE session key and SET touch key(last access time) with same ttl. touch keys of sessions not exists are removed.
+     */
+    @Override
+    protected void doRemoteTouch(Map<Serializable, Long> touches, long sessionTimeoutInMinutes) {
+        long ttl = TimeUnit.MINUTES.toMillis(sessionTimeoutInMinutes);
+        List<Serializable> sessionIds = touches.keySet().stream().collect(Collectors.toList());
+        List<Object> results = executePipelined(redisOperations -> sessionIds.forEach(sessionId -> {
+            redisOperations.expire(fromSessionId(sessionId), ttl, TimeUnit.MILLISECONDS);
+            redisOperations.opsForValue().set(fromSessionTouchId(sessionId), touches.get(sessionId), ttl, TimeUnit.MILLISECONDS);
+        }));
+        for (int i = 0; i < sessionIds.size(); i++) {
+            if (Boolean.FALSE.equals(results.get(i * 2))) {
+                Serializable sessionId = sessionIds.get(i);
+                execute(redis -> redis.objectValueTemplate().delete(fromSessionTouchId(sessionId)));
+            }
+        }
+    }
+
     @Override
     protected boolean doRemoteDelete(Session session) {
+        if (isTouchWriteBehindEnabled())
+            execute(redis -> redis.objectValueTemplate().delete(fromSessionTouchId(session.getId())));
         return execute(redis -> redis.objectValueTemplate().delete(fromSession(session)));
     }
 
 
     @Override
     protected boolean doRemoteCreate(Serializable sessionId, SimpleSessionAdapter session, long sessionTimeoutInMinutes) {
-        return execute(redis -> redis.objectValueOperations().setIfAbsent(fromSessionId(sessionId), session, sessionTimeoutInMinutes, TimeUnit.MINUTES));
+        if (!isHashLayout())
+            return execute(redis -> redis.objectValueOperations().setIfAbsent(fromSessionId(sessionId), session, sessionTimeoutInMinutes, TimeUnit.MINUTES));
+        RedisKey key = fromSessionId(sessionId);
+        long ttl = TimeUnit.MINUTES.toMillis(sessionTimeoutInMinutes);
+        Map<Object, Object> attributes = session.getAttributes();
+        session.setAttributes(null);
+        //metadata, attributes and ttl written by one script only if session key absent.
+        return evalHashScript(HASH_CREATE_SCRIPT, key, ttl, false, toHashFields(session, attributes), Collections.emptyList());
     }
 
 
     @Override
+    @SuppressWarnings("unchecked")
     protected SimpleSessionAdapter doRemoteRead(Serializable sessionId) {
-        return execute(redis -> (SimpleSessionAdapter) redis.objectValueOperations().get(fromSessionId(sessionId)));
+        if (isHashLayout() && isLazyAttributesEnabled())
+            return doRemoteLazyRead(sessionId);
+        if (!isTouchWriteBehindEnabled() && !isHashLayout())
+            return execute(redis -> (SimpleSessionAdapter) redis.objectValueOperations().get(fromSessionId(sessionId)));
+        List<Object> values = executePipelined(redisOperations -> {
+            if (isHashLayout())
+                redisOperations.opsForHash().entries(fromSessionId(sessionId));
+            else
+                redisOperations.opsForValue().get(fromSessionId(sessionId));
+            if (isTouchWriteBehindEnabled())
+                redisOperations.opsForValue().get(fromSessionTouchId(sessionId));
+        });
+        SimpleSessionAdapter session = isHashLayout() ? fromHashFields((Map<Object, Object>) values.get(0)) : (SimpleSessionAdapter) values.get(0);
+        return mergeLastAccessTime(session, values.size() > 1 ? values.get(1) : null);
+    }
+
+    /**
+     * read hash fields as raw bytes in one pipeline. field names and metadata decoded immediately, attribute values decoded on first access.
+     */
+    @SuppressWarnings("unchecked")
+    protected SimpleSessionAdapter doRemoteLazyRead(Serializable sessionId) {
+        return execute(redis -> {
+            RedisTemplate<Object, Object> template = (RedisTemplate<Object, Object>) redis.objectValueTemplate();
+            RedisSerializer<Object> keySerializer = (RedisSerializer<Object>) template.getKeySerializer();
+            RedisSerializer<Object> hashKeySerializer = (RedisSerializer<Object>) template.getHashKeySerializer();
+            RedisSerializer<Object> hashValueSerializer = (RedisSerializer<Object>) template.getHashValueSerializer();
+            byte[] rawKey = keySerializer.serialize(fromSessionId(sessionId));
+            byte[] rawTouchKey = isTouchWriteBehindEnabled() ? keySerializer.serialize(fromSessionTouchId(sessionId)) : null;
+            //null result serializer: raw bytes returned.
+            List<Object> values = template.executePipelined((RedisCallback<Object>) connection -> {
+                connection.hGetAll(rawKey);
+                if (null != rawTouchKey)
+                    connection.get(rawTouchKey);
+                return null;
+            }, null);
+            Map<byte[], byte[]> rawFields = (Map<byte[], byte[]>) values.get(0);
+            if (null == rawFields || rawFields.isEmpty())
+                return null;
+            SimpleSessionAdapter session = null;
+            Map<Object, Object> attributes = Maps.newHashMapWithExpectedSize(rawFields.size());
+            for (Map.Entry<byte[], byte[]> rawField : rawFields.entrySet()) {
+                Object field = hashKeySerializer.deserialize(rawField.getKey());
+                if (META_FIELD.equals(field))
+                    session = (SimpleSessionAdapter) hashValueSerializer.deserialize(rawField.getValue());
+                else
+                    attributes.put(field, new LazyObservableSession.LazyAttribute(rawField.getValue(),
+                            bytes -> execute(lazyRedis -> hashValueSerializer.deserialize(bytes))));
+            }
+            if (null == session)
+                return null;
+            session.setAttributes(attributes.isEmpty() ? null : attributes);
+            Object lastAccessTime = values.size() > 1 && null != values.get(1) ? template.getValueSerializer().deserialize((byte[]) values.get(1)) : null;
+            return mergeLastAccessTime(session, lastAccessTime);
+        });
+    }
+
+    protected SimpleSessionAdapter mergeLastAccessTime(SimpleSessionAdapter session, Object lastAccessTime) {
+        if (null != session && lastAccessTime instanceof Long
+                && (null == session.getLastAccessTime() || session.getLastAccessTime().getTime() < (Long) lastAccessTime))
+            session.setLastAccessTime(new Date((Long) lastAccessTime));
+        return session;
+    }
+
+    protected Map<Object, Object> toHashFields(SimpleSessionAdapter metadata, Map<Object, Object> attributes) {
+        Map<Object, Object> fields = null != attributes ? Maps.newHashMap(attributes) : Maps.newHashMap();
+        fields.replaceAll((field, value) -> LazyObservableSession.LazyAttribute.unwrap(value));//whole hash rewritten.
+        fields.put(META_FIELD, metadata);
+        return fields;
+    }
+
+    /**
+     * return null if no metadata field found(session not exists).
+     */
+    protected SimpleSessionAdapter fromHashFields(Map<Object, Object> fields) {
+        if (null == fields || fields.isEmpty())
+            return null;
+        Map<Object, Object> attributes = Maps.newHashMap(fields);
+        SimpleSessionAdapter session = (SimpleSessionAdapter) attributes.remove(META_FIELD);
+        if (null == session)
+            return null;
+        session.setAttributes(attributes.isEmpty() ? null : attributes);
+        return session;
+    }
+
+    protected boolean isHashLayout() {
+        return LAYOUT_HASH.equalsIgnoreCase(layout);
+    }
+
+    @Override
+    public void afterPropertiesSet() throws Exception {
+        super.afterPropertiesSet();
+        if (isLazyAttributesEnabled() && !isHashLayout())
+            logger.warn("lazy-attributes only applied to hash layout. session attributes of layout '{}' will decoded eagerly.", layout);
     }
 
     protected RedisKey fromSession(Session session) {
@@ -112,6 +369,15 @@ public class RedisSessionDao extends AbstractRemotingSessionDao implements Initi
     }
 
 
+    protected RedisKey fromSessionTouchId(Serializable sessionId) {
+        RedisKey.RedisKeyBuilder redisKeyBuilder = RedisKey.RedisKeyBuilder.fromCatalogAndType(sessionKeyCatalog, sessionKeyType + TOUCH_KEY_TYPE_SUFFIX).withId(String.valueOf(sessionId));
+        if (StringUtils.hasText(slotKey)) {
+            redisKeyBuilder.withSlotKey(slotKey);
+        }
+        return redisKeyBuilder.build();
+    }
+
+
     @Override
     public Collection<Session> getActiveSessions() {
         return super.getActiveSessions();
@@ -0,0 +1,667 @@
+/**
+ * Copyright 2001-2005 The Apache Software Foundation.
+ * <p>
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ * <p>
+ * http://www.apache.org/licenses/LICENSE-2.0
+ * <p>
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.scleropages.kapuas.session.provider.shiro.codec;
+
+import com.google.common.collect.Maps;
+import net.jpountz.lz4.LZ4Factory;
+import org.apache.shiro.subject.SimplePrincipalCollection;
+import org.scleropages.kapuas.security.AuthenticationDetails;
+import org.scleropages.kapuas.security.authc.provider.Authenticated;
+import org.scleropages.kapuas.session.provider.shiro.SimpleSessionAdapter;
+import org.springframework.util.Assert;
+import org.springframework.util.ClassUtils;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.EOFException;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.ObjectInputStream;
+import java.io.ObjectOutputStream;
+import java.io.OutputStream;
+import java.io.Serializable;
+import java.io.UncheckedIOException;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Date;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.CopyOnWriteArrayList;
+
+/**
+ * {@link SimpleSessionAdapter} 专用的紧凑二进制编码. 与通用序列化(如kryo FieldSerializer)相比不写入类名，时间戳写为 epoch long，
+ * 字符串(host、属性名、realm name 等)在同一会话内写入字符串表，重复出现时仅写入表索引. 常用属性值类型以及 {@link Authenticated} 主体使用类型标签编码，
+ * 其他类型交由 {@link ValueFallback} (即宿主序列化实现)处理.
+ * <p>
+ * 格式: [version:1][flags:1][raw length:varint, 仅压缩时][body]. body 超过 compressionThreshold 且 classpath 中存在 lz4-java 时使用 LZ4 压缩.
+ * 宿主序列化器应在编码结果前写入 {@link #MAGIC}，以便与启用本编码前(宿主默认序列化器)写入的会话区分，标记缺失时回退至宿主默认序列化器解码.
+ * <p>
+ * 应用可以通过 {@link #register(int, Class, boolean, TypeCodec)} 为自有类型注册标签(不小于 {@link #CUSTOM_TAG_START})，标签一经使用不可变更.
+ *
+ * @author <a href="mailto:martinmao@icloud.com">Martin Mao</a>
+ */
+public class SimpleSessionCodec {
+
+    public static final int FORMAT_VERSION = 1;
+
+    /**
+     * leading marker written by host serializer before encoded session(see {@link #isMagic(int, int)}).
+     */
+    public static final int MAGIC = 0xC55E;
+
+    private static final int FLAG_LZ4 = 1;
+
+    //field presence bits
+    private static final int HAS_START = 1;
+    private static final int HAS_STOP = 1 << 1;
+    private static final int HAS_LAST_ACCESS = 1 << 2;
+    private static final int EXPIRED = 1 << 3;
+    private static final int HAS_HOST = 1 << 4;
+    private static final int HAS_ATTRIBUTES = 1 << 5;
+
+    //builtin type tags
+    public static final int TAG_NULL = 0;
+    public static final int TAG_FALLBACK = 1;
+    public static final int TAG_STRING = 2;
+    public static final int TAG_INTEGER = 3;
+    public static final int TAG_LONG = 4;
+    public static final int TAG_TRUE = 5;
+    public static final int TAG_FALSE = 6;
+    public static final int TAG_DOUBLE = 7;
+    public static final int TAG_DATE = 8;
+    public static final int TAG_BYTES = 9;
+    public static final int TAG_PRINCIPALS = 10;
+    public static final int TAG_AUTHENTICATED = 11;
+
+    public static final int CUSTOM_TAG_START = 32;
+    private static final int MAX_TAG = 255;
+
+    private static final boolean LZ4_PRESENT = ClassUtils.isPresent("net.jpountz.lz4.LZ4Factory", SimpleSessionCodec.class.getClassLoader());
+
+    /**
+     * JDK serialization used for values has no type tag.
+     */
+    public static final ValueFallback JDK_FALLBACK = new ValueFallback() {
+        @Override
+        public byte[] encode(Object value) throws IOException {
+            ByteArrayOutputStream bytes = new ByteArrayOutputStream(256);
+            try (ObjectOutputStream out = new ObjectOutputStream(bytes)) {
+                out.writeObject(value);
+            }
+            return bytes.toByteArray();
+        }
+
+        @Override
+        public Object decode(byte[] bytes) throws IOException {
+            try (ObjectInputStream in = new ObjectInputStream(new ByteArrayInputStream(bytes))) {
+                return in.readObject();
+            } catch (ClassNotFoundException e) {
+                throw new IOException(e);
+            }
+        }
+    };
+
+    private final int compressionThreshold;
+
+    private final Registration<?>[] registrationsByTag = new Registration[MAX_TAG + 1];
+
+    private final ConcurrentMap<Class<?>, Registration<?>> registrationsByType = Maps.newConcurrentMap();
+
+    //registrations also match subtypes(checked in order)
+    private final List<Registration<?>> hierarchyRegistrations = new CopyOnWriteArrayList<>();
+
+    //no registration found for type(use fallback)
+    private static final Registration<?> UNREGISTERED = new Registration<>(TAG_FALLBACK, Object.class, null);
+
+
+    /**
+     * @param compressionThreshold body size(in bytes) to enable lz4 compression. less or equals 0 to disable compression.
+     */
+    public SimpleSessionCodec(int compressionThreshold) {
+        this.compressionThreshold = compressionThreshold;
+        registerInternal(TAG_STRING, String.class, false, new TypeCodec<String>() {
+            @Override
+            public void write(String value, SessionOutput out) throws IOException {
+                out.writeString(value);
+            }
+
+            @Override
+            public String read(SessionInput in) throws IOException {
+                return in.readString();
+            }
+        });
+        registerInternal(TAG_INTEGER, Integer.class, false, new TypeCodec<Integer>() {
+            @Override
+            public void write(Integer value, SessionOutput out) throws IOException {
+                out.writeVarLong(zigZag(value));
+            }
+
+            @Override
+            public Integer read(SessionInput in) throws IOException {
+                return (int) unZigZag(in.readVarLong());
+            }
+        });
+        registerInternal(TAG_LONG, Long.class, false, new TypeCodec<Long>() {
+            @Override
+            public void write(Long value, SessionOutput out) throws IOException {
+                out.writeVarLong(zigZag(value));
+            }
+
+            @Override
+            public Long read(SessionInput in) throws IOException {
+                return unZigZag(in.readVarLong());
+            }
+        });
+        registerInternal(TAG_DOUBLE, Double.class, false, new TypeCodec<Double>() {
+            @Override
+            public void write(Double value, SessionOutput out) throws IOException {
+                out.data.writeDouble(value);
+            }
+
+            @Override
+            public Double read(SessionInput in) throws IOException {
+                return in.data.readDouble();
+            }
+        });
+        registerInternal(TAG_DATE, Date.class, false, new TypeCodec<Date>() {
+            @Override
+            public void write(Date value, SessionOutput out) throws IOException {
+                out.data.writeLong(value.getTime());
+            }
+
+            @Override
+            public Date read(SessionInput in) throws IOException {
+                return new Date(in.data.readLong());
+            }
+        });
+        registerInternal(TAG_BYTES, byte[].class, false, new TypeCodec<byte[]>() {
+            @Override
+            public void write(byte[] value, SessionOutput out) throws IOException {
+                out.writeBytes(value);
+            }
+
+            @Override
+            public byte[] read(SessionInput in) throws IOException {
+                return in.readBytes();
+            }
+        });
+        registerInternal(TAG_PRINCIPALS, SimplePrincipalCollection.class, false, new TypeCodec<SimplePrincipalCollection>() {
+            @Override
+            public void write(SimplePrincipalCollection value, SessionOutput out) throws IOException {
+                out.writeVarLong(value.getRealmNames().size());
+                for (String realmName : value.getRealmNames()) {
+                    out.writeString(realmName);
+                    Collection<?> principals = value.fromRealm(realmName);
+                    out.writeVarLong(principals.size());
+                    for (Object principal : principals) {
+                        out.writeValue(principal);
+                    }
+                }
+            }
+
+            @Override
+            public SimplePrincipalCollection read(SessionInput in) throws IOException {
+                SimplePrincipalCollection principals = new SimplePrincipalCollection();
+                int realms = (int) in.readVarLong();
+                for (int i = 0; i < realms; i++) {
+                    String realmName = in.readString();
+                    int size = (int) in.readVarLong();
+                    for (int j = 0; j < size; j++) {
+                        principals.add(in.readValue(), realmName);
+                    }
+                }
+                return principals;
+            }
+        });
+        registerInternal(TAG_AUTHENTICATED, Authenticated.class, true, new TypeCodec<Authenticated>() {
+            @Override
+            public void write(Authenticated value, SessionOutput out) throws IOException {
+                out.writeValue(value.principal());
+                out.writeString(value.host());
+                Date time = value.time();
+                out.data.writeLong(null != time ? time.getTime() : -1);
+                out.writeValue(value.details());
+                out.writeValue(value.realm());
+            }
+
+            @Override
+            public Authenticated read(SessionInput in) throws IOException {
+                Object principal = in.readValue();
+                String host = in.readString();
+                long time = in.data.readLong();
+                return new DecodedAuthenticated(principal, host, time != -1 ? new Date(time) : null, (AuthenticationDetails) in.readValue(), (Serializable) in.readValue());
+            }
+        });
+    }
+
+
+    /**
+     * register a type tag for application type.
+     *
+     * @param tag             tag value must not changed once used. range: [{@link #CUSTOM_TAG_START},255]
+     * @param type            value type
+     * @param includeSubtypes true if given codec also applied to subtypes(eg: interface)
+     * @param codec
+     * @param <T>
+     */
+    public <T> void register(int tag, Class<T> type, boolean includeSubtypes, TypeCodec<T> codec) {
+        Assert.isTrue(tag >= CUSTOM_TAG_START && tag <= MAX_TAG, "tag must in range [" + CUSTOM_TAG_START + "," + MAX_TAG + "]: " + tag);
+        registerInternal(tag, type, includeSubtypes, codec);
+    }
+
+    private <T> void registerInternal(int tag, Class<T> type, boolean includeSubtypes, TypeCodec<T> codec) {
+        Assert.notNull(type, "type must not be null.");
+        Assert.notNull(codec, "codec must not be null.");
+        Assert.isNull(registrationsByTag[tag], "tag already registered: " + tag);
+        Registration<T> registration = new Registration<>(tag, type, codec);
+        registrationsByTag[tag] = registration;
+        registrationsByType.put(type, registration);
+        if (includeSubtypes)
+            hierarchyRegistrations.add(registration);
+        //drop resolved subtypes(may resolved as unregistered before)
+        registrationsByType.entrySet().removeIf(entry -> entry.getKey() != entry.getValue().type);
+    }
+
+    private Registration<?> lookup(Class<?> type) {
+        Registration<?> registration = registrationsByType.get(type);
+        if (null != registration)
+            return registration;
+        registration = UNREGISTERED;
+        for (Registration<?> candidate : hierarchyRegistrations) {
+            if (candidate.type.isAssignableFrom(type)) {
+                registration = candidate;
+                break;
+            }
+        }
+        registrationsByType.putIfAbsent(type, registration);
+        return registration;
+    }
+
+
+    /**
+     * @param first  first byte read(unsigned)
+     * @param second second byte read(unsigned)
+     * @return true if given bytes is {@link #MAGIC}
+     */
+    public static boolean isMagic(int first, int second) {
+        return ((first & 0xFF) << 8 | (second & 0xFF)) == MAGIC;
+    }
+
+    public byte[] encode(SimpleSessionAdapter session, ValueFallback fallback) {
+        try {
+            ByteArrayOutputStream bodyBytes = new ByteArrayOutputStream(512);
+            SessionOutput out = new SessionOutput(new DataOutputStream(bodyBytes), fallback);
+            writeSession(session, out);
+            out.data.flush();
+            byte[] body = bodyBytes.toByteArray();
+
+            ByteArrayOutputStream bytes = new ByteArrayOutputStream(body.length + 8);
+            bytes.write(FORMAT_VERSION);
+            if (compressionThreshold > 0 && LZ4_PRESENT && body.length >= compressionThreshold) {
+                byte[] compressed = Lz4.compress(body);
+                if (compressed.length < body.length) {//incompressible body written as is.
+                    bytes.write(FLAG_LZ4);
+                    writeVarLong(bytes, body.length);
+                    bytes.write(compressed);
+                    return bytes.toByteArray();
+                }
+            }
+            bytes.write(0);
+            bytes.write(body);
+            return bytes.toByteArray();
+        } catch (IOException e) {
+            throw new UncheckedIOException("failure to encode session: " + session.getId(), e);
+        }
+    }
+
+    public SimpleSessionAdapter decode(byte[] bytes, ValueFallback fallback) {
+        Assert.isTrue(bytes.length >= 2, "invalid session bytes.");
+        int version = bytes[0] & 0xFF;
+        Assert.state(version == FORMAT_VERSION, "unsupported session format version: " + version);
+        int flags = bytes[1] & 0xFF;
+        try {
+            DataInputStream data;
+            if ((flags & FLAG_LZ4) != 0) {
+                Assert.state(LZ4_PRESENT, "lz4 compressed session found but lz4-java not present in classpath.");
+                ByteArrayInputStream header = new ByteArrayInputStream(bytes, 2, bytes.length - 2);
+                int rawLength = (int) readVarLong(header);
+                int offset = bytes.length - header.available();
+                data = new DataInputStream(new ByteArrayInputStream(Lz4.decompress(bytes, offset, rawLength)));
+            } else
+                data = new DataInputStream(new ByteArrayInputStream(bytes, 2, bytes.length - 2));
+            return readSession(new SessionInput(data, fallback));
+        } catch (IOException e) {
+            throw new UncheckedIOException("failure to decode session.", e);
+        }
+    }
+
+
+    protected void writeSession(SimpleSessionAdapter session, SessionOutput out) throws IOException {
+        int fields = 0;
+        if (null != session.getStartTimestamp())
+            fields |= HAS_START;
+        if (null != session.getStopTimestamp())
+            fields |= HAS_STOP;
+        if (null != session.getLastAccessTime())
+            fields |= HAS_LAST_ACCESS;
+        if (session.isExpired())
+            fields |= EXPIRED;
+        if (null != session.getHost())
+            fields |= HAS_HOST;
+        if (null != session.getAttributes())
+            fields |= HAS_ATTRIBUTES;
+        out.data.writeByte(fields);
+        out.writeValue(session.getId());
+        out.writeVarLong(session.getTimeout());
+        if (null != session.getStartTimestamp())
+            out.data.writeLong(session.getStartTimestamp().getTime());
+        if (null != session.getStopTimestamp())
+            out.data.writeLong(session.getStopTimestamp().getTime());
+        if (null != session.getLastAccessTime())
+            out.data.writeLong(session.getLastAccessTime().getTime());
+        if (null != session.getHost())
+            out.writeString(session.getHost());
+        if (null != session.getAttributes()) {
+            Map<Object, Object> attributes = session.getAttributes();
+            out.writeVarLong(attributes.size());
+            for (Map.Entry<Object, Object> attribute : attributes.entrySet()) {
+                out.writeValue(attribute.getKey());
+                out.writeValue(attribute.getValue());
+            }
+        }
+    }
+
+    protected SimpleSessionAdapter readSession(SessionInput in) throws IOException {
+        SimpleSessionAdapter session = new SimpleSessionAdapter();
+        int fields = in.data.readUnsignedByte();
+        session.setId((Serializable) in.readValue());
+        session.setTimeout(in.readVarLong());
+        if ((fields & HAS_START) != 0)
+            session.setStartTimestamp(new Date(in.data.readLong()));
+        if ((fields & HAS_STOP) != 0)
+            session.setStopTimestamp(new Date(in.data.readLong()));
+        if ((fields & HAS_LAST_ACCESS) != 0)
+            session.setLastAccessTime(new Date(in.data.readLong()));
+        session.setExpired((fields & EXPIRED) != 0);
+        if ((fields & HAS_HOST) != 0)
+            session.setHost(in.readString());
+        if ((fields & HAS_ATTRIBUTES) != 0) {
+            int size = (int) in.readVarLong();
+            Map<Object, Object> attributes = Maps.newLinkedHashMapWithExpectedSize(size);
+            for (int i = 0; i < size; i++) {
+                attributes.put(in.readValue(), in.readValue());
+            }
+            session.setAttributes(attributes);
+        }
+        return session;
+    }
+
+
+    /**
+     * encoding state of one session: output and string table.
+     */
+    public class SessionOutput {
+
+        private final DataOutputStream data;
+
+        private final ValueFallback fallback;
+
+        private final Map<String, Integer> strings = Maps.newHashMap();
+
+        private SessionOutput(DataOutputStream data, ValueFallback fallback) {
+            this.data = data;
+            this.fallback = fallback;
+        }
+
+        public DataOutputStream data() {
+            return data;
+        }
+
+        public void writeVarLong(long value) throws IOException {
+            SimpleSessionCodec.writeVarLong(data, value);
+        }
+
+        /**
+         * string table entry: 0: null, 1: new entry followed by utf-8 bytes, n(>1): reference to entry n-2.
+         */
+        public void writeString(String value) throws IOException {
+            if (null == value) {
+                writeVarLong(0);
+                return;
+            }
+            Integer index = strings.get(value);
+            if (null != index) {
+                writeVarLong(index + 2);
+                return;
+            }
+            strings.put(value, strings.size());
+            writeVarLong(1);
+            writeBytes(value.getBytes(StandardCharsets.UTF_8));
+        }
+
+        public void writeBytes(byte[] value) throws IOException {
+            writeVarLong(value.length);
+            data.write(value);
+        }
+
+        @SuppressWarnings("unchecked")
+        public void writeValue(Object value) throws IOException {
+            if (null == value) {
+                data.writeByte(TAG_NULL);
+                return;
+            }
+            if (value instanceof Boolean) {
+                data.writeByte((Boolean) value ? TAG_TRUE : TAG_FALSE);
+                return;
+            }
+            Registration<Object> registration = (Registration<Object>) lookup(value.getClass());
+            data.writeByte(registration.tag);
+            if (registration == UNREGISTERED)
+                writeBytes(fallback.encode(value));
+            else
+                registration.codec.write(value, this);
+        }
+    }
+
+    /**
+     * decoding state of one session: input and string table.
+     */
+    public class SessionInput {
+
+        private final DataInputStream data;
+
+        private final ValueFallback fallback;
+
+        private final List<String> strings = new ArrayList<>();
+
+        private SessionInput(DataInputStream data, ValueFallback fallback) {
+            this.data = data;
+            this.fallback = fallback;
+        }
+
+        public DataInputStream data() {
+            return data;
+        }
+
+        public long readVarLong() throws IOException {
+            return SimpleSessionCodec.readVarLong(data);
+        }
+
+        public String readString() throws IOException {
+            int code = (int) readVarLong();
+            if (code == 0)
+                return null;
+            if (code > 1)
+                return strings.get(code - 2);
+            String value = new String(readBytes(), StandardCharsets.UTF_8);
+            strings.add(value);
+            return value;
+        }
+
+        public byte[] readBytes() throws IOException {
+            byte[] value = new byte[(int) readVarLong()];
+            data.readFully(value);
+            return value;
+        }
+
+        public Object readValue() throws IOException {
+            int tag = data.readUnsignedByte();
+            switch (tag) {
+                case TAG_NULL:
+                    return null;
+                case TAG_TRUE:
+                    return Boolean.TRUE;
+                case TAG_FALSE:
+                    return Boolean.FALSE;
+                case TAG_FALLBACK:
+                    return fallback.decode(readBytes());
+                default:
+                    Registration<?> registration = registrationsByTag[tag];
+                    if (null == registration)
+                        throw new IOException("unknown session value tag: " + tag);
+                    return registration.codec.read(this);
+            }
+        }
+    }
+
+
+    /**
+     * encode/decode values of a registered type. nested values should written by {@link SessionOutput#writeValue(Object)}.
+     *
+     * @param <T>
+     */
+    public interface TypeCodec<T> {
+
+        void write(T value, SessionOutput out) throws IOException;
+
+        T read(SessionInput in) throws IOException;
+    }
+
+    /**
+     * encode/decode values has no type tag. usually provided by host serializer(kryo, jdk...).
+     */
+    public interface ValueFallback {
+
+        byte[] encode(Object value) throws IOException;
+
+        Object decode(byte[] bytes) throws IOException;
+    }
+
+
+    private static final class Registration<T> {
+        private final int tag;
+        private final Class<T> type;
+        private final TypeCodec<T> codec;
+
+        private Registration(int tag, Class<T> type, TypeCodec<T> codec) {
+            this.tag = tag;
+            this.type = type;
+            this.codec = codec;
+        }
+    }
+
+    private static final class DecodedAuthenticated implements Authenticated {
+
+        private static final long serialVersionUID = 1l;
+
+        private final Object principal;
+        private final String host;
+        private final Date time;
+        private final AuthenticationDetails details;
+        private final Serializable realm;
+
+        private DecodedAuthenticated(Object principal, String host, Date time, AuthenticationDetails details, Serializable realm) {
+            this.principal = principal;
+            this.host = host;
+            this.time = time;
+            this.details = details;
+            this.realm = realm;
+        }
+
+        @Override
+        public Object principal() {
+            return principal;
+        }
+
+        @Override
+        public String host() {
+            return host;
+        }
+
+        @Override
+        public Date time() {
+            return time;
+        }
+
+        @Override
+        public AuthenticationDetails details() {
+            return details;
+        }
+
+        @Override
+        public Serializable realm() {
+            return realm;
+        }
+    }
+
+    //isolated to avoid loading lz4 classes if not present.
+    private static final class Lz4 {
+
+        private static final LZ4Factory FACTORY = LZ4Factory.fastestInstance();
+
+        private static byte[] compress(byte[] src) {
+            return FACTORY.fastCompressor().compress(src);
+        }
+
+        private static byte[] decompress(byte[] src, int offset, int rawLength) {
+            return FACTORY.fastDecompressor().decompress(src, offset, rawLength);
+        }
+    }
+
+
+    private static long zigZag(long value) {
+        return (value << 1) ^ (value >> 63);
+    }
+
+    private static long unZigZag(long value) {
+        return (value >>> 1) ^ -(value & 1);
+    }
+
+    private static void writeVarLong(OutputStream out, long value) throws IOException {
+        while ((value & ~0x7FL) != 0) {
+            out.write((int) ((value & 0x7F) | 0x80));
+            value >>>= 7;
+        }
+        out.write((int) value);
+    }
+
+    private static long readVarLong(InputStream in) throws IOException {
+        long value = 0;
+        for (int shift = 0; shift < 64; shift += 7) {
+            int b = in.read();
+            if (b < 0)
+                throw new EOFException();
+            value |= (long) (b & 0x7F) << shift;
+            if ((b & 0x80) == 0)
+                return value;
+        }
+        throw new IOException("malformed varint.");
+    }
+}
@@ -0,0 +1,40 @@
+/**
+ * Copyright 2001-2005 The Apache Software Foundation.
+ * <p>
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ * <p>
+ * http://www.apache.org/licenses/LICENSE-2.0
+ * <p>
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.scleropages.kapuas.session.provider.shiro.invalidation;
+
+import java.util.List;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.function.Consumer;
+
+/**
+ * in-jvm transport. invalidations delivered to subscribers synchronously in publisher thread. share one instance among session daos(nodes) in tests.
+ *
+ * @author <a href="mailto:martinmao@icloud.com">Martin Mao</a>
+ */
+public class LoopbackSessionInvalidationTransport implements SessionInvalidationTransport {
+
+    private final List<Consumer<SessionInvalidation>> listeners = new CopyOnWriteArrayList<>();
+
+    @Override
+    public void publish(SessionInvalidation invalidation) {
+        listeners.forEach(listener -> listener.accept(invalidation));
+    }
+
+    @Override
+    public void subscribe(Consumer<SessionInvalidation> listener) {
+        listeners.add(listener);
+    }
+}
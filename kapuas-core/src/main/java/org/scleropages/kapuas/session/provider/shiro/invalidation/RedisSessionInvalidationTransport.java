@@ -0,0 +1,177 @@
+/**
+ * Copyright 2001-2005 The Apache Software Foundation.
+ * <p>
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ * <p>
+ * http://www.apache.org/licenses/LICENSE-2.0
+ * <p>
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.scleropages.kapuas.session.provider.shiro.invalidation;
+
+import org.scleropages.connector.redis.RedisClient;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import org.springframework.beans.factory.DisposableBean;
+import org.springframework.beans.factory.InitializingBean;
+import org.springframework.data.redis.connection.RedisConnectionFactory;
+import org.springframework.data.redis.core.RedisCallback;
+import org.springframework.data.redis.listener.ChannelTopic;
+import org.springframework.data.redis.listener.RedisMessageListenerContainer;
+import org.springframework.util.Assert;
+
+import java.nio.charset.StandardCharsets;
+import java.util.List;
+import java.util.UUID;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+import java.util.function.Consumer;
+
+/**
+ * redis pub/sub transport. messages published as utf-8 text(see {@link SessionInvalidation#encode()}) without session serializer.
+ *
+ * @author <a href="mailto:martinmao@icloud.com">Martin Mao</a>
+ */
+public class RedisSessionInvalidationTransport implements SessionInvalidationTransport, InitializingBean, DisposableBean {
+
+    private static final Logger logger = LoggerFactory.getLogger(RedisSessionInvalidationTransport.class);
+
+    private final RedisClient redisClient;
+
+    private final String channel;
+
+    private final byte[] rawChannel;
+
+    private final List<Consumer<SessionInvalidation>> listeners = new CopyOnWriteArrayList<>();
+
+    private final List<Runnable> resyncListeners = new CopyOnWriteArrayList<>();
+
+    private RedisMessageListenerContainer listenerContainer;
+
+    //heartbeat published to channel by this transport itself. subscription considered lost if own heartbeat not received in time.
+    private final String heartbeatOrigin = UUID.randomUUID().toString();
+
+    private long heartbeatIntervalMillis = 5000;
+
+    private ScheduledExecutorService heartbeat;
+
+    private volatile long lastHeartbeatReceived;
+
+    private volatile boolean subscriptionLost;
+
+    public RedisSessionInvalidationTransport(RedisClient redisClient, String channel) {
+        Assert.notNull(redisClient, "redisClient must not be null.");
+        Assert.hasText(channel, "channel must not be empty.");
+        this.redisClient = redisClient;
+        this.channel = channel;
+        this.rawChannel = channel.getBytes(StandardCharsets.UTF_8);
+    }
+
+    @Override
+    public void publish(SessionInvalidation invalidation) {
+        byte[] message = invalidation.encode().getBytes(StandardCharsets.UTF_8);
+        redisClient.objectValueTemplate().execute((RedisCallback<Long>) connection -> connection.publish(rawChannel, message));
+    }
+
+    @Override
+    public void subscribe(Consumer<SessionInvalidation> listener) {
+        listeners.add(listener);
+    }
+
+    @Override
+    public void subscribeResync(Runnable listener) {
+        resyncListeners.add(listener);
+    }
+
+    /**
+     * publish heartbeat and check last own heartbeat received. resync listeners notified when subscription lost and when recovered.
+     */
+    protected void checkSubscription() {
+        try {
+            publish(new SessionInvalidation(heartbeatOrigin, SessionInvalidation.Type.HEARTBEAT, heartbeatOrigin));
+        } catch (Exception e) {
+            logger.warn("failure to publish session invalidation heartbeat: {}", e.getMessage());
+        }
+        if (!subscriptionLost && System.currentTimeMillis() - lastHeartbeatReceived > heartbeatIntervalMillis * 3) {
+            subscriptionLost = true;
+            logger.warn("session invalidation subscription lost on channel: {}. local session copies expired.", channel);
+            resync();
+        }
+    }
+
+    protected void onHeartbeat(SessionInvalidation invalidation) {
+        if (!heartbeatOrigin.equals(invalidation.getOrigin()))
+            return;
+        lastHeartbeatReceived = System.currentTimeMillis();
+        if (subscriptionLost) {
+            subscriptionLost = false;
+            logger.info("session invalidation subscription recovered on channel: {}. local session copies expired.", channel);
+            resync();//invalidations published while disconnected lost.
+        }
+    }
+
+    protected void resync() {
+        resyncListeners.forEach(listener -> {
+            try {
+                listener.run();
+            } catch (Exception e) {
+                logger.warn("failure to resync session invalidation listener: {}", e.getMessage(), e);
+            }
+        });
+    }
+
+    protected void dispatch(byte[] body) {
+        SessionInvalidation invalidation;
+        try {
+            invalidation = SessionInvalidation.decode(new String(body, StandardCharsets.UTF_8));
+        } catch (Exception e) {
+            logger.warn("ignore invalid session invalidation message: {}", e.getMessage());
+            return;
+        }
+        if (SessionInvalidation.Type.HEARTBEAT == invalidation.getType()) {
+            onHeartbeat(invalidation);
+            return;
+        }
+        listeners.forEach(listener -> listener.accept(invalidation));
+    }
+
+    @Override
+    public void afterPropertiesSet() throws Exception {
+        RedisConnectionFactory connectionFactory = redisClient.objectValueTemplate().getConnectionFactory();
+        Assert.notNull(connectionFactory, "no redis connection factory found.");
+        listenerContainer = new RedisMessageListenerContainer();
+        listenerContainer.setConnectionFactory(connectionFactory);
+        listenerContainer.addMessageListener((message, pattern) -> dispatch(message.getBody()), new ChannelTopic(channel));
+        listenerContainer.afterPropertiesSet();
+        listenerContainer.start();
+        lastHeartbeatReceived = System.currentTimeMillis();
+        heartbeat = Executors.newSingleThreadScheduledExecutor(runnable -> {
+            Thread thread = new Thread(runnable, "session-invalidation-heartbeat");
+            thread.setDaemon(true);
+            return thread;
+        });
+        heartbeat.scheduleWithFixedDelay(this::checkSubscription, heartbeatIntervalMillis, heartbeatIntervalMillis, TimeUnit.MILLISECONDS);
+        logger.info("session invalidation subscribed on redis channel: {}. heartbeat interval: {}ms", channel, heartbeatIntervalMillis);
+    }
+
+    @Override
+    public void destroy() throws Exception {
+        if (null != heartbeat)
+            heartbeat.shutdownNow();
+        if (null != listenerContainer)
+            listenerContainer.destroy();
+    }
+
+    public void setHeartbeatIntervalMillis(long heartbeatIntervalMillis) {
+        Assert.isTrue(heartbeatIntervalMillis > 0, "heartbeatIntervalMillis must greater than 0.");
+        this.heartbeatIntervalMillis = heartbeatIntervalMillis;
+    }
+}
@@ -0,0 +1,83 @@
+/**
+ * Copyright 2001-2005 The Apache Software Foundation.
+ * <p>
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ * <p>
+ * http://www.apache.org/licenses/LICENSE-2.0
+ * <p>
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.scleropages.kapuas.session.provider.shiro.invalidation;
+
+import org.springframework.util.Assert;
+
+/**
+ * 会话失效通知. 节点更新或删除远程会话后广播，其他节点据此使本地(一级缓存)副本失效.
+ *
+ * @author <a href="mailto:martinmao@icloud.com">Martin Mao</a>
+ */
+public class SessionInvalidation {
+
+    public enum Type {
+        UPDATED, DELETED,
+        //subscription liveness probe(see RedisSessionInvalidationTransport). not dispatched to listeners.
+        HEARTBEAT
+    }
+
+    private static final char SEPARATOR = '|';
+
+    private final String origin;
+
+    private final Type type;
+
+    private final String sessionId;
+
+    public SessionInvalidation(String origin, Type type, String sessionId) {
+        Assert.hasText(origin, "origin must not be empty.");
+        Assert.notNull(type, "type must not be null.");
+        Assert.hasText(sessionId, "sessionId must not be empty.");
+        this.origin = origin;
+        this.type = type;
+        this.sessionId = sessionId;
+    }
+
+    /**
+     * node id of publisher.
+     */
+    public String getOrigin() {
+        return origin;
+    }
+
+    public Type getType() {
+        return type;
+    }
+
+    public String getSessionId() {
+        return sessionId;
+    }
+
+    /**
+     * encode as "origin|type|sessionId".
+     */
+    public String encode() {
+        return origin + SEPARATOR + type.name() + SEPARATOR + sessionId;
+    }
+
+    public static SessionInvalidation decode(String text) {
+        int typeStart = text.indexOf(SEPARATOR);
+        int idStart = text.indexOf(SEPARATOR, typeStart + 1);
+        Assert.isTrue(typeStart > 0 && idStart > typeStart, "invalid session invalidation: " + text);
+        return new SessionInvalidation(text.substring(0, typeStart), Type.valueOf(text.substring(typeStart + 1, idStart)), text.substring(idStart + 1));
+    }
+
+    @Override
+    public String toString() {
+        return encode();
+    }
+}
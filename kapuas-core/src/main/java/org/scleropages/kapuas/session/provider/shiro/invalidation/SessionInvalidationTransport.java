@@ -0,0 +1,49 @@
+/**
+ * Copyright 2001-2005 The Apache Software Foundation.
+ * <p>
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ * <p>
+ * http://www.apache.org/licenses/LICENSE-2.0
+ * <p>
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.scleropages.kapuas.session.provider.shiro.invalidation;
+
+import java.util.function.Consumer;
+
+/**
+ * 会话失效通知传输(发布/订阅). 发布的消息会投递给所有节点(包括发布者自身，由订阅者根据 origin 自行忽略).
+ *
+ * @author <a href="mailto:martinmao@icloud.com">Martin Mao</a>
+ */
+public interface SessionInvalidationTransport {
+
+    /**
+     * broadcast given invalidation to all subscribers.
+     *
+     * @param invalidation
+     */
+    void publish(SessionInvalidation invalidation);
+
+    /**
+     * register a listener receive invalidations published by any node.
+     *
+     * @param listener
+     */
+    void subscribe(Consumer<SessionInvalidation> listener);
+
+    /**
+     * register a listener notified when invalidations may have been lost(subscription interrupted, and again after re-established).
+     * receivers must treat all local copies as expired. transports never lose messages need not implement.
+     *
+     * @param listener
+     */
+    default void subscribeResync(Runnable listener) {
+    }
+}
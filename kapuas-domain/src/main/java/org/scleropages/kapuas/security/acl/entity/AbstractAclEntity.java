@@ -42,6 +42,10 @@ public abstract class AbstractAclEntity extends IdEntity {
 
     public static final String RESOURCE_ID_COLUMN="resource_id";
 
+    public static final String RESOURCE_TAG_COLUMN = "resource_tag";
+
+    public static final String OWNER_COLUMN = "sec_acl_principal_id";
+
 
     private String resourceId;
     private String resourceTag;
@@ -63,7 +67,7 @@ public abstract class AbstractAclEntity extends IdEntity {
     }
 
 
-    @Column(name = "resource_tag", nullable = false)
+    @Column(name = RESOURCE_TAG_COLUMN, nullable = false)
     public String getResourceTag() {
         return resourceTag;
     }
@@ -74,7 +78,7 @@ public abstract class AbstractAclEntity extends IdEntity {
     }
 
     @ManyToOne(fetch = FetchType.LAZY)
-    @JoinColumn(name = "sec_acl_principal_id", nullable = false)
+    @JoinColumn(name = OWNER_COLUMN, nullable = false)
     public AclPrincipalEntity getOwner() {
         return owner;
     }
@@ -35,6 +35,10 @@ public class AbstractAclEntryEntity extends IdEntity {
      */
     public static final String PRINCIPAL_COLUMN = "principal_";
 
+    public static final String RESOURCE_TYPE_ID_COLUMN = "resource_type_id";
+
+    public static final String RESOURCE_ID_COLUMN = "resource_id";
+
     private String aclPrincipalName;
     private Long resourceTypeId;
     private String resourceId;
@@ -48,12 +52,12 @@ public class AbstractAclEntryEntity extends IdEntity {
         return aclPrincipalName;
     }
 
-    @Column(name = "resource_type_id", nullable = false)
+    @Column(name = RESOURCE_TYPE_ID_COLUMN, nullable = false)
     public Long getResourceTypeId() {
         return resourceTypeId;
     }
 
-    @Column(name = "resource_id", nullable = false)
+    @Column(name = RESOURCE_ID_COLUMN, nullable = false)
     public String getResourceId() {
         return resourceId;
     }
@@ -0,0 +1,105 @@
+/**
+ * Copyright 2001-2005 The Apache Software Foundation.
+ * <p>
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ * <p>
+ * http://www.apache.org/licenses/LICENSE-2.0
+ * <p>
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.scleropages.kapuas.security.acl.entity;
+
+import org.scleropages.crud.dao.orm.jpa.entity.IdEntity;
+
+import javax.persistence.Column;
+import javax.persistence.Entity;
+import javax.persistence.Index;
+import javax.persistence.SequenceGenerator;
+import javax.persistence.Table;
+import java.util.Date;
+
+/**
+ * acl变更记录(transactional outbox). 与变更在同一事务写入，id即变更序号，下游副本(缓存/搜索索引)按 id > 上次序号 增量拉取.
+ * <p>
+ * id 不使用序列分配，由 {@link AclChangeHeadEntity} 在事务提交前按提交顺序连续分配，事务回滚不会留下序号间隙.
+ *
+ * @author <a href="mailto:martinmao@icloud.com">Martin Mao</a>
+ */
+@Entity
+@Table(name = "sec_acl_change",
+        indexes = {@Index(columnList = "create_time")})
+@SequenceGenerator(name = "sec_acl_change_id", sequenceName = "seq_sec_acl_change", allocationSize = 1, initialValue = IdEntity.SEQ_DEFAULT_INITIAL_VALUE)
+public class AclChangeEntity extends IdEntity {
+
+    private String changeType;
+
+    private String resourceType;
+
+    private String resourceId;
+
+    private String principal;
+
+    private String permissions;
+
+    private Date createTime;
+
+    @Column(name = "change_type", nullable = false)
+    public String getChangeType() {
+        return changeType;
+    }
+
+    @Column(name = "resource_type")
+    public String getResourceType() {
+        return resourceType;
+    }
+
+    @Column(name = "resource_id")
+    public String getResourceId() {
+        return resourceId;
+    }
+
+    @Column(name = "principal_")
+    public String getPrincipal() {
+        return principal;
+    }
+
+    @Column(name = "permissions_")
+    public String getPermissions() {
+        return permissions;
+    }
+
+    @Column(name = "create_time", nullable = false)
+    public Date getCreateTime() {
+        return createTime;
+    }
+
+    public void setChangeType(String changeType) {
+        this.changeType = changeType;
+    }
+
+    public void setResourceType(String resourceType) {
+        this.resourceType = resourceType;
+    }
+
+    public void setResourceId(String resourceId) {
+        this.resourceId = resourceId;
+    }
+
+    public void setPrincipal(String principal) {
+        this.principal = principal;
+    }
+
+    public void setPermissions(String permissions) {
+        this.permissions = permissions;
+    }
+
+    public void setCreateTime(Date createTime) {
+        this.createTime = createTime;
+    }
+}
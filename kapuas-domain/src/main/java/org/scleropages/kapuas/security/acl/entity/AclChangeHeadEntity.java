@@ -0,0 +1,48 @@
+/**
+ * Copyright 2001-2005 The Apache Software Foundation.
+ * <p>
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ * <p>
+ * http://www.apache.org/licenses/LICENSE-2.0
+ * <p>
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.scleropages.kapuas.security.acl.entity;
+
+import org.scleropages.crud.dao.orm.jpa.entity.IdEntity;
+
+import javax.persistence.Column;
+import javax.persistence.Entity;
+import javax.persistence.SequenceGenerator;
+import javax.persistence.Table;
+
+/**
+ * acl变更流位置，单行记录(id={@link #SINGLETON_ID}). 事务提交前递增并分配本事务变更记录的序号，行锁持有至事务结束，
+ * 序号按事务提交顺序连续分配，回滚的事务不会留下间隙.
+ *
+ * @author <a href="mailto:martinmao@icloud.com">Martin Mao</a>
+ */
+@Entity
+@Table(name = "sec_acl_change_head")
+@SequenceGenerator(name = "sec_acl_change_head_id", sequenceName = "seq_sec_acl_change_head", allocationSize = 1, initialValue = IdEntity.SEQ_DEFAULT_INITIAL_VALUE)
+public class AclChangeHeadEntity extends IdEntity {
+
+    public static final long SINGLETON_ID = 1L;
+
+    private Long position;
+
+    @Column(name = "position_", nullable = false)
+    public Long getPosition() {
+        return position;
+    }
+
+    public void setPosition(Long position) {
+        this.position = position;
+    }
+}
@@ -33,12 +33,15 @@ import javax.persistence.UniqueConstraint;
 @Entity
 @Table(name = "sec_acl_entries",
         uniqueConstraints = @UniqueConstraint(columnNames = {"sec_acl_id", "sec_acl_principal_id", "sec_acl_permission_id"}),
-        indexes = {@Index(columnList = "principal_,resource_type_id,resource_id,permission_")})
+        indexes = {@Index(columnList = "principal_,resource_type_id,resource_id,permission_"),
+                @Index(columnList = "principal_,resource_type_id,permission_mask_")})
 @SequenceGenerator(name = "sec_acl_entries_id", sequenceName = "seq_sec_acl_entries", allocationSize = IdEntity.SEQ_DEFAULT_ALLOCATION_SIZE, initialValue = IdEntity.SEQ_DEFAULT_INITIAL_VALUE)
 public class AclEntryEntity extends AbstractAclEntryEntity {
 
     private String permissionName;
 
+    private Long permissionMask;
+
     private PermissionEntity permission;
 
     @Column(name = "permission_", nullable = false)
@@ -47,6 +50,16 @@ public class AclEntryEntity extends AbstractAclEntryEntity {
     }
 
 
+    /**
+     * granted permission bits. for hierarchy permission resource also contains all inherit included permission bits.
+     *
+     * @return
+     */
+    @Column(name = "permission_mask_")
+    public Long getPermissionMask() {
+        return permissionMask;
+    }
+
     @ManyToOne(fetch = FetchType.LAZY, targetEntity = AclEntity.class)
     @JoinColumn(name = "sec_acl_id", nullable = false)
     public AclEntity getAcl() {
@@ -64,6 +77,10 @@ public class AclEntryEntity extends AbstractAclEntryEntity {
         this.permissionName = permissionName;
     }
 
+    public void setPermissionMask(Long permissionMask) {
+        this.permissionMask = permissionMask;
+    }
+
     public void setPermission(PermissionEntity permission) {
         this.permission = permission;
     }
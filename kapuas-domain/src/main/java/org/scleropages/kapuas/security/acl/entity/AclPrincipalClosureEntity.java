@@ -0,0 +1,74 @@
+/**
+ * Copyright 2001-2005 The Apache Software Foundation.
+ * <p>
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ * <p>
+ * http://www.apache.org/licenses/LICENSE-2.0
+ * <p>
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.scleropages.kapuas.security.acl.entity;
+
+import org.scleropages.crud.dao.orm.jpa.entity.IdEntity;
+
+import javax.persistence.Column;
+import javax.persistence.Entity;
+import javax.persistence.Index;
+import javax.persistence.SequenceGenerator;
+import javax.persistence.Table;
+import javax.persistence.UniqueConstraint;
+
+/**
+ * principal成员关系传递闭包(不包含自身). descendant 继承 ancestor 被授予的所有acl entries，
+ * 访问判断时使用 principal_ IN (SELECT ancestor_ FROM sec_acl_principal_closure WHERE descendant_ = ? UNION ALL SELECT ?) 一次查询完成.
+ * <p>
+ * 成员关系允许多路径(如同一用户属于两个组，两个组属于同一角色)，paths_ 记录 ancestor 到 descendant 的路径数，删除成员关系时递减，为0时删除.
+ *
+ * @author <a href="mailto:martinmao@icloud.com">Martin Mao</a>
+ */
+@Entity
+@Table(name = "sec_acl_principal_closure",
+        uniqueConstraints = @UniqueConstraint(columnNames = {"descendant_", "ancestor_"}),
+        indexes = {@Index(columnList = "ancestor_")})
+@SequenceGenerator(name = "sec_acl_principal_closure_id", sequenceName = "seq_sec_acl_principal_closure", allocationSize = IdEntity.SEQ_DEFAULT_ALLOCATION_SIZE, initialValue = IdEntity.SEQ_DEFAULT_INITIAL_VALUE)
+public class AclPrincipalClosureEntity extends IdEntity {
+
+    private String ancestor;
+
+    private String descendant;
+
+    private Long paths;
+
+    @Column(name = "ancestor_", nullable = false)
+    public String getAncestor() {
+        return ancestor;
+    }
+
+    @Column(name = "descendant_", nullable = false)
+    public String getDescendant() {
+        return descendant;
+    }
+
+    @Column(name = "paths_", nullable = false)
+    public Long getPaths() {
+        return paths;
+    }
+
+    public void setAncestor(String ancestor) {
+        this.ancestor = ancestor;
+    }
+
+    public void setDescendant(String descendant) {
+        this.descendant = descendant;
+    }
+
+    public void setPaths(Long paths) {
+        this.paths = paths;
+    }
+}
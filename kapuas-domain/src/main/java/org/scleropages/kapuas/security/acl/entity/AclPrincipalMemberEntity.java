@@ -0,0 +1,63 @@
+/**
+ * Copyright 2001-2005 The Apache Software Foundation.
+ * <p>
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ * <p>
+ * http://www.apache.org/licenses/LICENSE-2.0
+ * <p>
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.scleropages.kapuas.security.acl.entity;
+
+import org.scleropages.crud.dao.orm.jpa.entity.IdEntity;
+
+import javax.persistence.Entity;
+import javax.persistence.FetchType;
+import javax.persistence.JoinColumn;
+import javax.persistence.ManyToOne;
+import javax.persistence.SequenceGenerator;
+import javax.persistence.Table;
+import javax.persistence.UniqueConstraint;
+
+/**
+ * principal直接成员关系(如 user->group, group->role). member继承parent被授予的所有acl entries.
+ * 传递闭包见 {@link AclPrincipalClosureEntity}
+ *
+ * @author <a href="mailto:martinmao@icloud.com">Martin Mao</a>
+ */
+@Entity
+@Table(name = "sec_acl_principal_member",
+        uniqueConstraints = @UniqueConstraint(columnNames = {"member_id", "parent_id"}))
+@SequenceGenerator(name = "sec_acl_principal_member_id", sequenceName = "seq_sec_acl_principal_member", allocationSize = IdEntity.SEQ_DEFAULT_ALLOCATION_SIZE, initialValue = IdEntity.SEQ_DEFAULT_INITIAL_VALUE)
+public class AclPrincipalMemberEntity extends IdEntity {
+
+    private AclPrincipalEntity member;
+
+    private AclPrincipalEntity parent;
+
+    @ManyToOne(fetch = FetchType.LAZY)
+    @JoinColumn(name = "member_id", nullable = false)
+    public AclPrincipalEntity getMember() {
+        return member;
+    }
+
+    @ManyToOne(fetch = FetchType.LAZY)
+    @JoinColumn(name = "parent_id", nullable = false)
+    public AclPrincipalEntity getParent() {
+        return parent;
+    }
+
+    public void setMember(AclPrincipalEntity member) {
+        this.member = member;
+    }
+
+    public void setParent(AclPrincipalEntity parent) {
+        this.parent = parent;
+    }
+}
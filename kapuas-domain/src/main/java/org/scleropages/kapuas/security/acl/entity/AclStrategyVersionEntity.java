@@ -0,0 +1,48 @@
+/**
+ * Copyright 2001-2005 The Apache Software Foundation.
+ * <p>
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ * <p>
+ * http://www.apache.org/licenses/LICENSE-2.0
+ * <p>
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.scleropages.kapuas.security.acl.entity;
+
+import org.scleropages.crud.dao.orm.jpa.entity.IdEntity;
+
+import javax.persistence.Column;
+import javax.persistence.Entity;
+import javax.persistence.SequenceGenerator;
+import javax.persistence.Table;
+
+/**
+ * 权限策略(sec_acl_permission)版本号，单行记录(id={@link #SINGLETON_ID}). 创建/变更权限策略时在同一事务递增，
+ * 各节点定时比较该版本号决定是否重建本地权限策略快照.
+ *
+ * @author <a href="mailto:martinmao@icloud.com">Martin Mao</a>
+ */
+@Entity
+@Table(name = "sec_acl_strategy_version")
+@SequenceGenerator(name = "sec_acl_strategy_version_id", sequenceName = "seq_sec_acl_strategy_version", allocationSize = 1, initialValue = IdEntity.SEQ_DEFAULT_INITIAL_VALUE)
+public class AclStrategyVersionEntity extends IdEntity {
+
+    public static final long SINGLETON_ID = 1L;
+
+    private Long version;
+
+    @Column(name = "version_", nullable = false)
+    public Long getVersion() {
+        return version;
+    }
+
+    public void setVersion(Long version) {
+        this.version = version;
+    }
+}
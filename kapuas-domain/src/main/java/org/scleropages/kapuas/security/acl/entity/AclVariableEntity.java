@@ -32,6 +32,7 @@ import javax.persistence.UniqueConstraint;
 import java.math.BigDecimal;
 import java.text.ParseException;
 import java.util.Date;
+import java.util.Objects;
 
 /**
  * @author <a href="mailto:martinmao@icloud.com">Martin Mao</a>
@@ -108,6 +109,18 @@ public class AclVariableEntity extends IdEntity {
         throw new IllegalStateException("can't determined value type of variable: " + JsonMapper.nonDefaultMapper().toJson(this));
     }
 
+    /**
+     * return true if given variable has same value(same column and same value) as this.
+     */
+    @Transient
+    public boolean isSameValue(AclVariableEntity other) {
+        return Objects.equals(getTextValue(), other.getTextValue())
+                && Objects.equals(getDoubleValue(), other.getDoubleValue())
+                && Objects.equals(getLongValue(), other.getLongValue())
+                //loaded as java.sql.Timestamp, not equals to java.util.Date with same time.
+                && Objects.equals(null != getDateValue() ? getDateValue().getTime() : null, null != other.getDateValue() ? other.getDateValue().getTime() : null);
+    }
+
     public void setName(String name) {
         this.name = name;
     }
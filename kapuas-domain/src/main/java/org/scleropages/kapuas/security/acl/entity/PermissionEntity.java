@@ -37,6 +37,11 @@ public class PermissionEntity extends IdEntity {
 
     public static final String PERMISSION_EXTENSION_SEPARATOR = ",";
 
+    /**
+     * maximum permissions of a resource type. each permission assigned a bit position of long mask.
+     */
+    public static final int MAXIMUM_PERMISSION_BITS = Long.SIZE - 1;
+
     private String resourceType;
     private Long resourceTypeId;
 
@@ -44,6 +49,8 @@ public class PermissionEntity extends IdEntity {
     private String name = NOT_SUPPORT;
     private String extension;
     private String tag = "不支持";
+    //权限位(同一资源类型下唯一)，acl entry 使用 permission mask 代替 like 匹配
+    private Integer bit;
 
     @Column(name = "resource_type", nullable = false)
     public String getResourceType() {
@@ -70,6 +77,11 @@ public class PermissionEntity extends IdEntity {
         return tag;
     }
 
+    @Column(name = "bit_")
+    public Integer getBit() {
+        return bit;
+    }
+
 
     /**
      * return true if current permission coarse-grained model.
@@ -122,4 +134,8 @@ public class PermissionEntity extends IdEntity {
     public void setTag(String tag) {
         this.tag = tag;
     }
+
+    public void setBit(Integer bit) {
+        this.bit = bit;
+    }
 }
@@ -0,0 +1,149 @@
+/**
+ * Copyright 2001-2005 The Apache Software Foundation.
+ * <p>
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ * <p>
+ * http://www.apache.org/licenses/LICENSE-2.0
+ * <p>
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.scleropages.kapuas.jdbc;
+
+import com.google.common.collect.Lists;
+import org.apache.shardingsphere.api.config.sharding.KeyGeneratorConfiguration;
+import org.apache.shardingsphere.api.config.sharding.ShardingRuleConfiguration;
+import org.apache.shardingsphere.api.config.sharding.TableRuleConfiguration;
+import org.apache.shardingsphere.api.config.sharding.strategy.HintShardingStrategyConfiguration;
+import org.apache.shardingsphere.api.config.sharding.strategy.StandardShardingStrategyConfiguration;
+import org.apache.shardingsphere.api.hint.HintManager;
+import org.apache.shardingsphere.api.sharding.hint.HintShardingAlgorithm;
+import org.apache.shardingsphere.api.sharding.hint.HintShardingValue;
+import org.apache.shardingsphere.shardingjdbc.api.ShardingDataSourceFactory;
+import org.scleropages.kapuas.security.acl.entity.AbstractAclEntity;
+import org.springframework.util.Assert;
+import org.springframework.util.StringUtils;
+
+import javax.sql.DataSource;
+import java.sql.SQLException;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.List;
+import java.util.Map;
+import java.util.Properties;
+import java.util.function.Supplier;
+import java.util.stream.Collectors;
+
+/**
+ * 创建acl分片数据源(sharding-jdbc).
+ * <ul>
+ * <li>分片表: acl相关的五张表按 resource_type_id 分库({@link ResourceTypeShardingAlgorithm})，互为绑定表.
+ * repository 中的查询均带有 resource_type_id 条件路由到单一分片，仅以 principal 为中心且不限定资源类型的查询路由到所有分片并行执行后归并.</li>
+ * <li>广播表: 被分片表关联(join/子查询)的权限定义，principal 及其成员关系闭包在所有分片各保存一份，写入时同时写所有分片.</li>
+ * <li>其他表: 位于默认分片.</li>
+ * </ul>
+ * 各分片自增主键会重复，分片表未提供主键的插入语句(jooq批量插入)使用 SNOWFLAKE 生成主键. 通过序列(序列表)分配主键的实体，
+ * 序列位于默认分片全局唯一.
+ * <p>
+ * 广播表的查询(包括 SELECT ... FOR UPDATE)路由到随机分片，行锁无法在节点间串行化. 依赖行锁的读写(principal成员关系闭包维护)
+ * 通过 {@link #onDefaultShard(Supplier)} 以 hint 强制路由到默认分片加锁及读取(默认分片的广播表副本)，写入仍广播到所有分片;
+ * principal成员关系表(sec_acl_principal_member)本身位于默认分片. 各分片写入按行锁等待，路径数增减可交换，其他分片提交滞后不影响结果.
+ * <p>
+ * 按 4.0.0-RC3 SQL 支持列表核对过的语句:
+ * <ul>
+ * <li>INSERT ... ON DUPLICATE KEY UPDATE / INSERT IGNORE(jooq onConflict/onConflictDoNothing，mysql方言): 支持，更新子句不包含分片键.
+ * 用于闭包路径累加(广播表)，acl entry/principal 忽略重复插入，业务载荷upsert.</li>
+ * <li>行值比较 (resource_id, id) &gt; (?, ?) (游标分页): 不在支持列表，改写为等价的 resource_id &gt; ? or (resource_id = ? and id &gt; ?).</li>
+ * <li>UNION ALL(principal 展开条件的子查询): 不支持，改写为 principal_ = ? or principal_ in (select ancestor_ ...).</li>
+ * </ul>
+ *
+ * @author <a href="mailto:martinmao@icloud.com">Martin Mao</a>
+ */
+public abstract class AclShardingDataSourceFactory {
+
+    public static final List<String> SHARDING_TABLES = Lists.newArrayList("sec_acl", "sec_acl_entries", "sec_acl_s", "sec_acl_s_principal", "sec_acl_variable");
+
+    public static final List<String> BROADCAST_TABLES = Lists.newArrayList("sec_acl_permission", "sec_acl_principal", "sec_acl_principal_closure");
+
+    public static final String KEY_GENERATOR_TYPE = "SNOWFLAKE";
+
+    /**
+     * hint value route statements to default shard(see {@link #onDefaultShard(Supplier)}).
+     */
+    public static final String DEFAULT_SHARD_HINT = "default";
+
+    /**
+     * execute given callback with all statements(include broadcast table queries) routed to default shard.
+     * no effect if sharding data source not used. nested calls share outer hint.
+     *
+     * @param callback
+     * @param <T>
+     * @return
+     */
+    public static <T> T onDefaultShard(Supplier<T> callback) {
+        if (HintManager.isDatabaseShardingOnly())
+            return callback.get();
+        try (HintManager hintManager = HintManager.getInstance()) {
+            hintManager.setDatabaseShardingValue(DEFAULT_SHARD_HINT);
+            return callback.get();
+        }
+    }
+
+    /**
+     * @param shards             shard name -> data source. must contains default shard.
+     * @param defaultShard       shard of un-sharded tables.
+     * @param resourceTypeShards optional explicit resource type id -> shard name. un-mapped resource types use consistent hash.
+     * @param hashShards         ordinal shard list of consistent hash. append only(reordering or removing shards remaps resource types).
+     * @param workerId           snowflake worker id. must be unique per node.
+     * @param props              sharding-jdbc properties(sql.show, executor.size, max.connections.size.per.query...).
+     * @return
+     * @throws SQLException
+     */
+    public static DataSource createDataSource(Map<String, DataSource> shards, String defaultShard, Map<Long, String> resourceTypeShards, List<String> hashShards, long workerId, Properties props) throws SQLException {
+        Assert.notEmpty(shards, "no shards configured.");
+        Assert.isTrue(shards.containsKey(defaultShard), "default shard not found in shards: " + defaultShard);
+        hashShards.forEach(hashShard -> Assert.isTrue(shards.containsKey(hashShard), "hash shard not found in shards: " + hashShard));
+        resourceTypeShards.forEach((resourceTypeId, shard) -> Assert.isTrue(shards.containsKey(shard), "shard of resource type " + resourceTypeId + " not found in shards: " + shard));
+        ResourceTypeShardingAlgorithm shardingAlgorithm = new ResourceTypeShardingAlgorithm(resourceTypeShards, hashShards);
+        Properties keyGeneratorProps = new Properties();
+        keyGeneratorProps.setProperty("worker.id", String.valueOf(workerId));
+
+        ShardingRuleConfiguration shardingRuleConfig = new ShardingRuleConfiguration();
+        SHARDING_TABLES.forEach(table -> {
+            String actualDataNodes = shards.keySet().stream().map(shard -> shard + "." + table).collect(Collectors.joining(","));
+            TableRuleConfiguration tableRuleConfig = new TableRuleConfiguration(table, actualDataNodes);
+            tableRuleConfig.setDatabaseShardingStrategyConfig(new StandardShardingStrategyConfiguration(AbstractAclEntity.RESOURCE_TYPE_ID_COLUMN, shardingAlgorithm, shardingAlgorithm));
+            tableRuleConfig.setKeyGeneratorConfig(new KeyGeneratorConfiguration(KEY_GENERATOR_TYPE, AbstractAclEntity.ID_COLUMN, keyGeneratorProps));
+            shardingRuleConfig.getTableRuleConfigs().add(tableRuleConfig);
+        });
+        shardingRuleConfig.getBindingTableGroups().add(StringUtils.collectionToCommaDelimitedString(SHARDING_TABLES));
+        shardingRuleConfig.getBroadcastTables().addAll(BROADCAST_TABLES);
+        shardingRuleConfig.setDefaultDataSourceName(defaultShard);
+        //only used by hint routing(table rules and broadcast tables have their own routing).
+        shardingRuleConfig.setDefaultDatabaseShardingStrategyConfig(new HintShardingStrategyConfiguration(new DefaultShardHintShardingAlgorithm(defaultShard)));
+        return ShardingDataSourceFactory.createDataSource(shards, shardingRuleConfig, null != props ? props : new Properties());
+    }
+
+    /**
+     * route hinted statements({@link #DEFAULT_SHARD_HINT}) to default shard.
+     */
+    private static class DefaultShardHintShardingAlgorithm implements HintShardingAlgorithm<String> {
+
+        private final String defaultShard;
+
+        private DefaultShardHintShardingAlgorithm(String defaultShard) {
+            this.defaultShard = defaultShard;
+        }
+
+        @Override
+        public Collection<String> doSharding(Collection<String> availableTargetNames, HintShardingValue<String> shardingValue) {
+            Assert.isTrue(shardingValue.getValues().contains(DEFAULT_SHARD_HINT), "unsupported sharding hint: " + shardingValue.getValues());
+            return Collections.singletonList(defaultShard);
+        }
+    }
+}
@@ -0,0 +1,66 @@
+/**
+ * Copyright 2001-2005 The Apache Software Foundation.
+ * <p>
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ * <p>
+ * http://www.apache.org/licenses/LICENSE-2.0
+ * <p>
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.scleropages.kapuas.jdbc;
+
+import org.hibernate.engine.spi.SessionImplementor;
+import org.hibernate.id.IdentifierGenerator;
+import org.hibernate.id.IdentityGenerator;
+import org.hibernate.persister.entity.EntityPersister;
+import org.springframework.beans.BeanUtils;
+import org.springframework.stereotype.Component;
+import org.springframework.util.Assert;
+
+import javax.persistence.EntityManager;
+import javax.persistence.PersistenceContext;
+
+/**
+ * 为 jooq 批量写入(多行insert/upsert)预分配实体 id. 使用实体映射的 hibernate 标识生成器(序列，或不支持序列的数据库上的表模拟)，
+ * 生成器按 allocationSize 成块分配，批量写入时不会每行访问一次数据库. IDENTITY 生成的实体不支持预分配.
+ *
+ * @author <a href="mailto:martinmao@icloud.com">Martin Mao</a>
+ */
+@Component
+public class EntityIdAllocator {
+
+    @PersistenceContext
+    private EntityManager entityManager;
+
+    /**
+     * allocate given count of ids for given entity type. must called in transaction.
+     *
+     * @param entityClass
+     * @param count
+     * @return
+     */
+    public Long[] allocate(Class<?> entityClass, int count) {
+        Long[] ids = new Long[count];
+        if (count == 0)
+            return ids;
+        SessionImplementor session = entityManager.unwrap(SessionImplementor.class);
+        EntityPersister persister = session.getFactory().getMetamodel().entityPersister(entityClass);
+        IdentifierGenerator generator = persister.getIdentifierGenerator();
+        Assert.state(!(generator instanceof IdentityGenerator), () -> "ids of identity generated entity can not be allocated: " + entityClass.getName());
+        Object entity = BeanUtils.instantiateClass(entityClass);
+        for (int i = 0; i < count; i++) {
+            ids[i] = ((Number) generator.generate(session, entity)).longValue();
+        }
+        return ids;
+    }
+
+    public Long allocate(Class<?> entityClass) {
+        return allocate(entityClass, 1)[0];
+    }
+}
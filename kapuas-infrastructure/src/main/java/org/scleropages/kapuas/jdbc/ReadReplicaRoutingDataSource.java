@@ -0,0 +1,371 @@
+/**
+ * Copyright 2001-2005 The Apache Software Foundation.
+ * <p>
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ * <p>
+ * http://www.apache.org/licenses/LICENSE-2.0
+ * <p>
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.scleropages.kapuas.jdbc;
+
+import com.google.common.cache.Cache;
+import com.google.common.cache.CacheBuilder;
+import com.google.common.collect.Lists;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import org.springframework.beans.factory.DisposableBean;
+import org.springframework.beans.factory.InitializingBean;
+import org.springframework.jdbc.datasource.AbstractDataSource;
+import org.springframework.jdbc.datasource.LazyConnectionDataSourceProxy;
+import org.springframework.transaction.support.TransactionSynchronizationAdapter;
+import org.springframework.transaction.support.TransactionSynchronizationManager;
+import org.springframework.util.Assert;
+
+import javax.sql.DataSource;
+import java.io.Serializable;
+import java.lang.reflect.InvocationTargetException;
+import java.lang.reflect.Proxy;
+import java.sql.Connection;
+import java.sql.ResultSet;
+import java.sql.ResultSetMetaData;
+import java.sql.SQLException;
+import java.sql.Statement;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.List;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.function.Supplier;
+import java.util.stream.Collectors;
+
+/**
+ * 读写分离数据源. 只读事务(@Transactional(readOnly = true))的连接从可用的只读副本获取，其他连接(读写事务，无事务)使用主库.
+ * <p>
+ * 只读标记在事务开始后才绑定到当前线程，必须由 {@link LazyConnectionDataSourceProxy} 包装使用(首次执行语句时才获取连接).
+ * <p>
+ * 后台线程按固定间隔检查副本健康状态与复制延迟(lagQuery)，连接失败或延迟超过阈值的副本不参与选择，无可用副本时回退主库.
+ * 副本选择支持轮询与最少活动连接. 可选的 read-your-writes：会话(由 sessionKeySupplier 提供)提交写事务后的窗口期内只读事务仍使用主库.
+ * <p>
+ * 结果会被缓存的读取(如授权判定缓存)不应读到延迟的副本数据，使用 {@link #onPrimary(Supplier)} 固定到主库，
+ * 并通过 {@link #isReplicaReadInCurrentTransaction()} 判断当前事务是否已经从副本读取(此时结果不应缓存).
+ *
+ * @author <a href="mailto:martinmao@icloud.com">Martin Mao</a>
+ */
+public class ReadReplicaRoutingDataSource extends AbstractDataSource implements InitializingBean, DisposableBean {
+
+    private static final Logger logger = LoggerFactory.getLogger(ReadReplicaRoutingDataSource.class);
+
+    //MySQL 'SHOW SLAVE STATUS' 延迟列(秒)
+    private static final String MYSQL_LAG_COLUMN = "Seconds_Behind_Master";
+
+    //transaction resource key bound when current transaction acquired a replica connection.
+    private static final Object REPLICA_READ_KEY = ReadReplicaRoutingDataSource.class.getName() + ".REPLICA_READ";
+
+    private static final ThreadLocal<Integer> PRIMARY_PINNED = ThreadLocal.withInitial(() -> 0);
+
+    public enum SelectionStrategy {
+        ROUND_ROBIN, LEAST_LOADED
+    }
+
+    private DataSource primary;
+
+    private final List<Replica> replicas = Lists.newArrayList();
+
+    private SelectionStrategy selectionStrategy = SelectionStrategy.ROUND_ROBIN;
+
+    /**
+     * sql return replication lag of replica. first column as lag in milliseconds or MySQL 'SHOW SLAVE STATUS'.
+     * if not set. only check connection valid.
+     */
+    private String lagQuery;
+
+    private long maximumLagMillis = 1000;
+
+    private long checkIntervalMillis = 5000;
+
+    private int checkTimeoutSeconds = 2;
+
+    //0 disabled read-your-writes.
+    private long readYourWritesMillis = 0;
+
+    private Supplier<Serializable> sessionKeySupplier;
+
+    private Cache<Serializable, Boolean> recentWrites;
+
+    private ScheduledExecutorService checker;
+
+    private volatile List<Replica> availableReplicas = Collections.emptyList();
+
+    private final AtomicInteger counter = new AtomicInteger();
+
+
+    /**
+     * run given action with connections acquired from primary(even in read-only transaction).
+     * only connections acquired in action affected(connection already bound to current transaction reused).
+     *
+     * @param action
+     * @param <T>
+     * @return
+     */
+    public static <T> T onPrimary(Supplier<T> action) {
+        PRIMARY_PINNED.set(PRIMARY_PINNED.get() + 1);
+        try {
+            return action.get();
+        } finally {
+            int pinned = PRIMARY_PINNED.get() - 1;
+            if (pinned == 0)
+                PRIMARY_PINNED.remove();
+            else
+                PRIMARY_PINNED.set(pinned);
+        }
+    }
+
+    /**
+     * return true if current transaction acquired any connection from read replica(may read lagged data).
+     */
+    public static boolean isReplicaReadInCurrentTransaction() {
+        return TransactionSynchronizationManager.hasResource(REPLICA_READ_KEY);
+    }
+
+    @Override
+    public Connection getConnection() throws SQLException {
+        Replica replica = lookupReplica();
+        if (null == replica) {
+            markWrite();
+            return primary.getConnection();
+        }
+        markReplicaRead(replica);
+        return replica.getConnection(null, null);
+    }
+
+    @Override
+    public Connection getConnection(String username, String password) throws SQLException {
+        Replica replica = lookupReplica();
+        if (null == replica) {
+            markWrite();
+            return primary.getConnection(username, password);
+        }
+        markReplicaRead(replica);
+        return replica.getConnection(username, password);
+    }
+
+    /**
+     * add a replica. must called before initialized.
+     */
+    public void addReplica(String name, DataSource dataSource) {
+        Assert.notNull(dataSource, "replica data source must not be null.");
+        replicas.add(new Replica(name, dataSource));
+    }
+
+    protected Replica lookupReplica() {
+        if (!TransactionSynchronizationManager.isCurrentTransactionReadOnly())
+            return null;
+        List<Replica> candidates = availableReplicas;
+        if (candidates.isEmpty() || PRIMARY_PINNED.get() > 0 || isPinnedToPrimary())
+            return null;
+        if (candidates.size() == 1)
+            return candidates.get(0);
+        if (selectionStrategy == SelectionStrategy.LEAST_LOADED)
+            return candidates.stream().min(Comparator.comparingInt(replica -> replica.active.get())).get();
+        return candidates.get((counter.getAndIncrement() & Integer.MAX_VALUE) % candidates.size());
+    }
+
+    protected boolean isPinnedToPrimary() {
+        if (null == recentWrites)
+            return false;
+        Serializable sessionKey = sessionKeySupplier.get();
+        return null != sessionKey && null != recentWrites.getIfPresent(sessionKey);
+    }
+
+    /**
+     * read-write transaction acquired connection from primary. pin session to primary after commit.
+     */
+    protected void markWrite() {
+        if (null == recentWrites || !TransactionSynchronizationManager.isSynchronizationActive() || TransactionSynchronizationManager.isCurrentTransactionReadOnly())
+            return;
+        Serializable sessionKey = sessionKeySupplier.get();
+        if (null == sessionKey)
+            return;
+        TransactionSynchronizationManager.registerSynchronization(new TransactionSynchronizationAdapter() {
+            @Override
+            public void afterCommit() {
+                recentWrites.put(sessionKey, Boolean.TRUE);
+            }
+        });
+    }
+
+    protected void markReplicaRead(Replica replica) {
+        if (!TransactionSynchronizationManager.isSynchronizationActive() || TransactionSynchronizationManager.hasResource(REPLICA_READ_KEY))
+            return;
+        TransactionSynchronizationManager.bindResource(REPLICA_READ_KEY, replica.name);
+        TransactionSynchronizationManager.registerSynchronization(new TransactionSynchronizationAdapter() {
+            @Override
+            public void afterCompletion(int status) {
+                TransactionSynchronizationManager.unbindResourceIfPossible(REPLICA_READ_KEY);
+            }
+        });
+    }
+
+    protected void checkReplicas() {
+        for (Replica replica : replicas) {
+            try (Connection connection = replica.dataSource.getConnection()) {
+                if (null == lagQuery) {
+                    replica.lagMillis = 0;
+                    replica.healthy = connection.isValid(checkTimeoutSeconds);
+                } else {
+                    replica.lagMillis = readLagMillis(connection);
+                    replica.healthy = replica.lagMillis <= maximumLagMillis;
+                }
+            } catch (Exception e) {
+                replica.healthy = false;
+                logger.warn("read replica [{}] check failure: {}", replica.name, e.getMessage());
+            }
+        }
+        List<Replica> available = replicas.stream().filter(replica -> replica.healthy).collect(Collectors.toList());
+        if (available.size() != availableReplicas.size())
+            logger.info("read replicas available: {}/{}", available.size(), replicas.size());
+        availableReplicas = Collections.unmodifiableList(available);
+    }
+
+    protected long readLagMillis(Connection connection) throws SQLException {
+        try (Statement statement = connection.createStatement()) {
+            statement.setQueryTimeout(checkTimeoutSeconds);
+            try (ResultSet resultSet = statement.executeQuery(lagQuery)) {
+                if (!resultSet.next())
+                    return Long.MAX_VALUE;
+                ResultSetMetaData metaData = resultSet.getMetaData();
+                for (int i = 1; i <= metaData.getColumnCount(); i++) {
+                    if (MYSQL_LAG_COLUMN.equalsIgnoreCase(metaData.getColumnLabel(i))) {
+                        long seconds = resultSet.getLong(i);
+                        //null means replication stopped.
+                        return resultSet.wasNull() ? Long.MAX_VALUE : TimeUnit.SECONDS.toMillis(seconds);
+                    }
+                }
+                long lag = resultSet.getLong(1);
+                return resultSet.wasNull() ? Long.MAX_VALUE : lag;
+            }
+        }
+    }
+
+    @Override
+    public void afterPropertiesSet() throws Exception {
+        Assert.notNull(primary, "primary data source must not be null.");
+        Assert.notNull(selectionStrategy, "selection strategy must not be null.");
+        if (readYourWritesMillis > 0) {
+            Assert.notNull(sessionKeySupplier, "session key supplier required when read-your-writes enabled.");
+            recentWrites = CacheBuilder.newBuilder().expireAfterWrite(readYourWritesMillis, TimeUnit.MILLISECONDS).build();
+        }
+        if (replicas.isEmpty()) {
+            logger.warn("no read replicas configured. all connections use primary.");
+            return;
+        }
+        checkReplicas();
+        checker = Executors.newSingleThreadScheduledExecutor(runnable -> {
+            Thread thread = new Thread(runnable, "read-replica-checker");
+            thread.setDaemon(true);
+            return thread;
+        });
+        checker.scheduleWithFixedDelay(this::checkReplicas, checkIntervalMillis, checkIntervalMillis, TimeUnit.MILLISECONDS);
+        logger.info("read replica routing enabled. replicas: {}, strategy: {}, maximum lag: {}ms, read-your-writes: {}ms",
+                replicas.size(), selectionStrategy, maximumLagMillis, readYourWritesMillis);
+    }
+
+    /**
+     * data sources(connection pools) owned by this routing data source, closed on destroy.
+     */
+    @Override
+    public void destroy() throws Exception {
+        if (null != checker)
+            checker.shutdownNow();
+        for (Replica replica : replicas)
+            closeQuietly(replica.dataSource);
+        closeQuietly(primary);
+    }
+
+    private void closeQuietly(DataSource dataSource) {
+        if (dataSource instanceof AutoCloseable) {
+            try {
+                ((AutoCloseable) dataSource).close();
+            } catch (Exception e) {
+                logger.warn("failure to close data source: {}", e.getMessage());
+            }
+        }
+    }
+
+    public void setPrimary(DataSource primary) {
+        this.primary = primary;
+    }
+
+    public void setSelectionStrategy(SelectionStrategy selectionStrategy) {
+        this.selectionStrategy = selectionStrategy;
+    }
+
+    public void setLagQuery(String lagQuery) {
+        this.lagQuery = lagQuery;
+    }
+
+    public void setMaximumLagMillis(long maximumLagMillis) {
+        this.maximumLagMillis = maximumLagMillis;
+    }
+
+    public void setCheckIntervalMillis(long checkIntervalMillis) {
+        this.checkIntervalMillis = checkIntervalMillis;
+    }
+
+    public void setCheckTimeoutSeconds(int checkTimeoutSeconds) {
+        this.checkTimeoutSeconds = checkTimeoutSeconds;
+    }
+
+    public void setReadYourWritesMillis(long readYourWritesMillis) {
+        this.readYourWritesMillis = readYourWritesMillis;
+    }
+
+    public void setSessionKeySupplier(Supplier<Serializable> sessionKeySupplier) {
+        this.sessionKeySupplier = sessionKeySupplier;
+    }
+
+
+    private static final class Replica {
+
+        private final String name;
+
+        private final DataSource dataSource;
+
+        //in-use connections. used for least-loaded selection.
+        private final AtomicInteger active = new AtomicInteger();
+
+        private volatile boolean healthy = true;
+
+        private volatile long lagMillis;
+
+        private Replica(String name, DataSource dataSource) {
+            this.name = name;
+            this.dataSource = dataSource;
+        }
+
+        private Connection getConnection(String username, String password) throws SQLException {
+            Connection connection = null != username ? dataSource.getConnection(username, password) : dataSource.getConnection();
+            active.incrementAndGet();
+            AtomicBoolean closed = new AtomicBoolean();
+            return (Connection) Proxy.newProxyInstance(Connection.class.getClassLoader(), new Class[]{Connection.class}, (proxy, method, args) -> {
+                if ("close".equals(method.getName()) && closed.compareAndSet(false, true))
+                    active.decrementAndGet();
+                try {
+                    return method.invoke(connection, args);
+                } catch (InvocationTargetException e) {
+                    throw e.getTargetException();
+                }
+            });
+        }
+    }
+}
@@ -0,0 +1,74 @@
+/**
+ * Copyright 2001-2005 The Apache Software Foundation.
+ * <p>
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ * <p>
+ * http://www.apache.org/licenses/LICENSE-2.0
+ * <p>
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.scleropages.kapuas.jdbc;
+
+import com.google.common.collect.ImmutableList;
+import com.google.common.collect.ImmutableMap;
+import com.google.common.hash.Hashing;
+import org.apache.shardingsphere.api.sharding.standard.PreciseShardingAlgorithm;
+import org.apache.shardingsphere.api.sharding.standard.PreciseShardingValue;
+import org.apache.shardingsphere.api.sharding.standard.RangeShardingAlgorithm;
+import org.apache.shardingsphere.api.sharding.standard.RangeShardingValue;
+import org.springframework.util.Assert;
+
+import java.util.Collection;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * 按 resource_type_id 分库. 同一资源类型的 acl/entries/variables 位于同一分片，关联查询不跨库.
+ * <p>
+ * 优先使用显式配置的 资源类型->分片 映射(用于将数据量特别大的资源类型独占分片)，未配置的资源类型按一致性哈希分配到哈希分片列表.
+ * 哈希分片列表显式配置且只能在末尾追加(下标即一致性哈希的桶编号，与分片名无关)，增加分片时只有约 1/n 的资源类型需要迁移到新分片.
+ * 范围条件无法确定资源类型，路由到所有分片.
+ *
+ * @author <a href="mailto:martinmao@icloud.com">Martin Mao</a>
+ */
+public class ResourceTypeShardingAlgorithm implements PreciseShardingAlgorithm<Long>, RangeShardingAlgorithm<Long> {
+
+    private final Map<Long, String> resourceTypeShards;
+
+    private final List<String> hashShards;
+
+    /**
+     * @param resourceTypeShards explicit resource type id -> shard name.
+     * @param hashShards         shards of consistent hash(ordinal = bucket). append only.
+     */
+    public ResourceTypeShardingAlgorithm(Map<Long, String> resourceTypeShards, List<String> hashShards) {
+        Assert.notEmpty(hashShards, "no hash shards configured.");
+        Assert.isTrue(hashShards.stream().distinct().count() == hashShards.size(), "duplicate hash shards: " + hashShards);
+        this.resourceTypeShards = ImmutableMap.copyOf(resourceTypeShards);
+        this.hashShards = ImmutableList.copyOf(hashShards);
+    }
+
+    @Override
+    public String doSharding(Collection<String> availableTargetNames, PreciseShardingValue<Long> shardingValue) {
+        Long resourceTypeId = shardingValue.getValue();
+        String shard = resourceTypeShards.get(resourceTypeId);
+        if (null != shard) {
+            Assert.isTrue(availableTargetNames.contains(shard), () -> "resource type " + resourceTypeId + " mapped to unknown shard: " + shard);
+            return shard;
+        }
+        String hashShard = hashShards.get(Hashing.consistentHash(Hashing.murmur3_128().hashLong(resourceTypeId), hashShards.size()));
+        Assert.isTrue(availableTargetNames.contains(hashShard), () -> "resource type " + resourceTypeId + " hashed to unknown shard: " + hashShard);
+        return hashShard;
+    }
+
+    @Override
+    public Collection<String> doSharding(Collection<String> availableTargetNames, RangeShardingValue<Long> shardingValue) {
+        return availableTargetNames;
+    }
+}
@@ -17,12 +17,15 @@ package org.scleropages.kapuas.security.acl.repo;
 
 import com.google.common.collect.Lists;
 import com.google.common.collect.Maps;
+import com.google.common.collect.Sets;
 import org.apache.commons.collections.MapUtils;
 import org.jooq.Condition;
 import org.jooq.Field;
+import org.jooq.InsertValuesStep4;
 import org.jooq.Record;
 import org.jooq.SelectQuery;
 import org.jooq.Table;
+import org.jooq.impl.DSL;
 import org.scleropages.crud.dao.orm.SearchFilter;
 import org.scleropages.crud.dao.orm.jpa.complement.JooqRepository;
 import org.scleropages.crud.dao.orm.jpa.complement.JpaSupportJooqConditions;
@@ -37,8 +40,12 @@ import org.springframework.data.repository.NoRepositoryBean;
 import org.springframework.data.repository.PagingAndSortingRepository;
 import org.springframework.util.Assert;
 
+import java.util.Collection;
+import java.util.Comparator;
 import java.util.List;
 import java.util.Map;
+import java.util.Objects;
+import java.util.Set;
 
 import static org.jooq.impl.DSL.field;
 import static org.jooq.impl.DSL.name;
@@ -50,6 +57,15 @@ import static org.scleropages.kapuas.jooq.tables.SecAclVariable.SEC_ACL_VARIABLE
 @NoRepositoryBean
 public interface AbstractAclEntityRepository<E extends AbstractAclEntity, T extends Table, R extends Record> extends PagingAndSortingRepository<E, Long>, JooqRepository<T, R, E>, JpaSpecificationExecutor<E> {
 
+    /**
+     * seek(cursor paging) condition: (resource_id, id) &gt; (lastResourceId, lastId). expanded to or/and form
+     * (row value comparison not supported by sharding data source. see {@link org.scleropages.kapuas.jdbc.AclShardingDataSourceFactory}).
+     */
+    static Condition seekCondition(Field<String> resourceIdField, Field<Long> idField, String lastResourceId, Long lastId) {
+        return resourceIdField.gt(lastResourceId).or(resourceIdField.eq(lastResourceId).and(idField.gt(lastId)));
+    }
+
+
     E getByResourceTypeIdAndResourceId(Long typeId, String resourceId);
 
 
@@ -73,6 +89,65 @@ public interface AbstractAclEntityRepository<E extends AbstractAclEntity, T exte
 
     Boolean existsByResourceTypeIdAndResourceId(Long typeId, String resourceId);
 
+    /**
+     * delete acl by id with resource type id as shard key(JPA deleteById has no resource type predicate and routed to all shards).
+     *
+     * @param typeId
+     * @param id
+     * @return deleted rows
+     */
+    default int deleteByResourceTypeIdAndId(Long typeId, Long id) {
+        T actualAclTable = dslTable();
+        return dslContext().deleteFrom(actualAclTable)
+                .where(actualAclTable.field(AbstractAclEntity.RESOURCE_TYPE_ID_COLUMN.toUpperCase()).eq(typeId))
+                .and(actualAclTable.field(AbstractAclEntity.ID_COLUMN.toUpperCase()).eq(id)).execute();
+    }
+
+    long countByResourceTypeIdAndIdIn(Long typeId, Collection<Long> ids);
+
+    /**
+     * return resource ids(in given resource ids) already exists. one IN query.
+     *
+     * @param typeId
+     * @param resourceIds
+     * @return
+     */
+    default Set<String> findAllResourceIdByResourceTypeIdAndResourceIdIn(Long typeId, Collection<String> resourceIds) {
+        T actualAclTable = dslTable();
+        Field<String> resourceIdField = actualAclTable.field(AbstractAclEntity.RESOURCE_ID_COLUMN.toUpperCase());
+        return Sets.newHashSet(dslContext().select(resourceIdField).from(actualAclTable)
+                .where(actualAclTable.field(AbstractAclEntity.RESOURCE_TYPE_ID_COLUMN.toUpperCase()).eq(typeId))
+                .and(resourceIdField.in(resourceIds)).fetch(resourceIdField));
+    }
+
+    /**
+     * insert given acl entities(same resource type) with one multi-row insert statement. ids are generated by database(identity),
+     * read back by one IN query.
+     *
+     * @param typeId
+     * @param entities
+     * @return resource id -> generated id.
+     */
+    default Map<String, Long> insertAll(Long typeId, List<E> entities) {
+        T actualAclTable = dslTable();
+        Field<Long> idField = actualAclTable.field(AbstractAclEntity.ID_COLUMN.toUpperCase());
+        Field<Long> resourceTypeIdField = actualAclTable.field(AbstractAclEntity.RESOURCE_TYPE_ID_COLUMN.toUpperCase());
+        Field<String> resourceIdField = actualAclTable.field(AbstractAclEntity.RESOURCE_ID_COLUMN.toUpperCase());
+        InsertValuesStep4<R, Long, String, String, Long> insert = dslContext().insertInto(actualAclTable, resourceTypeIdField, resourceIdField,
+                actualAclTable.field(AbstractAclEntity.RESOURCE_TAG_COLUMN.toUpperCase()), actualAclTable.field(AbstractAclEntity.OWNER_COLUMN.toUpperCase()));
+        List<String> resourceIds = Lists.newArrayListWithCapacity(entities.size());
+        for (E entity : entities) {
+            Assert.isTrue(Objects.equals(typeId, entity.getResourceTypeId()), "all entities must be same resource type.");
+            insert = insert.values(typeId, entity.getResourceId(), entity.getResourceTag(), entity.getOwner().getId());
+            resourceIds.add(entity.getResourceId());
+        }
+        insert.execute();
+        return dslContext().select(resourceIdField, idField).from(actualAclTable)
+                .where(resourceTypeIdField.eq(typeId)).and(resourceIdField.in(resourceIds)).fetchMap(resourceIdField, idField);
+    }
+
+    List<E> findAllByResourceTypeIdAndResourceIdIn(Long typeId, Collection<String> resourceIds);
+
     Page<E> findByResourceTypeId(Long resourceTypeId, Pageable pageable);
 
     default Page<E> findByResourceTypeId(Long resourceTypeId, Pageable pageable, Map<String, SearchFilter> variablesSearchFilters) {
@@ -85,7 +160,7 @@ public interface AbstractAclEntityRepository<E extends AbstractAclEntity, T exte
 
         query.addConditions(actualAclTable.field(AbstractAclEntity.RESOURCE_TYPE_ID_COLUMN.toUpperCase()).eq(resourceTypeId));
 
-        VariableConditionsAssembler.applyVariableConditions(query, pageable, variablesSearchFilters, actualAclTable);
+        VariableConditionsAssembler.applyVariableConditions(query, pageable, variablesSearchFilters, actualAclTable, resourceTypeId);
 
         return dslPage(() -> query, pageable, false, false).map(o -> {
             E entity = createActualAclEntity();
@@ -94,21 +169,139 @@ public interface AbstractAclEntityRepository<E extends AbstractAclEntity, T exte
         });
     }
 
+    /**
+     * keyset(seek) pagination version of {@link #findByResourceTypeId(Long, Pageable, Map)}. ORDER BY resource_id,id and no count query executed.
+     *
+     * @param resourceTypeId
+     * @param lastResourceId         last row resource id of previous page.
+     * @param lastId                 last row id of previous page. null for first page.
+     * @param limit
+     * @param variablesSearchFilters optional
+     * @return
+     */
+    default List<E> findByResourceTypeIdAfter(Long resourceTypeId, String lastResourceId, Long lastId, int limit, Map<String, SearchFilter> variablesSearchFilters) {
+        T actualAclTable = dslTable();
+        SelectQuery<Record> query = dslContext().selectDistinct(actualAclTable.fields()).from(actualAclTable).getQuery();
+        query.addConditions(actualAclTable.field(AbstractAclEntity.RESOURCE_TYPE_ID_COLUMN.toUpperCase()).eq(resourceTypeId));
+        if (MapUtils.isNotEmpty(variablesSearchFilters))
+            VariableConditionsAssembler.applyVariableConditions(query, Pageable.unpaged(), variablesSearchFilters, actualAclTable, resourceTypeId);
+
+        Field<String> resourceIdField = actualAclTable.field(AbstractAclEntity.RESOURCE_ID_COLUMN.toUpperCase());
+        Field<Long> idField = actualAclTable.field(AbstractAclEntity.ID_COLUMN.toUpperCase());
+        if (null != lastId)
+            query.addConditions(seekCondition(resourceIdField, idField, lastResourceId, lastId));
+        query.addOrderBy(resourceIdField, idField);
+        query.addLimit(limit);
+        return query.fetch().map(record -> {
+            E entity = createActualAclEntity();
+            dslRecordInto(record, entity);
+            return entity;
+        });
+    }
+
+    /**
+     * 按id顺序分批(keyset)读取给定资源类型的acl，用于全量导出. 每批查询完成后再读取该批的变量与载荷，同一连接上不会同时打开多个游标.
+     *
+     * @param resourceTypeId
+     * @param lastId         id of last acl in previous batch. null for first batch.
+     * @param limit
+     * @return
+     */
+    default List<E> findByResourceTypeIdAndIdAfter(Long resourceTypeId, Long lastId, int limit) {
+        T actualAclTable = dslTable();
+        Field<Long> idField = actualAclTable.field(AbstractAclEntity.ID_COLUMN.toUpperCase());
+        Condition condition = actualAclTable.field(AbstractAclEntity.RESOURCE_TYPE_ID_COLUMN.toUpperCase()).eq(resourceTypeId);
+        if (null != lastId)
+            condition = condition.and(idField.gt(lastId));
+        return dslContext().select(actualAclTable.fields()).from(actualAclTable).where(condition)
+                .orderBy(idField).limit(limit).fetch(record -> {
+                    E entity = createActualAclEntity();
+                    dslRecordInto(record, entity);
+                    return entity;
+                });
+    }
+
+    /**
+     * query strategies of variable search filters.
+     */
+    enum VariableQueryStrategy {
+        /**
+         * one join of sec_acl_variable per search filter. required when sorting by variables.
+         */
+        JOIN,
+        /**
+         * one EXISTS sub query per search filter(most selective first). no join, no distinct.
+         */
+        EXISTS,
+        /**
+         * single scan of sec_acl_variable: acl_id IN (... WHERE (name=? AND cond) OR ... GROUP BY acl_id HAVING COUNT(DISTINCT name_) = n).
+         */
+        GROUP_BY
+    }
+
     abstract class VariableConditionsAssembler {
 
-        protected static void applyVariableConditions(SelectQuery<Record> query, Pageable pageable, Map<String, SearchFilter> variablesSearchFilters, Table actualAclTable) {
+        //不超过该数量的变量条件时使用join(与EXISTS代价相当且支持变量排序)
+        protected static final int MAXIMUM_JOIN_CONDITIONS = 2;
+
+        //操作符选择度权重，越小越精确. group by 仅在所有条件都为精确匹配时使用(扫描的变量记录少)，否则使用EXISTS按选择度排序逐条探测
+        protected static final int SELECTIVITY_EQ = 1;
+        protected static final int SELECTIVITY_IN = 2;
+        protected static final int SELECTIVITY_RANGE = 4;
+        protected static final int SELECTIVITY_OTHERS = 8;
+
+        protected static void applyVariableConditions(SelectQuery<Record> query, Pageable pageable, Map<String, SearchFilter> variablesSearchFilters, Table actualAclTable, Long resourceTypeId) {
+            variablesSearchFilters.values().forEach(searchFilter -> Assert.isTrue(searchFilter.fieldNames.length == 1, "not support multiple field names."));
+            switch (chooseStrategy(pageable, variablesSearchFilters)) {
+                case EXISTS:
+                    applyExistsConditions(query, variablesSearchFilters, actualAclTable, resourceTypeId);
+                    break;
+                case GROUP_BY:
+                    applyGroupByConditions(query, variablesSearchFilters, actualAclTable, resourceTypeId);
+                    break;
+                default:
+                    applyJoinConditions(query, pageable, variablesSearchFilters, actualAclTable, resourceTypeId);
+            }
+        }
+
+        protected static VariableQueryStrategy chooseStrategy(Pageable pageable, Map<String, SearchFilter> variablesSearchFilters) {
+            if (pageable.getSort().isSorted() || variablesSearchFilters.size() <= MAXIMUM_JOIN_CONDITIONS)
+                return VariableQueryStrategy.JOIN;
+            return variablesSearchFilters.values().stream().allMatch(searchFilter -> selectivity(searchFilter) <= SELECTIVITY_IN) ?
+                    VariableQueryStrategy.GROUP_BY : VariableQueryStrategy.EXISTS;
+        }
+
+        protected static int selectivity(SearchFilter searchFilter) {
+            switch (String.valueOf(searchFilter.operator)) {
+                case "EQ":
+                    return SELECTIVITY_EQ;
+                case "IN":
+                    return SELECTIVITY_IN;
+                case "GT":
+                case "GTE":
+                case "LT":
+                case "LTE":
+                case "RANGE":
+                case "RANGEIN":
+                    return SELECTIVITY_RANGE;
+                default:
+                    return SELECTIVITY_OTHERS;
+            }
+        }
+
+        protected static void applyJoinConditions(SelectQuery<Record> query, Pageable pageable, Map<String, SearchFilter> variablesSearchFilters, Table actualAclTable, Long resourceTypeId) {
 
             List<Condition> variableConditions = Lists.newArrayList();//use this to keep variable conditions.
 
             Map<String, Field> variableFields = Maps.newHashMap();// use this to process variable sorting query.
 
             variablesSearchFilters.forEach((s, searchFilter) -> {// apply join to query. and build variableConditions, variableFields
-                Assert.isTrue(searchFilter.fieldNames.length == 1, "not support multiple field names.");
                 String variableName = searchFilter.fieldNames[0];
 
                 SecAclVariable variableJoin = SEC_ACL_VARIABLE.as(s + "_");
 
-                query.addJoin(variableJoin, actualAclTable.field(AbstractAclEntity.ID_COLUMN.toUpperCase()).eq(variableJoin.ACL_ID));
+                query.addJoin(variableJoin, actualAclTable.field(AbstractAclEntity.ID_COLUMN.toUpperCase()).eq(variableJoin.ACL_ID)
+                        .and(variableJoin.RESOURCE_TYPE_ID.eq(resourceTypeId)));
 
 
                 Field valueField = field(name(variableJoin.getName(), AclVariableEntity.getColumnByValue(searchFilter.value)));
@@ -127,6 +320,41 @@ public interface AbstractAclEntityRepository<E extends AbstractAclEntity, T exte
             });
         }
 
+        protected static void applyExistsConditions(SelectQuery<Record> query, Map<String, SearchFilter> variablesSearchFilters, Table actualAclTable, Long resourceTypeId) {
+            Field aclId = actualAclTable.field(AbstractAclEntity.ID_COLUMN.toUpperCase());
+            variablesSearchFilters.entrySet().stream()
+                    .sorted(Comparator.comparingInt(kv -> selectivity(kv.getValue())))
+                    .forEach(kv -> {
+                        SearchFilter searchFilter = kv.getValue();
+                        SecAclVariable variable = SEC_ACL_VARIABLE.as(kv.getKey() + "_");
+                        Field valueField = field(name(variable.getName(), AclVariableEntity.getColumnByValue(searchFilter.value)));
+                        query.addConditions(DSL.exists(DSL.selectOne().from(variable)
+                                .where(variable.ACL_ID.eq(aclId))
+                                .and(variable.RESOURCE_TYPE_ID.eq(resourceTypeId))
+                                .and(variable.NAME_.eq(searchFilter.fieldNames[0]))
+                                .and(JpaSupportJooqConditions.bySearchFilter(valueField, searchFilter))));
+                    });
+            query.setDistinct(false);
+        }
+
+        protected static void applyGroupByConditions(SelectQuery<Record> query, Map<String, SearchFilter> variablesSearchFilters, Table actualAclTable, Long resourceTypeId) {
+            SecAclVariable variable = SEC_ACL_VARIABLE.as("variables_");
+            //同一变量上的多个条件合并为一个匹配条件(每个acl每个变量仅一条记录)
+            Map<String, Condition> variableConditions = Maps.newLinkedHashMap();
+            variablesSearchFilters.values().forEach(searchFilter -> {
+                String variableName = searchFilter.fieldNames[0];
+                Field valueField = field(name(variable.getName(), AclVariableEntity.getColumnByValue(searchFilter.value)));
+                Condition condition = JpaSupportJooqConditions.bySearchFilter(valueField, searchFilter);
+                variableConditions.merge(variableName, variable.NAME_.eq(variableName).and(condition), (exists, current) -> exists.and(condition));
+            });
+            query.addConditions(actualAclTable.field(AbstractAclEntity.ID_COLUMN.toUpperCase()).in(
+                    DSL.select(variable.ACL_ID).from(variable)
+                            .where(variable.RESOURCE_TYPE_ID.eq(resourceTypeId))
+                            .and(DSL.or(variableConditions.values()))
+                            .groupBy(variable.ACL_ID)
+                            .having(DSL.countDistinct(variable.NAME_).eq(variableConditions.size()))));
+            query.setDistinct(false);
+        }
     }
 
 
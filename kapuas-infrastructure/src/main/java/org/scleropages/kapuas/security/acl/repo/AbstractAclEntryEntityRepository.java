@@ -16,11 +16,13 @@
 package org.scleropages.kapuas.security.acl.repo;
 
 import org.apache.commons.collections.MapUtils;
+import org.jooq.Condition;
 import org.jooq.Field;
 import org.jooq.ForeignKey;
 import org.jooq.Record;
 import org.jooq.SelectQuery;
 import org.jooq.Table;
+import org.jooq.impl.DSL;
 import org.scleropages.crud.dao.orm.SearchFilter;
 import org.scleropages.crud.dao.orm.jpa.complement.JooqRepository;
 import org.scleropages.kapuas.security.acl.entity.AbstractAclEntity;
@@ -32,9 +34,11 @@ import org.springframework.data.jpa.repository.JpaSpecificationExecutor;
 import org.springframework.data.repository.NoRepositoryBean;
 import org.springframework.data.repository.PagingAndSortingRepository;
 
+import java.util.Collection;
 import java.util.List;
 import java.util.Map;
 import java.util.Optional;
+import java.util.stream.Stream;
 
 /**
  * @author <a href="mailto:martinmao@icloud.com">Martin Mao</a>
@@ -47,6 +51,25 @@ public interface AbstractAclEntryEntityRepository<E extends AbstractAclEntryEnti
 
     boolean existsByAcl_IdAndGrant_Id(Long aclId, Long principalId);
 
+    //批量授权时一次加载给定acl与principal的已有记录(resource type id 作为分片键，每个资源类型一次查询)
+    List<E> findAllByResourceTypeIdAndAcl_IdInAndGrant_IdIn(Long resourceTypeId, Collection<Long> aclIds, Collection<Long> principalIds);
+
+    /**
+     * delete entries by ids with resource type id as shard key(JPA delete/deleteById has no resource type predicate and routed to all shards).
+     *
+     * @param resourceTypeId
+     * @param ids
+     * @return deleted rows
+     */
+    default int deleteByResourceTypeIdAndIdIn(Long resourceTypeId, Collection<Long> ids) {
+        if (ids.isEmpty())
+            return 0;
+        T actualEntryTable = dslTable();
+        return dslContext().deleteFrom(actualEntryTable)
+                .where(actualEntryTable.field(AbstractAclEntryEntity.RESOURCE_TYPE_ID_COLUMN.toUpperCase()).eq(resourceTypeId))
+                .and(actualEntryTable.field(AbstractAclEntity.ID_COLUMN.toUpperCase()).in(ids)).execute();
+    }
+
     //从资源维度进行检索方法列表
     default Page<E> findByResourceTypeIdAndResourceId(Long resourceTypeId, String resourceId, Pageable pageable) {
         Specification<E> specification = (Specification<E>) (root, query, builder) ->
@@ -60,15 +83,56 @@ public interface AbstractAclEntryEntityRepository<E extends AbstractAclEntryEnti
 
     Boolean existsByResourceTypeIdAndResourceId(Long resourceTypeId, String resourceId);
 
-    //从拥有者维度进行检索方法列表
-    Page<E> findByAclPrincipalNameAndResourceTypeIdAndResourceId(String principalName, Long resourceTypeId, String resourceId, Pageable pageable);
+    //从拥有者维度进行检索方法列表，principal 包含其所属的组/角色(见 AclPrincipalClosureEntityRepository)
+    default Page<E> findByAclPrincipalNameAndResourceTypeIdAndResourceId(String principalName, Long resourceTypeId, String resourceId, Pageable pageable) {
+        return dslPageEntities(buildBasePrincipalQuery(principalName, resourceTypeId, resourceId), pageable);
+    }
+
+    default Page<E> findByAclPrincipalNameAndResourceTypeId(String principalName, Long resourceTypeId, Pageable pageable) {
+        return dslPageEntities(buildBasePrincipalQuery(principalName, resourceTypeId, null), pageable);
+    }
 
-    Page<E> findByAclPrincipalNameAndResourceTypeId(String principalName, Long resourceTypeId, Pageable pageable);
+    default Boolean existsByAclPrincipalNameAndResourceTypeIdAndResourceId(String principalName, Long resourceTypeId, String resourceId) {
+        return dslContext().fetchExists(buildBasePrincipalQuery(principalName, resourceTypeId, resourceId));
+    }
 
-    Boolean existsByAclPrincipalNameAndResourceTypeIdAndResourceId(String principalName, Long resourceTypeId, String resourceId);
+    default Boolean existsByAclPrincipalNameAndResourceTypeId(String principalName, Long resourceTypeId) {
+        return dslContext().fetchExists(buildBasePrincipalQuery(principalName, resourceTypeId, null));
+    }
+
+
+    /**
+     * 批量判断principal是否具备给定资源访问权限，通过一次 resource_id in (...) 查询返回已授权的资源id
+     *
+     * @param principalName
+     * @param resourceTypeId
+     * @param resourceIds
+     * @return
+     */
+    default List<String> findResourceIdByAclPrincipalNameAndResourceTypeIdAndResourceIdIn(String principalName, Long resourceTypeId, Collection<String> resourceIds) {
+        T actualEntryTable = dslTable();
+        Field<String> resourceIdField = actualEntryTable.field(AbstractAclEntryEntity.RESOURCE_ID_COLUMN.toUpperCase());
+        return dslContext().selectDistinct(resourceIdField).from(actualEntryTable)
+                .where(principalCondition(principalName))
+                .and(actualEntryTable.field(AbstractAclEntryEntity.RESOURCE_TYPE_ID_COLUMN.toUpperCase()).eq(resourceTypeId))
+                .and(resourceIdField.in(resourceIds)).fetch(resourceIdField);
+    }
 
-    Boolean existsByAclPrincipalNameAndResourceTypeId(String principalName, Long resourceTypeId);
 
+    /**
+     * 返回principal在给定资源类型下所有已授权的资源id(不分页，用于构建内存索引)
+     *
+     * @param principalName
+     * @param resourceTypeId
+     * @return
+     */
+    default List<String> findResourceIdByAclPrincipalNameAndResourceTypeId(String principalName, Long resourceTypeId) {
+        T actualEntryTable = dslTable();
+        Field<String> resourceIdField = actualEntryTable.field(AbstractAclEntryEntity.RESOURCE_ID_COLUMN.toUpperCase());
+        return dslContext().selectDistinct(resourceIdField).from(actualEntryTable)
+                .where(principalCondition(principalName))
+                .and(actualEntryTable.field(AbstractAclEntryEntity.RESOURCE_TYPE_ID_COLUMN.toUpperCase()).eq(resourceTypeId)).fetch(resourceIdField);
+    }
 
 
     /**
@@ -84,8 +148,103 @@ public interface AbstractAclEntryEntityRepository<E extends AbstractAclEntryEnti
         if (MapUtils.isEmpty(variablesSearchFilters))
             return findByAclPrincipalNameAndResourceTypeId(principalName, resourceTypeId, pageable);
 
-        SelectQuery<Record> query = buildBaseVariableSearchQuery(pageable, variablesSearchFilters, principalName, resourceTypeId).get();
+        return dslPageEntities(buildBaseVariableSearchQuery(pageable, variablesSearchFilters, principalName, resourceTypeId).get(), pageable);
+    }
+
+
+    /**
+     * 按id顺序流式读取给定资源类型的所有acl entries(jooq lazy cursor)，用于全量导出. 返回的stream必须关闭，且需在事务中使用.
+     *
+     * @param resourceTypeId
+     * @param fetchSize
+     * @return
+     */
+    default Stream<E> streamByResourceTypeId(Long resourceTypeId, int fetchSize) {
+        T actualEntryTable = dslTable();
+        return dslContext().select(actualEntryTable.fields()).from(actualEntryTable)
+                .where(actualEntryTable.field(AbstractAclEntryEntity.RESOURCE_TYPE_ID_COLUMN.toUpperCase()).eq(resourceTypeId))
+                .and(actualEntryTable.field(AbstractAclEntryEntity.PRINCIPAL_COLUMN.toUpperCase()).ne(NEVER_USED_PRINCIPAL_NAME))
+                .orderBy(actualEntryTable.field(AbstractAclEntity.ID_COLUMN.toUpperCase()))
+                .fetchSize(fetchSize).fetchStream().map(record -> {
+                    E entity = createActualAclEntryEntity();
+                    dslRecordInto(record, entity);
+                    return entity;
+                });
+    }
+
+
+    //keyset(seek)分页检索方法列表，按 (resource_id,id) 排序且不执行count查询
+
+    default List<E> findByResourceTypeIdAndResourceIdAfter(Long resourceTypeId, String resourceId, String principalName, Long lastId, int limit) {
+        T actualEntryTable = dslTable();
+        SelectQuery<Record> query = dslContext().select(actualEntryTable.fields()).from(actualEntryTable).getQuery();
+        Field<String> principalField = actualEntryTable.field(AbstractAclEntryEntity.PRINCIPAL_COLUMN.toUpperCase());
+        query.addConditions(actualEntryTable.field(AbstractAclEntryEntity.RESOURCE_TYPE_ID_COLUMN.toUpperCase()).eq(resourceTypeId),
+                actualEntryTable.field(AbstractAclEntryEntity.RESOURCE_ID_COLUMN.toUpperCase()).eq(resourceId),
+                null != principalName ? principalField.eq(principalName) : principalField.ne(NEVER_USED_PRINCIPAL_NAME));
+        return dslSeek(query, resourceId, lastId, limit);
+    }
+
+    default List<E> findByAclPrincipalNameAndResourceTypeIdAndResourceIdAfter(String principalName, Long resourceTypeId, String resourceId, String lastResourceId, Long lastId, int limit, Map<String, SearchFilter> variablesSearchFilters) {
+        return dslSeek(buildBasePrincipalSeekQuery(principalName, resourceTypeId, resourceId, variablesSearchFilters), lastResourceId, lastId, limit);
+    }
+
+
+    /**
+     * Never call this method in manager layer. this is a utility method for repository sub classes.
+     * variable search filters ignored if resource id provided(resourceTypeId+resourceId结果唯一).
+     *
+     * @param principalName
+     * @param resourceTypeId
+     * @param resourceId             optional
+     * @param variablesSearchFilters optional
+     * @return
+     */
+    default SelectQuery<Record> buildBasePrincipalSeekQuery(String principalName, Long resourceTypeId, String resourceId, Map<String, SearchFilter> variablesSearchFilters) {
+        if (null == resourceId && MapUtils.isNotEmpty(variablesSearchFilters))
+            return buildBaseVariableSearchQuery(Pageable.unpaged(), variablesSearchFilters, principalName, resourceTypeId).get();
+        return buildBasePrincipalQuery(principalName, resourceTypeId, resourceId);
+    }
+
+    /**
+     * Never call this method in manager layer. this is a utility method for repository sub classes.
+     *
+     * @param principalName  matches given principal and all groups/roles it belongs to.
+     * @param resourceTypeId
+     * @param resourceId     optional
+     * @return
+     */
+    default SelectQuery<Record> buildBasePrincipalQuery(String principalName, Long resourceTypeId, String resourceId) {
+        T actualEntryTable = dslTable();
+        SelectQuery<Record> query = dslContext().select(actualEntryTable.fields()).from(actualEntryTable).getQuery();
+        query.addConditions(principalCondition(principalName),
+                actualEntryTable.field(AbstractAclEntryEntity.RESOURCE_TYPE_ID_COLUMN.toUpperCase()).eq(resourceTypeId));
+        if (null != resourceId)
+            query.addConditions(actualEntryTable.field(AbstractAclEntryEntity.RESOURCE_ID_COLUMN.toUpperCase()).eq(resourceId));
+        return query;
+    }
+
+    /**
+     * Never call this method in manager layer. this is a utility method for repository sub classes.
+     * principal_ = given principal or principal_ IN (all its ancestors in closure).
+     *
+     * @param principalName
+     * @return
+     */
+    default Condition principalCondition(String principalName) {
+        Field<String> principalField = dslTable().field(AbstractAclEntryEntity.PRINCIPAL_COLUMN.toUpperCase());
+        return principalField.eq(principalName).or(principalField.in(AclPrincipalClosureEntityRepository.selectAncestors(principalName)));
+    }
 
+    /**
+     * Never call this method in manager layer. this is a utility method for repository sub classes.
+     * fetch page of given query and map records as actual entry entities.
+     *
+     * @param query
+     * @param pageable
+     * @return
+     */
+    default Page<E> dslPageEntities(SelectQuery<Record> query, Pageable pageable) {
         return dslPage(() -> query, pageable, false, false).map(o -> {
             E entity = createActualAclEntryEntity();
             dslRecordInto(o, entity);
@@ -93,6 +252,31 @@ public interface AbstractAclEntryEntityRepository<E extends AbstractAclEntryEnti
         });
     }
 
+    /**
+     * Never call this method in manager layer. this is a utility method for repository sub classes.
+     * apply WHERE (resource_id,id) &gt; (lastResourceId,lastId) ORDER BY resource_id,id LIMIT limit to given query and fetch.
+     *
+     * @param query
+     * @param lastResourceId last row resource id of previous page.
+     * @param lastId         last row id of previous page. null for first page.
+     * @param limit
+     * @return
+     */
+    default List<E> dslSeek(SelectQuery<Record> query, String lastResourceId, Long lastId, int limit) {
+        T actualEntryTable = dslTable();
+        Field<String> resourceIdField = actualEntryTable.field(AbstractAclEntryEntity.RESOURCE_ID_COLUMN.toUpperCase());
+        Field<Long> idField = actualEntryTable.field(AbstractAclEntity.ID_COLUMN.toUpperCase());
+        if (null != lastId)
+            query.addConditions(AbstractAclEntityRepository.seekCondition(resourceIdField, idField, lastResourceId, lastId));
+        query.addOrderBy(resourceIdField, idField);
+        query.addLimit(limit);
+        return query.fetch().map(record -> {
+            E entity = createActualAclEntryEntity();
+            dslRecordInto(record, entity);
+            return entity;
+        });
+    }
+
 
     /**
      * Never call this method in manager layer. this is a utility method for repository sub classes.
@@ -113,10 +297,11 @@ public interface AbstractAclEntryEntityRepository<E extends AbstractAclEntryEnti
                 .from(actualAclTable)
                 .join(actualEntryTable).on(actualAclPk.eq(refFieldNameToAclTable())).getQuery();
 
-        query.addConditions(actualEntryTable.field(AbstractAclEntryEntity.PRINCIPAL_COLUMN.toUpperCase()).eq(principalName));
-        query.addConditions(actualAclTable.field(AbstractAclEntity.RESOURCE_TYPE_ID_COLUMN.toUpperCase()).eq(resourceTypeId));
+        query.addConditions(principalCondition(principalName));
+        query.addConditions(actualAclTable.field(AbstractAclEntity.RESOURCE_TYPE_ID_COLUMN.toUpperCase()).eq(resourceTypeId),
+                actualEntryTable.field(AbstractAclEntryEntity.RESOURCE_TYPE_ID_COLUMN.toUpperCase()).eq(resourceTypeId));
 
-        AbstractAclEntityRepository.VariableConditionsAssembler.applyVariableConditions(query, pageable, variablesSearchFilters, actualAclTable);
+        AbstractAclEntityRepository.VariableConditionsAssembler.applyVariableConditions(query, pageable, variablesSearchFilters, actualAclTable, resourceTypeId);
         return Optional.of(query);
     }
 
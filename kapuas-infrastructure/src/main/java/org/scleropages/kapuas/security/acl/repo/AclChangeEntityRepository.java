@@ -0,0 +1,109 @@
+/**
+ * Copyright 2001-2005 The Apache Software Foundation.
+ * <p>
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ * <p>
+ * http://www.apache.org/licenses/LICENSE-2.0
+ * <p>
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.scleropages.kapuas.security.acl.repo;
+
+import com.google.common.collect.Lists;
+import org.jooq.InsertValuesStep7;
+import org.jooq.impl.DSL;
+import org.scleropages.crud.dao.orm.jpa.complement.JooqRepository;
+import org.scleropages.kapuas.jooq.tables.SecAclChange;
+import org.scleropages.kapuas.jooq.tables.records.SecAclChangeRecord;
+import org.scleropages.kapuas.security.acl.entity.AclChangeEntity;
+import org.springframework.data.repository.CrudRepository;
+import org.springframework.util.Assert;
+
+import java.sql.Timestamp;
+import java.util.Date;
+import java.util.List;
+
+/**
+ * @author <a href="mailto:martinmao@icloud.com">Martin Mao</a>
+ */
+public interface AclChangeEntityRepository extends CrudRepository<AclChangeEntity, Long>, JooqRepository<SecAclChange, SecAclChangeRecord, AclChangeEntity> {
+
+
+    /**
+     * insert given changes with multi-row insert statements, at most chunkSize rows per statement.
+     * sequences must be assigned(see {@link AclChangeHeadEntityRepository#advance(int)}), no sequence round trip per row.
+     *
+     * @param changes
+     * @param chunkSize
+     */
+    default void insertAll(List<AclChangeEntity> changes, int chunkSize) {
+        SecAclChange change = dslTable();
+        for (List<AclChangeEntity> chunk : Lists.partition(changes, chunkSize)) {
+            InsertValuesStep7<SecAclChangeRecord, Long, String, String, String, String, String, Timestamp> insert = dslContext().insertInto(change,
+                    change.ID, change.CHANGE_TYPE, change.RESOURCE_TYPE, change.RESOURCE_ID, change.PRINCIPAL_, change.PERMISSIONS_, change.CREATE_TIME);
+            chunk.forEach(entity -> {
+                Assert.notNull(entity.getId(), "change sequence must be assigned before insert.");
+                insert.values(entity.getId(), entity.getChangeType(), entity.getResourceType(), entity.getResourceId(),
+                        entity.getPrincipal(), entity.getPermissions(), new Timestamp(entity.getCreateTime().getTime()));
+            });
+            insert.execute();
+        }
+    }
+
+    /**
+     * return changes after given sequence in sequence order. sequences assigned in commit order(see {@link AclChangeHeadEntityRepository#advance(int)}),
+     * caller should still not move cursor over gaps(see AclChangeFeed).
+     *
+     * @param after
+     * @param limit
+     * @return
+     */
+    default List<AclChangeEntity> findAllByIdAfter(long after, int limit) {
+        SecAclChange change = dslTable();
+        return dslContext().selectFrom(change).where(change.ID.gt(after))
+                .orderBy(change.ID).limit(limit).fetch(record -> {
+                    AclChangeEntity entity = new AclChangeEntity();
+                    dslRecordInto(record, entity);
+                    return entity;
+                });
+    }
+
+    /**
+     * @return maximum sequence of changes. 0 if no changes.
+     */
+    default long getMaxId() {
+        SecAclChange change = dslTable();
+        Long maxId = dslContext().select(DSL.max(change.ID)).from(change).fetchOne().value1();
+        return null != maxId ? maxId : 0;
+    }
+
+    /**
+     * @return minimum sequence of changes. 0 if no changes.
+     */
+    default long getMinId() {
+        SecAclChange change = dslTable();
+        Long minId = dslContext().select(DSL.min(change.ID)).from(change).fetchOne().value1();
+        return null != minId ? minId : 0;
+    }
+
+    /**
+     * @return maximum sequence of changes created before given time. 0 if no such changes.
+     */
+    default long getMaxIdCreatedBefore(Date createdBefore) {
+        SecAclChange change = dslTable();
+        Long maxId = dslContext().select(DSL.max(change.ID)).from(change)
+                .where(change.CREATE_TIME.lt(new Timestamp(createdBefore.getTime()))).fetchOne().value1();
+        return null != maxId ? maxId : 0;
+    }
+
+    default int deleteAllByIdBetween(long from, long to) {
+        SecAclChange change = dslTable();
+        return dslContext().deleteFrom(change).where(change.ID.between(from, to)).execute();
+    }
+}
@@ -0,0 +1,55 @@
+/**
+ * Copyright 2001-2005 The Apache Software Foundation.
+ * <p>
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ * <p>
+ * http://www.apache.org/licenses/LICENSE-2.0
+ * <p>
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.scleropages.kapuas.security.acl.repo;
+
+import org.jooq.impl.DSL;
+import org.scleropages.crud.dao.orm.jpa.complement.JooqRepository;
+import org.scleropages.kapuas.jooq.tables.SecAclChangeHead;
+import org.scleropages.kapuas.jooq.tables.records.SecAclChangeHeadRecord;
+import org.scleropages.kapuas.security.acl.entity.AclChangeHeadEntity;
+import org.springframework.data.repository.CrudRepository;
+
+import static org.scleropages.kapuas.jooq.tables.SecAclChange.SEC_ACL_CHANGE;
+
+/**
+ * @author <a href="mailto:martinmao@icloud.com">Martin Mao</a>
+ */
+public interface AclChangeHeadEntityRepository extends CrudRepository<AclChangeHeadEntity, Long>, JooqRepository<SecAclChangeHead, SecAclChangeHeadRecord, AclChangeHeadEntity> {
+
+
+    /**
+     * reserve given count of change sequences in current transaction. row lock held until transaction completed,
+     * concurrent reservations wait, so sequences are assigned in commit order and released(not used) by rollback.
+     *
+     * @param count
+     * @return last reserved sequence(reserved: [last - count + 1, last]).
+     */
+    default long advance(int count) {
+        SecAclChangeHead head = dslTable();
+        int updated = dslContext().update(head).set(head.POSITION_, head.POSITION_.plus(count))
+                .where(head.ID.eq(AclChangeHeadEntity.SINGLETON_ID)).execute();
+        if (updated == 0) {
+            //first change. create row from existing changes(ignore if concurrent created) then retry update.
+            Long maxId = dslContext().select(DSL.max(SEC_ACL_CHANGE.ID)).from(SEC_ACL_CHANGE).fetchOne().value1();
+            dslContext().insertInto(head, head.ID, head.POSITION_)
+                    .values(AclChangeHeadEntity.SINGLETON_ID, null != maxId ? maxId : 0L).onConflictDoNothing().execute();
+            if (dslContext().update(head).set(head.POSITION_, head.POSITION_.plus(count))
+                    .where(head.ID.eq(AclChangeHeadEntity.SINGLETON_ID)).execute() == 0)
+                throw new IllegalStateException("failure to advance acl change head.");
+        }
+        return dslContext().select(head.POSITION_).from(head).where(head.ID.eq(AclChangeHeadEntity.SINGLETON_ID)).fetchOne(head.POSITION_);
+    }
+}
@@ -15,7 +15,10 @@
  */
 package org.scleropages.kapuas.security.acl.repo;
 
+import com.google.common.collect.Maps;
 import org.apache.commons.collections.MapUtils;
+import org.jooq.BatchBindStep;
+import org.jooq.Condition;
 import org.jooq.Record;
 import org.jooq.Record1;
 import org.jooq.SelectQuery;
@@ -30,8 +33,10 @@ import org.springframework.data.domain.Pageable;
 import org.springframework.data.jpa.repository.EntityGraph;
 import org.springframework.util.Assert;
 
+import java.util.Collection;
 import java.util.List;
 import java.util.Map;
+import java.util.stream.IntStream;
 
 /**
  * @author <a href="mailto:martinmao@icloud.com">Martin Mao</a>
@@ -40,11 +45,35 @@ public interface AclEntryEntityRepository extends AbstractAclEntryEntityReposito
 
     boolean existsByAcl_IdAndGrant_IdAndPermission_Id(Long aclId, Long principalId, Long permissionId);
 
+    /**
+     * insert given entries, entries conflicted with existing (acl, principal, permission) skipped(INSERT ... ON CONFLICT DO NOTHING/INSERT IGNORE).
+     * one prepared statement executed in one jdbc batch. concurrent grants of same entry not failed by unique constraint.
+     *
+     * @param entries ids must be allocated(see {@link org.scleropages.kapuas.jdbc.EntityIdAllocator}).
+     * @return number of entries inserted.
+     */
+    default int insertIgnoreAll(List<AclEntryEntity> entries) {
+        if (entries.isEmpty())
+            return 0;
+        SecAclEntries aclEntries = dslTable();
+        BatchBindStep batch = dslContext().batch(dslContext().insertInto(aclEntries, aclEntries.ID, aclEntries.SEC_ACL_ID, aclEntries.SEC_ACL_PRINCIPAL_ID, aclEntries.SEC_ACL_PERMISSION_ID,
+                aclEntries.PRINCIPAL_, aclEntries.RESOURCE_TYPE_ID, aclEntries.RESOURCE_ID, aclEntries.PERMISSION_, aclEntries.PERMISSION_MASK_)
+                .values((Long) null, (Long) null, (Long) null, (Long) null, (String) null, (Long) null, (String) null, (String) null, (Long) null)
+                .onConflictDoNothing());
+        entries.forEach(entry -> {
+            Assert.notNull(entry.getId(), "entry id must be allocated before insert.");
+            batch.bind(entry.getId(), entry.getAcl().getId(), entry.getGrant().getId(), entry.getPermission().getId(),
+                    entry.getAclPrincipalName(), entry.getResourceTypeId(), entry.getResourceId(), entry.getPermissionName(), entry.getPermissionMask());
+        });
+        return IntStream.of(batch.execute()).filter(inserted -> inserted > 0).sum();
+    }
+
 
-    default Long getIdByAcl_IdAndGrant_IdAndPermission_Id(Long aclId, Long grantId, Long permissionId) {
+    default Long getIdByResourceTypeIdAndAcl_IdAndGrant_IdAndPermission_Id(Long resourceTypeId, Long aclId, Long grantId, Long permissionId) {
         SecAclEntries aclEntries = dslTable();
         Record1<Long> id = dslContext().select(aclEntries.ID).from(aclEntries)
-                .where(aclEntries.SEC_ACL_ID.eq(aclId))
+                .where(aclEntries.RESOURCE_TYPE_ID.eq(resourceTypeId))
+                .and(aclEntries.SEC_ACL_ID.eq(aclId))
                 .and(aclEntries.SEC_ACL_PRINCIPAL_ID.eq(grantId))
                 .and(aclEntries.SEC_ACL_PERMISSION_ID.eq(permissionId)).fetchOne();
         Assert.notNull(id, "no acl entry found.");
@@ -54,31 +83,202 @@ public interface AclEntryEntityRepository extends AbstractAclEntryEntityReposito
     @EntityGraph(attributePaths = "permission")
     List<AclEntryEntity> findByAcl_IdAndGrant_Id(Long aclId, Long principalId);
 
-    //权限继承时合并所有权限为一条记录，需要like匹配
-    Page<AclEntryEntity> findByAclPrincipalNameAndResourceTypeIdAndPermissionNameLike(String principalName, Long resourceTypeId, String permissionName, Pageable pageable);
+    //权限继承时合并所有权限为一条记录，permission_mask_ 包含了被继承的所有权限位，通过 (mask & bit) != 0 匹配
+    default Page<AclEntryEntity> findByAclPrincipalNameAndResourceTypeIdAndResourceIdAndPermissionMask(String principalName, Long resourceTypeId, String resourceId, Long permissionMask, Pageable pageable) {
+        SecAclEntries aclEntries = dslTable();
+        SelectQuery<Record> query = dslContext().select(aclEntries.fields()).from(aclEntries).getQuery();
+        query.addConditions(principalCondition(principalName), aclEntries.RESOURCE_TYPE_ID.eq(resourceTypeId), aclEntries.RESOURCE_ID.eq(resourceId),
+                aclEntries.PERMISSION_MASK_.bitAnd(permissionMask).ne(0L));
+        return dslPage(() -> query, pageable, false, false).map(o -> {
+            AclEntryEntity entity = createActualAclEntryEntity();
+            dslRecordInto(o, entity);
+            return entity;
+        });
+    }
 
-    Page<AclEntryEntity> findByAclPrincipalNameAndResourceTypeIdAndResourceIdAndPermissionNameLike(String principalName, Long resourceTypeId, String resourceId, String permissionName, Pageable pageable);
+    default Boolean existsByAclPrincipalNameAndResourceTypeIdAndPermissionMask(String principalName, Long resourceTypeId, Long permissionMask) {
+        SecAclEntries aclEntries = dslTable();
+        return dslContext().fetchExists(dslContext().selectOne().from(aclEntries)
+                .where(principalCondition(principalName))
+                .and(aclEntries.RESOURCE_TYPE_ID.eq(resourceTypeId))
+                .and(aclEntries.PERMISSION_MASK_.bitAnd(permissionMask).ne(0L)));
+    }
 
-    Boolean existsByAclPrincipalNameAndResourceTypeIdAndPermissionNameLike(String principalName, Long resourceTypeId, String permissionName);
+    default Boolean existsByAclPrincipalNameAndResourceTypeIdAndResourceIdAndPermissionMask(String principalName, Long resourceTypeId, String resourceId, Long permissionMask) {
+        SecAclEntries aclEntries = dslTable();
+        return dslContext().fetchExists(dslContext().selectOne().from(aclEntries)
+                .where(principalCondition(principalName))
+                .and(aclEntries.RESOURCE_TYPE_ID.eq(resourceTypeId))
+                .and(aclEntries.RESOURCE_ID.eq(resourceId))
+                .and(aclEntries.PERMISSION_MASK_.bitAnd(permissionMask).ne(0L)));
+    }
 
-    Boolean existsByAclPrincipalNameAndResourceTypeIdAndResourceIdAndPermissionNameLike(String principalName, Long resourceTypeId, String resourceId, String permissionName);
+    /**
+     * return true if given principal already granted a permission(or higher inherit permission) that covered all bits of given mask.
+     *
+     * @param resourceTypeId
+     * @param aclId
+     * @param grantId
+     * @param permissionMask
+     * @return
+     */
+    default boolean existsCoveredByResourceTypeIdAndAcl_IdAndGrant_Id(Long resourceTypeId, Long aclId, Long grantId, Long permissionMask) {
+        SecAclEntries aclEntries = dslTable();
+        return dslContext().fetchExists(dslContext().selectOne().from(aclEntries)
+                .where(aclEntries.RESOURCE_TYPE_ID.eq(resourceTypeId))
+                .and(aclEntries.SEC_ACL_ID.eq(aclId))
+                .and(aclEntries.SEC_ACL_PRINCIPAL_ID.eq(grantId))
+                .and(aclEntries.PERMISSION_MASK_.bitAnd(permissionMask).eq(permissionMask)));
+    }
+
+    /**
+     * delete all grants of given principal that subsumed by given mask(权限升级时删除被包含的低级权限).
+     *
+     * @param resourceTypeId
+     * @param aclId
+     * @param grantId
+     * @param permissionMask
+     * @return
+     */
+    default int deleteSubsumedByResourceTypeIdAndAcl_IdAndGrant_Id(Long resourceTypeId, Long aclId, Long grantId, Long permissionMask) {
+        SecAclEntries aclEntries = dslTable();
+        return dslContext().deleteFrom(aclEntries)
+                .where(aclEntries.RESOURCE_TYPE_ID.eq(resourceTypeId))
+                .and(aclEntries.SEC_ACL_ID.eq(aclId))
+                .and(aclEntries.SEC_ACL_PRINCIPAL_ID.eq(grantId))
+                .and(aclEntries.PERMISSION_MASK_.bitAnd(permissionMask).eq(aclEntries.PERMISSION_MASK_))
+                .and(aclEntries.PERMISSION_MASK_.ne(permissionMask)).execute();
+    }
+
+    /**
+     * batch version of {@link #deleteSubsumedByResourceTypeIdAndAcl_IdAndGrant_Id(Long, Long, Long, Long)}. one prepared statement bound per given entry's (acl,principal) executed in one jdbc batch.
+     *
+     * @param grants grants(resource type, acl, principal and permission mask are required).
+     * @return
+     */
+    default int[] deleteSubsumedByResourceTypeIdAndAcl_IdAndGrant_Id(Collection<AclEntryEntity> grants) {
+        if (grants.isEmpty())
+            return new int[0];
+        SecAclEntries aclEntries = dslTable();
+        //prepared statement batch(same sql), also supported by sharding data source(static statement batch is not).
+        BatchBindStep batch = dslContext().batch(dslContext().deleteFrom(aclEntries)
+                .where(aclEntries.RESOURCE_TYPE_ID.eq((Long) null))
+                .and(aclEntries.SEC_ACL_ID.eq((Long) null))
+                .and(aclEntries.SEC_ACL_PRINCIPAL_ID.eq((Long) null))
+                .and(aclEntries.PERMISSION_MASK_.bitAnd((Long) null).eq(aclEntries.PERMISSION_MASK_))
+                .and(aclEntries.PERMISSION_MASK_.ne((Long) null)));
+        grants.forEach(grant -> batch.bind(grant.getResourceTypeId(), grant.getAcl().getId(), grant.getGrant().getId(), grant.getPermissionMask(), grant.getPermissionMask()));
+        return batch.execute();
+    }
+
+    /**
+     * fill permission mask of entries created before permission bits introduced(permission_mask_ is null). idempotent.
+     *
+     * @param resourceTypeId
+     * @param permissionId
+     * @param grantMask      mask used to grant given permission(see {@link PermissionEntityRepository.LocalPermissionEntityRepository#getGrantMask(org.scleropages.kapuas.security.acl.entity.PermissionEntity)}).
+     * @return updated rows
+     */
+    default int backfillPermissionMaskByResourceTypeIdAndPermission_Id(Long resourceTypeId, Long permissionId, Long grantMask) {
+        SecAclEntries aclEntries = dslTable();
+        return dslContext().update(aclEntries)
+                .set(aclEntries.PERMISSION_MASK_, grantMask)
+                .where(aclEntries.RESOURCE_TYPE_ID.eq(resourceTypeId))
+                .and(aclEntries.SEC_ACL_PERMISSION_ID.eq(permissionId))
+                .and(aclEntries.PERMISSION_MASK_.isNull()).execute();
+    }
 
     //非权限继承不会合并记录，每一条acl entry对应一个权限记录，通过 equals匹配
-    Page<AclEntryEntity> findByAclPrincipalNameAndResourceTypeIdAndPermissionName(String principalName, Long resourceTypeId, String permissionName, Pageable pageable);
+    default Page<AclEntryEntity> findByAclPrincipalNameAndResourceTypeIdAndPermissionName(String principalName, Long resourceTypeId, String permissionName, Pageable pageable) {
+        SelectQuery<Record> query = buildBasePrincipalQuery(principalName, resourceTypeId, null);
+        query.addConditions(dslTable().PERMISSION_.eq(permissionName));
+        return dslPageEntities(query, pageable);
+    }
 
-    Page<AclEntryEntity> findByAclPrincipalNameAndResourceTypeIdAndResourceIdAndPermissionName(String principalName, Long resourceTypeId, String resourceId, String permissionName, Pageable pageable);
+    default Page<AclEntryEntity> findByAclPrincipalNameAndResourceTypeIdAndResourceIdAndPermissionName(String principalName, Long resourceTypeId, String resourceId, String permissionName, Pageable pageable) {
+        SelectQuery<Record> query = buildBasePrincipalQuery(principalName, resourceTypeId, resourceId);
+        query.addConditions(dslTable().PERMISSION_.eq(permissionName));
+        return dslPageEntities(query, pageable);
+    }
 
-    Boolean existsByAclPrincipalNameAndResourceTypeIdAndPermissionName(String principalName, Long resourceTypeId, String permissionName);
+    default Boolean existsByAclPrincipalNameAndResourceTypeIdAndPermissionName(String principalName, Long resourceTypeId, String permissionName) {
+        SelectQuery<Record> query = buildBasePrincipalQuery(principalName, resourceTypeId, null);
+        query.addConditions(dslTable().PERMISSION_.eq(permissionName));
+        return dslContext().fetchExists(query);
+    }
+
+    default Boolean existsByAclPrincipalNameAndResourceTypeIdAndResourceIdAndPermissionName(String principalName, Long resourceTypeId, String resourceId, String permissionName) {
+        SelectQuery<Record> query = buildBasePrincipalQuery(principalName, resourceTypeId, resourceId);
+        query.addConditions(dslTable().PERMISSION_.eq(permissionName));
+        return dslContext().fetchExists(query);
+    }
 
-    Boolean existsByAclPrincipalNameAndResourceTypeIdAndResourceIdAndPermissionName(String principalName, Long resourceTypeId, String resourceId, String permissionName);
 
+    default List<String> findResourceIdByAclPrincipalNameAndResourceTypeIdAndPermissionMaskAndResourceIdIn(String principalName, Long resourceTypeId, Long permissionMask, Collection<String> resourceIds) {
+        SecAclEntries aclEntries = dslTable();
+        return dslContext().selectDistinct(aclEntries.RESOURCE_ID).from(aclEntries)
+                .where(principalCondition(principalName))
+                .and(aclEntries.RESOURCE_TYPE_ID.eq(resourceTypeId))
+                .and(aclEntries.RESOURCE_ID.in(resourceIds))
+                .and(aclEntries.PERMISSION_MASK_.bitAnd(permissionMask).ne(0L)).fetch(aclEntries.RESOURCE_ID);
+    }
 
-    default Page<AclEntryEntity> findByAclPrincipalNameAndResourceTypeIdAndPermissionNameLike(String principalName, Long resourceTypeId, String permissionName, Pageable pageable, Map<String, SearchFilter> variablesSearchFilters) {
-        if (MapUtils.isEmpty(variablesSearchFilters))
-            return findByAclPrincipalNameAndResourceTypeIdAndPermissionNameLike(principalName, resourceTypeId, permissionName, pageable);
+    /**
+     * 返回principal在给定资源类型下所有已授权的资源id及其权限位(同一资源多条记录时合并)，未分配权限位的历史数据权限位为0.
+     *
+     * @param principalName
+     * @param resourceTypeId
+     * @return resource id -> permission mask
+     */
+    default Map<String, Long> findPermissionMaskByAclPrincipalNameAndResourceTypeId(String principalName, Long resourceTypeId) {
+        SecAclEntries aclEntries = dslTable();
+        Map<String, Long> permissionMasks = Maps.newHashMap();
+        dslContext().select(aclEntries.RESOURCE_ID, aclEntries.PERMISSION_MASK_).from(aclEntries)
+                .where(principalCondition(principalName))
+                .and(aclEntries.RESOURCE_TYPE_ID.eq(resourceTypeId))
+                .fetch().forEach(record -> permissionMasks.merge(record.value1(), null != record.value2() ? record.value2() : 0L, (a, b) -> a | b));
+        return permissionMasks;
+    }
 
-        SelectQuery<Record> query = buildBaseVariableSearchQuery(pageable, variablesSearchFilters, principalName, resourceTypeId).get();
-        query.addConditions(dslTable().PERMISSION_.like(permissionName));
+    /**
+     * 返回principal在给定资源(resource id 为空时为资源类型下任意资源)上所有已授权的权限名称及其权限位(同一权限多条记录时合并). 一次查询取得全部权限.
+     *
+     * @param principalName
+     * @param resourceTypeId
+     * @param resourceId     optional.
+     * @return permission name -> permission mask
+     */
+    default Map<String, Long> findPermissionMaskByAclPrincipalNameAndResourceTypeIdAndResourceId(String principalName, Long resourceTypeId, String resourceId) {
+        SecAclEntries aclEntries = dslTable();
+        Condition condition = principalCondition(principalName).and(aclEntries.RESOURCE_TYPE_ID.eq(resourceTypeId));
+        if (null != resourceId)
+            condition = condition.and(aclEntries.RESOURCE_ID.eq(resourceId));
+        Map<String, Long> permissionMasks = Maps.newHashMap();
+        dslContext().selectDistinct(aclEntries.PERMISSION_, aclEntries.PERMISSION_MASK_).from(aclEntries)
+                .where(condition)
+                .fetch().forEach(record -> permissionMasks.merge(record.value1(), null != record.value2() ? record.value2() : 0L, (a, b) -> a | b));
+        return permissionMasks;
+    }
+
+    default List<String> findResourceIdByAclPrincipalNameAndResourceTypeIdAndPermissionNameAndResourceIdIn(String principalName, Long resourceTypeId, String permissionName, Collection<String> resourceIds) {
+        SecAclEntries aclEntries = dslTable();
+        return dslContext().selectDistinct(aclEntries.RESOURCE_ID).from(aclEntries)
+                .where(principalCondition(principalName))
+                .and(aclEntries.RESOURCE_TYPE_ID.eq(resourceTypeId))
+                .and(aclEntries.RESOURCE_ID.in(resourceIds))
+                .and(aclEntries.PERMISSION_.eq(permissionName)).fetch(aclEntries.RESOURCE_ID);
+    }
+
+
+    default Page<AclEntryEntity> findByAclPrincipalNameAndResourceTypeIdAndPermissionMask(String principalName, Long resourceTypeId, Long permissionMask, Pageable pageable, Map<String, SearchFilter> variablesSearchFilters) {
+        SecAclEntries aclEntries = dslTable();
+        SelectQuery<Record> query;
+        if (MapUtils.isEmpty(variablesSearchFilters)) {
+            query = dslContext().select(aclEntries.fields()).from(aclEntries).getQuery();
+            query.addConditions(principalCondition(principalName), aclEntries.RESOURCE_TYPE_ID.eq(resourceTypeId));
+        } else
+            query = buildBaseVariableSearchQuery(pageable, variablesSearchFilters, principalName, resourceTypeId).get();
+        query.addConditions(aclEntries.PERMISSION_MASK_.bitAnd(permissionMask).ne(0L));
         return dslPage(() -> query, pageable, false, false).map(o -> {
             AclEntryEntity entity = createActualAclEntryEntity();
             dslRecordInto(o, entity);
@@ -100,6 +300,19 @@ public interface AclEntryEntityRepository extends AbstractAclEntryEntityReposito
     }
 
 
+    default List<AclEntryEntity> findByAclPrincipalNameAndResourceTypeIdAndResourceIdAndPermissionMaskAfter(String principalName, Long resourceTypeId, String resourceId, Long permissionMask, String lastResourceId, Long lastId, int limit, Map<String, SearchFilter> variablesSearchFilters) {
+        SelectQuery<Record> query = buildBasePrincipalSeekQuery(principalName, resourceTypeId, resourceId, variablesSearchFilters);
+        query.addConditions(dslTable().PERMISSION_MASK_.bitAnd(permissionMask).ne(0L));
+        return dslSeek(query, lastResourceId, lastId, limit);
+    }
+
+    default List<AclEntryEntity> findByAclPrincipalNameAndResourceTypeIdAndResourceIdAndPermissionNameAfter(String principalName, Long resourceTypeId, String resourceId, String permissionName, String lastResourceId, Long lastId, int limit, Map<String, SearchFilter> variablesSearchFilters) {
+        SelectQuery<Record> query = buildBasePrincipalSeekQuery(principalName, resourceTypeId, resourceId, variablesSearchFilters);
+        query.addConditions(dslTable().PERMISSION_.eq(permissionName));
+        return dslSeek(query, lastResourceId, lastId, limit);
+    }
+
+
     @Override
     default AclEntryEntity createActualAclEntryEntity() {
         return new AclEntryEntity();
@@ -0,0 +1,195 @@
+/**
+ * Copyright 2001-2005 The Apache Software Foundation.
+ * <p>
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ * <p>
+ * http://www.apache.org/licenses/LICENSE-2.0
+ * <p>
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.scleropages.kapuas.security.acl.repo;
+
+import com.google.common.collect.Lists;
+import com.google.common.collect.Maps;
+import com.google.common.collect.Sets;
+import org.jooq.Query;
+import org.jooq.Record1;
+import org.jooq.Select;
+import org.jooq.impl.DSL;
+import org.scleropages.crud.dao.orm.jpa.complement.JooqRepository;
+import org.scleropages.kapuas.jdbc.AclShardingDataSourceFactory;
+import org.scleropages.kapuas.jooq.tables.SecAclPrincipalClosure;
+import org.scleropages.kapuas.jooq.tables.records.SecAclPrincipalClosureRecord;
+import org.scleropages.kapuas.security.acl.entity.AclPrincipalClosureEntity;
+import org.springframework.data.repository.CrudRepository;
+
+import java.util.Collection;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.function.IntFunction;
+import java.util.function.Supplier;
+
+import static org.scleropages.kapuas.jooq.tables.SecAclPrincipal.SEC_ACL_PRINCIPAL;
+import static org.scleropages.kapuas.jooq.tables.SecAclPrincipalClosure.SEC_ACL_PRINCIPAL_CLOSURE;
+
+/**
+ * principal成员关系传递闭包维护与查询. 增加成员关系 member->parent 时，parent及其所有祖先 与 member及其所有后代 两两组合的路径数增加
+ * (祖先到parent路径数 * member到后代路径数)，删除时对称递减.
+ *
+ * @author <a href="mailto:martinmao@icloud.com">Martin Mao</a>
+ */
+public interface AclPrincipalClosureEntityRepository extends CrudRepository<AclPrincipalClosureEntity, Long>, JooqRepository<SecAclPrincipalClosure, SecAclPrincipalClosureRecord, AclPrincipalClosureEntity> {
+
+
+    /**
+     * return sub query of all ancestors of given principal(not include self). used as principal_ IN (...) condition.
+     * (no UNION in sub query, not supported by sharding data source. see {@link org.scleropages.kapuas.jdbc.AclShardingDataSourceFactory}).
+     *
+     * @param principalName
+     * @return
+     */
+    static Select<Record1<String>> selectAncestors(String principalName) {
+        return DSL.select(SEC_ACL_PRINCIPAL_CLOSURE.ANCESTOR_).from(SEC_ACL_PRINCIPAL_CLOSURE)
+                .where(SEC_ACL_PRINCIPAL_CLOSURE.DESCENDANT_.eq(principalName));
+    }
+
+    default boolean existsByAncestorAndDescendant(String ancestor, String descendant) {
+        SecAclPrincipalClosure closure = dslTable();
+        return dslContext().fetchExists(closure, closure.ANCESTOR_.eq(ancestor).and(closure.DESCENDANT_.eq(descendant)));
+    }
+
+    /**
+     * @param descendant
+     * @return ancestor -> paths(not include given descendant self.)
+     */
+    default Map<String, Long> findAncestors(String descendant) {
+        SecAclPrincipalClosure closure = dslTable();
+        return dslContext().select(closure.ANCESTOR_, closure.PATHS_).from(closure).where(closure.DESCENDANT_.eq(descendant)).fetchMap(closure.ANCESTOR_, closure.PATHS_);
+    }
+
+    /**
+     * @param ancestor
+     * @return descendant -> paths(not include given ancestor self.)
+     */
+    default Map<String, Long> findDescendants(String ancestor) {
+        SecAclPrincipalClosure closure = dslTable();
+        return dslContext().select(closure.DESCENDANT_, closure.PATHS_).from(closure).where(closure.ANCESTOR_.eq(ancestor)).fetchMap(closure.DESCENDANT_, closure.PATHS_);
+    }
+
+    /**
+     * @param ancestors
+     * @return all descendants of given ancestors(not include ancestors self.)
+     */
+    default Set<String> findDescendants(Collection<String> ancestors) {
+        SecAclPrincipalClosure closure = dslTable();
+        return Sets.newHashSet(dslContext().selectDistinct(closure.DESCENDANT_).from(closure).where(closure.ANCESTOR_.in(ancestors)).fetch(closure.DESCENDANT_));
+    }
+
+    /**
+     * @param ancestors
+     * @return descendant -> ancestors(only given ancestors included. not include ancestors self.)
+     */
+    default Map<String, List<String>> findDescendantAncestors(Collection<String> ancestors) {
+        SecAclPrincipalClosure closure = dslTable();
+        return dslContext().select(closure.DESCENDANT_, closure.ANCESTOR_).from(closure).where(closure.ANCESTOR_.in(ancestors)).fetchGroups(closure.DESCENDANT_, closure.ANCESTOR_);
+    }
+
+    /**
+     * apply member->parent relationship to closure. must called in transaction.
+     * <p>
+     * principal rows of member and parent and closure rows read are locked(SELECT ... FOR UPDATE) before closure changed.
+     * concurrent membership changes sharing a principal or a closure path are serialized, so ancestors and descendants read here are not stale.
+     * locks and reads always routed to default shard in sharding mode(see {@link AclShardingDataSourceFactory#onDefaultShard(Supplier)}).
+     * closure pairs are written by upsert(paths accumulated on conflict), concurrent inserts of same pair not failed by unique constraint.
+     *
+     * @param member
+     * @param parent
+     * @param idAllocator allocate ids of given count(see {@link org.scleropages.kapuas.jdbc.EntityIdAllocator}). id written by insert branch only.
+     * @return member and all its descendants(principals whose ancestors changed).
+     */
+    default Set<String> connect(String member, String parent, IntFunction<Long[]> idAllocator) {
+        SecAclPrincipalClosure closure = dslTable();
+        Map<String, Long> ancestors = Maps.newHashMap();
+        Map<String, Long> descendants = Maps.newHashMap();
+        lockAndRead(member, parent, ancestors, descendants);
+        Long[] ids = idAllocator.apply(ancestors.size() * descendants.size());
+        List<Query> upserts = Lists.newArrayListWithCapacity(ids.length);
+        ancestors.forEach((ancestor, ancestorPaths) -> descendants.forEach((descendant, descendantPaths) -> {
+            long paths = ancestorPaths * descendantPaths;
+            upserts.add(dslContext().insertInto(closure, closure.ID, closure.ANCESTOR_, closure.DESCENDANT_, closure.PATHS_)
+                    .values(ids[upserts.size()], ancestor, descendant, paths)
+                    .onConflict(closure.DESCENDANT_, closure.ANCESTOR_)
+                    .doUpdate().set(closure.PATHS_, closure.PATHS_.plus(paths)));
+        }));
+        dslContext().batch(upserts).execute();
+        return descendants.keySet();
+    }
+
+    /**
+     * remove member->parent relationship from closure. must called in transaction. locking same as {@link #connect(String, String, IntFunction)}.
+     *
+     * @param member
+     * @param parent
+     * @return member and all its descendants(principals whose ancestors changed).
+     */
+    default Set<String> disconnect(String member, String parent) {
+        SecAclPrincipalClosure closure = dslTable();
+        Map<String, Long> ancestors = Maps.newHashMap();
+        Map<String, Long> descendants = Maps.newHashMap();
+        lockAndRead(member, parent, ancestors, descendants);
+        List<Query> updates = Lists.newArrayList();
+        ancestors.forEach((ancestor, ancestorPaths) -> descendants.forEach((descendant, descendantPaths) ->
+                updates.add(dslContext().update(closure).set(closure.PATHS_, closure.PATHS_.minus(ancestorPaths * descendantPaths))
+                        .where(closure.ANCESTOR_.eq(ancestor)).and(closure.DESCENDANT_.eq(descendant)))));
+        dslContext().batch(updates).execute();
+        dslContext().deleteFrom(closure).where(closure.PATHS_.le(0L))
+                .and(closure.ANCESTOR_.in(ancestors.keySet())).and(closure.DESCENDANT_.in(descendants.keySet())).execute();
+        return descendants.keySet();
+    }
+
+    /**
+     * lock member and parent, then read(and lock) ancestors of parent and descendants of member(both include self) into given maps.
+     * routed to default shard, so locks serialize membership changes in sharding mode(broadcast table queries routed to random shard).
+     */
+    default void lockAndRead(String member, String parent, Map<String, Long> ancestors, Map<String, Long> descendants) {
+        AclShardingDataSourceFactory.onDefaultShard(() -> {
+            lockPrincipals(member, parent);
+            ancestors.putAll(withSelf(findAncestorsForUpdate(parent), parent));
+            descendants.putAll(withSelf(findDescendantsForUpdate(member), member));
+            return null;
+        });
+    }
+
+    /**
+     * lock principal rows of given names(ordered by id to avoid deadlock).
+     */
+    default void lockPrincipals(String... principalNames) {
+        dslContext().select(SEC_ACL_PRINCIPAL.ID).from(SEC_ACL_PRINCIPAL).where(SEC_ACL_PRINCIPAL.NAME_.in(principalNames))
+                .orderBy(SEC_ACL_PRINCIPAL.ID).forUpdate().fetch();
+    }
+
+    default Map<String, Long> findAncestorsForUpdate(String descendant) {
+        SecAclPrincipalClosure closure = dslTable();
+        return dslContext().select(closure.ANCESTOR_, closure.PATHS_).from(closure).where(closure.DESCENDANT_.eq(descendant))
+                .forUpdate().fetchMap(closure.ANCESTOR_, closure.PATHS_);
+    }
+
+    default Map<String, Long> findDescendantsForUpdate(String ancestor) {
+        SecAclPrincipalClosure closure = dslTable();
+        return dslContext().select(closure.DESCENDANT_, closure.PATHS_).from(closure).where(closure.ANCESTOR_.eq(ancestor))
+                .forUpdate().fetchMap(closure.DESCENDANT_, closure.PATHS_);
+    }
+
+    static Map<String, Long> withSelf(Map<String, Long> principals, String self) {
+        Map<String, Long> result = Maps.newHashMap(principals);
+        result.put(self, 1L);
+        return result;
+    }
+}
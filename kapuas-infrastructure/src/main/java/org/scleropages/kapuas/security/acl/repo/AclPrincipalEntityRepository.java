@@ -19,6 +19,9 @@ import org.scleropages.kapuas.security.acl.entity.AclPrincipalEntity;
 import org.springframework.data.jpa.repository.JpaSpecificationExecutor;
 import org.springframework.data.repository.PagingAndSortingRepository;
 
+import java.util.Collection;
+import java.util.List;
+
 /**
  * @author <a href="mailto:martinmao@icloud.com">Martin Mao</a>
  */
@@ -28,4 +31,6 @@ public interface AclPrincipalEntityRepository extends PagingAndSortingRepository
 
     Boolean existsByName(String name);
 
+    List<AclPrincipalEntity> findAllByNameIn(Collection<String> names);
+
 }
@@ -0,0 +1,29 @@
+/**
+ * Copyright 2001-2005 The Apache Software Foundation.
+ * <p>
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ * <p>
+ * http://www.apache.org/licenses/LICENSE-2.0
+ * <p>
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.scleropages.kapuas.security.acl.repo;
+
+import org.scleropages.kapuas.security.acl.entity.AclPrincipalMemberEntity;
+import org.springframework.data.repository.CrudRepository;
+
+/**
+ * @author <a href="mailto:martinmao@icloud.com">Martin Mao</a>
+ */
+public interface AclPrincipalMemberEntityRepository extends CrudRepository<AclPrincipalMemberEntity, Long> {
+
+    boolean existsByMember_IdAndParent_Id(Long memberId, Long parentId);
+
+    AclPrincipalMemberEntity getByMember_IdAndParent_Id(Long memberId, Long parentId);
+}
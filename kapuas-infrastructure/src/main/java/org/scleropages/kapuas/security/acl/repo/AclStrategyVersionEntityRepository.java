@@ -0,0 +1,58 @@
+/**
+ * Copyright 2001-2005 The Apache Software Foundation.
+ * <p>
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ * <p>
+ * http://www.apache.org/licenses/LICENSE-2.0
+ * <p>
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.scleropages.kapuas.security.acl.repo;
+
+import org.scleropages.crud.dao.orm.jpa.complement.JooqRepository;
+import org.scleropages.kapuas.jooq.tables.SecAclStrategyVersion;
+import org.scleropages.kapuas.jooq.tables.records.SecAclStrategyVersionRecord;
+import org.scleropages.kapuas.security.acl.entity.AclStrategyVersionEntity;
+import org.springframework.data.repository.CrudRepository;
+
+/**
+ * @author <a href="mailto:martinmao@icloud.com">Martin Mao</a>
+ */
+public interface AclStrategyVersionEntityRepository extends CrudRepository<AclStrategyVersionEntity, Long>, JooqRepository<SecAclStrategyVersion, SecAclStrategyVersionRecord, AclStrategyVersionEntity> {
+
+
+    /**
+     * return current strategy version. 0 if never changed.
+     *
+     * @return
+     */
+    default long getVersion() {
+        SecAclStrategyVersion strategyVersion = dslTable();
+        Long version = dslContext().select(strategyVersion.VERSION_).from(strategyVersion)
+                .where(strategyVersion.ID.eq(AclStrategyVersionEntity.SINGLETON_ID)).fetchOne(strategyVersion.VERSION_);
+        return null != version ? version : 0L;
+    }
+
+    /**
+     * increase strategy version in current transaction. row lock held until transaction completed, concurrent strategy changes are serialized.
+     */
+    default void increaseVersion() {
+        SecAclStrategyVersion strategyVersion = dslTable();
+        int updated = dslContext().update(strategyVersion).set(strategyVersion.VERSION_, strategyVersion.VERSION_.plus(1))
+                .where(strategyVersion.ID.eq(AclStrategyVersionEntity.SINGLETON_ID)).execute();
+        if (updated > 0)
+            return;
+        //first change. create row(ignore if concurrent created) then retry update.
+        dslContext().insertInto(strategyVersion, strategyVersion.ID, strategyVersion.VERSION_)
+                .values(AclStrategyVersionEntity.SINGLETON_ID, 0L).onConflictDoNothing().execute();
+        if (dslContext().update(strategyVersion).set(strategyVersion.VERSION_, strategyVersion.VERSION_.plus(1))
+                .where(strategyVersion.ID.eq(AclStrategyVersionEntity.SINGLETON_ID)).execute() == 0)
+            throw new IllegalStateException("failure to increase acl strategy version.");
+    }
+}
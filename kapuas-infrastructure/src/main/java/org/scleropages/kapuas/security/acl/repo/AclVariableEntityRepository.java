@@ -16,14 +16,18 @@
 package org.scleropages.kapuas.security.acl.repo;
 
 import com.google.common.collect.Lists;
+import org.jooq.InsertValuesStep8;
+import org.jooq.BatchBindStep;
 import org.scleropages.crud.dao.orm.jpa.complement.JooqRepository;
 import org.scleropages.kapuas.jooq.Tables;
 import org.scleropages.kapuas.jooq.tables.SecAclVariable;
 import org.scleropages.kapuas.jooq.tables.records.SecAclVariableRecord;
 import org.scleropages.kapuas.security.acl.entity.AclVariableEntity;
 import org.springframework.data.repository.CrudRepository;
+import org.springframework.util.Assert;
 
 import java.sql.Timestamp;
+import java.util.Collection;
 import java.util.List;
 
 /**
@@ -34,10 +38,15 @@ public interface AclVariableEntityRepository extends CrudRepository<AclVariableE
 
     List<AclVariableEntity> findAllByAclIdAndResourceTypeId(Long aclId, Long resourceTypeId);
 
+    /**
+     * batch insert given variables. ids must be allocated(see {@link org.scleropages.kapuas.jdbc.EntityIdAllocator}).
+     */
     default void save(Iterable<AclVariableEntity> variableEntities) {
         List<SecAclVariableRecord> variableEntitiesToSave = Lists.newArrayList();
         variableEntities.forEach(aclVariableEntity -> {
+            Assert.notNull(aclVariableEntity.getId(), "variable id must be allocated before insert.");
             SecAclVariableRecord secAclVariableRecord = dslContext().newRecord(Tables.SEC_ACL_VARIABLE);
+            secAclVariableRecord.setId(aclVariableEntity.getId());
             secAclVariableRecord.setAclId(aclVariableEntity.getAclId());
             secAclVariableRecord.setResourceTypeId(aclVariableEntity.getResourceTypeId());
             secAclVariableRecord.setName_(aclVariableEntity.getName());
@@ -51,8 +60,75 @@ public interface AclVariableEntityRepository extends CrudRepository<AclVariableE
         dslContext().batchInsert(variableEntitiesToSave).execute();
     }
 
+    /**
+     * insert given variables with multi-row insert statements(bulk acl creation). at most chunkSize rows per statement.
+     * ids must be allocated(see {@link org.scleropages.kapuas.jdbc.EntityIdAllocator}), id column has no default value.
+     */
+    default void insertAll(List<AclVariableEntity> variableEntities, int chunkSize) {
+        SecAclVariable variable = dslTable();
+        for (List<AclVariableEntity> chunk : Lists.partition(variableEntities, chunkSize)) {
+            InsertValuesStep8<SecAclVariableRecord, Long, Long, Long, String, Double, Long, String, Timestamp> insert = dslContext().insertInto(variable,
+                    variable.ID, variable.ACL_ID, variable.RESOURCE_TYPE_ID, variable.NAME_, variable.DOUBLE_, variable.LONG_, variable.TEXT_, variable.DATE_);
+            chunk.forEach(aclVariableEntity -> {
+                Assert.notNull(aclVariableEntity.getId(), "variable id must be allocated before insert.");
+                insert.values(aclVariableEntity.getId(), aclVariableEntity.getAclId(), aclVariableEntity.getResourceTypeId(), aclVariableEntity.getName(),
+                    aclVariableEntity.getDoubleValue(), aclVariableEntity.getLongValue(), aclVariableEntity.getTextValue(),
+                        null != aclVariableEntity.getDateValue() ? new Timestamp(aclVariableEntity.getDateValue().getTime()) : null);
+            });
+            insert.execute();
+        }
+    }
+
+    /**
+     * apply variable changes(inserts, value updates and deletes) of given resource type. at most three statements executed:
+     * one delete, one prepared statement batch for updates and one multi-row insert.
+     *
+     * @param resourceTypeId
+     * @param inserts        ids must be allocated.
+     * @param updates        must provide id.
+     * @param deleteIds
+     */
+    default void saveChanges(Long resourceTypeId, Collection<AclVariableEntity> inserts, Collection<AclVariableEntity> updates, Collection<Long> deleteIds) {
+        SecAclVariable variable = dslTable();
+        if (!deleteIds.isEmpty())
+            dslContext().deleteFrom(variable).where(variable.RESOURCE_TYPE_ID.eq(resourceTypeId)).and(variable.ID.in(deleteIds)).execute();
+        if (!updates.isEmpty()) {
+            BatchBindStep batch = dslContext().batch(dslContext().update(variable)
+                    .set(variable.DOUBLE_, (Double) null)
+                    .set(variable.LONG_, (Long) null)
+                    .set(variable.TEXT_, (String) null)
+                    .set(variable.DATE_, (Timestamp) null)
+                    .where(variable.RESOURCE_TYPE_ID.eq((Long) null))
+                    .and(variable.ID.eq((Long) null)));
+            updates.forEach(aclVariableEntity -> batch.bind(aclVariableEntity.getDoubleValue(), aclVariableEntity.getLongValue(), aclVariableEntity.getTextValue(),
+                    null != aclVariableEntity.getDateValue() ? new Timestamp(aclVariableEntity.getDateValue().getTime()) : null,
+                    resourceTypeId, aclVariableEntity.getId()));
+            batch.execute();
+        }
+        if (!inserts.isEmpty())
+            insertAll(Lists.newArrayList(inserts), inserts.size());
+    }
+
     default int deleteAllByAclIdAndResourceTypeId(Long aclId, Long resourceTypeId) {
         SecAclVariable variable = dslTable();
         return dslContext().deleteFrom(variable).where(variable.ACL_ID.eq(aclId)).and(variable.RESOURCE_TYPE_ID.eq(resourceTypeId)).execute();
     }
+
+    /**
+     * 按acl id顺序流式读取给定资源类型的所有变量(jooq lazy cursor)，用于全量导出时与acl按id归并. 返回的stream必须关闭.
+     *
+     * @param resourceTypeId
+     * @param fetchSize
+     * @return
+     */
+    default List<AclVariableEntity> findAllByResourceTypeIdAndAclIdBetween(Long resourceTypeId, Long fromAclId, Long toAclId) {
+        SecAclVariable variable = dslTable();
+        return dslContext().selectFrom(variable).where(variable.RESOURCE_TYPE_ID.eq(resourceTypeId))
+                .and(variable.ACL_ID.between(fromAclId, toAclId))
+                .orderBy(variable.ACL_ID).fetch(record -> {
+                    AclVariableEntity entity = new AclVariableEntity();
+                    dslRecordInto(record, entity);
+                    return entity;
+                });
+    }
 }
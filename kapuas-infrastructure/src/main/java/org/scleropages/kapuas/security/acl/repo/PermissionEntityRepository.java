@@ -17,73 +17,104 @@ package org.scleropages.kapuas.security.acl.repo;
 
 import com.google.common.collect.BiMap;
 import com.google.common.collect.HashBiMap;
+import com.google.common.collect.ImmutableBiMap;
+import com.google.common.collect.ImmutableList;
+import com.google.common.collect.ImmutableMap;
+import com.google.common.collect.ImmutableSet;
 import com.google.common.collect.Lists;
 import com.google.common.collect.Maps;
+import com.google.common.collect.Sets;
 import org.apache.commons.collections.map.MultiKeyMap;
 import org.scleropages.kapuas.security.acl.entity.PermissionEntity;
-import org.springframework.cache.annotation.CacheConfig;
-import org.springframework.cache.annotation.CacheEvict;
-import org.springframework.cache.annotation.Cacheable;
 import org.springframework.data.repository.CrudRepository;
 import org.springframework.util.Assert;
 import org.springframework.util.StringUtils;
 
 import java.util.Collections;
+import java.util.Comparator;
 import java.util.List;
 import java.util.Map;
+import java.util.Set;
 
 /**
  * @author <a href="mailto:martinmao@icloud.com">Martin Mao</a>
  */
-@CacheConfig(cacheResolver = "defaultCacheResolver")
 public interface PermissionEntityRepository extends CrudRepository<PermissionEntity, Long>, PermissionEntityRepositoryCustom {
 
-    @Cacheable
-    default LocalPermissionEntityRepository getLocalPermissionEntityRepository() {
-        return new LocalPermissionEntityRepository(findAll());
-    }
-
-    @CacheEvict(value = "org.scleropages.kapuas.security.acl.repo.PermissionEntityRepository.getLocalPermissionEntityRepository", allEntries = true)
-    @Override
-    <S extends PermissionEntity> S save(S entity);
-
-    @CacheEvict(value = "org.scleropages.kapuas.security.acl.repo.PermissionEntityRepository.getLocalPermissionEntityRepository", allEntries = true)
-    @Override
-    <S extends PermissionEntity> Iterable<S> saveAll(Iterable<S> entities);
-
-    @CacheEvict(value = "org.scleropages.kapuas.security.acl.repo.PermissionEntityRepository.getLocalPermissionEntityRepository", allEntries = true)
-    @Override
-    void deleteById(Long aLong);
-
-    @CacheEvict(value = "org.scleropages.kapuas.security.acl.repo.PermissionEntityRepository.getLocalPermissionEntityRepository", allEntries = true)
-    @Override
-    void deleteAll();
-
-    @CacheEvict(value = "org.scleropages.kapuas.security.acl.repo.PermissionEntityRepository.getLocalPermissionEntityRepository", allEntries = true)
-    @Override
-    void delete(PermissionEntity entity);
-
-    @CacheEvict(value = "org.scleropages.kapuas.security.acl.repo.PermissionEntityRepository.getLocalPermissionEntityRepository", allEntries = true)
-    @Override
-    void deleteAll(Iterable<? extends PermissionEntity> entities);
-
 
+    /**
+     * 权限策略不可变快照. 构建时预先计算每个资源类型的权限列表(按权限位排序)，是否层级(继承)权限模型，是否粗粒度模型以及权限掩码，
+     * 读取时不做任何遍历计算. 快照携带构建时的策略版本号({@link org.scleropages.kapuas.security.acl.entity.AclStrategyVersionEntity})，版本变化时整体替换.
+     */
     class LocalPermissionEntityRepository {
 
-        private BiMap<String, Long> resourceTypeToId;
-        private Map<String, List<PermissionEntity>> resourceTypeToPermissions;
-        private MultiKeyMap resourceTypeAndPermissionNameToPermission;
-
-        private LocalPermissionEntityRepository(Iterable<PermissionEntity> iterable) {
-            resourceTypeToId = HashBiMap.create();
-            resourceTypeToPermissions = Maps.newHashMap();
-            resourceTypeAndPermissionNameToPermission = new MultiKeyMap();
+        private final long version;
+        private final BiMap<String, Long> resourceTypeToId;
+        private final Map<String, List<PermissionEntity>> resourceTypeToPermissions;
+        private final MultiKeyMap resourceTypeAndPermissionNameToPermission;
+        private final Map<Long, Long> permissionIdToMask;
+        private final Map<Long, Long> permissionIdToInheritMask;
+        private final Set<String> hierarchyResourceTypes;
+        private final Set<String> coarseGrainedResourceTypes;
+
+        LocalPermissionEntityRepository(Iterable<PermissionEntity> iterable, long version) {
+            this.version = version;
+            BiMap<String, Long> resourceTypeToId = HashBiMap.create();
+            Map<String, List<PermissionEntity>> resourceTypeToPermissions = Maps.newHashMap();
+            MultiKeyMap resourceTypeAndPermissionNameToPermission = new MultiKeyMap();
+            Map<Long, Long> permissionIdToMask = Maps.newHashMap();
+            Map<Long, Long> permissionIdToInheritMask = Maps.newHashMap();
+            Set<String> hierarchyResourceTypes = Sets.newHashSet();
+            Set<String> coarseGrainedResourceTypes = Sets.newHashSet();
             iterable.forEach(permissionEntity -> {
                 resourceTypeToId.computeIfAbsent(permissionEntity.getResourceType(), s -> permissionEntity.getResourceTypeId());
                 List<PermissionEntity> associatedEntities = resourceTypeToPermissions.computeIfAbsent(permissionEntity.getResourceType(), l -> Lists.newArrayList());
                 associatedEntities.add(permissionEntity);
                 resourceTypeAndPermissionNameToPermission.put(permissionEntity.getResourceType(), permissionEntity.getName(), permissionEntity);
             });
+            resourceTypeToPermissions.forEach((resourceType, permissionEntities) -> {
+                if (permissionEntities.size() == 1 && permissionEntities.get(0).isNotSupport()) {
+                    coarseGrainedResourceTypes.add(resourceType);
+                    return;
+                }
+                //兼容未分配权限位的历史数据，按创建顺序(id)分配
+                boolean bitAssigned = permissionEntities.stream().allMatch(permissionEntity -> null != permissionEntity.getBit());
+                List<PermissionEntity> sorted = Lists.newArrayList(permissionEntities);
+                sorted.sort(Comparator.comparing(PermissionEntity::getId));
+                for (int i = 0; i < sorted.size(); i++) {
+                    PermissionEntity permissionEntity = sorted.get(i);
+                    permissionIdToMask.put(permissionEntity.getId(), 1L << (bitAssigned ? permissionEntity.getBit() : i));
+                }
+                permissionEntities.forEach(permissionEntity -> {
+                    long inheritMask = permissionIdToMask.get(permissionEntity.getId());
+                    for (String included : StringUtils.commaDelimitedListToStringArray(permissionEntity.getExtension())) {
+                        PermissionEntity includedEntity = (PermissionEntity) resourceTypeAndPermissionNameToPermission.get(resourceType, included);
+                        if (null != includedEntity)
+                            inheritMask |= permissionIdToMask.get(includedEntity.getId());
+                    }
+                    permissionIdToInheritMask.put(permissionEntity.getId(), inheritMask);
+                    if (StringUtils.hasText(permissionEntity.getExtension()))
+                        hierarchyResourceTypes.add(resourceType);
+                });
+                //按权限位排序
+                permissionEntities.sort(Comparator.comparing(permissionEntity -> permissionIdToMask.get(permissionEntity.getId())));
+            });
+            this.resourceTypeToId = ImmutableBiMap.copyOf(resourceTypeToId);
+            this.resourceTypeToPermissions = ImmutableMap.copyOf(Maps.transformValues(resourceTypeToPermissions, ImmutableList::copyOf));
+            this.resourceTypeAndPermissionNameToPermission = resourceTypeAndPermissionNameToPermission;
+            this.permissionIdToMask = ImmutableMap.copyOf(permissionIdToMask);
+            this.permissionIdToInheritMask = ImmutableMap.copyOf(permissionIdToInheritMask);
+            this.hierarchyResourceTypes = ImmutableSet.copyOf(hierarchyResourceTypes);
+            this.coarseGrainedResourceTypes = ImmutableSet.copyOf(coarseGrainedResourceTypes);
+        }
+
+        /**
+         * return strategy version of this snapshot built from.
+         *
+         * @return
+         */
+        public long getVersion() {
+            return version;
         }
 
         public Long getResourceTypeIdByResourceType(String resourceType) {
@@ -100,11 +131,17 @@ public interface PermissionEntityRepository extends CrudRepository<PermissionEnt
             return associatedEntities.get(0);
         }
 
+        /**
+         * return all permissions of given resource type ordered by permission bit.
+         *
+         * @param resourceType
+         * @return
+         */
         public List<PermissionEntity> findAllByResourceType(String resourceType) {
             List<PermissionEntity> associatedEntities = resourceTypeToPermissions.get(resourceType);
             if (null == associatedEntities)
                 return Collections.EMPTY_LIST;
-            return Collections.unmodifiableList(associatedEntities);
+            return associatedEntities;
         }
 
         public String[] getAllResourceTypes() {
@@ -112,17 +149,51 @@ public interface PermissionEntityRepository extends CrudRepository<PermissionEnt
         }
 
         public boolean isHierarchyPermissionResource(String resourceType) {
+            return hierarchyResourceTypes.contains(resourceType);
+        }
 
-            //int totalOfExtensions = 0;
-            List<PermissionEntity> allByResourceType = findAllByResourceType(resourceType);
-            for (int i = 0; i < allByResourceType.size(); i++) {
-                if (StringUtils.hasText(allByResourceType.get(i).getExtension())) {
-                    return true;
-                    //totalOfExtensions++;
-                }
-            }
-            return false;
-            //return totalOfExtensions == allByResourceType.size() - 1;
+        /**
+         * return true if given resource type configured as coarse-grained model(no permissions).
+         *
+         * @param resourceType
+         * @return
+         */
+        public boolean isCoarseGrainedResource(String resourceType) {
+            return coarseGrainedResourceTypes.contains(resourceType);
+        }
+
+        /**
+         * return mask(1 &lt;&lt; bit) of given permission.
+         *
+         * @param permissionEntity
+         * @return
+         */
+        public long getPermissionMask(PermissionEntity permissionEntity) {
+            Long mask = permissionIdToMask.get(permissionEntity.getId());
+            Assert.notNull(mask, () -> "no permission mask found for given: " + permissionEntity.getResourceType() + "," + permissionEntity.getName());
+            return mask;
+        }
+
+        /**
+         * return mask of given permission and all permissions it inherit included.
+         *
+         * @param permissionEntity
+         * @return
+         */
+        public long getInheritMask(PermissionEntity permissionEntity) {
+            Long inheritMask = permissionIdToInheritMask.get(permissionEntity.getId());
+            Assert.notNull(inheritMask, () -> "no permission mask found for given: " + permissionEntity.getResourceType() + "," + permissionEntity.getName());
+            return inheritMask;
+        }
+
+        /**
+         * return mask used to grant given permission. for hierarchy permission resource include all inherit included permissions.
+         *
+         * @param permissionEntity
+         * @return
+         */
+        public long getGrantMask(PermissionEntity permissionEntity) {
+            return isHierarchyPermissionResource(permissionEntity.getResourceType()) ? getInheritMask(permissionEntity) : getPermissionMask(permissionEntity);
         }
 
         public PermissionEntity getPermissionEntity(String resourceType, String permissionName) {
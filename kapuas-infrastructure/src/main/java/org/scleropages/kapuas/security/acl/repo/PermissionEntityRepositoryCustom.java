@@ -19,4 +19,16 @@ package org.scleropages.kapuas.security.acl.repo;
  * @author <a href="mailto:martinmao@icloud.com">Martin Mao</a>
  */
 public interface PermissionEntityRepositoryCustom {
+
+    /**
+     * return current permission strategy snapshot. snapshot re-checked against strategy version periodically and rebuilt only if version changed.
+     *
+     * @return
+     */
+    PermissionEntityRepository.LocalPermissionEntityRepository getLocalPermissionEntityRepository();
+
+    /**
+     * must invoked in same transaction after permission strategy changed. all nodes rebuild snapshot after transaction committed.
+     */
+    void increaseStrategyVersion();
 }
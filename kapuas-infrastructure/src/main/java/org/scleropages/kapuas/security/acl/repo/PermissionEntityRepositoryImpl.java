@@ -15,9 +15,118 @@
  */
 package org.scleropages.kapuas.security.acl.repo;
 
+import org.scleropages.kapuas.security.acl.entity.PermissionEntity;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.transaction.PlatformTransactionManager;
+import org.springframework.transaction.TransactionDefinition;
+import org.springframework.transaction.support.TransactionSynchronizationAdapter;
+import org.springframework.transaction.support.TransactionSynchronizationManager;
+import org.springframework.transaction.support.TransactionTemplate;
+
+import javax.persistence.EntityManager;
+import javax.persistence.PersistenceContext;
+import java.util.List;
+import java.util.concurrent.locks.ReentrantLock;
+
 /**
+ * 权限策略快照维护. 快照不设置过期时间，每隔 security.acl.strategy.version_check_millis 比较一次策略版本号(单行查询)，
+ * 版本变化时才全量重建. 检查与重建单飞(single-flight)，同一时刻只有一个线程访问数据库，其他线程继续使用当前快照(仅首次构建时等待).
+ * <p>
+ * 检查与重建在独立的只读事务中执行，避免读取到调用方未提交的策略变更.
+ *
  * @author <a href="mailto:martinmao@icloud.com">Martin Mao</a>
  */
 public class PermissionEntityRepositoryImpl implements PermissionEntityRepositoryCustom {
 
+    private static final Logger logger = LoggerFactory.getLogger(PermissionEntityRepositoryImpl.class);
+
+    @Value("#{ @environment['security.acl.strategy.version_check_millis'] ?: 1000 }")
+    private long versionCheckMillis;
+
+    @PersistenceContext
+    private EntityManager entityManager;
+
+    private AclStrategyVersionEntityRepository aclStrategyVersionEntityRepository;
+
+    private TransactionTemplate transactionTemplate;
+
+    private final ReentrantLock refreshLock = new ReentrantLock();
+
+    private volatile PermissionEntityRepository.LocalPermissionEntityRepository snapshot;
+
+    private volatile long nextCheckTime;
+
+
+    @Override
+    public PermissionEntityRepository.LocalPermissionEntityRepository getLocalPermissionEntityRepository() {
+        PermissionEntityRepository.LocalPermissionEntityRepository current = snapshot;
+        if (null != current && System.currentTimeMillis() < nextCheckTime)
+            return current;
+        if (null == current)
+            refreshLock.lock();
+        else if (!refreshLock.tryLock())
+            return current;
+        try {
+            current = snapshot;
+            if (null != current && System.currentTimeMillis() < nextCheckTime)
+                return current;
+            return refresh(current);
+        } finally {
+            refreshLock.unlock();
+        }
+    }
+
+    @Override
+    public void increaseStrategyVersion() {
+        aclStrategyVersionEntityRepository.increaseVersion();
+        if (TransactionSynchronizationManager.isSynchronizationActive()) {
+            TransactionSynchronizationManager.registerSynchronization(new TransactionSynchronizationAdapter() {
+                @Override
+                public void afterCommit() {
+                    nextCheckTime = 0;
+                }
+            });
+        } else
+            nextCheckTime = 0;
+    }
+
+    private PermissionEntityRepository.LocalPermissionEntityRepository refresh(PermissionEntityRepository.LocalPermissionEntityRepository current) {
+        PermissionEntityRepository.LocalPermissionEntityRepository refreshed;
+        try {
+            refreshed = transactionTemplate.execute(status -> {
+                long version = aclStrategyVersionEntityRepository.getVersion();
+                if (null != current && current.getVersion() == version)
+                    return current;
+                List<PermissionEntity> permissionEntities = entityManager.createQuery("select p from PermissionEntity p", PermissionEntity.class).getResultList();
+                return new PermissionEntityRepository.LocalPermissionEntityRepository(permissionEntities, version);
+            });
+        } catch (RuntimeException e) {
+            if (null == current)
+                throw e;
+            logger.warn("failure to refresh acl strategy snapshot. keep using version: {}", current.getVersion(), e);
+            refreshed = current;
+        }
+        if (refreshed != current)
+            logger.info("acl strategy snapshot rebuilt. version: {}, resource types: {}", refreshed.getVersion(), refreshed.getAllResourceTypes().length);
+        snapshot = refreshed;
+        nextCheckTime = System.currentTimeMillis() + versionCheckMillis;
+        return refreshed;
+    }
+
+
+    @Autowired
+    public void setAclStrategyVersionEntityRepository(AclStrategyVersionEntityRepository aclStrategyVersionEntityRepository) {
+        this.aclStrategyVersionEntityRepository = aclStrategyVersionEntityRepository;
+    }
+
+    @Autowired
+    public void setTransactionManager(PlatformTransactionManager transactionManager) {
+        TransactionTemplate transactionTemplate = new TransactionTemplate(transactionManager);
+        transactionTemplate.setPropagationBehavior(TransactionDefinition.PROPAGATION_REQUIRES_NEW);
+        transactionTemplate.setReadOnly(true);
+        this.transactionTemplate = transactionTemplate;
+    }
 }
@@ -15,6 +15,7 @@
  */
 package org.scleropages.kapuas.security.acl.repo;
 
+import org.jooq.BatchBindStep;
 import org.jooq.Record1;
 import org.jooq.Table;
 import org.scleropages.kapuas.jooq.tables.SecAclS;
@@ -23,16 +24,41 @@ import org.scleropages.kapuas.jooq.tables.records.SecAclSPrincipalRecord;
 import org.scleropages.kapuas.security.acl.entity.SimpleAclPrincipalEntity;
 import org.springframework.util.Assert;
 
+import java.util.List;
+import java.util.stream.IntStream;
+
 /**
  * @author <a href="mailto:martinmao@icloud.com">Martin Mao</a>
  */
 public interface SimpleAclPrincipalEntityRepository extends AbstractAclEntryEntityRepository<SimpleAclPrincipalEntity, SecAclSPrincipal, SecAclSPrincipalRecord> {
 
+    /**
+     * insert given entries, entries conflicted with existing (acl, principal) skipped(INSERT ... ON CONFLICT DO NOTHING/INSERT IGNORE).
+     * one prepared statement executed in one jdbc batch.
+     *
+     * @param entries ids must be allocated(see {@link org.scleropages.kapuas.jdbc.EntityIdAllocator}).
+     * @return number of entries inserted.
+     */
+    default int insertIgnoreAll(List<SimpleAclPrincipalEntity> entries) {
+        if (entries.isEmpty())
+            return 0;
+        SecAclSPrincipal secAclSPrincipal = dslTable();
+        BatchBindStep batch = dslContext().batch(dslContext().insertInto(secAclSPrincipal, secAclSPrincipal.ID, secAclSPrincipal.SEC_ACL_ID, secAclSPrincipal.SEC_ACL_PRINCIPAL_ID,
+                secAclSPrincipal.PRINCIPAL_, secAclSPrincipal.RESOURCE_TYPE_ID, secAclSPrincipal.RESOURCE_ID)
+                .values((Long) null, (Long) null, (Long) null, (String) null, (Long) null, (String) null)
+                .onConflictDoNothing());
+        entries.forEach(entry -> {
+            Assert.notNull(entry.getId(), "entry id must be allocated before insert.");
+            batch.bind(entry.getId(), entry.getAcl().getId(), entry.getGrant().getId(), entry.getAclPrincipalName(), entry.getResourceTypeId(), entry.getResourceId());
+        });
+        return IntStream.of(batch.execute()).filter(inserted -> inserted > 0).sum();
+    }
 
-    default Long getIdByAcl_IdAndGrant_Id(Long aclId, Long grantId) {
+    default Long getIdByResourceTypeIdAndAcl_IdAndGrant_Id(Long resourceTypeId, Long aclId, Long grantId) {
         SecAclSPrincipal secAclSPrincipal = dslTable();
         Record1<Long> id = dslContext().select(secAclSPrincipal.ID).from(secAclSPrincipal)
-                .where(secAclSPrincipal.SEC_ACL_ID.eq(aclId))
+                .where(secAclSPrincipal.RESOURCE_TYPE_ID.eq(resourceTypeId))
+                .and(secAclSPrincipal.SEC_ACL_ID.eq(aclId))
                 .and(secAclSPrincipal.SEC_ACL_PRINCIPAL_ID.eq(grantId)).fetchOne();
         Assert.notNull(id, "no acl entry found.");
         return id.get(secAclSPrincipal.ID);
@@ -0,0 +1,104 @@
+/**
+ * Copyright 2001-2005 The Apache Software Foundation.
+ * <p>
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ * <p>
+ * http://www.apache.org/licenses/LICENSE-2.0
+ * <p>
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.scleropages.kapuas.security.payload;
+
+import org.apache.commons.lang3.StringUtils;
+
+import java.io.ByteArrayOutputStream;
+import java.nio.charset.StandardCharsets;
+import java.util.Base64;
+import java.util.zip.DataFormatException;
+import java.util.zip.Deflater;
+import java.util.zip.Inflater;
+
+/**
+ * 业务载荷文本编解码. 超过阈值的载荷使用 deflate 压缩后 base64 存储(列类型不变)，并以格式标记开头，
+ * 读取时根据标记透明解压，未压缩的历史数据原样返回.
+ * <p>
+ * 原文本身以格式标记开头时总是压缩存储，避免读取时误判.
+ *
+ * @author <a href="mailto:martinmao@icloud.com">Martin Mao</a>
+ */
+public abstract class BizPayloadCodec {
+
+    //控制字符不会出现在正常的json/文本载荷开头
+    private static final String DEFLATE_MARKER = "\u0001D";
+
+    private static final int BUFFER_SIZE = 4096;
+
+    /**
+     * encode given text. compressed if text length greater than or equal to given threshold and compressed smaller than original.
+     *
+     * @param text
+     * @param threshold -1 not compress.
+     * @return
+     */
+    public static String encode(String text, int threshold) {
+        if (null == text)
+            return null;
+        boolean marked = text.startsWith(DEFLATE_MARKER);
+        if (!marked && (threshold < 0 || text.length() < threshold))
+            return text;
+        String compressed = DEFLATE_MARKER + Base64.getEncoder().encodeToString(deflate(text.getBytes(StandardCharsets.UTF_8)));
+        return marked || compressed.length() < text.length() ? compressed : text;
+    }
+
+    public static String decode(String stored) {
+        if (!StringUtils.startsWith(stored, DEFLATE_MARKER))
+            return stored;
+        return new String(inflate(Base64.getDecoder().decode(stored.substring(DEFLATE_MARKER.length()))), StandardCharsets.UTF_8);
+    }
+
+    public static boolean isCompressed(String stored) {
+        return StringUtils.startsWith(stored, DEFLATE_MARKER);
+    }
+
+    private static byte[] deflate(byte[] bytes) {
+        Deflater deflater = new Deflater(Deflater.BEST_SPEED);
+        try {
+            deflater.setInput(bytes);
+            deflater.finish();
+            ByteArrayOutputStream out = new ByteArrayOutputStream(Math.max(bytes.length / 4, 64));
+            byte[] buffer = new byte[BUFFER_SIZE];
+            while (!deflater.finished()) {
+                out.write(buffer, 0, deflater.deflate(buffer));
+            }
+            return out.toByteArray();
+        } finally {
+            deflater.end();
+        }
+    }
+
+    private static byte[] inflate(byte[] bytes) {
+        Inflater inflater = new Inflater();
+        try {
+            inflater.setInput(bytes);
+            ByteArrayOutputStream out = new ByteArrayOutputStream(bytes.length * 4);
+            byte[] buffer = new byte[BUFFER_SIZE];
+            while (!inflater.finished()) {
+                int inflated = inflater.inflate(buffer);
+                if (inflated == 0 && (inflater.needsInput() || inflater.needsDictionary()))
+                    throw new IllegalStateException("corrupted biz payload.");
+                out.write(buffer, 0, inflated);
+            }
+            return out.toByteArray();
+        } catch (DataFormatException e) {
+            throw new IllegalStateException("corrupted biz payload.", e);
+        } finally {
+            inflater.end();
+        }
+    }
+}
@@ -15,13 +15,19 @@
  */
 package org.scleropages.kapuas.security.payload.repo;
 
+import com.google.common.collect.Lists;
+import org.jooq.InsertValuesStep5;
+import org.jooq.Query;
 import org.scleropages.crud.dao.orm.jpa.complement.JooqRepository;
 import org.scleropages.kapuas.jooq.tables.SecBizPayload;
 import org.scleropages.kapuas.jooq.tables.records.SecBizPayloadRecord;
 import org.scleropages.kapuas.security.payload.entity.BizPayloadEntity;
 import org.springframework.data.repository.CrudRepository;
+import org.springframework.util.Assert;
 
+import java.util.Collections;
 import java.util.List;
+import java.util.Map;
 
 /**
  * @author <a href="mailto:martinmao@icloud.com">Martin Mao</a>
@@ -30,24 +36,87 @@ public interface BizPayloadEntityRepository extends CrudRepository<BizPayloadEnt
 
     BizPayloadEntity getByBizIdAndTypeIdAndPayloadId(Integer bizId, Integer typeId, Long payloadId);
 
-    default List<String> findAllTextByBizIdAndTypeIdAndPayloadId(Integer bizId, Long typeId, Long... payloadId) {
+    /**
+     * @return payload id -> stored text(may compressed, see {@link org.scleropages.kapuas.security.payload.BizPayloadCodec}).
+     */
+    default Map<Long, String> findAllTextByBizIdAndTypeIdAndPayloadId(Integer bizId, Long typeId, Long... payloadId) {
         SecBizPayload secBizPayload = dslTable();
-        return dslContext().select(secBizPayload.TEXT_)
+        return dslContext().select(secBizPayload.PAYLOAD_ID, secBizPayload.TEXT_)
                 .from(secBizPayload)
-                .where(secBizPayload.BIZ_ID.eq(bizId)).and(secBizPayload.TYPE_ID.eq(typeId)).and(secBizPayload.PAYLOAD_ID.in(payloadId)).fetch(secBizPayload.TEXT_);
+                .where(secBizPayload.BIZ_ID.eq(bizId)).and(secBizPayload.TYPE_ID.eq(typeId)).and(secBizPayload.PAYLOAD_ID.in(payloadId)).fetchMap(secBizPayload.PAYLOAD_ID, secBizPayload.TEXT_);
     }
 
-    default boolean saveTextByBizIdAndTypeIdAndPayloadId(Integer bizId, Long typeId, Long payloadId, String text) {
+    /**
+     * @param id used only if payload not exists(see {@link #upsertAll(List)}).
+     */
+    default boolean saveTextByBizIdAndTypeIdAndPayloadId(Long id, Integer bizId, Long typeId, Long payloadId, String text) {
+        BizPayloadEntity payload = new BizPayloadEntity();
+        payload.setId(id);
+        payload.setBizId(bizId);
+        payload.setTypeId(typeId);
+        payload.setPayloadId(payloadId);
+        payload.setText(text);
+        return upsertAll(Collections.singletonList(payload)) == 1;
+    }
+
+    /**
+     * insert or update given payloads(INSERT ... ON CONFLICT/ON DUPLICATE KEY UPDATE by (biz_id, type_id, payload_id)), executed as one jdbc batch.
+     *
+     * @param payloads ids must be allocated(see {@link org.scleropages.kapuas.jdbc.EntityIdAllocator}). id written by insert branch only,
+     *                 existing payloads keep their id(allocated id skipped).
+     * @return number of payloads upserted.
+     */
+    default int upsertAll(List<BizPayloadEntity> payloads) {
+        if (payloads.isEmpty())
+            return 0;
+        SecBizPayload secBizPayload = dslTable();
+        List<Query> upserts = Lists.newArrayListWithCapacity(payloads.size());
+        payloads.forEach(payload -> {
+            Assert.notNull(payload.getId(), "payload id must be allocated before upsert.");
+            upserts.add(dslContext().insertInto(secBizPayload, secBizPayload.ID, secBizPayload.BIZ_ID, secBizPayload.TYPE_ID, secBizPayload.PAYLOAD_ID, secBizPayload.TEXT_)
+                    .values(payload.getId(), payload.getBizId(), payload.getTypeId(), payload.getPayloadId(), payload.getText())
+                    .onConflict(secBizPayload.BIZ_ID, secBizPayload.TYPE_ID, secBizPayload.PAYLOAD_ID)
+                    .doUpdate().set(secBizPayload.TEXT_, payload.getText()));
+        });
+        dslContext().batch(upserts).execute();
+        return upserts.size();
+    }
+
+    /**
+     * insert given payloads with one multi-row insert statement(bulk creation).
+     *
+     * @param payloads ids must be allocated(see {@link org.scleropages.kapuas.jdbc.EntityIdAllocator}), id column has no default value.
+     */
+    default void insertAll(List<BizPayloadEntity> payloads) {
+        if (payloads.isEmpty())
+            return;
+        SecBizPayload secBizPayload = dslTable();
+        InsertValuesStep5<SecBizPayloadRecord, Long, Integer, Long, Long, String> insert = dslContext().insertInto(secBizPayload,
+                secBizPayload.ID, secBizPayload.BIZ_ID, secBizPayload.TYPE_ID, secBizPayload.PAYLOAD_ID, secBizPayload.TEXT_);
+        payloads.forEach(payload -> {
+            Assert.notNull(payload.getId(), "payload id must be allocated before insert.");
+            insert.values(payload.getId(), payload.getBizId(), payload.getTypeId(), payload.getPayloadId(), payload.getText());
+        });
+        insert.execute();
+    }
+
+    /**
+     * 按payload id顺序读取给定业务类型在id区间内的载荷，用于全量导出时按id归并.
+     *
+     * @param bizId
+     * @param typeId
+     * @param fromPayloadId
+     * @param toPayloadId
+     * @return
+     */
+    default List<BizPayloadEntity> findAllByBizIdAndTypeIdAndPayloadIdBetween(Integer bizId, Long typeId, Long fromPayloadId, Long toPayloadId) {
         SecBizPayload secBizPayload = dslTable();
-        SecBizPayloadRecord secBizPayloadRecord = dslContext().selectFrom(secBizPayload)
-                .where(secBizPayload.BIZ_ID.eq(bizId)).and(secBizPayload.TYPE_ID.eq(typeId)).and(secBizPayload.PAYLOAD_ID.eq(payloadId))
-                .fetchOptional().orElseGet(() -> dslContext().newRecord(secBizPayload));
-        if (null == secBizPayloadRecord.getId()) {
-            secBizPayloadRecord.setBizId(bizId);
-            secBizPayloadRecord.setTypeId(typeId);
-            secBizPayloadRecord.setPayloadId(payloadId);
-        }
-        secBizPayloadRecord.setText_(text);
-        return secBizPayloadRecord.store() == 1;
+        return dslContext().selectFrom(secBizPayload)
+                .where(secBizPayload.BIZ_ID.eq(bizId)).and(secBizPayload.TYPE_ID.eq(typeId)).and(secBizPayload.PAYLOAD_ID.between(fromPayloadId, toPayloadId))
+                .orderBy(secBizPayload.PAYLOAD_ID).fetch(record -> {
+                    BizPayloadEntity entity = new BizPayloadEntity();
+                    dslRecordInto(record, entity);
+                    return entity;
+                });
     }
 }